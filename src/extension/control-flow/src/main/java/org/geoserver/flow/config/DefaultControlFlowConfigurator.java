@@ -6,7 +6,9 @@
 package org.geoserver.flow.config;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
 import java.util.logging.Logger;
@@ -15,6 +17,7 @@ import java.util.regex.Pattern;
 
 import org.geoserver.flow.ControlFlowConfigurator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.controller.AdaptiveFlowController;
 import org.geoserver.flow.controller.BasicOWSController;
 import org.geoserver.flow.controller.CookieKeyGenerator;
 import org.geoserver.flow.controller.GlobalFlowController;
@@ -22,6 +25,8 @@ import org.geoserver.flow.controller.IpFlowController;
 import org.geoserver.flow.controller.IpKeyGenerator;
 import org.geoserver.flow.controller.KeyGenerator;
 import org.geoserver.flow.controller.OWSRequestMatcher;
+import org.geoserver.flow.controller.PriorityClass;
+import org.geoserver.flow.controller.PriorityFlowController;
 import org.geoserver.flow.controller.RateFlowController;
 import org.geoserver.flow.controller.SingleIpFlowController;
 import org.geoserver.flow.controller.UserConcurrentFlowController;
@@ -40,6 +45,8 @@ import org.geotools.util.logging.Logging;
 public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
     static final Pattern RATE_PATTERN = Pattern.compile("(\\d+)/([smhd])(;(\\d+)s)?");
 
+    static final Pattern PRIORITY_CLASS_PATTERN = Pattern.compile("(\\d+)(;(\\d+)s)?");
+
     static final Logger LOGGER = Logging.getLogger(DefaultControlFlowConfigurator.class);
     static final String PROPERTYFILENAME="controlflow.properties";
 
@@ -101,6 +108,7 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
 
         Properties p = configFile.getProperties();
         List<FlowController> newControllers = new ArrayList<FlowController>();
+        Map<String, String> priorityRules = new LinkedHashMap<String, String>();
         for (Object okey : p.keySet()) {
             String key = ((String) okey).trim();
             String value = (String) p.get(okey);
@@ -108,6 +116,12 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
 
             String[] keys = key.split("\\s*\\.\\s*");
 
+            // the priority rules all contribute to a single controller
+            if ("priority".equals(keys[0])) {
+                priorityRules.put(key, value.trim());
+                continue;
+            }
+
             int queueSize = 0;
             StringTokenizer tokenizer = new StringTokenizer(value, ",");
             try {
@@ -145,6 +159,8 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
                 } else if (keys.length == 2) {
                     controller = new BasicOWSController(keys[1], queueSize);
                 }
+            } else if ("adaptive".equals(keys[0])) {
+                controller = buildAdaptiveController(keys, value);
             } else if ("user".equals(keys[0])) {
                 if (keys.length == 1) {
                     controller = new UserConcurrentFlowController(queueSize);
@@ -183,10 +199,123 @@ public class DefaultControlFlowConfigurator implements ControlFlowConfigurator {
                 newControllers.add(controller);
             }
         }
+        if (!priorityRules.isEmpty()) {
+            FlowController controller = buildPriorityController(priorityRules);
+            if (controller != null) {
+                newControllers.add(controller);
+            }
+        }
 
         return newControllers;
     }
 
+    /**
+     * Builds a {@link PriorityFlowController} out of a <code>priority.ows=slots[,user|ip|none]</code>
+     * rule and a set of
+     * <code>priority.class.ows[.service[.request[.format]]]=weight[;timeout s]</code> ones
+     */
+    FlowController buildPriorityController(Map<String, String> rules) {
+        String pool = null;
+        List<PriorityClass> classes = new ArrayList<PriorityClass>();
+        for (Map.Entry<String, String> rule : rules.entrySet()) {
+            String[] keys = rule.getKey().split("\\s*\\.\\s*");
+            String value = rule.getValue();
+            if (keys.length == 2 && "ows".equals(keys[1])) {
+                pool = value;
+            } else if (keys.length >= 3 && "ows".equals(keys[2])) {
+                Matcher matcher = PRIORITY_CLASS_PATTERN.matcher(value);
+                if (!matcher.matches() || Integer.parseInt(matcher.group(1)) <= 0) {
+                    LOGGER.severe("Priority class rules should be expressed as "
+                            + "priority.<class>.ows[.<service>[.<request>[.<outputFormat>]]]="
+                            + "<weight>[;<timeout>s], with a positive weight. This one is invalid: "
+                            + rule.getKey() + "=" + value);
+                    continue;
+                }
+                int weight = Integer.parseInt(matcher.group(1));
+                long timeout = -1;
+                if (matcher.group(3) != null) {
+                    timeout = Integer.parseInt(matcher.group(3)) * 1000;
+                }
+                String service = keys.length >= 4 ? keys[3] : null;
+                String request = keys.length >= 5 ? keys[4] : null;
+                String format = keys.length >= 6 ? keys[5] : null;
+                OWSRequestMatcher requestMatcher = new OWSRequestMatcher(service, request, format);
+                classes.add(new PriorityClass(keys[1], requestMatcher, weight, timeout));
+            } else {
+                LOGGER.severe("Could not parse rule '" + rule.getKey() + "=" + value);
+            }
+        }
+        if (pool == null) {
+            LOGGER.severe("Priority classes are ignored without a priority.ows=<slots> rule "
+                    + "setting the number of requests running in parallel");
+            return null;
+        }
+
+        String[] params = pool.split("\\s*,\\s*");
+        int slots;
+        try {
+            slots = Integer.parseInt(params[0]);
+        } catch (NumberFormatException e) {
+            slots = 0;
+        }
+        String fairness = params.length > 1 ? params[1] : "ip";
+        if (slots <= 0 || params.length > 2) {
+            LOGGER.severe("The priority rule should be expressed as "
+                    + "priority.ows=<slots>[,user|ip|none], instead got " + pool);
+            return null;
+        }
+        KeyGenerator keyGenerator;
+        if ("ip".equalsIgnoreCase(fairness)) {
+            keyGenerator = new IpKeyGenerator();
+        } else if ("user".equalsIgnoreCase(fairness)) {
+            keyGenerator = new CookieKeyGenerator();
+        } else if ("none".equalsIgnoreCase(fairness)) {
+            keyGenerator = null;
+        } else {
+            LOGGER.severe("Unknown priority fairness " + fairness
+                    + ", should be one of user, ip or none");
+            return null;
+        }
+        return new PriorityFlowController(slots, classes, keyGenerator);
+    }
+
+    /**
+     * Builds an {@link AdaptiveFlowController} out of a
+     * <code>adaptive.ows[.global|.service[.request[.format]]]=min,max</code> rule
+     */
+    FlowController buildAdaptiveController(String[] keys, String value) {
+        String[] limits = value.split(",");
+        if (keys.length < 2 || !"ows".equals(keys[1]) || limits.length != 2) {
+            LOGGER.severe("Adaptive rules should be expressed as "
+                    + "adaptive.ows[.<service>[.<request>[.<outputFormat>]]]=<min>,<max>");
+            return null;
+        }
+        int min, max;
+        try {
+            min = Integer.parseInt(limits[0].trim());
+            max = Integer.parseInt(limits[1].trim());
+        } catch (NumberFormatException e) {
+            LOGGER.severe("Adaptive rules limits should be integers, instead got " + value);
+            return null;
+        }
+        if (min <= 0 || max < min) {
+            LOGGER.severe("Adaptive rules need a positive floor not greater than the ceiling, "
+                    + "instead got " + value);
+            return null;
+        }
+
+        OWSRequestMatcher matcher;
+        if (keys.length == 2 || (keys.length == 3 && "global".equals(keys[2]))) {
+            matcher = new OWSRequestMatcher();
+        } else {
+            String service = keys[2];
+            String request = keys.length >= 4 ? keys[3] : null;
+            String format = keys.length >= 5 ? keys[4] : null;
+            matcher = new OWSRequestMatcher(service, request, format);
+        }
+        return new AdaptiveFlowController(matcher, min, max);
+    }
+
     public boolean isStale() {
         return configFile.isStale();
     }
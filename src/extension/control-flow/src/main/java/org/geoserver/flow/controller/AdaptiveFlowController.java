@@ -0,0 +1,293 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+
+import com.google.common.base.Predicate;
+
+/**
+ * A flow controller limiting the number of matching requests running in parallel, like the
+ * {@link SingleQueueFlowController}, but adjusting the limit on its own, between a floor and a
+ * ceiling, based on the observed request latency.
+ * <p>
+ * The controller tracks the minimum latency, taken as the latency of the requests when the server
+ * is not overloaded, and a moving average of the recent latencies. As long as the recent latency
+ * stays within {@link #TOLERANCE} times the minimum one the limit grows by its square root, when
+ * it gets higher the limit is reduced proportionally (gradient algorithm), queueing the requests
+ * in excess. The minimum latency is measured again every {@link #PROBE_INTERVAL} requests, so that
+ * it follows lasting changes of the workload. Changes are smoothed, and the limit does not grow
+ * when less than half of it is being used.
+ * </p>
+ * <p>
+ * The requests of different kinds can have very different latencies, the controller works best
+ * when its matcher targets a homogeneous set of requests, for example the GetMap ones.
+ * </p>
+ */
+public class AdaptiveFlowController implements FlowController {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    /**
+     * How much the recent latency can exceed the minimum one before the limit is reduced
+     */
+    static final double TOLERANCE = 1.5;
+
+    /**
+     * Weight of a new latency in the moving average
+     */
+    static final double RTT_ALPHA = 0.1;
+
+    /**
+     * Weight of a new limit against the current one
+     */
+    static final double SMOOTHING = 0.2;
+
+    /**
+     * Number of requests after which the minimum latency is measured again
+     */
+    static final int PROBE_INTERVAL = 1000;
+
+    Predicate<Request> matcher;
+
+    final int minLimit;
+
+    final int maxLimit;
+
+    final ReentrantLock lock = new ReentrantLock(true);
+
+    final Condition available = lock.newCondition();
+
+    /**
+     * Start time of the request admitted in the current thread
+     */
+    final ThreadLocal<Long> started = new ThreadLocal<Long>();
+
+    double limit;
+
+    int running;
+
+    int queued;
+
+    long timeouts;
+
+    long samples;
+
+    /**
+     * The minimum latency, and the minimum of the current probe interval, in nanoseconds
+     */
+    long minRtt;
+
+    long probeMinRtt = Long.MAX_VALUE;
+
+    /**
+     * Moving average of the latency, in nanoseconds
+     */
+    double rtt;
+
+    public AdaptiveFlowController(Predicate<Request> matcher, int minLimit, int maxLimit) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid limits, the floor must be positive and "
+                    + "not greater than the ceiling: " + minLimit + "," + maxLimit);
+        }
+        this.matcher = matcher;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = minLimit;
+    }
+
+    public int getPriority() {
+        return maxLimit;
+    }
+
+    public boolean requestIncoming(Request request, long timeout) {
+        if (!matcher.apply(request)) {
+            return true;
+        }
+        lock.lock();
+        try {
+            if (running >= (int) limit) {
+                queued++;
+                try {
+                    long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+                    while (running >= (int) limit) {
+                        if (timeout > 0) {
+                            if (nanos <= 0) {
+                                timeouts++;
+                                return false;
+                            }
+                            nanos = available.awaitNanos(nanos);
+                        } else {
+                            available.await();
+                        }
+                    }
+                } finally {
+                    queued--;
+                }
+            }
+            running++;
+            started.set(System.nanoTime());
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Unexpected interruption while waiting for the request to "
+                    + "be admitted");
+        } finally {
+            lock.unlock();
+        }
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(this + " admitted a request");
+        }
+        return true;
+    }
+
+    public void requestComplete(Request request) {
+        Long start = started.get();
+        if (start == null) {
+            // not admitted by this controller
+            return;
+        }
+        started.remove();
+        long latency = System.nanoTime() - start;
+        lock.lock();
+        try {
+            running--;
+            update(latency);
+            // wake up as many waiting requests as there are free slots
+            for (int i = running; i < (int) limit; i++) {
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Updates the limit with the latency of a completed request, must be called holding the lock
+     */
+    void update(long latency) {
+        samples++;
+        if (latency < probeMinRtt) {
+            probeMinRtt = latency;
+        }
+        if (minRtt == 0 || latency < minRtt) {
+            minRtt = latency;
+        }
+        if (samples % PROBE_INTERVAL == 0) {
+            minRtt = probeMinRtt;
+            probeMinRtt = Long.MAX_VALUE;
+        }
+        rtt = rtt == 0 ? latency : rtt + (latency - rtt) * RTT_ALPHA;
+
+        double gradient = Math.max(0.5, Math.min(1, TOLERANCE * minRtt / Math.max(rtt, 1)));
+        double newLimit = limit * gradient + Math.sqrt(limit);
+        if (newLimit > limit && running + 1 < limit / 2) {
+            // the limit is not being used, no feedback on whether raising it would be safe
+            newLimit = limit;
+        }
+        newLimit = limit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+        newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+        if ((int) newLimit != (int) limit && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(this + " limit changed to " + (int) newLimit);
+        }
+        limit = newLimit;
+    }
+
+    /**
+     * The current concurrency limit
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * Number of requests currently running
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of requests currently waiting to run
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of requests that timed out while waiting to run
+     */
+    public long getTimeouts() {
+        lock.lock();
+        try {
+            return timeouts;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The minimum latency, in milliseconds
+     */
+    public double getMinLatency() {
+        lock.lock();
+        try {
+            return minRtt / 1000000d;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The moving average of the latency, in milliseconds
+     */
+    public double getLatency() {
+        lock.lock();
+        try {
+            return rtt / 1000000d;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Predicate<Request> getMatcher() {
+        return matcher;
+    }
+
+    @Override
+    public String toString() {
+        return "AdaptiveFlowController(" + matcher + "," + minLimit + "-" + maxLimit + ")";
+    }
+}
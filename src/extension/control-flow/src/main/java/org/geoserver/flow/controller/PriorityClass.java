@@ -0,0 +1,126 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.flow.controller.PriorityFlowController.Waiter;
+
+/**
+ * A class of requests scheduled by the {@link PriorityFlowController}, along with its statistics.
+ * When the controller is saturated each class gets a share of the freed slots proportional to its
+ * weight.
+ */
+public class PriorityClass {
+
+    final String name;
+
+    final OWSRequestMatcher matcher;
+
+    final int weight;
+
+    final long timeout;
+
+    /**
+     * The queued requests, one FIFO queue per user, in round robin order. Guarded by the
+     * controller lock
+     */
+    final LinkedHashMap<String, LinkedList<Waiter>> flows = new LinkedHashMap<String, LinkedList<Waiter>>();
+
+    /**
+     * Stride scheduling pass, the class with the lowest one goes next. Guarded by the controller
+     * lock
+     */
+    double pass;
+
+    volatile int queued;
+
+    volatile int running;
+
+    final AtomicLong admitted = new AtomicLong();
+
+    final AtomicLong shed = new AtomicLong();
+
+    final QueueWaitHistogram waits = new QueueWaitHistogram();
+
+    /**
+     * Builds a new priority class
+     *
+     * @param name the class name, used for logging and statistics
+     * @param matcher the requests belonging to the class
+     * @param weight the share of the slots the class gets, relative to the other classes
+     * @param timeout the maximum time, in milliseconds, requests of this class can wait in queue,
+     *        or a non positive number to just use the global timeout
+     */
+    public PriorityClass(String name, OWSRequestMatcher matcher, int weight, long timeout) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Priority class weight must be positive");
+        }
+        this.name = name;
+        this.matcher = matcher;
+        this.weight = weight;
+        this.timeout = timeout;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public OWSRequestMatcher getMatcher() {
+        return matcher;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Number of requests of this class waiting to run
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Number of requests of this class running
+     */
+    public int getRunning() {
+        return running;
+    }
+
+    /**
+     * Number of requests of this class admitted so far
+     */
+    public long getAdmitted() {
+        return admitted.get();
+    }
+
+    /**
+     * Number of requests of this class rejected because their deadline passed, or could not be
+     * met, while queued
+     */
+    public long getShed() {
+        return shed.get();
+    }
+
+    /**
+     * The time the admitted requests of this class waited in queue
+     */
+    public QueueWaitHistogram getQueueWait() {
+        return waits;
+    }
+
+    @Override
+    public String toString() {
+        return "PriorityClass(" + name + "," + matcher + "," + weight + ")";
+    }
+}
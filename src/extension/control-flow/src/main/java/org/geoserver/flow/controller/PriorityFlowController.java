@@ -0,0 +1,434 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.flow.ControlFlowCallback;
+import org.geoserver.flow.FlowController;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
+import org.geotools.util.logging.Logging;
+
+/**
+ * A flow controller limiting the number of requests running in parallel, that, when saturated,
+ * picks the next request to run based on its priority class instead of its arrival order.
+ * <p>
+ * Each request is assigned to the first {@link PriorityClass} matching it, the most specific
+ * classes being checked first, or to a default class with weight 1. Freed slots are shared among
+ * the classes with queued requests proportionally to their weights (stride scheduling), and within
+ * a class among the users with queued requests, round robin, so that a single user cannot starve
+ * the others sending many requests at once.
+ * </p>
+ * <p>
+ * Requests are shed, that is, rejected with a HTTP 503, when their deadline passed while queued, or
+ * as soon as they get queued if the expected wait, estimated from the recent execution times,
+ * exceeds it. The deadline is given by the global timeout, or by the class one, if shorter. This
+ * avoids running requests whose clients have already given up on them. The error is raised by the
+ * controller itself, as the class timeout applies even when no global timeout is configured, in
+ * which case the result of {@link #requestIncoming(Request, long)} is not checked.
+ * </p>
+ */
+public class PriorityFlowController implements FlowController {
+    static final Logger LOGGER = Logging.getLogger(ControlFlowCallback.class);
+
+    /**
+     * Weight of a new execution time in the moving average
+     */
+    static final double SERVICE_ALPHA = 0.1;
+
+    static final String DEFAULT_CLASS = "default";
+
+    /**
+     * A request waiting for, or holding, a slot
+     */
+    static final class Waiter {
+        final PriorityClass priorityClass;
+
+        final String flow;
+
+        final long enqueued;
+
+        final long deadline;
+
+        final Condition condition;
+
+        boolean granted;
+
+        boolean shed;
+
+        long started;
+
+        Waiter(PriorityClass priorityClass, String flow, long enqueued, long deadline,
+                Condition condition) {
+            this.priorityClass = priorityClass;
+            this.flow = flow;
+            this.enqueued = enqueued;
+            this.deadline = deadline;
+            this.condition = condition;
+        }
+    }
+
+    final int slots;
+
+    final List<PriorityClass> classes;
+
+    final KeyGenerator keyGenerator;
+
+    final ReentrantLock lock = new ReentrantLock();
+
+    /**
+     * The request admitted in the current thread
+     */
+    final ThreadLocal<Waiter> admitted = new ThreadLocal<Waiter>();
+
+    int running;
+
+    int queued;
+
+    /**
+     * Pass of the last scheduled class, classes that were idle start from here
+     */
+    double virtualTime;
+
+    /**
+     * Moving average of the execution time, in nanoseconds
+     */
+    double serviceTime;
+
+    /**
+     * Builds a new priority flow controller
+     *
+     * @param slots the maximum number of requests running in parallel
+     * @param classes the priority classes, a default one is added for the requests not matching
+     *        any of them
+     * @param keyGenerator identifies the users among which each class slots are shared, or null to
+     *        serve each class in plain FIFO order
+     */
+    public PriorityFlowController(int slots, List<PriorityClass> classes,
+            KeyGenerator keyGenerator) {
+        if (slots <= 0) {
+            throw new IllegalArgumentException("The number of slots must be positive");
+        }
+        this.slots = slots;
+        this.keyGenerator = keyGenerator;
+        this.classes = new ArrayList<PriorityClass>(classes);
+        // most specific matchers first
+        Collections.sort(this.classes, new Comparator<PriorityClass>() {
+
+            @Override
+            public int compare(PriorityClass c1, PriorityClass c2) {
+                int diff = specificity(c2.getMatcher()) - specificity(c1.getMatcher());
+                return diff != 0 ? diff : c1.getName().compareTo(c2.getName());
+            }
+        });
+        if (this.classes.isEmpty()
+                || specificity(this.classes.get(this.classes.size() - 1).getMatcher()) > 0) {
+            this.classes.add(new PriorityClass(DEFAULT_CLASS, new OWSRequestMatcher(), 1, -1));
+        }
+    }
+
+    static int specificity(OWSRequestMatcher matcher) {
+        int result = 0;
+        if (matcher.getService() != null) {
+            result++;
+        }
+        if (matcher.getMethod() != null) {
+            result++;
+        }
+        if (matcher.getOutputFormat() != null) {
+            result++;
+        }
+        return result;
+    }
+
+    public int getPriority() {
+        return slots;
+    }
+
+    public boolean requestIncoming(Request request, long timeout) {
+        PriorityClass pc = classify(request);
+        if (pc.getTimeout() > 0 && (timeout <= 0 || pc.getTimeout() < timeout)) {
+            timeout = pc.getTimeout();
+        }
+        long now = System.nanoTime();
+        long deadline = timeout > 0 ? now + TimeUnit.MILLISECONDS.toNanos(timeout)
+                : Long.MAX_VALUE;
+        Waiter waiter = new Waiter(pc, getFlow(request), now, deadline, lock.newCondition());
+
+        lock.lock();
+        try {
+            if (running < slots && queued == 0) {
+                grant(waiter, now);
+            } else {
+                if (timeout > 0 && estimateWait(pc) > TimeUnit.MILLISECONDS.toNanos(timeout)) {
+                    pc.shed.incrementAndGet();
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine(this + " shed a " + pc.getName()
+                                + " request, it would not run within " + timeout + "ms");
+                    }
+                    throw new HttpErrorCodeException(503, "Request rejected, it would not be "
+                            + "executed within " + timeout + "ms, please lower your request rate");
+                }
+
+                enqueue(waiter);
+                boolean interrupted = false;
+                try {
+                    while (!waiter.granted && !waiter.shed) {
+                        if (deadline == Long.MAX_VALUE) {
+                            waiter.condition.await();
+                        } else {
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0) {
+                                break;
+                            }
+                            waiter.condition.awaitNanos(left);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    LOGGER.log(Level.WARNING, "Unexpected interruption while waiting for the "
+                            + "request to be admitted");
+                    interrupted = true;
+                }
+                if (!waiter.granted) {
+                    if (!waiter.shed) {
+                        remove(waiter);
+                        if (interrupted) {
+                            // proceed without holding a slot, like the other controllers do
+                            return true;
+                        }
+                        pc.shed.incrementAndGet();
+                    }
+                    if (LOGGER.isLoggable(Level.FINE)) {
+                        LOGGER.fine(this + " shed a " + pc.getName()
+                                + " request, its deadline passed while queued");
+                    }
+                    throw new HttpErrorCodeException(503, "Request timed out while waiting to be "
+                            + "executed, please lower your request rate");
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        admitted.set(waiter);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(this + " admitted a " + pc.getName() + " request");
+        }
+        return true;
+    }
+
+    public void requestComplete(Request request) {
+        Waiter waiter = admitted.get();
+        if (waiter == null) {
+            // not admitted by this controller
+            return;
+        }
+        admitted.remove();
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            running--;
+            waiter.priorityClass.running--;
+            long elapsed = now - waiter.started;
+            serviceTime = serviceTime == 0 ? elapsed : serviceTime + (elapsed - serviceTime)
+                    * SERVICE_ALPHA;
+            dispatch(now);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the class the request belongs to
+     */
+    PriorityClass classify(Request request) {
+        for (PriorityClass pc : classes) {
+            if (pc.getMatcher().apply(request)) {
+                return pc;
+            }
+        }
+        // the last class matches everything, cannot get here
+        return classes.get(classes.size() - 1);
+    }
+
+    String getFlow(Request request) {
+        if (keyGenerator == null || request == null || request.getHttpRequest() == null
+                || request.getHttpResponse() == null) {
+            return "";
+        }
+        return keyGenerator.getUserKey(request);
+    }
+
+    /**
+     * Hands the free slots to the next queued requests, shedding the ones whose deadline passed.
+     * Must be called holding the lock
+     */
+    void dispatch(long now) {
+        while (running < slots && queued > 0) {
+            Waiter next = next();
+            if (next.deadline <= now) {
+                next.shed = true;
+                next.priorityClass.shed.incrementAndGet();
+            } else {
+                grant(next, now);
+            }
+            next.condition.signal();
+        }
+    }
+
+    /**
+     * Must be called holding the lock
+     */
+    void grant(Waiter waiter, long now) {
+        waiter.granted = true;
+        waiter.started = now;
+        running++;
+        PriorityClass pc = waiter.priorityClass;
+        pc.running++;
+        pc.admitted.incrementAndGet();
+        pc.waits.record(TimeUnit.NANOSECONDS.toMillis(now - waiter.enqueued));
+    }
+
+    /**
+     * Queues a waiter in its class and user flow. Must be called holding the lock
+     */
+    void enqueue(Waiter waiter) {
+        PriorityClass pc = waiter.priorityClass;
+        if (pc.queued == 0) {
+            // an idle class does not accumulate credit
+            pc.pass = Math.max(pc.pass, virtualTime);
+        }
+        LinkedList<Waiter> flow = pc.flows.get(waiter.flow);
+        if (flow == null) {
+            flow = new LinkedList<Waiter>();
+            pc.flows.put(waiter.flow, flow);
+        }
+        flow.add(waiter);
+        pc.queued++;
+        queued++;
+    }
+
+    /**
+     * Removes a waiter from the queue. Must be called holding the lock
+     */
+    void remove(Waiter waiter) {
+        PriorityClass pc = waiter.priorityClass;
+        LinkedList<Waiter> flow = pc.flows.get(waiter.flow);
+        if (flow != null && flow.remove(waiter)) {
+            if (flow.isEmpty()) {
+                pc.flows.remove(waiter.flow);
+            }
+            pc.queued--;
+            queued--;
+        }
+    }
+
+    /**
+     * Removes and returns the next waiter to be served: the head of the first user flow of the
+     * class with the lowest pass. Must be called holding the lock, with a non empty queue
+     */
+    Waiter next() {
+        PriorityClass selected = null;
+        for (PriorityClass pc : classes) {
+            if (pc.queued > 0 && (selected == null || pc.pass < selected.pass)) {
+                selected = pc;
+            }
+        }
+        virtualTime = selected.pass;
+        selected.pass += 1d / selected.getWeight();
+
+        Iterator<Map.Entry<String, LinkedList<Waiter>>> it = selected.flows.entrySet()
+                .iterator();
+        Map.Entry<String, LinkedList<Waiter>> entry = it.next();
+        LinkedList<Waiter> flow = entry.getValue();
+        Waiter waiter = flow.removeFirst();
+        it.remove();
+        if (!flow.isEmpty()) {
+            // round robin, the user goes back at the end of the line
+            selected.flows.put(entry.getKey(), flow);
+        }
+        selected.queued--;
+        queued--;
+        return waiter;
+    }
+
+    /**
+     * Estimates how long a new request of the given class would wait, in nanoseconds, based on
+     * the requests queued ahead of it, taking into account the class weights, and the average
+     * execution time. Must be called holding the lock
+     */
+    long estimateWait(PriorityClass pc) {
+        if (serviceTime == 0) {
+            return 0;
+        }
+        double own = pc.queued + 1;
+        double ahead = own;
+        for (PriorityClass other : classes) {
+            if (other != pc) {
+                ahead += Math.min(other.queued, own * other.getWeight() / pc.getWeight());
+            }
+        }
+        return (long) (ahead * serviceTime / slots);
+    }
+
+    /**
+     * The maximum number of requests running in parallel
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * Number of requests currently running
+     */
+    public int getRunning() {
+        lock.lock();
+        try {
+            return running;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Number of requests currently waiting to run
+     */
+    public int getQueued() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The priority classes, in matching order, the last one being the catch all class
+     */
+    public List<PriorityClass> getClasses() {
+        return Collections.unmodifiableList(classes);
+    }
+
+    public KeyGenerator getKeyGenerator() {
+        return keyGenerator;
+    }
+
+    @Override
+    public String toString() {
+        return "PriorityFlowController(" + slots + ")";
+    }
+}
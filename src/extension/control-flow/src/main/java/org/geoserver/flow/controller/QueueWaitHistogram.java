@@ -0,0 +1,103 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of the time requests spent waiting in a queue, in milliseconds. Uses one bucket per
+ * power of two, which is precise enough to tell apart a queue adding a few milliseconds from one
+ * adding seconds, without keeping the values around.
+ */
+public class QueueWaitHistogram {
+
+    static final int BUCKETS = 64;
+
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    final AtomicLong count = new AtomicLong();
+
+    final AtomicLong sum = new AtomicLong();
+
+    final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a wait time in milliseconds, negative values are recorded as zero
+     */
+    public void record(long millis) {
+        if (millis < 0) {
+            millis = 0;
+        }
+        counts.incrementAndGet(index(millis));
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+        long m;
+        do {
+            m = max.get();
+        } while (millis > m && !max.compareAndSet(m, millis));
+    }
+
+    static int index(long millis) {
+        // 0 goes in the first bucket, then [1], [2,3], [4,7] and so on
+        return 64 - Long.numberOfLeadingZeros(millis);
+    }
+
+    /**
+     * Number of recorded waits
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Longest recorded wait
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Average wait, 0 if none was recorded
+     */
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * Returns the wait below which the given percentage of the recorded ones fall, that is, the
+     * upper bound of the bucket the percentile falls in, never more than the longest wait
+     *
+     * @param percentile the percentile, between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                long upper = i == 0 ? 0 : (1L << i) - 1;
+                return Math.min(upper, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + Math.round(getMean()) + "ms, p50="
+                + getPercentile(50) + "ms, p99=" + getPercentile(99) + "ms, max=" + getMax()
+                + "ms";
+    }
+}
@@ -9,8 +9,12 @@ import static org.junit.Assert.*;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
+import org.geoserver.flow.controller.OWSRequestMatcher;
+import org.geoserver.flow.controller.PriorityClass;
+import org.geoserver.flow.controller.PriorityFlowController;
 import org.geoserver.ows.HttpErrorCodeException;
 import org.geoserver.ows.Request;
 import org.junit.Test;
@@ -60,6 +64,35 @@ public class ControlFlowCallbackTest {
         callback.finished(null);
     }
     
+    @Test
+    public void testPriorityClassTimeout() {
+        // a single slot, and tile requests waiting at most 100ms
+        PriorityFlowController controller = new PriorityFlowController(1,
+                Collections.singletonList(new PriorityClass("tiles", new OWSRequestMatcher("gwc"),
+                        1, 100)), null);
+        ControlFlowCallback callback = new ControlFlowCallback();
+        TestingConfigurator tc = new TestingConfigurator();
+        // no global timeout
+        tc.timeout = -1;
+        tc.controllers.add(controller);
+        callback.provider = new DefaultFlowControllerProvider(tc);
+
+        Request request = new Request();
+        request.setService("gwc");
+        // the slot is taken
+        assertTrue(controller.requestIncoming(request, -1));
+
+        // the class timeout is enforced anyways
+        try {
+            callback.operationDispatched(request, null);
+            fail("A HTTP 503 should have been raised!");
+        } catch (HttpErrorCodeException e) {
+            assertEquals(503, e.getErrorCode());
+        }
+        callback.finished(null);
+        assertEquals(0, controller.getQueued());
+    }
+
     @Test
     public void testDelayHeader() {
         ControlFlowCallback callback = new ControlFlowCallback();
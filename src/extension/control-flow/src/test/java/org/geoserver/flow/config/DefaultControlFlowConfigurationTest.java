@@ -14,13 +14,19 @@ import java.util.Properties;
 
 import org.geoserver.flow.ControllerPriorityComparator;
 import org.geoserver.flow.FlowController;
+import org.geoserver.flow.controller.AdaptiveFlowController;
 import org.geoserver.flow.controller.BasicOWSController;
 import org.geoserver.flow.controller.GlobalFlowController;
 import org.geoserver.flow.controller.IpFlowController;
+import org.geoserver.flow.controller.IpKeyGenerator;
 import org.geoserver.flow.controller.IpRequestMatcher;
+import org.geoserver.flow.controller.PriorityClass;
+import org.geoserver.flow.controller.PriorityFlowController;
 import org.geoserver.flow.controller.RateFlowController;
 import org.geoserver.flow.controller.SingleIpFlowController;
 import org.geoserver.flow.controller.UserConcurrentFlowController;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
 import org.geoserver.platform.resource.Resource;
 import org.geoserver.security.PropertyFileWatcher;
 import org.junit.Test;
@@ -108,6 +114,122 @@ public class DefaultControlFlowConfigurationTest {
         assertEquals(100, gc.getPriority());
     }
 
+    @Test
+    public void testParsingAdaptive() throws Exception {
+        Properties p = new Properties();
+        p.put("adaptive.ows.global", "10,200");
+        p.put("adaptive.ows.wms.getmap", "4, 32");
+        p.put("adaptive.ows.wfs", "16");
+        p.put("adaptive.ows.wcs", "8,4");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(
+                new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        Collections.sort(controllers, new ControllerPriorityComparator());
+
+        // the last two rules are invalid
+        assertEquals(2, controllers.size());
+
+        assertTrue(controllers.get(0) instanceof AdaptiveFlowController);
+        AdaptiveFlowController ac = (AdaptiveFlowController) controllers.get(0);
+        assertEquals("wms.getmap", ac.getMatcher().toString());
+        assertEquals(4, ac.getMinLimit());
+        assertEquals(32, ac.getMaxLimit());
+        assertEquals(4, ac.getLimit());
+
+        assertTrue(controllers.get(1) instanceof AdaptiveFlowController);
+        ac = (AdaptiveFlowController) controllers.get(1);
+        assertEquals("Any OGC request", ac.getMatcher().toString());
+        assertEquals(10, ac.getMinLimit());
+        assertEquals(200, ac.getMaxLimit());
+    }
+
+    @Test
+    public void testParsingPriority() throws Exception {
+        Properties p = new Properties();
+        p.put("ows.global", "100");
+        p.put("priority.ows", "16");
+        p.put("priority.tiles.ows.gwc", "4");
+        p.put("priority.downloads.ows.wfs.getfeature", "1;30s");
+        p.put("priority.maps.ows.wms", "abc");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(
+                new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        Collections.sort(controllers, new ControllerPriorityComparator());
+        assertEquals(2, controllers.size());
+
+        assertTrue(controllers.get(0) instanceof PriorityFlowController);
+        PriorityFlowController pc = (PriorityFlowController) controllers.get(0);
+        assertEquals(16, pc.getSlots());
+        assertTrue(pc.getKeyGenerator() instanceof IpKeyGenerator);
+        // the invalid class is skipped, a default class is added
+        List<PriorityClass> classes = pc.getClasses();
+        assertEquals(3, classes.size());
+        assertEquals("downloads", classes.get(0).getName());
+        assertEquals("wfs.getfeature", classes.get(0).getMatcher().toString());
+        assertEquals(1, classes.get(0).getWeight());
+        assertEquals(30000, classes.get(0).getTimeout());
+        assertEquals("tiles", classes.get(1).getName());
+        assertEquals("gwc", classes.get(1).getMatcher().toString());
+        assertEquals(4, classes.get(1).getWeight());
+        assertEquals(-1, classes.get(1).getTimeout());
+        assertEquals("default", classes.get(2).getName());
+
+        assertTrue(controllers.get(1) instanceof GlobalFlowController);
+    }
+
+    @Test
+    public void testPriorityClassTimeoutNoGlobalTimeout() throws Exception {
+        Properties p = new Properties();
+        p.put("priority.ows", "1,none");
+        p.put("priority.tiles.ows.gwc", "1;1s");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(
+                new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(1, controllers.size());
+        assertTrue(configurator.getTimeout() <= 0);
+        PriorityFlowController pc = (PriorityFlowController) controllers.get(0);
+
+        Request request = new Request();
+        request.setService("gwc");
+        assertTrue(pc.requestIncoming(request, configurator.getTimeout()));
+        try {
+            // the slot is taken, the request is shed after waiting for the class timeout
+            long start = System.currentTimeMillis();
+            try {
+                pc.requestIncoming(request, configurator.getTimeout());
+                fail("A HTTP 503 should have been raised!");
+            } catch (HttpErrorCodeException e) {
+                assertEquals(503, e.getErrorCode());
+            }
+            assertTrue(System.currentTimeMillis() - start >= 1000);
+            assertEquals(1, pc.getClasses().get(0).getShed());
+        } finally {
+            pc.requestComplete(request);
+        }
+        assertEquals(0, pc.getRunning());
+    }
+
+    @Test
+    public void testParsingPriorityNoSlots() throws Exception {
+        Properties p = new Properties();
+        p.put("priority.tiles.ows.gwc", "4");
+        p.put("priority.maps.ows.wms", "2");
+
+        DefaultControlFlowConfigurator configurator = new DefaultControlFlowConfigurator(
+                new FixedWatcher(p));
+        // classes without the number of slots are ignored
+        assertEquals(0, configurator.buildFlowControllers().size());
+
+        p.put("priority.ows", "16,none");
+        configurator = new DefaultControlFlowConfigurator(new FixedWatcher(p));
+        List<FlowController> controllers = configurator.buildFlowControllers();
+        assertEquals(1, controllers.size());
+        assertNull(((PriorityFlowController) controllers.get(0)).getKeyGenerator());
+    }
+
     static class FixedWatcher extends PropertyFileWatcher {
         boolean stale = true;
 
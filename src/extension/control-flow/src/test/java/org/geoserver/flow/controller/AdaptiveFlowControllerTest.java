@@ -0,0 +1,165 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.flow.controller.FlowControllerTestingThread.ThreadState;
+import org.geoserver.ows.Request;
+import org.junit.Test;
+
+public class AdaptiveFlowControllerTest extends AbstractFlowControllerTest {
+    private static final long MAX_WAIT = 1000;
+
+    /**
+     * Feeds the controller with requests of the given latency, keeping it fully used
+     */
+    void feed(AdaptiveFlowController controller, int count, long latencyMillis) {
+        for (int i = 0; i < count; i++) {
+            controller.lock.lock();
+            try {
+                controller.running = (int) controller.limit;
+                controller.update(TimeUnit.MILLISECONDS.toNanos(latencyMillis));
+            } finally {
+                controller.lock.unlock();
+            }
+        }
+        controller.running = 0;
+    }
+
+    void waitProcessing(FlowControllerTestingThread t, long maxWait) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (t.state != ThreadState.PROCESSING) {
+            if (System.currentTimeMillis() > (start + maxWait))
+                fail("Waited for the thread to be processing more than maxWait: " + maxWait);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testPriority() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(new OWSRequestMatcher(),
+                2, 50);
+        assertEquals(50, controller.getPriority());
+        // starts from the floor
+        assertEquals(2, controller.getLimit());
+    }
+
+    @Test
+    public void testInvalidLimits() {
+        try {
+            new AdaptiveFlowController(new OWSRequestMatcher(), 10, 5);
+            fail("The floor is above the ceiling");
+        } catch (IllegalArgumentException e) {
+            // fine
+        }
+    }
+
+    @Test
+    public void testAdaptLimit() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(new OWSRequestMatcher(),
+                2, 50);
+
+        // steady latency, the limit grows up to the ceiling
+        feed(controller, 300, 10);
+        assertEquals(50, controller.getLimit());
+        assertEquals(10, controller.getMinLatency(), 0.001);
+
+        // the latency goes well above the minimum one, the limit goes down
+        feed(controller, 200, 40);
+        assertTrue(controller.getLimit() <= 10);
+        assertTrue(controller.getLimit() >= 2);
+
+        // once the minimum latency gets measured again, the new latency becomes the norm
+        feed(controller, 1800, 40);
+        assertEquals(40, controller.getMinLatency(), 0.001);
+        assertEquals(50, controller.getLimit());
+    }
+
+    @Test
+    public void testUnusedLimit() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(new OWSRequestMatcher(),
+                4, 50);
+        // a single request at a time, no reason to raise the limit
+        for (int i = 0; i < 100; i++) {
+            controller.lock.lock();
+            try {
+                controller.update(TimeUnit.MILLISECONDS.toNanos(10));
+            } finally {
+                controller.lock.unlock();
+            }
+        }
+        assertEquals(4, controller.getLimit());
+    }
+
+    @Test
+    public void testQueueing() throws Exception {
+        AdaptiveFlowController controller = new AdaptiveFlowController(new OWSRequestMatcher(),
+                1, 1);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(new Request(), 0,
+                Long.MAX_VALUE, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitBlocked(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.PROCESSING, t1.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+            assertEquals(1, controller.getRunning());
+            assertEquals(1, controller.getQueued());
+
+            // let t1 go, this should allow t2 to run
+            t1.interrupt();
+            waitTerminated(t1, MAX_WAIT);
+            waitProcessing(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.COMPLETE, t1.state);
+            assertEquals(ThreadState.PROCESSING, t2.state);
+            assertEquals(1, controller.getRunning());
+            assertEquals(0, controller.getQueued());
+
+            t2.interrupt();
+            waitTerminated(t2, MAX_WAIT);
+            assertEquals(0, controller.getRunning());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testTimeout() {
+        AdaptiveFlowController controller = new AdaptiveFlowController(new OWSRequestMatcher(),
+                1, 1);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(new Request(), 100,
+                400, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(new Request(), 100,
+                400, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+
+            waitTerminated(t1, MAX_WAIT);
+            waitTerminated(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.COMPLETE, t1.state);
+            assertEquals(ThreadState.TIMED_OUT, t2.state);
+            assertEquals(1, controller.getTimeouts());
+            assertEquals(0, controller.getRunning());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.flow.controller;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.flow.controller.FlowControllerTestingThread.ThreadState;
+import org.geoserver.flow.controller.PriorityFlowController.Waiter;
+import org.geoserver.ows.HttpErrorCodeException;
+import org.geoserver.ows.Request;
+import org.junit.Test;
+
+public class PriorityFlowControllerTest extends AbstractFlowControllerTest {
+    private static final long MAX_WAIT = 1000;
+
+    Request buildRequest(String service, String request) {
+        Request result = new Request();
+        result.setService(service);
+        result.setRequest(request);
+        return result;
+    }
+
+    PriorityFlowController buildController(int slots, KeyGenerator keyGenerator) {
+        List<PriorityClass> classes = new ArrayList<PriorityClass>();
+        classes.add(new PriorityClass("wfs", new OWSRequestMatcher("wfs"), 1, -1));
+        classes.add(new PriorityClass("tiles", new OWSRequestMatcher("gwc"), 3, -1));
+        classes.add(new PriorityClass("features", new OWSRequestMatcher("wfs", "GetFeature"), 2,
+                -1));
+        return new PriorityFlowController(slots, classes, keyGenerator);
+    }
+
+    /**
+     * Queues a request without blocking
+     */
+    Waiter enqueue(PriorityFlowController controller, Request request, String flow) {
+        controller.lock.lock();
+        try {
+            Waiter waiter = new Waiter(controller.classify(request), flow, System.nanoTime(),
+                    Long.MAX_VALUE, controller.lock.newCondition());
+            controller.enqueue(waiter);
+            return waiter;
+        } finally {
+            controller.lock.unlock();
+        }
+    }
+
+    String next(PriorityFlowController controller) {
+        controller.lock.lock();
+        try {
+            Waiter waiter = controller.next();
+            return waiter.priorityClass.getName() + ":" + waiter.flow;
+        } finally {
+            controller.lock.unlock();
+        }
+    }
+
+    @Test
+    public void testClassify() {
+        PriorityFlowController controller = buildController(4, null);
+        assertEquals(4, controller.getPriority());
+
+        // most specific first, and a catch all class at the end
+        List<PriorityClass> classes = controller.getClasses();
+        assertEquals(4, classes.size());
+        assertEquals("features", classes.get(0).getName());
+        assertEquals("tiles", classes.get(1).getName());
+        assertEquals("wfs", classes.get(2).getName());
+        assertEquals(PriorityFlowController.DEFAULT_CLASS, classes.get(3).getName());
+
+        assertEquals("features", controller.classify(buildRequest("WFS", "GetFeature"))
+                .getName());
+        assertEquals("wfs", controller.classify(buildRequest("WFS", "DescribeFeatureType"))
+                .getName());
+        assertEquals("tiles", controller.classify(buildRequest("gwc", null)).getName());
+        assertEquals(PriorityFlowController.DEFAULT_CLASS,
+                controller.classify(buildRequest("WMS", "GetMap")).getName());
+    }
+
+    @Test
+    public void testWeightedOrder() {
+        PriorityFlowController controller = buildController(1, null);
+        for (int i = 0; i < 6; i++) {
+            enqueue(controller, buildRequest("gwc", null), "");
+            enqueue(controller, buildRequest("wfs", "DescribeFeatureType"), "");
+        }
+        assertEquals(12, controller.getQueued());
+
+        // three tile requests for each wfs one
+        List<String> order = new ArrayList<String>();
+        for (int i = 0; i < 8; i++) {
+            order.add(next(controller));
+        }
+        assertEquals(Arrays.asList("tiles:", "wfs:", "tiles:", "tiles:", "tiles:", "wfs:",
+                "tiles:", "tiles:"), order);
+        assertEquals(4, controller.getQueued());
+
+        // no more tiles, the wfs requests get all the slots
+        assertEquals("wfs:", next(controller));
+        assertEquals("wfs:", next(controller));
+    }
+
+    @Test
+    public void testIdleClassNoCredit() {
+        PriorityFlowController controller = buildController(1, null);
+        for (int i = 0; i < 10; i++) {
+            enqueue(controller, buildRequest("wfs", "DescribeFeatureType"), "");
+        }
+        for (int i = 0; i < 10; i++) {
+            next(controller);
+        }
+
+        // the tiles class was idle all along, it does not get to run all its requests first
+        for (int i = 0; i < 10; i++) {
+            enqueue(controller, buildRequest("gwc", null), "");
+            enqueue(controller, buildRequest("wfs", "DescribeFeatureType"), "");
+        }
+        int tiles = 0;
+        for (int i = 0; i < 8; i++) {
+            if (next(controller).startsWith("tiles")) {
+                tiles++;
+            }
+        }
+        assertTrue(tiles < 8);
+        assertTrue(tiles >= 6);
+    }
+
+    @Test
+    public void testUserFairness() {
+        PriorityFlowController controller = buildController(1, null);
+        // a greedy user queues many requests before a second one shows up
+        for (int i = 0; i < 4; i++) {
+            enqueue(controller, buildRequest("gwc", null), "greedy");
+        }
+        enqueue(controller, buildRequest("gwc", null), "polite");
+
+        assertEquals("tiles:greedy", next(controller));
+        assertEquals("tiles:polite", next(controller));
+        assertEquals("tiles:greedy", next(controller));
+        assertEquals("tiles:greedy", next(controller));
+        assertEquals("tiles:greedy", next(controller));
+        assertEquals(0, controller.getQueued());
+    }
+
+    @Test
+    public void testFlowKey() {
+        PriorityFlowController controller = buildController(1, new IpKeyGenerator());
+        assertEquals("192.168.1.10", controller.getFlow(buildIpRequest("192.168.1.10", "")));
+        // no http request to extract the user from
+        assertEquals("", controller.getFlow(buildRequest("gwc", null)));
+    }
+
+    @Test
+    public void testQueueing() throws Exception {
+        PriorityFlowController controller = buildController(1, null);
+        Request request = buildRequest("gwc", null);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(request, 0,
+                Long.MAX_VALUE, controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(request, 0,
+                Long.MAX_VALUE, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+            waitBlocked(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.PROCESSING, t1.state);
+            assertEquals(ThreadState.STARTED, t2.state);
+            assertEquals(1, controller.getRunning());
+            assertEquals(1, controller.getQueued());
+
+            // let t1 go, this should allow t2 to run
+            t1.interrupt();
+            waitTerminated(t1, MAX_WAIT);
+            waitProcessing(t2, MAX_WAIT);
+            assertEquals(1, controller.getRunning());
+            assertEquals(0, controller.getQueued());
+
+            t2.interrupt();
+            waitTerminated(t2, MAX_WAIT);
+            assertEquals(0, controller.getRunning());
+
+            PriorityClass tiles = controller.classify(request);
+            assertEquals(2, tiles.getAdmitted());
+            assertEquals(0, tiles.getShed());
+            assertEquals(2, tiles.getQueueWait().getCount());
+            // the second request waited for the first one to complete
+            assertTrue(tiles.getQueueWait().getMax() > 0);
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testDeadlinePassed() {
+        PriorityFlowController controller = buildController(1, null);
+        Request request = buildRequest("gwc", null);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(request, 100, 400,
+                controller);
+        FlowControllerTestingThread t2 = new FlowControllerTestingThread(request, 100, 400,
+                controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+            t2.start();
+
+            waitTerminated(t1, MAX_WAIT);
+            waitTerminated(t2, MAX_WAIT);
+
+            assertEquals(ThreadState.COMPLETE, t1.state);
+            assertNull(t1.error);
+            assertTrue(t2.error instanceof HttpErrorCodeException);
+            assertEquals(503, ((HttpErrorCodeException) t2.error).getErrorCode());
+            assertEquals(1, controller.classify(request).getShed());
+            assertEquals(0, controller.getQueued());
+            assertEquals(0, controller.getRunning());
+        } finally {
+            waitAndKill(t1, MAX_WAIT);
+            waitAndKill(t2, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testDeadlineCannotBeMet() {
+        PriorityFlowController controller = buildController(1, null);
+        Request request = buildRequest("gwc", null);
+        // requests have been taking a second to run
+        controller.serviceTime = TimeUnit.SECONDS.toNanos(1);
+
+        FlowControllerTestingThread t1 = new FlowControllerTestingThread(request, 0,
+                Long.MAX_VALUE, controller);
+        try {
+            t1.start();
+            waitBlocked(t1, MAX_WAIT);
+
+            // would have to wait for about a second, not worth queueing
+            long start = System.currentTimeMillis();
+            try {
+                controller.requestIncoming(request, 500);
+                fail("A HTTP 503 should have been raised!");
+            } catch (HttpErrorCodeException e) {
+                assertEquals(503, e.getErrorCode());
+            }
+            assertTrue(System.currentTimeMillis() - start < 500);
+            assertEquals(1, controller.classify(request).getShed());
+            assertEquals(0, controller.getQueued());
+        } finally {
+            t1.interrupt();
+            waitAndKill(t1, MAX_WAIT);
+        }
+    }
+
+    @Test
+    public void testShedOnDispatch() {
+        PriorityFlowController controller = buildController(1, null);
+        Request request = buildRequest("gwc", null);
+        assertTrue(controller.requestIncoming(request, 0));
+
+        // a queued request whose deadline has passed by the time a slot frees up
+        Waiter expired;
+        controller.lock.lock();
+        try {
+            expired = new Waiter(controller.classify(request), "", System.nanoTime(),
+                    System.nanoTime() - 1, controller.lock.newCondition());
+            controller.enqueue(expired);
+        } finally {
+            controller.lock.unlock();
+        }
+        Waiter waiting = enqueue(controller, request, "");
+
+        controller.requestComplete(request);
+        assertTrue(expired.shed);
+        assertFalse(expired.granted);
+        assertTrue(waiting.granted);
+        assertEquals(1, controller.getRunning());
+        assertEquals(1, controller.classify(request).getShed());
+    }
+
+    @Test
+    public void testHistogram() {
+        QueueWaitHistogram histogram = new QueueWaitHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i);
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(100, histogram.getMax());
+        assertEquals(50.5, histogram.getMean(), 0.001);
+        // within the power of two bucket holding the exact value
+        long p50 = histogram.getPercentile(50);
+        assertTrue(p50 >= 50 && p50 < 64);
+        assertEquals(100, histogram.getPercentile(99));
+    }
+
+    void waitProcessing(FlowControllerTestingThread t, long maxWait) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (t.state != ThreadState.PROCESSING) {
+            if (System.currentTimeMillis() > (start + maxWait))
+                fail("Waited for the thread to be processing more than maxWait: " + maxWait);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non negative values (durations, sizes) with logarithmic buckets, used to compute
+ * percentiles without keeping the values around.
+ * <p>
+ * Each power of two is split in {@link #SUB_BUCKETS} buckets, so the percentiles are accurate
+ * within 12.5%, whatever the magnitude of the values. Recording is lock free and histograms can be
+ * merged, so that separate histograms (per time slice, per service) can be combined into one.
+ * </p>
+ */
+public class Histogram {
+
+    static final int SUB_BUCKET_BITS = 3;
+
+    /**
+     * Number of buckets each power of two is split into
+     */
+    public static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    final AtomicLong count = new AtomicLong();
+
+    final AtomicLong sum = new AtomicLong();
+
+    final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a value, negative values are recorded as zero
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        do {
+            m = max.get();
+        } while (value > m && !max.compareAndSet(m, value));
+    }
+
+    /**
+     * Adds the values recorded by another histogram to this one
+     */
+    public void merge(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long c = other.counts.get(i);
+            if (c > 0) {
+                counts.addAndGet(i, c);
+            }
+        }
+        count.addAndGet(other.count.get());
+        sum.addAndGet(other.sum.get());
+        long value = other.max.get();
+        long m;
+        do {
+            m = max.get();
+        } while (value > m && !max.compareAndSet(m, value));
+    }
+
+    /**
+     * Number of recorded values
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Largest recorded value
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Average of the recorded values, 0 if none was recorded
+     */
+    public double getMean() {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    /**
+     * Returns the value below which the given percentage of the recorded values fall, 0 if no
+     * value was recorded. The result is the upper bound of the bucket the percentile falls in,
+     * never more than the largest recorded value.
+     *
+     * @param percentile the percentile, between 0 and 100
+     */
+    public long getPercentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Clears the recorded values
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long lowerBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = index % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    static long upperBound(int index) {
+        return index + 1 < BUCKETS ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+        return "Histogram[count=" + getCount() + ", mean=" + getMean() + ", p50="
+                + getPercentile(50) + ", p99=" + getPercentile(99) + ", max=" + getMax() + "]";
+    }
+}
@@ -76,8 +76,14 @@ public class MemoryMonitorDAO implements MonitorDAO {
     }
         
     public List<RequestData> getRequests(Query q) {
-        List<RequestData> requests = getRequests();
-       
+        return filter(getRequests(), q);
+    }
+
+    /**
+     * Applies the filter, time range, paging and sorting of the query to a list of requests,
+     * modifying it
+     */
+    protected List<RequestData> filter(List<RequestData> requests, Query q) {
         List<Predicate> predicates = new ArrayList();
         if (q.getFilter() != null) {
             Filter f = q.getFilter();
@@ -43,6 +43,7 @@ public class MonitorFilter implements GeoServerFilter {
     
     Monitor monitor;
     MonitorRequestFilter requestFilter;
+    MonitorMetrics metrics;
     
     ExecutorService postProcessExecutor;
     
@@ -67,6 +68,10 @@ public class MonitorFilter implements GeoServerFilter {
     public void init(FilterConfig filterConfig) throws ServletException {
     }
     
+    public void setMetrics(MonitorMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
     
     public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
             throws IOException, ServletException {
@@ -162,6 +167,9 @@ public class MonitorFilter implements GeoServerFilter {
         
         data.setEndTime(new Date());
         data.setTotalTime(data.getEndTime().getTime() - data.getStartTime().getTime());
+        if (metrics != null) {
+            metrics.record(data);
+        }
         monitor.update();
         data = monitor.current();
         
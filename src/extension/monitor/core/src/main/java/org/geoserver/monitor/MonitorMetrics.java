@@ -0,0 +1,664 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.geoserver.monitor.RequestData.Status;
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+
+/**
+ * Live latency and throughput metrics of the requests, kept in memory whatever the monitor
+ * storage.
+ * <p>
+ * Each completed request is recorded by the {@link MonitorFilter} in a series for its service,
+ * operation and output format, and in a series for each of the layers it accessed. A series keeps
+ * a latency {@link Histogram} and counters for each slice of a sliding time window, so that the
+ * statistics reflect the recent activity only. When the request went through the OWS dispatcher,
+ * the time spent executing the operation, as opposed to encoding the response, is recorded as
+ * well (see {@link org.geoserver.monitor.ows.MetricsCallback}).
+ * </p>
+ * <p>
+ * Recording is lock free, and allocates little: the keys looking up the series of the request,
+ * plus a new slice when one rolls over and a new series for a key not seen yet, so the metrics
+ * can stay on under heavy load. The number of series is bounded, once the limit is reached new
+ * keys are recorded in an overflow series. Series that did not record any request in the whole
+ * window are dropped, looked for at most once per slice, making room for the new keys. The
+ * metrics are published over JMX as
+ * {@value #OBJECT_NAME}, and over REST by
+ * {@link org.geoserver.monitor.rest.MetricsResource}.
+ * </p>
+ */
+public class MonitorMetrics implements MonitorMetricsMBean, InitializingBean, DisposableBean {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver.monitor");
+
+    public static final String OBJECT_NAME = "org.geoserver:type=Monitor,name=Metrics";
+
+    /**
+     * Default length of the sliding window, in seconds
+     */
+    public static final int DEFAULT_WINDOW = 60;
+
+    /**
+     * Default number of slices of the sliding window
+     */
+    public static final int DEFAULT_SLICES = 6;
+
+    public static final int DEFAULT_MAX_SERIES = 1000;
+
+    /**
+     * Value of the key dimensions that are not applicable, or unknown
+     */
+    static final String NONE = "-";
+
+    static final String OTHER = "other";
+
+    /**
+     * The key of a series, either a service, operation and output format, or a layer
+     */
+    public static final class Key {
+
+        final String service;
+
+        final String operation;
+
+        final String format;
+
+        final String layer;
+
+        Key(String service, String operation, String format, String layer) {
+            this.service = service;
+            this.operation = operation;
+            this.format = format;
+            this.layer = layer;
+        }
+
+        public String getService() {
+            return service;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public String getLayer() {
+            return layer;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return equals(service, other.service) && equals(operation, other.operation)
+                    && equals(format, other.format) && equals(layer, other.layer);
+        }
+
+        static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 17;
+            hash = 31 * hash + (service == null ? 0 : service.hashCode());
+            hash = 31 * hash + (operation == null ? 0 : operation.hashCode());
+            hash = 31 * hash + (format == null ? 0 : format.hashCode());
+            hash = 31 * hash + (layer == null ? 0 : layer.hashCode());
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            if (layer != null) {
+                return "layer=" + layer;
+            }
+            return "service=" + service + ",operation=" + operation + ",format=" + format;
+        }
+    }
+
+    /**
+     * The activity of a series over a slice of the window
+     */
+    static final class Slice {
+
+        final long epoch;
+
+        final Histogram latency = new Histogram();
+
+        final AtomicLong errors = new AtomicLong();
+
+        final AtomicLong executions = new AtomicLong();
+
+        final AtomicLong executionTime = new AtomicLong();
+
+        Slice(long epoch) {
+            this.epoch = epoch;
+        }
+    }
+
+    /**
+     * The statistics of a series over the window
+     */
+    public static final class Snapshot {
+
+        final Key key;
+
+        final long total;
+
+        final long errors;
+
+        final double throughput;
+
+        final double executionTime;
+
+        final Histogram latency;
+
+        Snapshot(Key key, long total, long errors, double throughput, double executionTime,
+                Histogram latency) {
+            this.key = key;
+            this.total = total;
+            this.errors = errors;
+            this.throughput = throughput;
+            this.executionTime = executionTime;
+            this.latency = latency;
+        }
+
+        /**
+         * The series key, null for the snapshot of all the requests
+         */
+        public Key getKey() {
+            return key;
+        }
+
+        /**
+         * Number of requests recorded in the window
+         */
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        /**
+         * Number of requests recorded since startup, the last reset, or the series being dropped
+         * for being idle
+         */
+        public long getTotal() {
+            return total;
+        }
+
+        /**
+         * Number of failed requests recorded in the window
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Requests per second over the window
+         */
+        public double getThroughput() {
+            return throughput;
+        }
+
+        /**
+         * Average time spent executing the OWS operations, in milliseconds, 0 if the requests did
+         * not go through the OWS dispatcher
+         */
+        public double getExecutionTime() {
+            return executionTime;
+        }
+
+        /**
+         * The distribution of the request times, in milliseconds
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+    }
+
+    /**
+     * The sliding window of a series
+     */
+    final class Series {
+
+        final Key key;
+
+        final AtomicReferenceArray<Slice> slices;
+
+        final AtomicLong total = new AtomicLong();
+
+        Series(Key key) {
+            this.key = key;
+            this.slices = new AtomicReferenceArray<Slice>(sliceCount);
+        }
+
+        void record(long now, long time, long executionTime, boolean failed) {
+            Slice slice = slice(now / sliceMillis);
+            if (slice == null) {
+                return;
+            }
+            slice.latency.record(time);
+            if (failed) {
+                slice.errors.incrementAndGet();
+            }
+            if (executionTime >= 0) {
+                slice.executions.incrementAndGet();
+                slice.executionTime.addAndGet(executionTime);
+            }
+            total.incrementAndGet();
+        }
+
+        /**
+         * Returns the slice for the given epoch, replacing the expired one occupying its place,
+         * null if the epoch is already out of the window
+         */
+        Slice slice(long epoch) {
+            int i = (int) (epoch % sliceCount);
+            while (true) {
+                Slice slice = slices.get(i);
+                if (slice != null && slice.epoch == epoch) {
+                    return slice;
+                }
+                if (slice != null && slice.epoch > epoch) {
+                    // a thread stalled for a whole window
+                    return null;
+                }
+                Slice fresh = new Slice(epoch);
+                if (slices.compareAndSet(i, slice, fresh)) {
+                    return fresh;
+                }
+            }
+        }
+
+        /**
+         * Returns true if no request was recorded in the window ending with the given epoch
+         */
+        boolean idle(long epoch) {
+            for (int i = 0; i < sliceCount; i++) {
+                Slice slice = slices.get(i);
+                if (slice != null && slice.epoch > epoch - sliceCount) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Adds up the slices in the window, merging them in the given histogram and counters
+         */
+        long merge(long now, Histogram latency, long[] counters) {
+            long epoch = now / sliceMillis;
+            for (int i = 0; i < sliceCount; i++) {
+                Slice slice = slices.get(i);
+                if (slice != null && slice.epoch > epoch - sliceCount && slice.epoch <= epoch) {
+                    latency.merge(slice.latency);
+                    counters[0] += slice.errors.get();
+                    counters[1] += slice.executions.get();
+                    counters[2] += slice.executionTime.get();
+                }
+            }
+            return total.get();
+        }
+    }
+
+    final ConcurrentHashMap<Key, Series> series = new ConcurrentHashMap<Key, Series>();
+
+    /**
+     * Time spent executing the current OWS operation, set by the dispatcher callback
+     */
+    final ThreadLocal<long[]> execution = new ThreadLocal<long[]>() {
+        protected long[] initialValue() {
+            return new long[] { -1, -1 };
+        }
+    };
+
+    final AtomicLong overflows = new AtomicLong();
+
+    /**
+     * The slice epoch the idle series were last dropped at
+     */
+    final AtomicLong expired = new AtomicLong();
+
+    final boolean enabled;
+
+    final int sliceCount;
+
+    final long sliceMillis;
+
+    final int maxSeries;
+
+    public MonitorMetrics(MonitorConfig config) {
+        Boolean enabled = config.getProperty("metrics", "enabled", Boolean.class);
+        Integer window = config.getProperty("metrics", "window", Integer.class);
+        Integer slices = config.getProperty("metrics", "slices", Integer.class);
+        Integer maxSeries = config.getProperty("metrics", "maxSeries", Integer.class);
+
+        this.enabled = enabled == null || enabled;
+        this.sliceCount = slices != null && slices > 0 ? slices : DEFAULT_SLICES;
+        long windowMillis = TimeUnit.SECONDS.toMillis(window != null && window > 0 ? window
+                : DEFAULT_WINDOW);
+        this.sliceMillis = Math.max(1, windowMillis / sliceCount);
+        this.maxSeries = maxSeries != null && maxSeries > 0 ? maxSeries : DEFAULT_MAX_SERIES;
+    }
+
+    long now() {
+        return System.currentTimeMillis();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Length of the sliding window, in milliseconds
+     */
+    public long getWindow() {
+        return sliceMillis * sliceCount;
+    }
+
+    /**
+     * Marks the start of the execution of an OWS operation in the current thread
+     */
+    public void operationStarted() {
+        long[] times = execution.get();
+        times[0] = System.nanoTime();
+        times[1] = -1;
+    }
+
+    /**
+     * Marks the end of the execution of the OWS operation started in the current thread
+     */
+    public void operationExecuted() {
+        long[] times = execution.get();
+        if (times[0] >= 0) {
+            times[1] = System.nanoTime() - times[0];
+        }
+    }
+
+    /**
+     * Forgets about the OWS operation executed in the current thread
+     */
+    public void clearOperation() {
+        long[] times = execution.get();
+        times[0] = -1;
+        times[1] = -1;
+    }
+
+    /**
+     * Records a completed request, along with the execution time of the OWS operation it ran in
+     * the current thread, if any
+     */
+    public void record(RequestData data) {
+        long executionTime = execution.get()[1];
+        clearOperation();
+        if (!enabled) {
+            return;
+        }
+        record(data, executionTime, now());
+    }
+
+    void record(RequestData data, long executionTime, long now) {
+        expire(now);
+        boolean failed = data.getStatus() == Status.FAILED;
+        long time = data.getTotalTime();
+
+        String service = data.getService() != null ? data.getService() : data.getCategory()
+                .name();
+        String operation = data.getOperation() != null ? data.getOperation() : NONE;
+        series(new Key(service, operation, format(data.getResponseContentType()), null))
+                .record(now, time, executionTime, failed);
+
+        List<String> resources = data.getResources();
+        if (resources != null) {
+            for (int i = 0; i < resources.size(); i++) {
+                series(new Key(null, null, null, resources.get(i))).record(now, time,
+                        executionTime, failed);
+            }
+        }
+    }
+
+    /**
+     * Drops the series that did not record any request in the window, once per slice. A request
+     * recorded in a series while it is being dropped is lost, which does not matter for an idle
+     * series.
+     */
+    void expire(long now) {
+        long epoch = now / sliceMillis;
+        long last = expired.get();
+        if (epoch <= last || !expired.compareAndSet(last, epoch)) {
+            return;
+        }
+        for (Iterator<Series> it = series.values().iterator(); it.hasNext();) {
+            if (it.next().idle(epoch)) {
+                it.remove();
+            }
+        }
+    }
+
+    static String format(String contentType) {
+        if (contentType == null) {
+            return NONE;
+        }
+        // drop the parameters, like the charset
+        int idx = contentType.indexOf(';');
+        return (idx >= 0 ? contentType.substring(0, idx) : contentType).trim();
+    }
+
+    Series series(Key key) {
+        Series s = series.get(key);
+        if (s == null) {
+            if (series.size() >= maxSeries) {
+                overflows.incrementAndGet();
+                key = key.layer != null ? new Key(null, null, null, OTHER) : new Key(OTHER,
+                        OTHER, OTHER, null);
+                s = series.get(key);
+                if (s != null) {
+                    return s;
+                }
+            }
+            Series created = new Series(key);
+            s = series.putIfAbsent(key, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    /**
+     * The statistics of the series that recorded requests in the window, the busiest first
+     */
+    public List<Snapshot> getSnapshots() {
+        long now = now();
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+        for (Series s : series.values()) {
+            Snapshot snapshot = snapshot(s.key, now, Collections.singletonList(s));
+            if (snapshot.getCount() > 0) {
+                snapshots.add(snapshot);
+            }
+        }
+        Collections.sort(snapshots, new Comparator<Snapshot>() {
+            public int compare(Snapshot s1, Snapshot s2) {
+                long c1 = s1.getCount();
+                long c2 = s2.getCount();
+                return c1 < c2 ? 1 : c1 > c2 ? -1 : 0;
+            }
+        });
+        return snapshots;
+    }
+
+    /**
+     * The statistics of a series, null if it does not exist
+     */
+    public Snapshot getSnapshot(Key key) {
+        Series s = series.get(key);
+        return s == null ? null : snapshot(key, now(), Collections.singletonList(s));
+    }
+
+    /**
+     * The statistics of all the requests, summing up the service series (the layer series
+     * overlap them)
+     */
+    public Snapshot getOverall() {
+        List<Series> services = new ArrayList<Series>();
+        for (Series s : series.values()) {
+            if (s.key.layer == null) {
+                services.add(s);
+            }
+        }
+        return snapshot(null, now(), services);
+    }
+
+    Snapshot snapshot(Key key, long now, List<Series> list) {
+        Histogram latency = new Histogram();
+        long[] counters = new long[3];
+        long total = 0;
+        for (Series s : list) {
+            total += s.merge(now, latency, counters);
+        }
+        // the current slice is not over yet
+        double elapsed = (sliceMillis * (sliceCount - 1) + now % sliceMillis) / 1000d;
+        double throughput = elapsed > 0 ? latency.getCount() / elapsed : 0;
+        double executionTime = counters[1] > 0 ? counters[2] / (double) counters[1] / 1000000d
+                : 0;
+        return new Snapshot(key, total, counters[0], throughput, executionTime, latency);
+    }
+
+    Snapshot snapshot(String name) {
+        for (Series s : series.values()) {
+            if (s.key.toString().equals(name)) {
+                return snapshot(s.key, now(), Collections.singletonList(s));
+            }
+        }
+        throw new IllegalArgumentException("No such series: " + name);
+    }
+
+    /**
+     * Number of requests recorded in the overflow series because the series limit was reached
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+
+    //
+    // MBean
+    //
+    public long getRequestCount() {
+        return getOverall().getCount();
+    }
+
+    public long getErrorCount() {
+        return getOverall().getErrors();
+    }
+
+    public double getThroughput() {
+        return getOverall().getThroughput();
+    }
+
+    public double getMeanLatency() {
+        return getOverall().getLatency().getMean();
+    }
+
+    public long getLatencyP50() {
+        return getOverall().getLatency().getPercentile(50);
+    }
+
+    public long getLatencyP90() {
+        return getOverall().getLatency().getPercentile(90);
+    }
+
+    public long getLatencyP99() {
+        return getOverall().getLatency().getPercentile(99);
+    }
+
+    public long getMaxLatency() {
+        return getOverall().getLatency().getMax();
+    }
+
+    public int getSeriesCount() {
+        return series.size();
+    }
+
+    public String[] getSeriesNames() {
+        List<String> names = new ArrayList<String>();
+        for (Key key : series.keySet()) {
+            names.add(key.toString());
+        }
+        Collections.sort(names);
+        return names.toArray(new String[names.size()]);
+    }
+
+    public long getSeriesRequestCount(String series) {
+        return snapshot(series).getCount();
+    }
+
+    public double getSeriesThroughput(String series) {
+        return snapshot(series).getThroughput();
+    }
+
+    public long getSeriesPercentile(String series, double percentile) {
+        return snapshot(series).getLatency().getPercentile(percentile);
+    }
+
+    public void reset() {
+        series.clear();
+        overflows.set(0);
+    }
+
+    //
+    // JMX registration
+    //
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                // left over by a previous application context
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to register the monitor metrics in JMX", e);
+        }
+    }
+
+    public void destroy() throws Exception {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, "Unable to unregister the monitor metrics from JMX", e);
+        }
+    }
+}
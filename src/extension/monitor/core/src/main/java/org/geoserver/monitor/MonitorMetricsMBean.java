@@ -0,0 +1,43 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+/**
+ * JMX view of the {@link MonitorMetrics}, the statistics cover the requests of the sliding window
+ * and the latencies are in milliseconds.
+ */
+public interface MonitorMetricsMBean {
+
+    public long getRequestCount();
+
+    public long getErrorCount();
+
+    public double getThroughput();
+
+    public double getMeanLatency();
+
+    public long getLatencyP50();
+
+    public long getLatencyP90();
+
+    public long getLatencyP99();
+
+    public long getMaxLatency();
+
+    public int getSeriesCount();
+
+    public String[] getSeriesNames();
+
+    public long getSeriesRequestCount(String series);
+
+    public double getSeriesThroughput(String series);
+
+    public long getSeriesPercentile(String series, double percentile);
+
+    public long getOverflowCount();
+
+    public void reset();
+}
@@ -43,6 +43,12 @@ public class RequestData implements Serializable {
     };
     
     public long internalid = COUNTER.getAndIncrement();
+
+    /**
+     * Whether the storage records this request, decided when its first update reaches an
+     * overloaded storage so that all its updates share the same fate. Not persisted.
+     */
+    public transient volatile Boolean recorded;
     
     /**
      * request id
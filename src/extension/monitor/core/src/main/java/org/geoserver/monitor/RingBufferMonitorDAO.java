@@ -0,0 +1,529 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+
+/**
+ * A memory based monitor DAO keeping the last requests in a fixed capacity ring buffer, with the
+ * fields used for time range queries and aggregations stored in columns.
+ * <p>
+ * Start times, durations and response lengths are kept in primitive arrays, services, operations
+ * and layers as codes in dictionaries of the distinct names seen. The ring is split in blocks of
+ * {@link #BLOCK_SIZE} requests, each tracking the range of its start times, so that time range
+ * queries skip the blocks outside the range. The aggregations ({@link #getCount},
+ * {@link #getDurationHistogram}, {@link #getTopLayers}, ...) scan the columns only, without
+ * touching the {@link RequestData} objects, whose cost does not depend on the number of requests
+ * outside of the time range.
+ * </p>
+ * <p>
+ * The capacity is configured with the <code>ring.capacity</code> property of the monitoring
+ * configuration, the oldest requests are dropped once it is reached. Queries filtering on other
+ * properties are evaluated like in {@link MemoryMonitorDAO}.
+ * </p>
+ */
+public class RingBufferMonitorDAO extends MemoryMonitorDAO {
+
+    static final Logger LOGGER = Logging.getLogger(RingBufferMonitorDAO.class);
+
+    public static final String NAME = "ring";
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    static final int BLOCK_SIZE = 256;
+
+    /**
+     * Start time of requests that have none
+     */
+    static final long NO_TIME = Long.MIN_VALUE;
+
+    static final int[] NO_LAYERS = new int[0];
+
+    /**
+     * Maps names to small integer codes
+     */
+    static final class Dictionary {
+
+        final Map<String, Integer> codes = new HashMap<String, Integer>();
+
+        final List<String> names = new ArrayList<String>();
+
+        /**
+         * The code of a name, added if missing, -1 for <code>null</code>
+         */
+        int encode(String name) {
+            if (name == null) {
+                return -1;
+            }
+            Integer code = codes.get(name);
+            if (code == null) {
+                code = names.size();
+                codes.put(name, code);
+                names.add(name);
+            }
+            return code;
+        }
+
+        /**
+         * The code of a name, -1 for <code>null</code>, -2 if the name was never seen
+         */
+        int lookup(String name) {
+            if (name == null) {
+                return -1;
+            }
+            Integer code = codes.get(name);
+            return code == null ? -2 : code;
+        }
+
+        String decode(int code) {
+            return code < 0 ? null : names.get(code);
+        }
+
+        int size() {
+            return names.size();
+        }
+
+        void clear() {
+            codes.clear();
+            names.clear();
+        }
+    }
+
+    /**
+     * Callback for the slots selected by a scan
+     */
+    static interface SlotVisitor {
+        void visit(int slot);
+    }
+
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    int capacity;
+
+    RequestData[] requests;
+
+    long[] ids;
+
+    long[] startTimes;
+
+    long[] durations;
+
+    long[] responseLengths;
+
+    int[] services;
+
+    int[] operations;
+
+    int[][] layers;
+
+    /**
+     * Range of the start times of each block
+     */
+    long[] blockMin, blockMax;
+
+    /**
+     * Next slot to be written, and number of slots in use
+     */
+    int next, size;
+
+    /**
+     * Slot of each request, by id
+     */
+    final Map<Long, Integer> slots = new HashMap<Long, Integer>();
+
+    final Dictionary serviceNames = new Dictionary();
+
+    final Dictionary operationNames = new Dictionary();
+
+    final Dictionary layerNames = new Dictionary();
+
+    public RingBufferMonitorDAO() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public RingBufferMonitorDAO(int capacity) {
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+        requests = new RequestData[capacity];
+        ids = new long[capacity];
+        startTimes = new long[capacity];
+        durations = new long[capacity];
+        responseLengths = new long[capacity];
+        services = new int[capacity];
+        operations = new int[capacity];
+        layers = new int[capacity][];
+        int blocks = (capacity + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        blockMin = new long[blocks];
+        blockMax = new long[blocks];
+        Arrays.fill(blockMin, Long.MAX_VALUE);
+        Arrays.fill(blockMax, Long.MIN_VALUE);
+        next = 0;
+        size = 0;
+        slots.clear();
+        serviceNames.clear();
+        operationNames.clear();
+        layerNames.clear();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void init(MonitorConfig config) {
+        Integer capacity = null;
+        try {
+            capacity = config.getProperty(NAME, "capacity", Integer.class);
+        } catch (IllegalArgumentException e) {
+            LOGGER.warning("Invalid ring.capacity, using " + this.capacity + ": "
+                    + e.getMessage());
+        }
+        if (capacity != null && capacity > 0 && capacity != this.capacity) {
+            lock.writeLock().lock();
+            try {
+                allocate(capacity);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Maximum number of completed requests kept
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public void save(RequestData data) {
+        live.remove(data);
+        lock.writeLock().lock();
+        try {
+            int slot = next;
+            if (requests[slot] != null) {
+                // drop the oldest
+                slots.remove(ids[slot]);
+            } else {
+                size++;
+            }
+            requests[slot] = data;
+            ids[slot] = data.getId();
+            slots.put(data.getId(), slot);
+            encode(slot, data);
+            if (slot % BLOCK_SIZE == 0) {
+                // entering a block, forget the range of the requests it held
+                indexBlock(slot / BLOCK_SIZE);
+            } else {
+                extendBlock(slot);
+            }
+            next = (slot + 1) % capacity;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void update(RequestData data) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(data.getId());
+            if (slot != null && requests[slot] == data) {
+                encode(slot, data);
+                extendBlock(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void encode(int slot, RequestData data) {
+        startTimes[slot] = data.getStartTime() != null ? data.getStartTime().getTime() : NO_TIME;
+        durations[slot] = duration(data);
+        responseLengths[slot] = data.getResponseLength();
+        services[slot] = serviceNames.encode(data.getService());
+        operations[slot] = operationNames.encode(data.getOperation());
+        List<String> resources = data.getResources();
+        if (resources == null || resources.isEmpty()) {
+            layers[slot] = NO_LAYERS;
+        } else {
+            int[] codes = new int[resources.size()];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = layerNames.encode(resources.get(i));
+            }
+            layers[slot] = codes;
+        }
+    }
+
+    static long duration(RequestData data) {
+        if (data.getTotalTime() > 0) {
+            return data.getTotalTime();
+        }
+        if (data.getStartTime() != null && data.getEndTime() != null) {
+            return data.getEndTime().getTime() - data.getStartTime().getTime();
+        }
+        return 0;
+    }
+
+    private void indexBlock(int block) {
+        long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+        int end = Math.min((block + 1) * BLOCK_SIZE, capacity);
+        for (int i = block * BLOCK_SIZE; i < end; i++) {
+            long t = startTimes[i];
+            if (requests[i] != null && t != NO_TIME) {
+                min = Math.min(min, t);
+                max = Math.max(max, t);
+            }
+        }
+        blockMin[block] = min;
+        blockMax[block] = max;
+    }
+
+    private void extendBlock(int slot) {
+        long t = startTimes[slot];
+        if (t != NO_TIME) {
+            int block = slot / BLOCK_SIZE;
+            blockMin[block] = Math.min(blockMin[block], t);
+            blockMax[block] = Math.max(blockMax[block], t);
+        }
+    }
+
+    /**
+     * Visits the slots of the requests started within the time range, oldest first. Both bounds
+     * are inclusive, if both are <code>null</code> all the slots are visited. Called holding the
+     * read lock.
+     */
+    void scan(Date from, Date to, SlotVisitor visitor) {
+        boolean all = from == null && to == null;
+        long lo = from != null ? from.getTime() : Long.MIN_VALUE;
+        long hi = to != null ? to.getTime() : Long.MAX_VALUE;
+        int start = size < capacity ? 0 : next;
+        for (int k = 0; k < size;) {
+            int slot = (start + k) % capacity;
+            int block = slot / BLOCK_SIZE;
+            int run = Math.min(Math.min((block + 1) * BLOCK_SIZE, capacity) - slot, size - k);
+            if (all) {
+                for (int i = slot; i < slot + run; i++) {
+                    visitor.visit(i);
+                }
+            } else if (blockMax[block] >= lo && blockMin[block] <= hi) {
+                for (int i = slot; i < slot + run; i++) {
+                    long t = startTimes[i];
+                    if (t != NO_TIME && t >= lo && t <= hi) {
+                        visitor.visit(i);
+                    }
+                }
+            }
+            k += run;
+        }
+    }
+
+    @Override
+    public RequestData getRequest(long id) {
+        lock.readLock().lock();
+        try {
+            Integer slot = slots.get(id);
+            if (slot != null) {
+                return requests[slot];
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        for (RequestData r : live) {
+            if (r.getId() == id) {
+                return r;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<RequestData> getRequests() {
+        return getRequestsBetween(null, null);
+    }
+
+    /**
+     * The live requests, followed by the completed ones started within the time range
+     */
+    List<RequestData> getRequestsBetween(Date from, Date to) {
+        final List<RequestData> result = new LinkedList<RequestData>(live);
+        lock.readLock().lock();
+        try {
+            scan(from, to, new SlotVisitor() {
+                public void visit(int slot) {
+                    result.add(requests[slot]);
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        return result;
+    }
+
+    @Override
+    public List<RequestData> getRequests(Query q) {
+        // use the time index to select the candidates, the query filters them again
+        return filter(getRequestsBetween(q.getFromDate(), q.getToDate()), q);
+    }
+
+    /**
+     * Number of completed requests started within the time range
+     *
+     * @param service the service, or <code>null</code> for any service
+     * @param operation the operation, or <code>null</code> for any operation
+     * @param from lower bound of the range, inclusive, or <code>null</code>
+     * @param to upper bound of the range, inclusive, or <code>null</code>
+     */
+    public long getCount(String service, String operation, Date from, Date to) {
+        return aggregate(service, operation, from, to, null).getCount();
+    }
+
+    /**
+     * Histogram of the durations, in milliseconds, of the completed requests started within the
+     * time range, see {@link #getCount} for the parameters
+     */
+    public Histogram getDurationHistogram(String service, String operation, Date from, Date to) {
+        return aggregate(service, operation, from, to, durations);
+    }
+
+    /**
+     * Histogram of the response lengths, in bytes, of the completed requests started within the
+     * time range, see {@link #getCount} for the parameters
+     */
+    public Histogram getResponseLengthHistogram(String service, String operation, Date from,
+            Date to) {
+        return aggregate(service, operation, from, to, responseLengths);
+    }
+
+    private Histogram aggregate(String service, String operation, Date from, Date to,
+            final long[] column) {
+        final Histogram histogram = new Histogram();
+        lock.readLock().lock();
+        try {
+            final int serviceCode = service == null ? -1 : serviceNames.lookup(service);
+            final int operationCode = operation == null ? -1 : operationNames.lookup(operation);
+            if (serviceCode == -2 || operationCode == -2) {
+                // never seen
+                return histogram;
+            }
+            scan(from, to, new SlotVisitor() {
+                public void visit(int slot) {
+                    if ((serviceCode < 0 || services[slot] == serviceCode)
+                            && (operationCode < 0 || operations[slot] == operationCode)) {
+                        histogram.record(column != null ? column[slot] : 0);
+                    }
+                }
+            });
+        } finally {
+            lock.readLock().unlock();
+        }
+        return histogram;
+    }
+
+    /**
+     * Number of completed requests started within the time range, by service, most requested
+     * first. Requests without a service are not counted.
+     */
+    public Map<String, Long> getCountByService(Date from, Date to) {
+        lock.readLock().lock();
+        try {
+            final long[] counts = new long[serviceNames.size()];
+            scan(from, to, new SlotVisitor() {
+                public void visit(int slot) {
+                    if (services[slot] >= 0) {
+                        counts[services[slot]]++;
+                    }
+                }
+            });
+            return top(counts, serviceNames, counts.length);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * The most requested layers among the completed requests started within the time range, with
+     * their number of requests, most requested first
+     *
+     * @param n the maximum number of layers returned
+     */
+    public Map<String, Long> getTopLayers(int n, Date from, Date to) {
+        lock.readLock().lock();
+        try {
+            final long[] counts = new long[layerNames.size()];
+            scan(from, to, new SlotVisitor() {
+                public void visit(int slot) {
+                    for (int code : layers[slot]) {
+                        // null resource names are not encoded
+                        if (code >= 0) {
+                            counts[code]++;
+                        }
+                    }
+                }
+            });
+            return top(counts, layerNames, n);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private static Map<String, Long> top(final long[] counts, Dictionary names, int n) {
+        List<Integer> codes = new ArrayList<Integer>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                codes.add(i);
+            }
+        }
+        Collections.sort(codes, new Comparator<Integer>() {
+            public int compare(Integer c1, Integer c2) {
+                long diff = counts[c2] - counts[c1];
+                return diff < 0 ? -1 : (diff > 0 ? 1 : c1 - c2);
+            }
+        });
+        Map<String, Long> result = new LinkedHashMap<String, Long>();
+        for (int i = 0; i < codes.size() && i < n; i++) {
+            int code = codes.get(i);
+            result.put(names.decode(code), counts[code]);
+        }
+        return result;
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            allocate(capacity);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        clear();
+        super.dispose();
+    }
+}
@@ -0,0 +1,43 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor.ows;
+
+import org.geoserver.monitor.MonitorMetrics;
+import org.geoserver.ows.AbstractDispatcherCallback;
+import org.geoserver.ows.Request;
+import org.geoserver.platform.Operation;
+
+/**
+ * Times the execution of the OWS operations, the time is recorded in the {@link MonitorMetrics}
+ * along with the total time of the request once the monitor filter completes it.
+ */
+public class MetricsCallback extends AbstractDispatcherCallback {
+
+    MonitorMetrics metrics;
+
+    public MetricsCallback(MonitorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Request init(Request request) {
+        // in case the previous request on this thread was not monitored
+        metrics.clearOperation();
+        return super.init(request);
+    }
+
+    @Override
+    public Operation operationDispatched(Request request, Operation operation) {
+        metrics.operationStarted();
+        return super.operationDispatched(request, operation);
+    }
+
+    @Override
+    public Object operationExecuted(Request request, Operation operation, Object result) {
+        metrics.operationExecuted();
+        return super.operationExecuted(request, operation, result);
+    }
+}
@@ -0,0 +1,84 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor.rest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.monitor.Histogram;
+import org.geoserver.monitor.MonitorMetrics;
+import org.geoserver.monitor.MonitorMetrics.Key;
+import org.geoserver.monitor.MonitorMetrics.Snapshot;
+import org.geoserver.rest.MapResource;
+import org.geoserver.rest.format.DataFormat;
+import org.geoserver.rest.format.MapJSONFormat;
+import org.geoserver.rest.format.MapXMLFormat;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+
+/**
+ * Publishes the live {@link MonitorMetrics}, the statistics of all the requests followed by the
+ * ones of each series, the busiest first. Latencies are in milliseconds, throughputs in requests
+ * per second.
+ */
+public class MetricsResource extends MapResource {
+
+    MonitorMetrics metrics;
+
+    public MetricsResource(MonitorMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    protected List<DataFormat> createSupportedFormats(Request request, Response response) {
+        List<DataFormat> formats = new ArrayList<DataFormat>();
+        formats.add(new MapXMLFormat("metrics"));
+        formats.add(new MapJSONFormat());
+        return formats;
+    }
+
+    @Override
+    public Map getMap() throws Exception {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("window", metrics.getWindow() / 1000);
+        map.put("overall", toMap(metrics.getOverall()));
+
+        List<Map<String, Object>> series = new ArrayList<Map<String, Object>>();
+        for (Snapshot snapshot : metrics.getSnapshots()) {
+            series.add(toMap(snapshot));
+        }
+        map.put("series", series);
+        return map;
+    }
+
+    Map<String, Object> toMap(Snapshot snapshot) {
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        Key key = snapshot.getKey();
+        if (key != null) {
+            if (key.getLayer() != null) {
+                map.put("layer", key.getLayer());
+            } else {
+                map.put("service", key.getService());
+                map.put("operation", key.getOperation());
+                map.put("format", key.getFormat());
+            }
+        }
+        Histogram latency = snapshot.getLatency();
+        map.put("count", snapshot.getCount());
+        map.put("errors", snapshot.getErrors());
+        map.put("total", snapshot.getTotal());
+        map.put("throughput", snapshot.getThroughput());
+        map.put("mean", latency.getMean());
+        map.put("p50", latency.getPercentile(50));
+        map.put("p90", latency.getPercentile(90));
+        map.put("p99", latency.getPercentile(99));
+        map.put("max", latency.getMax());
+        map.put("execution", snapshot.getExecutionTime());
+        return map;
+    }
+}
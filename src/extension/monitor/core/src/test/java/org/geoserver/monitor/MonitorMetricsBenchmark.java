@@ -0,0 +1,83 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import static org.geoserver.test.ConcurrentBenchmark.intArg;
+
+import java.util.Random;
+
+import org.geoserver.monitor.RequestData.Category;
+import org.geoserver.test.ConcurrentBenchmark;
+
+/**
+ * Measures the cost of recording requests in the {@link MonitorMetrics}, with a number of threads
+ * recording requests spread over a few services, formats and layers, the way the monitor filter
+ * does, to check the metrics can stay on at high request rates. Not a unit test, run it from the
+ * IDE or with:
+ *
+ * <pre>
+ * java org.geoserver.monitor.MonitorMetricsBenchmark [threads] [layers] [seconds]
+ * </pre>
+ */
+public class MonitorMetricsBenchmark {
+
+    static final String[][] OPERATIONS = { { "WMS", "GetMap", "image/png" },
+            { "WMS", "GetMap", "image/jpeg" }, { "WMS", "GetFeatureInfo", "text/html" },
+            { "WFS", "GetFeature", "application/json" }, { "WCS", "GetCoverage", "image/tiff" } };
+
+    public static void main(String[] args) throws Exception {
+        final int threads = intArg(args, 0, 32);
+        final int layers = intArg(args, 1, 200);
+        final int seconds = intArg(args, 2, 10);
+
+        final MonitorMetrics metrics = new MonitorMetrics(new MonitorConfig());
+        // the requests are built upfront, only the recording is measured
+        final RequestData[] requests = new RequestData[4096];
+        Random random = new Random(42);
+        for (int i = 0; i < requests.length; i++) {
+            String[] op = OPERATIONS[random.nextInt(OPERATIONS.length)];
+            RequestData data = new RequestData();
+            data.setCategory(Category.OWS);
+            data.setService(op[0]);
+            data.setOperation(op[1]);
+            data.setResponseContentType(op[2]);
+            data.setTotalTime((long) Math.abs(random.nextGaussian() * 200));
+            data.getResources().add("ws:layer" + random.nextInt(layers));
+            requests[i] = data;
+        }
+
+        double rate = ConcurrentBenchmark.run("MonitorMetrics", threads, seconds,
+                new ConcurrentBenchmark.Worker() {
+
+                    @Override
+                    public long run(int thread, long deadline) {
+                        long count = 0;
+                        int i = thread * 131;
+                        while (System.currentTimeMillis() < deadline) {
+                            for (int j = 0; j < 100; j++) {
+                                metrics.operationStarted();
+                                metrics.operationExecuted();
+                                metrics.record(requests[i++ & (requests.length - 1)]);
+                            }
+                            count += 100;
+                        }
+                        return count;
+                    }
+                });
+
+        // cpu time spent per recorded request
+        int cores = Math.min(threads, Runtime.getRuntime().availableProcessors());
+        double cost = cores * 1e9 / rate;
+        System.out.printf("%d threads, %d series: %.0f requests/s recorded, %.0f ns per request%n",
+                threads, metrics.getSeriesCount(), rate, cost);
+        System.out.printf("overhead at 10k requests/s: %.2f%% of a core%n", 10000 * cost / 1e7);
+
+        long start = System.nanoTime();
+        int n = metrics.getSnapshots().size();
+        System.out.printf("snapshot of %d series: %.1f ms%n", n,
+                (System.nanoTime() - start) / 1e6);
+    }
+}
@@ -0,0 +1,179 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.geoserver.monitor.MonitorMetrics.Key;
+import org.geoserver.monitor.MonitorMetrics.Snapshot;
+import org.geoserver.monitor.RequestData.Category;
+import org.geoserver.monitor.RequestData.Status;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MonitorMetricsTest {
+
+    MonitorConfig config;
+
+    long now;
+
+    MonitorMetrics metrics;
+
+    @Before
+    public void setUp() {
+        config = new MonitorConfig();
+        config.props.put("metrics.window", "60");
+        config.props.put("metrics.slices", "6");
+        now = 1000000;
+        metrics = new MonitorMetrics(config) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+    }
+
+    RequestData request(String service, String operation, String format, long time,
+            String... layers) {
+        RequestData data = new RequestData();
+        data.setCategory(Category.OWS);
+        data.setService(service);
+        data.setOperation(operation);
+        data.setResponseContentType(format);
+        data.setTotalTime(time);
+        data.setStatus(Status.FINISHED);
+        data.getResources().addAll(Arrays.asList(layers));
+        return data;
+    }
+
+    @Test
+    public void testSeries() {
+        for (int i = 1; i <= 100; i++) {
+            metrics.record(request("WMS", "GetMap", "image/png", i, "topp:states"));
+        }
+        RequestData failed = request("WMS", "GetMap", "image/png; mode=8bit", 500,
+                "topp:states", "sf:roads");
+        failed.setStatus(Status.FAILED);
+        metrics.record(failed);
+        metrics.record(request("WFS", "GetFeature", "text/xml", 20, "sf:roads"));
+
+        Snapshot png = metrics.getSnapshot(new Key("WMS", "GetMap", "image/png", null));
+        assertEquals(101, png.getCount());
+        assertEquals(1, png.getErrors());
+        assertEquals(500, png.getLatency().getMax());
+        long p50 = png.getLatency().getPercentile(50);
+        assertTrue(p50 >= 50 && p50 <= 57);
+
+        Snapshot states = metrics.getSnapshot(new Key(null, null, null, "topp:states"));
+        assertEquals(101, states.getCount());
+        Snapshot roads = metrics.getSnapshot(new Key(null, null, null, "sf:roads"));
+        assertEquals(2, roads.getCount());
+
+        // the layer series overlap the service ones
+        Snapshot overall = metrics.getOverall();
+        assertEquals(102, overall.getCount());
+        assertEquals(1, overall.getErrors());
+
+        List<Snapshot> snapshots = metrics.getSnapshots();
+        assertEquals(4, snapshots.size());
+        assertEquals(101, snapshots.get(0).getCount());
+        assertEquals(1, snapshots.get(3).getCount());
+    }
+
+    @Test
+    public void testSlidingWindow() {
+        metrics.record(request("WMS", "GetMap", "image/png", 10));
+        now += 30000;
+        metrics.record(request("WMS", "GetMap", "image/png", 20));
+        now += 20000;
+        metrics.record(request("WMS", "GetMap", "image/png", 30));
+
+        Key key = new Key("WMS", "GetMap", "image/png", null);
+        assertEquals(3, metrics.getSnapshot(key).getCount());
+
+        // the first request falls out of the window
+        now += 20000;
+        Snapshot snapshot = metrics.getSnapshot(key);
+        assertEquals(2, snapshot.getCount());
+        assertEquals(3, snapshot.getTotal());
+        assertEquals(30, snapshot.getLatency().getMax());
+
+        now += 60000;
+        assertEquals(0, metrics.getSnapshot(key).getCount());
+        assertTrue(metrics.getSnapshots().isEmpty());
+
+        // slices get reused
+        metrics.record(request("WMS", "GetMap", "image/png", 40));
+        assertEquals(1, metrics.getSnapshot(key).getCount());
+        assertEquals(40, metrics.getSnapshot(key).getLatency().getMax());
+    }
+
+    @Test
+    public void testExecutionTime() throws Exception {
+        metrics.operationStarted();
+        Thread.sleep(20);
+        metrics.operationExecuted();
+        metrics.record(request("WMS", "GetMap", "image/png", 50));
+        // not run through the dispatcher
+        metrics.record(request("WMS", "GetMap", "image/png", 50));
+
+        Snapshot snapshot = metrics.getSnapshot(new Key("WMS", "GetMap", "image/png", null));
+        assertTrue(snapshot.getExecutionTime() >= 15);
+    }
+
+    @Test
+    public void testMaxSeries() {
+        config.props.put("metrics.maxSeries", "3");
+        metrics = new MonitorMetrics(config);
+        metrics.record(request("WMS", "GetMap", "image/png", 10, "a", "b"));
+        metrics.record(request("WMS", "GetMap", "image/png", 10, "c", "d"));
+        // c and d went to the overflow series
+        assertEquals(4, metrics.getSeriesCount());
+        assertEquals(2, metrics.getOverflowCount());
+        assertEquals(2, metrics.getSeriesRequestCount("layer=other"));
+    }
+
+    @Test
+    public void testIdleSeriesDropped() {
+        config.props.put("metrics.maxSeries", "3");
+        metrics = new MonitorMetrics(config) {
+            @Override
+            long now() {
+                return now;
+            }
+        };
+        metrics.record(request("WMS", "GetMap", "image/png", 10, "a", "b"));
+        assertEquals(3, metrics.getSeriesCount());
+
+        // a whole window later the series are idle, and make room for the new layers
+        now += 70000;
+        metrics.record(request("WMS", "GetMap", "image/png", 10, "c"));
+        assertEquals(2, metrics.getSeriesCount());
+        assertNull(metrics.getSnapshot(new Key(null, null, null, "a")));
+        assertEquals(1, metrics.getSnapshot(new Key(null, null, null, "c")).getCount());
+        assertEquals(0, metrics.getOverflowCount());
+    }
+
+    @Test
+    public void testNonOws() {
+        RequestData data = new RequestData();
+        data.setCategory(Category.REST);
+        data.setTotalTime(5);
+        metrics.record(data);
+        assertEquals(1, metrics.getSeriesRequestCount("service=REST,operation=-,format=-"));
+    }
+
+    @Test
+    public void testDisabled() {
+        config.props.put("metrics.enabled", "false");
+        metrics = new MonitorMetrics(config);
+        metrics.record(request("WMS", "GetMap", "image/png", 10));
+        assertEquals(0, metrics.getSeriesCount());
+    }
+}
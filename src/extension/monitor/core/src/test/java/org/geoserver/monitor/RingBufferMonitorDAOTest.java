@@ -0,0 +1,102 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor;
+
+import static org.geoserver.monitor.MonitorTestData.assertCoveredInOrder;
+import static org.geoserver.monitor.MonitorTestData.toDate;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.monitor.Query.SortOrder;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class RingBufferMonitorDAOTest extends MonitorDAOTestSupport {
+
+    @BeforeClass
+    public static void createDAO() throws Exception {
+        dao = new RingBufferMonitorDAO();
+        setUpData();
+    }
+
+    @Test
+    public void testAggregations() throws Exception {
+        RingBufferMonitorDAO ring = new RingBufferMonitorDAO();
+        new MonitorTestData(ring).setup();
+
+        Date from = toDate("2010-08-23T15:00:00");
+        Date to = toDate("2010-08-23T17:00:00");
+        assertEquals(10, ring.getCount(null, null, from, to));
+        assertEquals(4, ring.getCount("foo", null, from, to));
+        assertEquals(1, ring.getCount("bar", "z", from, to));
+        assertEquals(0, ring.getCount("unknown", null, from, to));
+        assertEquals(20, ring.getCount(null, null, null, null));
+
+        // the foo requests took 15, 1, 9 and 3 seconds
+        Histogram durations = ring.getDurationHistogram("foo", null, from, to);
+        assertEquals(4, durations.getCount());
+        assertEquals(15000, durations.getMax());
+        long median = durations.getPercentile(50);
+        assertTrue(median >= 3000 && median < 3000 * 1.125);
+
+        Map<String, Long> services = ring.getCountByService(from, to);
+        assertEquals(Arrays.asList("foo", "bam", "bar", "baz"), new ArrayList<String>(services
+                .keySet()));
+        assertEquals(Long.valueOf(4), services.get("foo"));
+
+        Map<String, Long> layers = ring.getTopLayers(2, from, to);
+        assertEquals(Arrays.asList("things", "stuff"), new ArrayList<String>(layers.keySet()));
+        assertEquals(Long.valueOf(5), layers.get("stuff"));
+        assertEquals(Long.valueOf(5), layers.get("things"));
+    }
+
+    @Test
+    public void testNullLayer() throws Exception {
+        RingBufferMonitorDAO ring = new RingBufferMonitorDAO();
+        RequestData data = ring.init(new RequestData());
+        data.setStartTime(toDate("2010-08-23T15:00:00"));
+        data.setResources(Arrays.asList("stuff", null));
+        ring.add(data);
+        ring.save(data);
+
+        Map<String, Long> layers = ring.getTopLayers(10, null, null);
+        assertEquals(Arrays.asList("stuff"), new ArrayList<String>(layers.keySet()));
+        assertEquals(Long.valueOf(1), layers.get("stuff"));
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+        RingBufferMonitorDAO ring = new RingBufferMonitorDAO(1000);
+        long base = toDate("2010-07-23T00:00:00").getTime();
+        for (int i = 0; i < 2500; i++) {
+            RequestData data = ring.init(new RequestData());
+            data.setStartTime(new Date(base + i * 1000));
+            data.setTotalTime(i);
+            ring.add(data);
+            ring.save(data);
+        }
+        // only the last 1000 requests are kept, started from 1500 seconds on
+        assertEquals(1000, ring.getRequests().size());
+        assertNull(ring.getRequest(1500));
+        assertEquals(1501, ring.getRequest(1501).getId());
+        assertEquals(1000, ring.getCount(null, null, null, null));
+
+        Date from = new Date(base + 1400 * 1000);
+        Date to = new Date(base + 1600 * 1000);
+        assertEquals(101, ring.getCount(null, null, from, to));
+        List<RequestData> requests = ring.getRequests(new Query().between(from, to).sort(
+                "startTime", SortOrder.ASC).page(0l, 3l));
+        assertCoveredInOrder(requests, 1501, 1502, 1503);
+        assertEquals(1600, ring.getDurationHistogram(null, null, from, to).getMax());
+    }
+}
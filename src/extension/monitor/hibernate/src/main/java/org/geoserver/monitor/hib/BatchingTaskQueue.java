@@ -0,0 +1,438 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor.hib;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.monitor.Histogram;
+import org.geoserver.monitor.RequestData;
+import org.geoserver.monitor.hib.HibernateMonitorDAO2.Task;
+import org.geotools.util.logging.Logging;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.springframework.orm.hibernate3.HibernateCallback;
+import org.springframework.orm.hibernate3.HibernateTemplate;
+
+/**
+ * A bounded task queue consumed by a single writer thread, that persists the queued requests in
+ * batches, one transaction per batch.
+ * <p>
+ * A batch is written as soon as it holds {@link #getBatchSize()} tasks, or when
+ * {@link #getFlushInterval()} milliseconds elapsed since its first task was taken from the queue.
+ * Having a single writer keeps the tasks in order, so the insert of a request always happens before
+ * its updates, and bounds the load on the monitoring database whatever the number of concurrent
+ * requests.
+ * </p>
+ * <p>
+ * When the queue is full new requests are dropped. With the {@link Overflow#SAMPLE} policy, once
+ * the queue is half full, only one request every {@link #getSampleRate()} is queued. The decision
+ * is taken once per request, when its first task is offered, and stored in
+ * {@link RequestData#recorded}: the following tasks of a dropped request are dropped as well,
+ * while the ones of a recorded request are never dropped, so that its final state is always
+ * written. If the queue is full they wait in an overflow list, moved to the queue by the writer as
+ * soon as there is room, where a save still waiting is not queued again, since it writes the
+ * latest state of the request anyways. The overflow list is thus bounded by the number of
+ * recorded requests in progress.
+ * </p>
+ */
+public class BatchingTaskQueue implements Runnable {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver.monitor");
+
+    /**
+     * What to do with the new tasks when the queue is overloaded
+     */
+    public static enum Overflow {
+        /**
+         * Drop the new tasks once the queue is full
+         */
+        DROP,
+        /**
+         * Sample the new requests once the queue is half full, drop them once it is full
+         */
+        SAMPLE;
+    }
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    public static final int DEFAULT_BATCH_SIZE = 100;
+
+    public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+    public static final int DEFAULT_SAMPLE_RATE = 10;
+
+    /**
+     * Queued on shutdown to wake up the writer
+     */
+    static final Task STOP = new Task(null) {
+        public void run() {
+        }
+
+        void persist(Session session) {
+        }
+    };
+
+    final HibernateTemplate hib;
+
+    final BlockingQueue<Task> queue;
+
+    final int capacity;
+
+    int batchSize = DEFAULT_BATCH_SIZE;
+
+    long flushInterval = DEFAULT_FLUSH_INTERVAL;
+
+    Overflow overflow = Overflow.DROP;
+
+    int sampleRate = DEFAULT_SAMPLE_RATE;
+
+    final AtomicLong dropped = new AtomicLong();
+
+    final AtomicLong written = new AtomicLong();
+
+    final AtomicLong failed = new AtomicLong();
+
+    final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Time taken to write each batch, in milliseconds
+     */
+    final Histogram batchLatency = new Histogram();
+
+    /**
+     * Tasks of recorded requests that found the queue full, in order, guarded by itself
+     */
+    final LinkedList<Task> overflowed = new LinkedList<Task>();
+
+    /**
+     * The saves waiting in {@link #overflowed}, by request, guarded by {@link #overflowed}
+     */
+    final Map<RequestData, Task> overflowedSaves = new IdentityHashMap<RequestData, Task>();
+
+    /**
+     * Whether {@link #overflowed} holds tasks, the later tasks have to wait behind them
+     */
+    volatile boolean overflowing;
+
+    volatile boolean running;
+
+    Thread writer;
+
+    public BatchingTaskQueue(HibernateTemplate hib, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity must be positive");
+        }
+        this.hib = hib;
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<Task>(capacity);
+    }
+
+    public void start() {
+        running = true;
+        writer = new Thread(this, "GeoServer monitor batch writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stops the writer thread, waiting for the queued tasks to be written
+     */
+    public void shutdown() {
+        running = false;
+        if (writer != null) {
+            // if the queue is full the writer is not waiting anyways
+            queue.offer(STOP);
+            try {
+                writer.join(Math.max(flushInterval, 1000) * 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writer = null;
+        }
+    }
+
+    /**
+     * Queues a task, returns false if it has been dropped
+     */
+    public boolean offer(Task task) {
+        if (!running) {
+            // not started or shut down, write in the calling thread
+            task.run();
+            return true;
+        }
+        RequestData data = task.data;
+        Boolean recorded = data.recorded;
+        if (recorded == null) {
+            // first task of the request, the following ones come after it
+            recorded = queue.remainingCapacity() > 0
+                    && (overflow != Overflow.SAMPLE || queue.size() < capacity / 2
+                            || data.internalid % sampleRate == 0);
+            data.recorded = recorded;
+        }
+        if (!recorded) {
+            dropped.incrementAndGet();
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Monitor queue overloaded, dropping task: " + task.desc);
+            }
+            return false;
+        }
+        if (!overflowing && queue.offer(task)) {
+            return true;
+        }
+        synchronized (overflowed) {
+            if (overflowed.isEmpty() && queue.offer(task)) {
+                return true;
+            }
+            if (task instanceof HibernateMonitorDAO2.Save) {
+                if (overflowedSaves.containsKey(data)) {
+                    // the waiting one will write the latest state
+                    return true;
+                }
+                overflowedSaves.put(data, task);
+            }
+            overflowed.add(task);
+            overflowing = true;
+        }
+        return true;
+    }
+
+    /**
+     * Moves the overflowed tasks to the queue, as long as there is room
+     */
+    void drainOverflow() {
+        if (!overflowing) {
+            return;
+        }
+        synchronized (overflowed) {
+            while (!overflowed.isEmpty() && queue.offer(overflowed.getFirst())) {
+                Task task = overflowed.removeFirst();
+                if (overflowedSaves.get(task.data) == task) {
+                    overflowedSaves.remove(task.data);
+                }
+            }
+            overflowing = !overflowed.isEmpty();
+        }
+    }
+
+    public void run() {
+        List<Task> batch = new ArrayList<Task>(batchSize);
+        while (running || !queue.isEmpty() || overflowing) {
+            drainOverflow();
+            try {
+                Task first = queue.poll(flushInterval, TimeUnit.MILLISECONDS);
+                if (first == null || first == STOP) {
+                    continue;
+                }
+                batch.add(first);
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushInterval);
+                while (batch.size() < batchSize) {
+                    queue.drainTo(batch, batchSize - batch.size());
+                    long wait = deadline - System.nanoTime();
+                    if (batch.size() >= batchSize || wait <= 0 || !running) {
+                        break;
+                    }
+                    Task next = queue.poll(wait, TimeUnit.NANOSECONDS);
+                    if (next == null || next == STOP) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                batch.remove(STOP);
+            } catch (InterruptedException e) {
+                LOGGER.warning("Monitor batch writer interrupted, writing the queued requests");
+                running = false;
+            }
+            if (!batch.isEmpty()) {
+                try {
+                    write(batch);
+                } catch (Throwable t) {
+                    LOGGER.log(Level.WARNING, "Error writing monitor requests", t);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Writes a batch in a single transaction, falling back on writing the tasks one by one if that
+     * fails, so that a single bad request does not lose the whole batch
+     */
+    void write(final List<Task> batch) {
+        long start = System.nanoTime();
+        // the identifiers before the batch, once per request, as a request can have several tasks
+        final Map<RequestData, Long> ids = new IdentityHashMap<RequestData, Long>();
+        for (Task task : batch) {
+            if (!ids.containsKey(task.data)) {
+                ids.put(task.data, task.data.getId());
+            }
+        }
+        try {
+            hib.execute(new HibernateCallback() {
+                public Object doInHibernate(Session session) throws HibernateException,
+                        SQLException {
+                    Transaction tx = session.beginTransaction();
+                    try {
+                        for (Task task : batch) {
+                            synchronized (task.data) {
+                                task.persist(session);
+                            }
+                        }
+                        tx.commit();
+                    } catch (RuntimeException e) {
+                        tx.rollback();
+                        throw e;
+                    }
+                    return null;
+                }
+            });
+            written.addAndGet(batch.size());
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Error writing a batch of " + batch.size()
+                    + " monitor tasks, writing them one by one", e);
+            // the identifiers assigned by the rolled back transaction are not valid. Restore them
+            // before retrying, never in between, or a request inserted by its first task would
+            // be inserted again by the next one
+            for (Map.Entry<RequestData, Long> id : ids.entrySet()) {
+                synchronized (id.getKey()) {
+                    id.getKey().setId(id.getValue());
+                }
+            }
+            for (Task task : batch) {
+                try {
+                    synchronized (task.data) {
+                        task.run();
+                    }
+                    written.incrementAndGet();
+                } catch (RuntimeException e2) {
+                    failed.incrementAndGet();
+                    LOGGER.log(Level.WARNING, "Error writing monitor task: " + task.desc, e2);
+                }
+            }
+        } finally {
+            batches.incrementAndGet();
+            batchLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Number of tasks waiting to be written
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Number of tasks of recorded requests waiting for room in the queue
+     */
+    public int getOverflowSize() {
+        synchronized (overflowed) {
+            return overflowed.size();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Number of tasks dropped because the queue was overloaded
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Number of tasks successfully written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+
+    /**
+     * Number of tasks that could not be written
+     */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Number of batches written
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * The time taken to write the batches, in milliseconds
+     */
+    public Histogram getBatchLatency() {
+        return batchLatency;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    /**
+     * Maximum time, in milliseconds, a batch waits to be filled before being written
+     */
+    public void setFlushInterval(long flushInterval) {
+        if (flushInterval <= 0) {
+            throw new IllegalArgumentException("Flush interval must be positive");
+        }
+        this.flushInterval = flushInterval;
+    }
+
+    public Overflow getOverflow() {
+        return overflow;
+    }
+
+    public void setOverflow(Overflow overflow) {
+        this.overflow = overflow;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public void setSampleRate(int sampleRate) {
+        if (sampleRate <= 0) {
+            throw new IllegalArgumentException("Sample rate must be positive");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchingTaskQueue[queued=" + getQueueSize() + "/" + capacity + ", overflowed="
+                + getOverflowSize() + ", written="
+                + getWritten() + ", dropped=" + getDropped() + ", failed=" + getFailed()
+                + ", batches=" + getBatchCount() + ", latency=" + batchLatency + "]";
+    }
+}
@@ -37,11 +37,18 @@ import com.google.common.base.FinalizableReference;
 public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
 
     public static enum Sync {
-        SYNC, ASYNC, ASYNC_UPDATE;
+        SYNC, ASYNC, ASYNC_UPDATE, BATCH;
     }
 
     HibernateTemplate hib;
     PipeliningTaskQueue<Thread> tasks;
+    BatchingTaskQueue batches;
+
+    int queueCapacity = BatchingTaskQueue.DEFAULT_CAPACITY;
+    int batchSize = BatchingTaskQueue.DEFAULT_BATCH_SIZE;
+    long flushInterval = BatchingTaskQueue.DEFAULT_FLUSH_INTERVAL;
+    BatchingTaskQueue.Overflow overflow = BatchingTaskQueue.Overflow.DROP;
+    int sampleRate = BatchingTaskQueue.DEFAULT_SAMPLE_RATE;
 
     Mode mode = Mode.HISTORY;
     Sync sync = Sync.ASYNC;
@@ -58,6 +65,33 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
     @Override
     public void init(MonitorConfig config) {
         setMode(config.getMode());
+
+        Integer capacity = config.getProperty("hibernate", "queue.capacity", Integer.class);
+        if (capacity != null) {
+            queueCapacity = capacity;
+        }
+        Integer size = config.getProperty("hibernate", "batch.size", Integer.class);
+        if (size != null) {
+            batchSize = size;
+        }
+        Long interval = config.getProperty("hibernate", "batch.interval", Long.class);
+        if (interval != null) {
+            flushInterval = interval;
+        }
+        String policy = config.getProperty("hibernate", "queue.overflow", String.class);
+        if (policy != null) {
+            overflow = BatchingTaskQueue.Overflow.valueOf(policy.trim().toUpperCase());
+        }
+        Integer rate = config.getProperty("hibernate", "queue.sampleRate", Integer.class);
+        if (rate != null) {
+            sampleRate = rate;
+        }
+
+        // pick up the new queue settings
+        if (batches != null) {
+            batches.shutdown();
+            batches = null;
+        }
         setSync(getSync(config));
     }
 
@@ -67,18 +101,43 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
 
     public void setSync(Sync sync) {
         this.sync = sync;
-        if (sync != Sync.SYNC) {
+        if (sync == Sync.BATCH) {
+            if (tasks != null) {
+                tasks.shutdown();
+                tasks = null;
+            }
+            if (batches == null && hib != null) {
+                batches = new BatchingTaskQueue(hib, queueCapacity);
+                batches.setBatchSize(batchSize);
+                batches.setFlushInterval(flushInterval);
+                batches.setOverflow(overflow);
+                batches.setSampleRate(sampleRate);
+                batches.start();
+            }
+        }
+        else if (sync != Sync.SYNC) {
+            if (batches != null) {
+                batches.shutdown();
+                batches = null;
+            }
             if (tasks == null) {
                 tasks = new PipeliningTaskQueue<Thread>();
                 tasks.start();
             }
         }
         else {
-            if (tasks != null) {
-                dispose();
-            }
+            dispose();
         }
     }
+
+    /**
+     * The queue of the {@link Sync#BATCH} mode, exposing the queue depth, drops and batch latency,
+     * or null when running in another mode
+     */
+    public BatchingTaskQueue getBatchingTaskQueue() {
+        return batches;
+    }
+
     public void setMode(Mode mode) {
         this.mode = mode;
     }
@@ -141,6 +200,11 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
             tasks.shutdown();
             tasks = null;
         }
+        if (batches != null) {
+            // writes the queued requests
+            batches.shutdown();
+            batches = null;
+        }
     }
 
     public List<RequestData> getOwsRequests() {
@@ -577,7 +641,10 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
 //    }
     
     protected void run(Task task) {
-        if (tasks != null) {
+        if (batches != null) {
+            batches.offer(task);
+        }
+        else if (tasks != null) {
             tasks.execute(Thread.currentThread(), new Async(task), task.desc);
         }
         else {
@@ -609,6 +676,11 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
         Task(RequestData data) {
             this.data = data;
         }
+
+        /**
+         * Persists the request in the given session, the transaction is handled by the caller
+         */
+        abstract void persist(Session session);
     }
     
     class Save extends Task {
@@ -628,6 +700,15 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
             }
             
         }
+
+        void persist(Session session) {
+            if (data.getId() == -1) {
+                new Insert(data).persist(session);
+            }
+            else {
+                new Update(data).persist(session);
+            }
+        }
         
     }
     class Insert extends Task {
@@ -642,14 +723,17 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
                 public Object doInHibernate(Session session) throws HibernateException,
                         SQLException {
                     Transaction tx = session.beginTransaction();
-                    data.setId((Long)session.save(data));
-                    //mergeLayers(data, session);
-                    session.save(data);
+                    persist(session);
                     tx.commit();
                     return data;
                 }
             });
         }
+
+        void persist(Session session) {
+            data.setId((Long)session.save(data));
+            //mergeLayers(data, session);
+        }
     }
     
     class Update extends Task {
@@ -665,8 +749,7 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
                         SQLException {
                     try {
                         Transaction tx = session.beginTransaction();
-                        //mergeLayers(data, session);
-                        session.update(data);
+                        persist(session);
                         tx.commit();
                     }
                     catch(HibernateException e) {
@@ -677,11 +760,18 @@ public class HibernateMonitorDAO2 implements MonitorDAO , DisposableBean {
                 }
             });
         }
+
+        void persist(Session session) {
+            //mergeLayers(data, session);
+            session.update(data);
+        }
         
     }
 
 	@Override
 	public void destroy() throws Exception {
+		// flush the pending requests before closing the session factory
+		dispose();
 		getSessionFactory().close();
 	}
 }
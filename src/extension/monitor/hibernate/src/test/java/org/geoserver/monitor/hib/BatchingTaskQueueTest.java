@@ -0,0 +1,259 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.monitor.hib;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.commons.io.IOUtils;
+import org.geoserver.monitor.RequestData;
+import org.geoserver.monitor.hib.BatchingTaskQueue.Overflow;
+import org.geoserver.monitor.hib.HibernateMonitorDAO2.Sync;
+import org.geoserver.monitor.hib.HibernateMonitorDAO2.Task;
+import org.h2.tools.DeleteDbFiles;
+import org.hibernate.HibernateException;
+import org.hibernate.Session;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.springframework.web.context.support.XmlWebApplicationContext;
+
+public class BatchingTaskQueueTest {
+
+    private static XmlWebApplicationContext ctx;
+
+    private static HibernateMonitorDAO2 dao;
+
+    @BeforeClass
+    public static void initHibernate() throws Exception {
+        // setup in memory h2 db
+        Properties p = new Properties();
+        p.put("driver", "org.h2.Driver");
+        p.put("url", "jdbc:h2:mem:monitoring");
+        File file = new File("./target/monitoring/db.properties");
+        FileOutputStream fos = null;
+        try {
+            if (!file.getParentFile().exists()) {
+                assertTrue(file.getParentFile().mkdirs());
+            }
+            fos = new FileOutputStream(file);
+            p.store(fos, null);
+        } finally {
+            IOUtils.closeQuietly(fos);
+        }
+
+        ctx = new XmlWebApplicationContext() {
+            public String[] getConfigLocations() {
+                return new String[] { "classpath*:applicationContext-hibtest.xml",
+                        "classpath*:applicationContext-hib2.xml" };
+            }
+        };
+        ctx.refresh();
+        dao = (HibernateMonitorDAO2) ctx.getBean("hibMonitorDAO");
+        dao.setSync(Sync.SYNC);
+    }
+
+    @AfterClass
+    public static void destroy() throws Exception {
+        dao.dispose();
+        ctx.close();
+        DeleteDbFiles.execute("target/monitoring", "monitoring", false);
+    }
+
+    @Test
+    public void testBatches() throws Exception {
+        BatchingTaskQueue queue = new BatchingTaskQueue(dao.hib, 100);
+        queue.setBatchSize(10);
+        // long enough for batches to be written by size only
+        queue.setFlushInterval(60000);
+        queue.start();
+
+        List<RequestData> datas = new ArrayList<RequestData>();
+        for (int i = 0; i < 25; i++) {
+            RequestData data = new RequestData();
+            data.setPath("/batch" + i);
+            datas.add(data);
+            assertTrue(queue.offer(dao.new Save(data)));
+        }
+        // writes the last, partial, batch
+        queue.shutdown();
+
+        assertEquals(0, queue.getQueueSize());
+        assertEquals(25, queue.getWritten());
+        assertEquals(0, queue.getDropped());
+        assertEquals(3, queue.getBatchCount());
+        assertEquals(3, queue.getBatchLatency().getCount());
+        for (RequestData data : datas) {
+            assertTrue(data.getId() != -1);
+            RequestData stored = (RequestData) dao.hib.get(RequestData.class, data.getId());
+            assertEquals(data.getPath(), stored.getPath());
+        }
+    }
+
+    @Test
+    public void testFlushInterval() throws Exception {
+        BatchingTaskQueue queue = new BatchingTaskQueue(dao.hib, 100);
+        queue.setBatchSize(100);
+        queue.setFlushInterval(10);
+        queue.start();
+        try {
+            RequestData data = new RequestData();
+            data.setPath("/interval");
+            queue.offer(dao.new Save(data));
+
+            // the batch is not full, it gets written once the interval elapsed
+            for (int i = 0; i < 500 && queue.getWritten() == 0; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, queue.getWritten());
+            assertTrue(data.getId() != -1);
+        } finally {
+            queue.shutdown();
+        }
+    }
+
+    @Test
+    public void testBatchFailure() throws Exception {
+        BatchingTaskQueue queue = new BatchingTaskQueue(dao.hib, 100);
+
+        RequestData data = new RequestData();
+        data.setPath("/retried");
+        // breaks the batch, but not the one by one writes
+        Task failing = new Task(new RequestData()) {
+            public void run() {
+            }
+
+            void persist(Session session) {
+                throw new HibernateException("Failing on purpose");
+            }
+        };
+        List<Task> batch = new ArrayList<Task>();
+        batch.add(dao.new Save(data));
+        batch.add(failing);
+        batch.add(dao.new Save(data));
+        queue.write(batch);
+
+        assertEquals(3, queue.getWritten());
+        assertEquals(0, queue.getFailed());
+        assertTrue(data.getId() != -1);
+        // the second save updated the request inserted by the first one
+        assertEquals(1, dao.hib.find("from RequestData where path = ?", "/retried").size());
+    }
+
+    @Test
+    public void testDrop() throws Exception {
+        BatchingTaskQueue queue = new BatchingTaskQueue(dao.hib, 10);
+        // accept tasks without a writer draining them
+        queue.running = true;
+
+        int accepted = 0;
+        for (int i = 0; i < 15; i++) {
+            if (queue.offer(dao.new Save(new RequestData()))) {
+                accepted++;
+            }
+        }
+        assertEquals(10, accepted);
+        assertEquals(10, queue.getQueueSize());
+        assertEquals(5, queue.getDropped());
+    }
+
+    @Test
+    public void testDropWholeRequests() throws Exception {
+        BatchingTaskQueue queue = new BatchingTaskQueue(dao.hib, 2);
+        queue.setFlushInterval(10);
+        // accept tasks without a writer draining them
+        queue.running = true;
+
+        RequestData recorded = new RequestData();
+        recorded.setPath("/recorded");
+        assertTrue(queue.offer(dao.new Insert(recorded)));
+        RequestData other = new RequestData();
+        other.setPath("/other");
+        assertTrue(queue.offer(dao.new Save(other)));
+
+        // the queue is full, new requests are dropped, with all their tasks
+        RequestData dropped = new RequestData();
+        dropped.setPath("/dropped");
+        assertFalse(queue.offer(dao.new Save(dropped)));
+        assertFalse(queue.offer(dao.new Save(dropped)));
+        assertEquals(2, queue.getDropped());
+
+        // the updates of the recorded ones wait for room, only the last save is kept
+        assertTrue(queue.offer(dao.new Save(recorded)));
+        recorded.setPath("/recorded/final");
+        assertTrue(queue.offer(dao.new Save(recorded)));
+        assertEquals(1, queue.getOverflowSize());
+
+        queue.start();
+        queue.shutdown();
+        assertEquals(0, queue.getOverflowSize());
+        assertEquals(3, queue.getWritten());
+        RequestData stored = (RequestData) dao.hib.get(RequestData.class, recorded.getId());
+        assertEquals("/recorded/final", stored.getPath());
+        assertEquals(0, dao.hib.find("from RequestData where path = ?", "/dropped").size());
+    }
+
+    @Test
+    public void testSampleWholeRequests() throws Exception {
+        BatchingTaskQueue queue = new BatchingTaskQueue(dao.hib, 10);
+        queue.setOverflow(Overflow.SAMPLE);
+        queue.setSampleRate(1000000);
+        queue.running = true;
+
+        // decided while the queue is empty, recorded whatever the depth afterwards
+        RequestData data = new RequestData();
+        assertTrue(queue.offer(dao.new Insert(data)));
+        List<RequestData> accepted = new ArrayList<RequestData>();
+        List<RequestData> sampledOut = new ArrayList<RequestData>();
+        for (int i = 0; i < 10; i++) {
+            RequestData other = new RequestData();
+            if (queue.offer(dao.new Save(other))) {
+                accepted.add(other);
+            } else {
+                sampledOut.add(other);
+            }
+        }
+        assertEquals(4, accepted.size());
+        assertTrue(queue.offer(dao.new Save(data)));
+
+        // same decision for the following tasks, even once the queue is drained
+        queue.queue.clear();
+        for (RequestData other : accepted) {
+            assertTrue(queue.offer(dao.new Save(other)));
+        }
+        for (RequestData other : sampledOut) {
+            assertFalse(queue.offer(dao.new Save(other)));
+        }
+        assertEquals(12, queue.getDropped());
+    }
+
+    @Test
+    public void testSample() throws Exception {
+        BatchingTaskQueue queue = new BatchingTaskQueue(dao.hib, 10);
+        queue.setOverflow(Overflow.SAMPLE);
+        queue.setSampleRate(2);
+        queue.running = true;
+
+        List<RequestData> accepted = new ArrayList<RequestData>();
+        for (int i = 0; i < 40; i++) {
+            RequestData data = new RequestData();
+            if (queue.offer(dao.new Save(data))) {
+                accepted.add(data);
+            }
+        }
+        assertEquals(10, queue.getQueueSize());
+        assertEquals(30, queue.getDropped());
+        // up to half the capacity everything is queued, then one request every two
+        for (RequestData data : accepted.subList(5, 10)) {
+            assertEquals(0, data.internalid % 2);
+        }
+    }
+}
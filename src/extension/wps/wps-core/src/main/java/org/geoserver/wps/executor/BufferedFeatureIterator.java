@@ -0,0 +1,242 @@
+/* (c) 2015 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
+import org.geoserver.wps.ProcessDismissedException;
+import org.geoserver.wps.WPSException;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.FeatureIterator;
+import org.opengis.feature.Feature;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.util.ProgressListener;
+
+/**
+ * A feature iterator reading ahead the output of a chained process in a separate thread, so that
+ * the chained process computes the next features while the calling process consumes the current
+ * ones. At most {@code bufferSize} features are held in memory, the chained process blocks when
+ * the calling one is not keeping up.
+ * <p>
+ * If no thread picks up the read ahead shortly after the first feature is requested the calling
+ * thread reads from the delegate directly, so chained processes cannot end up waiting on each
+ * other for a thread.
+ * </p>
+ */
+class BufferedFeatureIterator<F extends Feature> implements FeatureIterator<F> {
+
+    /**
+     * The number of features read ahead by default
+     */
+    static final int DEFAULT_BUFFER_SIZE = 100;
+
+    /**
+     * How often, in milliseconds, the waiting threads check for cancellation and closing, as well
+     * as how long the calling thread waits for the read ahead to start
+     */
+    static final long POLL_INTERVAL = 10;
+
+    /**
+     * Marks the end of the features in the buffer
+     */
+    static final Object END = new Object();
+
+    /**
+     * Wraps the iterator into a buffered one preserving its simple feature nature
+     */
+    @SuppressWarnings("unchecked")
+    public static FeatureIterator<?> wrap(FeatureIterator<?> delegate, ExecutorService executor,
+            ProgressListener listener) {
+        if (delegate instanceof SimpleFeatureIterator) {
+            return new Simple((SimpleFeatureIterator) delegate, DEFAULT_BUFFER_SIZE, executor,
+                    listener);
+        } else {
+            return new BufferedFeatureIterator<Feature>((FeatureIterator<Feature>) delegate,
+                    DEFAULT_BUFFER_SIZE, executor, listener);
+        }
+    }
+
+    FeatureIterator<F> delegate;
+
+    ProgressListener listener;
+
+    BlockingQueue<Object> buffer;
+
+    /**
+     * Set by the first one reading from the delegate, either the read ahead thread or the calling
+     * one
+     */
+    AtomicBoolean claimed = new AtomicBoolean();
+
+    volatile boolean closed;
+
+    /**
+     * The failure that stopped the read ahead, reported once the features read before it are
+     * consumed
+     */
+    volatile Throwable failure;
+
+    ThreadLocalsTransfer transfer;
+
+    // the following are accessed only by the calling thread
+
+    boolean direct;
+
+    Object next;
+
+    public BufferedFeatureIterator(FeatureIterator<F> delegate, int bufferSize,
+            ExecutorService executor, ProgressListener listener) {
+        this.delegate = delegate;
+        this.listener = listener;
+        this.buffer = new ArrayBlockingQueue<Object>(bufferSize);
+        // the chained collection might need the current request, user, and so on
+        this.transfer = new ThreadLocalsTransfer();
+        try {
+            executor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    readAhead();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // the calling thread will read directly
+        }
+    }
+
+    void readAhead() {
+        if (!claimed.compareAndSet(false, true)) {
+            // the calling thread got there first
+            return;
+        }
+        transfer.apply();
+        try {
+            while (!closed && !listener.isCanceled() && delegate.hasNext()) {
+                if (!offer(delegate.next())) {
+                    return;
+                }
+            }
+            if (listener.isCanceled()) {
+                // make sure the calling process does not mistake this for the end of the output
+                failure = new ProcessDismissedException(listener);
+            }
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            try {
+                delegate.close();
+            } finally {
+                transfer.cleanup();
+                offer(END);
+            }
+        }
+    }
+
+    /**
+     * Adds the object to the buffer, waiting for space, returns false if the iterator got closed,
+     * or the process dismissed, in the meantime. A dismissed consumer might never close the
+     * iterator, and would not drain the buffer either.
+     */
+    private boolean offer(Object o) {
+        try {
+            while (!closed && !listener.isCanceled()) {
+                if (buffer.offer(o, POLL_INTERVAL, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            closed = true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!direct && next == null) {
+            next = take();
+        }
+        if (direct) {
+            if (listener.isCanceled()) {
+                throw new ProcessDismissedException(listener);
+            }
+            return delegate.hasNext();
+        }
+        return next != END;
+    }
+
+    private Object take() {
+        try {
+            while (true) {
+                if (listener.isCanceled()) {
+                    throw new ProcessDismissedException(listener);
+                }
+                Object result = buffer.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                if (result == END && failure != null) {
+                    // put it back, in case hasNext gets called again
+                    buffer.offer(END);
+                    if (failure instanceof RuntimeException) {
+                        throw (RuntimeException) failure;
+                    } else if (failure instanceof Error) {
+                        throw (Error) failure;
+                    }
+                    throw new WPSException("Failed to read the output of the chained process",
+                            failure);
+                } else if (result != null) {
+                    return result;
+                } else if (claimed.compareAndSet(false, true)) {
+                    // no thread available to read ahead, go on without
+                    direct = true;
+                    return null;
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new WPSException("Interrupted while reading the output of the chained process", e);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public F next() throws NoSuchElementException {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        if (direct) {
+            return delegate.next();
+        }
+        Object result = next;
+        next = null;
+        return (F) result;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (direct || claimed.compareAndSet(false, true)) {
+            delegate.close();
+        } else {
+            // let the read ahead thread notice and close the delegate
+            buffer.clear();
+        }
+    }
+
+    /**
+     * The simple feature flavor
+     */
+    static class Simple extends BufferedFeatureIterator<SimpleFeature> implements
+            SimpleFeatureIterator {
+
+        public Simple(SimpleFeatureIterator delegate, int bufferSize, ExecutorService executor,
+                ProgressListener listener) {
+            super(delegate, bufferSize, executor, listener);
+        }
+    }
+}
@@ -7,6 +7,7 @@ package org.geoserver.wps.executor;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
+import java.util.concurrent.ExecutorService;
 
 import org.geoserver.wps.ProcessDismissedException;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -25,8 +26,17 @@ class CancellingFeatureCollectionBuilder {
 
     public static SimpleFeatureCollection wrap(final FeatureCollection delegate,
             final ProgressListener listener) {
+        return wrap(delegate, listener, null);
+    }
+
+    /**
+     * Wraps the collection, if an executor is provided the features returned by its iterators are
+     * read ahead in one of the executor threads (see {@link BufferedFeatureIterator})
+     */
+    public static SimpleFeatureCollection wrap(final FeatureCollection delegate,
+            final ProgressListener listener, ExecutorService readAheadExecutor) {
         InvocationHandler cancellingInvocationHandler = new CancellingInvocationHandler(listener,
-                delegate);
+                delegate, readAheadExecutor);
 
         Class[] interfaces;
         if (delegate instanceof SimpleFeatureCollection) {
@@ -47,9 +57,13 @@ class CancellingFeatureCollectionBuilder {
 
         Object delegate;
 
-        public CancellingInvocationHandler(ProgressListener listener, Object delegate) {
+        ExecutorService readAheadExecutor;
+
+        public CancellingInvocationHandler(ProgressListener listener, Object delegate,
+                ExecutorService readAheadExecutor) {
             this.listener = listener;
             this.delegate = delegate;
+            this.readAheadExecutor = readAheadExecutor;
         }
 
         @Override
@@ -62,6 +76,10 @@ class CancellingFeatureCollectionBuilder {
 
             // wrap feature iterators into cancelling bits too
             if (result instanceof FeatureIterator<?>) {
+                if (readAheadExecutor != null) {
+                    result = BufferedFeatureIterator.wrap((FeatureIterator<?>) result,
+                            readAheadExecutor, listener);
+                }
                 Class[] interfaces;
                 if (result instanceof SimpleFeatureIterator) {
                     interfaces = new Class[] { SimpleFeatureIterator.class };
@@ -69,7 +87,7 @@ class CancellingFeatureCollectionBuilder {
                     interfaces = new Class[] { FeatureIterator.class };
                 }
                 result = Proxy.newProxyInstance(CancellingFeatureCollectionBuilder.class.getClassLoader(),
-                        interfaces, new CancellingInvocationHandler(listener, result));
+                        interfaces, new CancellingInvocationHandler(listener, result, null));
             }
 
             return result;
@@ -0,0 +1,258 @@
+/* (c) 2015 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
+import org.geoserver.wps.ProcessDismissedException;
+import org.geoserver.wps.WPSException;
+import org.geotools.util.DelegateProgressListener;
+import org.opengis.util.ProgressListener;
+
+/**
+ * Resolves a set of input providers in parallel, using a bounded thread pool.
+ * <p>
+ * The calling thread runs the providers the pool did not get to yet, so the resolution always
+ * makes progress, even when the pool is saturated by other executions, or by the inputs of chained
+ * processes resolving their own inputs. The progress of each provider is combined into the one of
+ * the parent listener, proportionally to the provider long steps. If the parent listener gets
+ * cancelled, or one of the providers fails, the other providers see their listener cancelled and
+ * stop at the next check (e.g., the next read from a remote input stream).
+ * </p>
+ * <p>
+ * The providers run in the pool see the thread locals of the calling thread, but each one gets its
+ * own copy of the dispatcher {@link Request}, as some of them modify it (e.g., the internal
+ * requests parsing their KVP parameters).
+ * </p>
+ */
+class InputPrefetcher {
+
+    /**
+     * How often, in milliseconds, the calling thread checks for cancellation while waiting
+     */
+    static final long CANCEL_CHECK_INTERVAL = 100;
+
+    ExecutorService executor;
+
+    ProgressListener listener;
+
+    /**
+     * Set when the resolution has to stop, because of a failure or a cancellation
+     */
+    volatile boolean aborted;
+
+    /**
+     * The first failure, and the provider it came from, the ones following it are likely just a
+     * consequence of the abort
+     */
+    volatile Throwable failure;
+
+    InputProvider failedProvider;
+
+    float totalSteps;
+
+    float[] progress;
+
+    public InputPrefetcher(ExecutorService executor, ProgressListener listener) {
+        this.executor = executor;
+        this.listener = listener;
+    }
+
+    /**
+     * Resolves the providers, returns when all of them have been resolved, or throws the first
+     * failure found
+     */
+    public void prefetch(List<InputProvider> providers) {
+        totalSteps = 0;
+        for (InputProvider provider : providers) {
+            totalSteps += provider.longStepCount();
+        }
+        progress = new float[providers.size()];
+
+        final Thread caller = Thread.currentThread();
+        final ThreadLocalsTransfer transfer = new ThreadLocalsTransfer();
+        final Request request = Dispatcher.REQUEST.get();
+        List<FutureTask<Object>> tasks = new ArrayList<FutureTask<Object>>();
+        for (int i = 0; i < providers.size(); i++) {
+            final InputProvider provider = providers.get(i);
+            final ProgressListener subListener = new PrefetchListener(i,
+                    provider.longStepCount());
+            // copied here, while no provider can be modifying the original
+            final Request taskRequest = request == null ? null : new Request(request);
+            FutureTask<Object> task = new FutureTask<Object>(new Callable<Object>() {
+
+                @Override
+                public Object call() throws Exception {
+                    if (aborted) {
+                        // no point in starting
+                        throw new ProcessDismissedException(listener);
+                    }
+                    // the providers might need the current request, user, and so on
+                    boolean pooled = Thread.currentThread() != caller;
+                    if (pooled) {
+                        transfer.apply();
+                        Dispatcher.REQUEST.set(taskRequest);
+                    }
+                    try {
+                        subListener.started();
+                        return provider.getValue(subListener);
+                    } catch (Exception e) {
+                        failed(provider, e);
+                        throw e;
+                    } finally {
+                        subListener.complete();
+                        if (pooled) {
+                            transfer.cleanup();
+                            Dispatcher.REQUEST.remove();
+                        }
+                    }
+                }
+            });
+            tasks.add(task);
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // the calling thread will take care of it
+            }
+        }
+
+        try {
+            // the pool picks the tasks from the head of its queue, help from the tail (running
+            // a task that already started is a no-op)
+            for (int i = tasks.size() - 1; i >= 0 && !aborted; i--) {
+                checkCancelled();
+                tasks.get(i).run();
+            }
+            for (int i = 0; i < tasks.size(); i++) {
+                await(tasks.get(i), providers.get(i));
+            }
+        } finally {
+            if (aborted) {
+                for (FutureTask<Object> task : tasks) {
+                    task.cancel(false);
+                }
+            }
+        }
+    }
+
+    private void await(FutureTask<Object> task, InputProvider provider) {
+        while (true) {
+            checkCancelled();
+            if (failure != null) {
+                throw abort(null, provider);
+            }
+            try {
+                task.get(CANCEL_CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+                return;
+            } catch (TimeoutException e) {
+                // check for cancellation and failures, and wait again
+            } catch (InterruptedException e) {
+                aborted = true;
+                throw new WPSException("Interrupted while retrieving value for input "
+                        + provider.getInputId(), e);
+            } catch (CancellationException e) {
+                throw abort(new ProcessDismissedException(listener), provider);
+            } catch (ExecutionException e) {
+                throw abort(e.getCause(), provider);
+            }
+        }
+    }
+
+    synchronized void failed(InputProvider provider, Throwable t) {
+        if (failure == null) {
+            failure = t;
+            failedProvider = provider;
+        }
+        // let the other providers know they can stop
+        aborted = true;
+    }
+
+    /**
+     * Builds the exception to be thrown, reporting the first failure
+     */
+    synchronized RuntimeException abort(Throwable cause, InputProvider provider) {
+        aborted = true;
+        if (failure != null) {
+            cause = failure;
+            provider = failedProvider;
+        }
+        listener.exceptionOccurred(cause);
+        if (cause instanceof RuntimeException) {
+            // WPSException (e.g., input size limits), dismissal, and the like
+            return (RuntimeException) cause;
+        }
+        return new WPSException("Failed to retrieve value for input " + provider.getInputId(),
+                cause);
+    }
+
+    private void checkCancelled() {
+        if (listener.isCanceled()) {
+            aborted = true;
+            throw new ProcessDismissedException(listener);
+        }
+    }
+
+    /**
+     * Reports the combined progress of all providers to the parent listener
+     */
+    synchronized void progress(int index, float percent) {
+        progress[index] = percent;
+        if (totalSteps > 0) {
+            float total = 0;
+            for (float p : progress) {
+                total += p;
+            }
+            listener.progress(total / totalSteps);
+        }
+    }
+
+    /**
+     * The listener handed to a single provider
+     */
+    class PrefetchListener extends DelegateProgressListener {
+
+        int index;
+
+        float steps;
+
+        public PrefetchListener(int index, float steps) {
+            super(listener);
+            this.index = index;
+            this.steps = steps;
+        }
+
+        @Override
+        public void started() {
+            // the parent is already started
+        }
+
+        @Override
+        public void progress(float percent) {
+            InputPrefetcher.this.progress(index, percent * steps);
+        }
+
+        @Override
+        public void complete() {
+            progress(100);
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return aborted || super.isCanceled();
+        }
+    }
+}
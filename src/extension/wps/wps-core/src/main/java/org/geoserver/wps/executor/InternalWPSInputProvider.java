@@ -82,9 +82,11 @@ public class InternalWPSInputProvider extends AbstractInputProvider {
                             + ppio.getType().getName() + " and got " + obj.getClass().getName());
         }
 
-        // make sure we have the process receiving this fail if cancellation triggers
+        // make sure we have the process receiving this fail if cancellation triggers, and
+        // stream the features to it, if we have threads to read them ahead
         if (obj instanceof FeatureCollection) {
-            obj = CancellingFeatureCollectionBuilder.wrap((FeatureCollection) obj, listener);
+            obj = CancellingFeatureCollectionBuilder.wrap((FeatureCollection) obj, listener,
+                    executor.getReadAheadExecutor());
         }
 
         return obj;
@@ -6,10 +6,13 @@
 package org.geoserver.wps.executor;
 
 import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 
 import org.geoserver.wps.ProcessDismissedException;
 import org.geoserver.wps.WPSException;
@@ -20,7 +23,9 @@ import org.opengis.util.ProgressListener;
 
 /**
  * A map using input providers internally, allows for deferred execution of the input parsing (it
- * happens in a single shot when the first input is fetched)
+ * happens in a single shot when the first input is fetched). If a prefetch executor is set, the
+ * inputs requiring long steps (remote requests, internal requests, chained processes) are resolved
+ * in parallel
  * 
  * @author Andrea Aime - GeoSolutions
  */
@@ -36,6 +41,8 @@ class LazyInputMap extends AbstractMap<String, Object> {
 
     ProgressListener listener = DEFAULT_LISTENER;
 
+    ExecutorService prefetchExecutor;
+
     public LazyInputMap(Map<String, InputProvider> providers) {
         this.providers = providers;
     }
@@ -51,7 +58,7 @@ class LazyInputMap extends AbstractMap<String, Object> {
         return values.get(key);
     }
     
-    private void parseInputs() {
+    private synchronized void parseInputs() {
         // we want to (try to) actually parse stuff just once
         if (parsed) {
             return;
@@ -59,12 +66,12 @@ class LazyInputMap extends AbstractMap<String, Object> {
         parsed = true;
 
         // count long parses
-        int totalSteps = 0;
-        for (InputProvider provider : providers.values()) {
-            totalSteps = provider.longStepCount();
-        }
+        int totalSteps = longStepCount();
 
         listener.started();
+        if (prefetchExecutor != null) {
+            prefetchInputs();
+        }
         float stepsSoFar = 0;
         for (InputProvider provider : providers.values()) {
             listener.setTask(new SimpleInternationalString("Retrieving/parsing process input: "
@@ -73,13 +80,14 @@ class LazyInputMap extends AbstractMap<String, Object> {
                 // force parsing
                 float providerLongSteps = provider.longStepCount();
                 ProgressListener subListener;
-                if (providerLongSteps > 0) {
+                if (providerLongSteps > 0 && !provider.resolved()) {
                     subListener = new SubProgressListener(listener,
                             (stepsSoFar / totalSteps) * 100, (providerLongSteps / totalSteps) * 100);
                 } else {
+                    // nothing to report, or already reported while prefetching
                     subListener = new NullProgressListener();
                 }
-                totalSteps += providerLongSteps;
+                stepsSoFar += providerLongSteps;
                 subListener.started();
                 subListener.progress(0);
                 Object value = provider.getValue(subListener);
@@ -95,6 +103,32 @@ class LazyInputMap extends AbstractMap<String, Object> {
         }
     }
 
+    /**
+     * Resolves in parallel the inputs requiring long steps, the values get cached in the
+     * providers. Multi-valued inputs are split in their single values
+     */
+    private void prefetchInputs() {
+        List<InputProvider> longProviders = new ArrayList<InputProvider>();
+        for (InputProvider provider : providers.values()) {
+            if (provider instanceof ListInputProvider) {
+                for (InputProvider item : ((ListInputProvider) provider).getProviders()) {
+                    if (item.longStepCount() > 0 && !item.resolved()) {
+                        longProviders.add(item);
+                    }
+                }
+            } else if (provider.longStepCount() > 0 && !provider.resolved()) {
+                longProviders.add(provider);
+            }
+        }
+        // nothing to gain if there are no two inputs to be resolved in parallel
+        if (longProviders.size() < 2) {
+            return;
+        }
+
+        listener.setTask(new SimpleInternationalString("Retrieving process inputs in parallel"));
+        new InputPrefetcher(prefetchExecutor, listener).prefetch(longProviders);
+    }
+
     @Override
     public Set<Entry<String, Object>> entrySet() {
         Set<Entry<String, Object>> result = new HashSet<Map.Entry<String, Object>>();
@@ -146,5 +180,15 @@ class LazyInputMap extends AbstractMap<String, Object> {
         this.listener = listener;
     }
 
+    /**
+     * Sets the executor used to resolve the inputs in parallel, or null to resolve them one by one,
+     * as the process asks for them
+     * 
+     * @param prefetchExecutor
+     */
+    public void setPrefetchExecutor(ExecutorService prefetchExecutor) {
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
     
 }
@@ -57,7 +57,7 @@ class ListInputProvider implements InputProvider {
                 } else {
                     subListener = new NullProgressListener();
                 }
-                totalSteps += providerLongSteps;
+                stepsSoFar += providerLongSteps;
                 Object pv = provider.getValue(subListener);
                 value.add(pv);
             }
@@ -74,9 +74,26 @@ class ListInputProvider implements InputProvider {
         this.providers.add(provider);
     }
 
+    /**
+     * Returns the providers of the single values
+     */
+    public List<InputProvider> getProviders() {
+        return providers;
+    }
+
     @Override
     public boolean resolved() {
-        return value != null;
+        if (value != null) {
+            return true;
+        }
+        // the single values might have been resolved already, in that case building the list is
+        // not a long step
+        for (InputProvider provider : providers) {
+            if (!provider.resolved()) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
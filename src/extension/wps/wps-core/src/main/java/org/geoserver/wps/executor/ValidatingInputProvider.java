@@ -23,6 +23,8 @@ public class ValidatingInputProvider implements InputProvider {
 
     Collection<Validator> validators;
 
+    Object value;
+
     /**
      * Adds validation around the input provider as needed
      * 
@@ -43,6 +45,10 @@ public class ValidatingInputProvider implements InputProvider {
     }
 
     public Object getValue(ProgressListener subListener) throws Exception {
+        if (this.value != null) {
+            // already validated
+            return this.value;
+        }
         Object value = delegate.getValue(subListener);
         Errors errors = new BeanPropertyBindingResult(value, getInputId());
         for (Validator v : validators) {
@@ -55,6 +61,7 @@ public class ValidatingInputProvider implements InputProvider {
             throw new ValidationException(errors, getInputId());
         }
 
+        this.value = value;
         return value;
     }
 
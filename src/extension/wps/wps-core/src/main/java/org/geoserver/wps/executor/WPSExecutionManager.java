@@ -15,6 +15,11 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,6 +67,18 @@ public class WPSExecutionManager implements ApplicationContextAware,
 
     private static final Logger LOGGER = Logging.getLogger(WPSExecutionManager.class);
 
+    /**
+     * System/context/environment variable setting the number of threads resolving process inputs
+     * in parallel
+     */
+    public static final String INPUT_PREFETCH_THREADS = "WPS_INPUT_PREFETCH_THREADS";
+
+    /**
+     * System/context/environment variable setting the number of threads reading ahead the feature
+     * collections produced by chained processes, defaults to {@link #INPUT_PREFETCH_THREADS}
+     */
+    public static final String READ_AHEAD_THREADS = "WPS_READ_AHEAD_THREADS";
+
     /**
      * The thread pool that will run the threads doing input decoding/process launch/output decoding
      * for asynchronous processes
@@ -119,6 +136,29 @@ public class WPSExecutionManager implements ApplicationContextAware,
      */
     private GeoServer geoServer;
 
+    /**
+     * The number of threads resolving the process inputs in parallel, zero or less to resolve
+     * them one by one
+     */
+    private int inputPrefetchThreads;
+
+    /**
+     * The pool resolving the process inputs in parallel, if enabled
+     */
+    private ExecutorService inputPrefetchExecutor;
+
+    /**
+     * The number of threads reading ahead the chained process outputs, zero or less to have the
+     * receiving processes read them directly
+     */
+    private int readAheadThreads;
+
+    /**
+     * The pool reading ahead the chained process outputs, if enabled. Kept apart from the input
+     * prefetch one as each read ahead holds its thread until the receiving process is done
+     */
+    private ExecutorService readAheadExecutor;
+
     public WPSExecutionManager(GeoServer geoServer, WPSResourceManager resourceManager,
             ProcessStatusTracker statusTracker) {
         this.resourceManager = resourceManager;
@@ -149,6 +189,7 @@ public class WPSExecutionManager implements ApplicationContextAware,
         float inputPercentage = inputsLongSteps * longStepPercentage;
         float executionPercentage = 100 - inputPercentage;
         inputs.setListener(new SubProgressListener(listener, inputPercentage));
+        inputs.setPrefetchExecutor(inputPrefetchExecutor);
         ProgressListener executionListener = new SubProgressListener(listener, inputPercentage,
                 executionPercentage);
         return processManager.submitChained(executionId, processName, inputs, executionListener);
@@ -250,6 +291,103 @@ public class WPSExecutionManager implements ApplicationContextAware,
         this.connectionTimeout = connectionTimeout;
     }
 
+    /**
+     * Returns the number of threads resolving the process inputs in parallel
+     * 
+     * @return
+     */
+    public int getInputPrefetchThreads() {
+        return inputPrefetchThreads;
+    }
+
+    /**
+     * Returns the pool resolving the process inputs in parallel, or null if the inputs are
+     * resolved one by one
+     */
+    ExecutorService getInputPrefetchExecutor() {
+        return inputPrefetchExecutor;
+    }
+
+    /**
+     * Sets the number of threads resolving the process inputs in parallel. The threads are shared
+     * among all processes, use zero or a negative number to resolve the inputs one by one, as the
+     * process asks for them
+     * 
+     * @param inputPrefetchThreads
+     */
+    public synchronized void setInputPrefetchThreads(int inputPrefetchThreads) {
+        if (inputPrefetchThreads == this.inputPrefetchThreads) {
+            return;
+        }
+        this.inputPrefetchThreads = inputPrefetchThreads;
+        if (inputPrefetchExecutor != null) {
+            // the inputs being resolved will be picked up by the calling threads
+            inputPrefetchExecutor.shutdown();
+            inputPrefetchExecutor = null;
+        }
+        if (inputPrefetchThreads > 0) {
+            inputPrefetchExecutor = newPool(inputPrefetchThreads, "WPS input prefetch ");
+        }
+    }
+
+    /**
+     * Returns the number of threads reading ahead the chained process outputs
+     * 
+     * @return
+     */
+    public int getReadAheadThreads() {
+        return readAheadThreads;
+    }
+
+    /**
+     * Returns the pool reading ahead the chained process outputs, or null if the receiving
+     * processes read them directly
+     */
+    ExecutorService getReadAheadExecutor() {
+        return readAheadExecutor;
+    }
+
+    /**
+     * Sets the number of threads reading ahead the feature collections produced by chained
+     * processes. The threads are shared among all processes, use zero or a negative number to have
+     * the receiving processes read the chained outputs directly
+     * 
+     * @param readAheadThreads
+     */
+    public synchronized void setReadAheadThreads(int readAheadThreads) {
+        if (readAheadThreads == this.readAheadThreads) {
+            return;
+        }
+        this.readAheadThreads = readAheadThreads;
+        if (readAheadExecutor != null) {
+            // the read aheads not started yet will be done by the receiving processes
+            readAheadExecutor.shutdown();
+            readAheadExecutor = null;
+        }
+        if (readAheadThreads > 0) {
+            readAheadExecutor = newPool(readAheadThreads, "WPS read ahead ");
+        }
+    }
+
+    private ExecutorService newPool(int threads, final String prefix) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(threads * 4),
+                new ThreadFactory() {
+                    AtomicInteger count = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, prefix + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                },
+                // the calling thread runs the tasks the pool could not accept
+                new ThreadPoolExecutor.DiscardPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Sets the heartbeat delay for the processes that are running (to make sure we tell the rest of
      * the cluster the process is actually still running, even if it does not update its status)
@@ -272,6 +410,21 @@ public class WPSExecutionManager implements ApplicationContextAware,
     public void setApplicationContext(ApplicationContext context) throws BeansException {
         this.applicationContext = context;
         this.listeners = GeoServerExtensions.extensions(ProcessListener.class, context);
+        setInputPrefetchThreads(getThreads(INPUT_PREFETCH_THREADS, 0, context));
+        setReadAheadThreads(getThreads(READ_AHEAD_THREADS, inputPrefetchThreads, context));
+    }
+
+    private int getThreads(String property, int defaultThreads, ApplicationContext context) {
+        String threads = GeoServerExtensions.getProperty(property, context);
+        if (threads != null) {
+            try {
+                return Integer.parseInt(threads.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + property
+                        + ", should be a number of threads: " + threads);
+            }
+        }
+        return defaultThreads;
     }
 
     @Override
@@ -282,6 +435,9 @@ public class WPSExecutionManager implements ApplicationContextAware,
             } else if (event instanceof ContextClosedEvent) {
                 executors.shutdownNow();
             }
+        } else if (event instanceof ContextClosedEvent) {
+            setInputPrefetchThreads(0);
+            setReadAheadThreads(0);
         }
     }
 
@@ -386,6 +542,7 @@ public class WPSExecutionManager implements ApplicationContextAware,
             try {
                 // have the input map give us progress report
                 inputs.setListener(new SubProgressListener(listener, 0, inputPercentage));
+                inputs.setPrefetchExecutor(inputPrefetchExecutor);
 
                 // submit
                 SubProgressListener executionListener = new SubProgressListener(listener,
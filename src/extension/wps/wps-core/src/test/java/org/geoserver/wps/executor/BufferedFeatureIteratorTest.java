@@ -0,0 +1,310 @@
+/* (c) 2015 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.geoserver.wps.ProcessDismissedException;
+import org.geotools.data.simple.SimpleFeatureIterator;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.geotools.util.NullProgressListener;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+public class BufferedFeatureIteratorTest {
+
+    static final int BUFFER_SIZE = BufferedFeatureIterator.DEFAULT_BUFFER_SIZE;
+
+    SimpleFeatureType featureType;
+
+    ExecutorService executor;
+
+    @Before
+    public void setup() {
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName("test");
+        tb.add("id", Integer.class);
+        featureType = tb.buildFeatureType();
+    }
+
+    @After
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Computes the features on the fly, like the output of a streaming process would
+     */
+    class GeneratingIterator implements SimpleFeatureIterator {
+        SimpleFeatureBuilder builder = new SimpleFeatureBuilder(featureType);
+
+        int count;
+
+        int failAt = -1;
+
+        AtomicInteger produced = new AtomicInteger();
+
+        Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        volatile boolean closed;
+
+        GeneratingIterator(int count) {
+            this.count = count;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return produced.get() < count;
+        }
+
+        @Override
+        public SimpleFeature next() {
+            int id = produced.get();
+            if (id == failAt) {
+                throw new IllegalStateException("Failed computing feature " + id);
+            }
+            threads.add(Thread.currentThread().getName());
+            builder.add(id);
+            SimpleFeature feature = builder.buildFeature("test." + id);
+            produced.incrementAndGet();
+            return feature;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+
+    /**
+     * Passes the features through, as a streaming process working on a chained input would
+     */
+    static class PassThroughIterator implements SimpleFeatureIterator {
+        SimpleFeatureIterator delegate;
+
+        PassThroughIterator(SimpleFeatureIterator delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return delegate.hasNext();
+        }
+
+        @Override
+        public SimpleFeature next() {
+            return delegate.next();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+    }
+
+    SimpleFeatureIterator buffered(SimpleFeatureIterator delegate) {
+        return buffered(delegate, new NullProgressListener());
+    }
+
+    SimpleFeatureIterator buffered(SimpleFeatureIterator delegate, NullProgressListener listener) {
+        return (SimpleFeatureIterator) BufferedFeatureIterator.wrap(delegate, executor, listener);
+    }
+
+    @Test
+    public void testReadAhead() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        GeneratingIterator generator = new GeneratingIterator(10000);
+        SimpleFeatureIterator it = buffered(generator);
+        int consumed = 0;
+        int maxInFlight = 0;
+        try {
+            while (it.hasNext()) {
+                SimpleFeature feature = it.next();
+                assertEquals(consumed, feature.getAttribute("id"));
+                consumed++;
+                maxInFlight = Math.max(maxInFlight, generator.produced.get() - consumed);
+            }
+        } finally {
+            it.close();
+        }
+        assertEquals(10000, consumed);
+        assertFalse(generator.threads.contains(Thread.currentThread().getName()));
+        // never more than the buffer, plus the one being offered, ahead of the consumer
+        assertTrue("Read " + maxInFlight + " features ahead", maxInFlight <= BUFFER_SIZE + 1);
+        waitClosed(generator);
+    }
+
+    @Test
+    public void testChainPeakFeatures() throws Exception {
+        // a generator -> pass through -> consumer chain, with a read ahead between each stage
+        executor = Executors.newFixedThreadPool(2);
+        GeneratingIterator generator = new GeneratingIterator(100000);
+        SimpleFeatureIterator it = buffered(new PassThroughIterator(buffered(generator)));
+        int consumed = 0;
+        int maxInFlight = 0;
+        try {
+            while (it.hasNext()) {
+                it.next();
+                consumed++;
+                maxInFlight = Math.max(maxInFlight, generator.produced.get() - consumed);
+            }
+        } finally {
+            it.close();
+        }
+        assertEquals(100000, consumed);
+        // the features held in memory are bounded by the buffers, regardless of the output size
+        assertTrue("Held " + maxInFlight + " features", maxInFlight <= 2 * (BUFFER_SIZE + 1) + 1);
+        waitClosed(generator);
+    }
+
+    @Test
+    public void testNoThreadAvailable() throws Exception {
+        executor = Executors.newFixedThreadPool(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    // fine
+                }
+            }
+        });
+        try {
+            GeneratingIterator generator = new GeneratingIterator(1000);
+            SimpleFeatureIterator it = buffered(generator);
+            int consumed = 0;
+            while (it.hasNext()) {
+                it.next();
+                consumed++;
+            }
+            it.close();
+
+            // read directly, without waiting for the pool
+            assertEquals(1000, consumed);
+            assertEquals(Collections.singleton(Thread.currentThread().getName()),
+                    generator.threads);
+            assertTrue(generator.closed);
+        } finally {
+            latch.countDown();
+        }
+    }
+
+    @Test
+    public void testEarlyClose() throws Exception {
+        executor = Executors.newFixedThreadPool(1);
+        GeneratingIterator generator = new GeneratingIterator(100000);
+        SimpleFeatureIterator it = buffered(generator);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(it.hasNext());
+            it.next();
+        }
+        it.close();
+
+        // the read ahead stops and closes the delegate
+        waitClosed(generator);
+        assertTrue(generator.produced.get() <= 10 + BUFFER_SIZE + 2);
+    }
+
+    @Test
+    public void testFailure() throws Exception {
+        executor = Executors.newFixedThreadPool(1);
+        GeneratingIterator generator = new GeneratingIterator(1000);
+        generator.failAt = 50;
+        SimpleFeatureIterator it = buffered(generator);
+        int consumed = 0;
+        try {
+            while (it.hasNext()) {
+                it.next();
+                consumed++;
+            }
+            fail("Should have failed");
+        } catch (IllegalStateException e) {
+            assertEquals("Failed computing feature 50", e.getMessage());
+        } finally {
+            it.close();
+        }
+        // the features computed before the failure got through
+        assertEquals(50, consumed);
+        waitClosed(generator);
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        executor = Executors.newFixedThreadPool(1);
+        GeneratingIterator generator = new GeneratingIterator(100000);
+        NullProgressListener listener = new NullProgressListener();
+        SimpleFeatureIterator it = buffered(generator, listener);
+        try {
+            for (int i = 0; i < 10; i++) {
+                it.next();
+            }
+            listener.setCanceled(true);
+            while (it.hasNext()) {
+                it.next();
+            }
+            fail("Should have been dismissed");
+        } catch (ProcessDismissedException e) {
+            // fine
+        } finally {
+            it.close();
+        }
+        waitClosed(generator);
+    }
+
+    @Test
+    public void testCancelWithoutClose() throws Exception {
+        executor = Executors.newFixedThreadPool(1);
+        GeneratingIterator generator = new GeneratingIterator(100000);
+        NullProgressListener listener = new NullProgressListener();
+        SimpleFeatureIterator it = buffered(generator, listener);
+        for (int i = 0; i < 10; i++) {
+            it.next();
+        }
+        // the consumer is dismissed and goes away, the read ahead is blocked on a full buffer
+        listener.setCanceled(true);
+
+        // the read ahead stops anyways, closing the delegate and freeing its thread
+        waitClosed(generator);
+        int produced = generator.produced.get();
+        assertTrue(produced <= 10 + BUFFER_SIZE + 2);
+        Future<?> next = executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+            }
+        });
+        next.get(2, TimeUnit.SECONDS);
+        assertEquals(produced, generator.produced.get());
+    }
+
+    void waitClosed(GeneratingIterator generator) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (!generator.closed) {
+            if (System.currentTimeMillis() - start > 2000) {
+                fail("The delegate iterator was not closed");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
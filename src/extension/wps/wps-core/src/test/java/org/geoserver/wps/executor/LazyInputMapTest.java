@@ -0,0 +1,379 @@
+/* (c) 2015 Open Source Geospatial Foundation - all rights reserved
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wps.executor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
+import org.geoserver.wps.ProcessDismissedException;
+import org.geoserver.wps.WPSException;
+import org.geotools.util.NullProgressListener;
+import org.junit.After;
+import org.junit.Test;
+import org.opengis.util.ProgressListener;
+
+public class LazyInputMapTest {
+
+    ExecutorService executor;
+
+    @After
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A provider taking some time to compute its value, as a remote one would
+     */
+    static class SlowProvider implements InputProvider {
+        String inputId;
+
+        long delay;
+
+        Object value;
+
+        Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+        volatile boolean cancelled;
+
+        SlowProvider(String inputId, long delay) {
+            this.inputId = inputId;
+            this.delay = delay;
+        }
+
+        @Override
+        public Object getValue(ProgressListener listener) throws Exception {
+            if (value == null) {
+                threads.add(Thread.currentThread().getName());
+                long end = System.currentTimeMillis() + delay;
+                while (System.currentTimeMillis() < end) {
+                    if (listener.isCanceled()) {
+                        cancelled = true;
+                        throw new ProcessDismissedException(listener);
+                    }
+                    listener.progress(50);
+                    Thread.sleep(10);
+                }
+                value = compute(listener);
+            }
+            return value;
+        }
+
+        Object compute(ProgressListener listener) throws Exception {
+            return inputId.toUpperCase();
+        }
+
+        @Override
+        public String getInputId() {
+            return inputId;
+        }
+
+        @Override
+        public boolean resolved() {
+            return value != null;
+        }
+
+        @Override
+        public int longStepCount() {
+            return 1;
+        }
+    }
+
+    static class RecordingListener extends NullProgressListener {
+        List<Float> progress = Collections.synchronizedList(new ArrayList<Float>());
+
+        volatile boolean canceled;
+
+        @Override
+        public void progress(float percent) {
+            progress.add(percent);
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return canceled;
+        }
+
+        @Override
+        public void setCanceled(boolean cancel) {
+            this.canceled = cancel;
+        }
+
+        float getMaxProgress() {
+            float max = 0;
+            synchronized (progress) {
+                for (Float p : progress) {
+                    max = Math.max(max, p);
+                }
+            }
+            return max;
+        }
+    }
+
+    LazyInputMap buildMap(InputProvider... providers) {
+        Map<String, InputProvider> map = new LinkedHashMap<String, InputProvider>();
+        for (InputProvider provider : providers) {
+            map.put(provider.getInputId(), provider);
+        }
+        return new LazyInputMap(map);
+    }
+
+    @Test
+    public void testSequential() throws Exception {
+        SlowProvider a = new SlowProvider("a", 10);
+        SlowProvider b = new SlowProvider("b", 10);
+        LazyInputMap inputs = buildMap(a, b);
+        RecordingListener listener = new RecordingListener();
+        inputs.setListener(listener);
+
+        assertEquals("A", inputs.get("a"));
+        assertEquals("B", inputs.get("b"));
+        String caller = Thread.currentThread().getName();
+        assertEquals(Collections.singleton(caller), a.threads);
+        assertEquals(Collections.singleton(caller), b.threads);
+    }
+
+    @Test
+    public void testParallel() throws Exception {
+        executor = Executors.newFixedThreadPool(3);
+        SlowProvider a = new SlowProvider("a", 500);
+        SlowProvider b = new SlowProvider("b", 500);
+        SlowProvider c = new SlowProvider("c", 500);
+        LazyInputMap inputs = buildMap(a, b, c);
+        RecordingListener listener = new RecordingListener();
+        inputs.setListener(listener);
+        inputs.setPrefetchExecutor(executor);
+
+        long start = System.currentTimeMillis();
+        assertEquals("A", inputs.get("a"));
+        long elapsed = System.currentTimeMillis() - start;
+        // way less than the sum of the three
+        assertTrue("Took " + elapsed, elapsed < 1200);
+        assertEquals("B", inputs.get("b"));
+        assertEquals("C", inputs.get("c"));
+
+        // combined progress, never above 100
+        assertEquals(100, listener.getMaxProgress(), 0.01);
+    }
+
+    @Test
+    public void testParallelRequestCopies() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        Request request = new Request();
+        request.setKvp(Collections.singletonMap("ID", "original"));
+        Dispatcher.REQUEST.set(request);
+        try {
+            // like internal requests do when parsing their parameters
+            List<SlowProvider> providers = new ArrayList<SlowProvider>();
+            for (int i = 0; i < 3; i++) {
+                providers.add(new SlowProvider("internal" + i, 10) {
+                    @Override
+                    Object compute(ProgressListener listener) throws Exception {
+                        Request current = Dispatcher.REQUEST.get();
+                        current.setKvp(Collections.singletonMap("ID", inputId));
+                        Thread.sleep(200);
+                        return current.getKvp().get("ID");
+                    }
+                });
+            }
+            LazyInputMap inputs = buildMap(providers.toArray(new InputProvider[providers
+                    .size()]));
+            inputs.setPrefetchExecutor(executor);
+
+            for (SlowProvider provider : providers) {
+                assertEquals(provider.getInputId(), inputs.get(provider.getInputId()));
+            }
+            // some of them did run in the pool, at the same time as the others
+            Set<String> threads = new HashSet<String>();
+            for (SlowProvider provider : providers) {
+                threads.addAll(provider.threads);
+            }
+            threads.remove(Thread.currentThread().getName());
+            assertFalse(threads.isEmpty());
+        } finally {
+            Dispatcher.REQUEST.remove();
+        }
+    }
+
+    @Test
+    public void testSaturatedPool() throws Exception {
+        executor = Executors.newFixedThreadPool(1);
+        // keep the only thread busy
+        final SlowProvider blocker = new SlowProvider("blocker", 2000);
+        executor.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    blocker.getValue(new NullProgressListener());
+                } catch (Exception e) {
+                    // fine
+                }
+            }
+        });
+
+        SlowProvider a = new SlowProvider("a", 100);
+        SlowProvider b = new SlowProvider("b", 100);
+        LazyInputMap inputs = buildMap(a, b);
+        inputs.setPrefetchExecutor(executor);
+
+        // the calling thread does the work the pool cannot do
+        long start = System.currentTimeMillis();
+        assertEquals("A", inputs.get("a"));
+        assertEquals("B", inputs.get("b"));
+        assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+
+    @Test
+    public void testNested() throws Exception {
+        executor = Executors.newFixedThreadPool(1);
+        // an input whose computation resolves other inputs, like a chained process
+        final SlowProvider inner1 = new SlowProvider("inner1", 100);
+        final SlowProvider inner2 = new SlowProvider("inner2", 100);
+        SlowProvider outer1 = new SlowProvider("outer1", 10) {
+            @Override
+            Object compute(ProgressListener listener) throws Exception {
+                LazyInputMap nested = buildMap(inner1, inner2);
+                nested.setPrefetchExecutor(executor);
+                nested.setListener(listener);
+                return nested.get("inner1") + "-" + nested.get("inner2");
+            }
+        };
+        SlowProvider outer2 = new SlowProvider("outer2", 10);
+        LazyInputMap inputs = buildMap(outer1, outer2);
+        inputs.setPrefetchExecutor(executor);
+
+        assertEquals("INNER1-INNER2", inputs.get("outer1"));
+        assertEquals("OUTER2", inputs.get("outer2"));
+    }
+
+    @Test
+    public void testList() throws Exception {
+        executor = Executors.newFixedThreadPool(3);
+        SlowProvider a = new SlowProvider("list", 500);
+        ListInputProvider list = new ListInputProvider(a, 10);
+        SlowProvider b = new SlowProvider("list", 500);
+        list.add(b);
+        SlowProvider c = new SlowProvider("list", 500);
+        list.add(c);
+        LazyInputMap inputs = buildMap(list);
+        inputs.setPrefetchExecutor(executor);
+
+        long start = System.currentTimeMillis();
+        assertEquals(3, ((List) inputs.get("list")).size());
+        assertTrue(System.currentTimeMillis() - start < 1200);
+    }
+
+    @Test
+    public void testFailureCancelsOthers() throws Exception {
+        executor = Executors.newFixedThreadPool(3);
+        SlowProvider a = new SlowProvider("a", 5000);
+        SlowProvider b = new SlowProvider("b", 5000);
+        SlowProvider failing = new SlowProvider("failing", 100) {
+            @Override
+            Object compute(ProgressListener listener) throws Exception {
+                throw new WPSException("Remote server not available");
+            }
+        };
+        LazyInputMap inputs = buildMap(a, b, failing);
+        inputs.setPrefetchExecutor(executor);
+
+        long start = System.currentTimeMillis();
+        try {
+            inputs.get("a");
+            fail("Should have failed");
+        } catch (WPSException e) {
+            assertEquals("Remote server not available", e.getMessage());
+        }
+        // did not wait for the other inputs to complete
+        assertTrue(System.currentTimeMillis() - start < 2500);
+        waitCancelled(a);
+        waitCancelled(b);
+    }
+
+    @Test
+    public void testDismiss() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        SlowProvider a = new SlowProvider("a", 5000);
+        SlowProvider b = new SlowProvider("b", 5000);
+        LazyInputMap inputs = buildMap(a, b);
+        final RecordingListener listener = new RecordingListener();
+        inputs.setListener(listener);
+        inputs.setPrefetchExecutor(executor);
+
+        new Thread() {
+            public void run() {
+                try {
+                    sleep(200);
+                } catch (InterruptedException e) {
+                    // fine
+                }
+                listener.setCanceled(true);
+            };
+        }.start();
+        try {
+            inputs.get("a");
+            fail("Should have been dismissed");
+        } catch (ProcessDismissedException e) {
+            // fine
+        }
+        waitCancelled(a);
+        waitCancelled(b);
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+        executor = Executors.newFixedThreadPool(2);
+        SlowProvider a = new SlowProvider("a", 100);
+        SlowProvider big = new SlowProvider("big", 10) {
+            @Override
+            Object compute(ProgressListener listener) throws Exception {
+                InputStream is = new MaxSizeInputStream(new ByteArrayInputStream(new byte[2048]),
+                        "big", 1024);
+                while (is.read(new byte[256]) > 0) {
+                    // consume
+                }
+                return "read";
+            }
+        };
+        LazyInputMap inputs = buildMap(a, big);
+        inputs.setPrefetchExecutor(executor);
+
+        try {
+            inputs.get("a");
+            fail("Should have failed, the input is too big");
+        } catch (WPSException e) {
+            assertEquals("big", e.getLocator());
+        }
+    }
+
+    /**
+     * Waits for the provider to notice the cancellation, unless it never started
+     */
+    void waitCancelled(SlowProvider provider) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        while (!provider.cancelled && !provider.threads.isEmpty()) {
+            if (System.currentTimeMillis() - start > 2000) {
+                fail("Input " + provider.getInputId() + " was not cancelled");
+            }
+            Thread.sleep(10);
+        }
+    }
+}
@@ -49,6 +49,7 @@ import org.geoserver.gwc.layer.CatalogStyleChangeListener;
 import org.geoserver.gwc.layer.GeoServerTileLayer;
 import org.geoserver.gwc.layer.GeoServerTileLayerInfo;
 import org.geoserver.gwc.layer.GeoServerTileLayerInfoImpl;
+import org.geoserver.gwc.layer.StyleVersionParameterFilter;
 import org.geoserver.ows.Dispatcher;
 import org.geoserver.ows.Response;
 import org.geoserver.platform.GeoServerExtensions;
@@ -188,6 +189,14 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
     private JDBCPasswordEncryptionHelper passwordHelper;
 
     private JDBCConfigurationStorage jdbcConfigurationStorage;
+
+    private final HotTileCache hotTileCache = new HotTileCache();
+
+    private final TileValidators tileValidators = new TileValidators();
+
+    private final StyleVersionSweeper styleVersionSweeper;
+
+    private final PredictiveSeeder predictiveSeeder;
     
     public GWC(final GWCConfigPersister gwcConfigPersister, final StorageBroker sb,
             final TileLayerDispatcher tld, final GridSetBroker gridSetBroker,
@@ -199,6 +208,8 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         this.gwcConfigPersister = gwcConfigPersister;
         this.tld = tld;
         this.storageBroker = sb;
+        this.storageBroker.addBlobStoreListener(tileValidators);
+        this.storageBroker.addBlobStoreListener(hotTileCache);
         this.gridSetBroker = gridSetBroker;
         this.tileBreeder = tileBreeder;
         this.monitor = monitor;
@@ -215,6 +226,8 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         updateLockProvider(getConfig().getLockProviderName());
         
         this.jdbcConfigurationStorage = jdbcConfigurationStorage;
+        this.styleVersionSweeper = new StyleVersionSweeper(this);
+        this.predictiveSeeder = new PredictiveSeeder(this, tileBreeder, sb);
     }
 
     /**
@@ -282,6 +295,8 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         if (this.catalogStyleChangeListener != null) {
             catalog.removeListener(this.catalogStyleChangeListener);
         }
+        styleVersionSweeper.destroy();
+        predictiveSeeder.destroy();
         GWC.set(null);
     }
 
@@ -289,6 +304,106 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         return rawCatalog;
     }
 
+    /**
+     * Returns the in memory cache of the most requested tiles, shared by all the tile layers
+     */
+    public HotTileCache getHotTileCache() {
+        return hotTileCache;
+    }
+
+    /**
+     * Returns the index of the creation time of the recently served tiles, used to validate
+     * conditional tile requests without hitting the storage
+     */
+    public TileValidators getTileValidators() {
+        return tileValidators;
+    }
+
+    /**
+     * Returns the background sweeper deleting the tiles of superseded style versions
+     */
+    public StyleVersionSweeper getStyleVersionSweeper() {
+        return styleVersionSweeper;
+    }
+
+    /**
+     * Returns the background seeder of the most requested tiles, which also records the tile
+     * requests usage
+     */
+    public PredictiveSeeder getPredictiveSeeder() {
+        return predictiveSeeder;
+    }
+
+    /**
+     * Returns whether style changes move the affected tile layers to a new style version instead
+     * of truncating them, see {@link #updateStyleVersion(String)}
+     */
+    public boolean isStyleVersioningEnabled() {
+        return getConfig().isStyleVersioningEnabled();
+    }
+
+    /**
+     * Moves the tile layer to a fresh set of tiles if the contents of the styles it's rendered with
+     * changed, handing the tiles cached for the previous style version to the
+     * {@link StyleVersionSweeper}. No tile is deleted in the calling thread.
+     * 
+     * @param layerName
+     *            name of the tile layer whose styles might have changed
+     * @return {@code true} if the tile layer has been moved to a new style version
+     */
+    public boolean updateStyleVersion(final String layerName) {
+        checkNotNull(layerName, "layerName can't be null");
+        if (!tileLayerExists(layerName)) {
+            return false;
+        }
+        final TileLayer tileLayer = getTileLayerByName(layerName);
+        if (!(tileLayer instanceof GeoServerTileLayer)) {
+            truncate(layerName);
+            return false;
+        }
+        final GeoServerTileLayer layer = (GeoServerTileLayer) tileLayer;
+        final String version;
+        try {
+            version = layer.computeStyleVersion();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Could not compute the style version of tile layer "
+                    + layerName + ", truncating it instead", e);
+            truncate(layerName);
+            return false;
+        }
+        final GeoServerTileLayerInfo info = layer.getInfo();
+        if (version.equals(info.getStyleVersion())) {
+            return false;
+        }
+
+        // the parameters the tiles of the current version are cached with, before switching
+        final List<Map<String, String>> previous = new ArrayList<Map<String, String>>();
+        final Set<String> styleNames = getCachedStyles(layerName);
+        if (styleNames.isEmpty()) {
+            styleNames.add("");
+        }
+        for (String style : styleNames) {
+            Map<String, String> parameters;
+            try {
+                parameters = layer.getModifiableParameters(
+                        Collections.singletonMap("STYLES", style), "UTF-8");
+            } catch (GeoWebCacheException e) {
+                log.log(Level.FINE, "Skipping style " + style + " of tile layer " + layerName, e);
+                continue;
+            }
+            if (!previous.contains(parameters)) {
+                previous.add(parameters);
+            }
+        }
+
+        log.info("Moving tile layer " + layerName + " to style version " + version);
+        info.setStyleVersion(version);
+        layer.resetParameterFilters();
+        save(layer);
+        styleVersionSweeper.sweep(layerName, previous);
+        return true;
+    }
+
     public GWCConfig getConfig() {
         return gwcConfigPersister.getConfig();
     }
@@ -312,6 +427,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         for (String gridSetId : gridSubsets) {
             deleteCacheByGridSetId(layerName, gridSetId);
         }
+        hotTileCache.invalidate(layerName);
     }
 
     /**
@@ -360,6 +476,128 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         }
     }
 
+    /**
+     * Synchronously deletes the tiles of a single zoom level intersecting the given bounds, for
+     * all the grid sets, styles and formats of the layer. Meant to be called off the request
+     * threads, see {@link TruncationQueue}
+     * 
+     * @param layerName
+     *            name of the layer to truncate, non {@code null}
+     * @param bounds
+     *            bounds to truncate
+     * @param zoomLevel
+     *            the zoom level to truncate, grid sets not having it are skipped
+     * @throws GeoWebCacheException
+     */
+    public void truncate(final String layerName, final ReferencedEnvelope bounds,
+            final int zoomLevel) throws GeoWebCacheException {
+        checkNotNull(layerName, "layerName can't be null");
+
+        final TileLayer layer = tld.getTileLayer(layerName);
+        final Set<String> styleNames = getCachedStyles(layerName);
+        if (styleNames.size() == 0) {
+            styleNames.add("");
+        }
+        final String defaultStyle = layer.getStyles();
+
+        for (String gridSetId : layer.getGridSubsets()) {
+            GridSubset gridSubset = layer.getGridSubset(gridSetId);
+            if (zoomLevel < gridSubset.getZoomStart() || zoomLevel > gridSubset.getZoomStop()) {
+                continue;
+            }
+            BoundingBox intersectingBounds = getIntersectingBounds(layerName, gridSubset, bounds);
+            if (intersectingBounds == null) {
+                continue;
+            }
+            for (String style : styleNames) {
+                Map<String, String> parameters;
+                if (style.length() == 0 || style.equals(defaultStyle)) {
+                    parameters = null;
+                } else {
+                    parameters = Collections.singletonMap("STYLES", style);
+                }
+                parameters = withStyleVersion(layer, parameters);
+                for (MimeType mime : layer.getMimeTypes()) {
+                    SeedRequest req = new SeedRequest(layerName, intersectingBounds, gridSetId, 1,
+                            zoomLevel, zoomLevel, mime.getFormat(), TRUNCATE, parameters);
+                    TileRange tr = TileBreeder.createTileRange(req, layer);
+                    storageBroker.delete(tr);
+                }
+            }
+        }
+        hotTileCache.invalidate(layerName);
+    }
+
+    /**
+     * Synchronously deletes all the tiles of a single zoom level cached with exactly the given
+     * parameters, for all the grid sets and formats of the layer. Meant to be called off the
+     * request threads, see {@link StyleVersionSweeper}
+     * 
+     * @param layerName
+     *            name of the layer to truncate, non {@code null}
+     * @param parameters
+     *            the full set of parameters of the tiles to delete
+     * @param zoomLevel
+     *            the zoom level to truncate, grid sets not having it are skipped
+     * @throws GeoWebCacheException
+     */
+    public void truncate(final String layerName, final Map<String, String> parameters,
+            final int zoomLevel) throws GeoWebCacheException {
+        checkNotNull(layerName, "layerName can't be null");
+
+        final TileLayer layer = tld.getTileLayer(layerName);
+        for (String gridSetId : layer.getGridSubsets()) {
+            GridSubset gridSubset = layer.getGridSubset(gridSetId);
+            if (zoomLevel < gridSubset.getZoomStart() || zoomLevel > gridSubset.getZoomStop()) {
+                continue;
+            }
+            // build the range by hand, the seed request would replace the parameters with the
+            // ones of the current style version
+            long[][] coverages = gridSubset.getCoverages();
+            for (MimeType mime : layer.getMimeTypes()) {
+                TileRange tr = new TileRange(layerName, gridSetId, zoomLevel, zoomLevel,
+                        coverages, mime, parameters);
+                storageBroker.delete(tr);
+            }
+        }
+    }
+
+    /**
+     * Adds the current style version of the layer, if any, to the parameters of a truncate
+     * request, so that it reaches the tiles cached for it
+     */
+    private Map<String, String> withStyleVersion(TileLayer layer, Map<String, String> parameters) {
+        if (!(layer instanceof GeoServerTileLayer)) {
+            return parameters;
+        }
+        String version = ((GeoServerTileLayer) layer).getInfo().getStyleVersion();
+        if (version == null) {
+            return parameters;
+        }
+        Map<String, String> versioned = new HashMap<String, String>();
+        if (parameters != null) {
+            versioned.putAll(parameters);
+        }
+        versioned.put(StyleVersionParameterFilter.KEY, version);
+        return versioned;
+    }
+
+    /**
+     * Returns the highest zoom level among the grid sets of the layer
+     * 
+     * @param layerName
+     * @return
+     * @throws GeoWebCacheException
+     */
+    public int getMaxZoomLevel(final String layerName) throws GeoWebCacheException {
+        final TileLayer layer = tld.getTileLayer(layerName);
+        int max = -1;
+        for (String gridSetId : layer.getGridSubsets()) {
+            max = Math.max(max, layer.getGridSubset(gridSetId).getZoomStop());
+        }
+        return max;
+    }
+
     private BoundingBox getIntersectingBounds(String layerName, GridSubset layerGrid,
             ReferencedEnvelope bounds) {
         final GridSet gridSet = layerGrid.getGridSet();
@@ -466,12 +704,16 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
                 } else {
                     parameters = Collections.singletonMap("STYLES", style);
                 }
+                parameters = withStyleVersion(layer, parameters);
                 for (MimeType mime : mimeTypes) {
                     String formatName = mime.getFormat();
                     truncate(layer, bounds, gridSubset, formatName, parameters);
                 }
             }
         }
+        // the truncate tasks run asynchronously, the hot tile cache time to live takes care of
+        // tiles read back from the storage before the tasks got to them
+        hotTileCache.invalidate(layerName);
     }
 
     private void truncate(final TileLayer layer, final BoundingBox bounds,
@@ -544,6 +786,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
      *         {@code false} if there wasn't a cache for that layer.
      */
     public synchronized boolean layerRemoved(final String prefixedName) {
+        hotTileCache.invalidate(prefixedName);
         try {
             return storageBroker.delete(prefixedName);
         } catch (StorageException e) {
@@ -605,7 +848,12 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
      * <li><code>{@link GetMapRequest#isTiled() request.isTiled()} == true</code>
      * </ul>
      * </p>
-     * 
+     * <p>
+     * When the request carries conditional headers matching the tile validators (see
+     * {@link TileValidators}), the returned tile has no contents, and the caller is expected to
+     * answer with a 304 status.
+     * </p>
+     *
      * @param request
      * @param requestMistmatchTarget
      *            target string builder where to write the reason of the request mismatch with the
@@ -649,7 +897,13 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         }
         ConveyorTile tileResp = null;
         try {
-            tileResp = tileLayer.getTile(tileReq);
+            if (tileLayer instanceof GeoServerTileLayer) {
+                tileResp = ((GeoServerTileLayer) tileLayer).getTile(tileReq,
+                        request.getHttpRequestHeader("If-None-Match"),
+                        request.getHttpRequestHeader("If-Modified-Since"));
+            } else {
+                tileResp = tileLayer.getTile(tileReq);
+            }
         } catch (Exception e) {
             log.log(Level.INFO, "Error dispatching tile request to GeoServer", e);
         }
@@ -1276,6 +1530,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             log.info("Renaming GWC TileLayer '" + oldLayerName + "' as '" + newLayerName + "'");
             // /embeddedConfig.rename(oldLayerName, newLayerName);
             storageBroker.rename(oldLayerName, newLayerName);
+            hotTileCache.invalidate(oldLayerName);
         } catch (StorageException e) {
             log.log(Level.WARNING, e.getMessage(), e);
             throw new RuntimeException(e);
@@ -1510,6 +1765,8 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
     public void save(final GeoServerTileLayer layer) {
         checkNotNull(layer);
         log.info("Saving GeoSeverTileLayer " + layer.getName());
+        // the in memory zoom levels might have changed
+        hotTileCache.invalidate(layer.getName());
 
         Configuration modifiedConfig = tld.modify(layer);
         try {
@@ -1725,6 +1982,8 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
             storageBroker.deleteByGridSetId(layerName, gridSetId);
         } catch (StorageException e) {
             throw propagate(getRootCause(e));
+        } finally {
+            hotTileCache.invalidate(layerName, gridSetId);
         }
     }
 
@@ -1739,6 +1998,7 @@ public class GWC implements DisposableBean, InitializingBean, ApplicationContext
         Set<Configuration> confsToSave = new HashSet<Configuration>();
 
         for (String tileLayerName : tileLayerNames) {
+            hotTileCache.invalidate(tileLayerName);
             Configuration configuration = tld.removeLayer(tileLayerName);
             if (configuration != null) {
                 confsToSave.add(configuration);
@@ -31,7 +31,6 @@ import org.geoserver.wfs.WFSException;
 import org.geotools.data.simple.SimpleFeatureCollection;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.util.logging.Logging;
-import org.geowebcache.GeoWebCacheException;
 import org.opengis.referencing.FactoryException;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.TransformException;
@@ -40,6 +39,10 @@ import org.opengis.referencing.operation.TransformException;
  * Listens to transactions (so far only issued by WFS) and truncates the cache for the affected area
  * of the layers involved in the transaction.
  * <p>
+ * The affected areas are handed over to a {@link TruncationQueue}, that merges them with the ones
+ * of the other recent transactions and truncates the cache in a background thread.
+ * </p>
+ * <p>
  * A Spring bean singleton of this class needs to be declared in order for GeoServer transactions to
  * pick it up automatically and forward transaction events to it.
  * </p>
@@ -58,13 +61,24 @@ public class GWCTransactionListener implements TransactionPlugin {
 
     final private GWC gwc;
 
+    final private TruncationQueue truncationQueue;
+
     static final String GWC_TRANSACTION_INFO_PLACEHOLDER = "GWC_TRANSACTION_INFO_PLACEHOLDER";
 
     /**
      * @param gwc
      */
     public GWCTransactionListener(final GWC gwc) {
+        this(gwc, new TruncationQueue(gwc));
+    }
+
+    /**
+     * @param gwc
+     * @param truncationQueue the queue the affected areas are sent to
+     */
+    public GWCTransactionListener(final GWC gwc, final TruncationQueue truncationQueue) {
         this.gwc = gwc;
+        this.truncationQueue = truncationQueue;
     }
 
     /**
@@ -125,12 +139,7 @@ public class GWCTransactionListener implements TransactionPlugin {
             if (dirtyRegion == null) {
                 continue;
             }
-            try {
-                gwc.truncate(tileLayerName, dirtyRegion);
-            } catch (GeoWebCacheException e) {
-                log.warning("Error truncating tile layer " + tileLayerName
-                        + " for transaction affected bounds " + dirtyRegion);
-            }
+            truncationQueue.add(tileLayerName, dirtyRegion);
         }
     }
 
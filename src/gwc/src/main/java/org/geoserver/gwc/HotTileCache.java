@@ -0,0 +1,501 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.gwc.layer.GeoServerTileLayerInfo;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.storage.BlobStoreListener;
+
+import com.google.common.base.Objects;
+
+/**
+ * Bounded in memory cache of encoded tiles, sitting in front of the storage broker for the zoom
+ * levels the tile layers enable it for (see {@link GeoServerTileLayerInfo#getInMemoryZoomStart()}).
+ * <p>
+ * Lookups take no locks: tiles are kept in a {@link ConcurrentHashMap}, and a lookup only marks the
+ * tile as referenced. The cache is bounded by the total size of the tiles it holds, evicting them
+ * in approximate LRU order with the CLOCK (second chance) algorithm, as
+ * {@link org.geoserver.security.auth.ConcurrentAuthenticationCacheImpl} does: tiles are queued in
+ * insertion order, and a tile referenced since it was last examined is queued again instead of
+ * being evicted. Only one thread evicts at a time, so the cache can exceed its size for a short
+ * while. Each tile is kept at most for a configurable time, so that tiles removed from the
+ * storage by asynchronous truncate tasks do not linger in memory forever. The {@link GWC} facade
+ * invalidates the tiles of a layer whenever the layer is truncated, removed or renamed, and the
+ * cache listens to the blob store events, so that tiles deleted or replaced by anything going
+ * straight to the storage broker, like the GeoWebCache REST API and seeding tasks, are dropped too.
+ * </p>
+ * <p>
+ * Tiles read from the storage are added to the cache with the invalidation generation observed
+ * before reading them, and discarded if an invalidation happened in the meantime, since they might
+ * have been read before the truncation. The generation is checked again once the tile is in the
+ * map, as an invalidation running concurrently might have missed it.
+ * </p>
+ * <p>
+ * The maximum size, in megabytes, and time to live, in seconds, are controlled by the
+ * {@link #CACHE_SIZE_PROPERTY} and {@link #CACHE_TTL_PROPERTY} properties, setting the size to
+ * zero disables the cache.
+ * </p>
+ */
+public class HotTileCache implements BlobStoreListener {
+
+    static final Logger LOGGER = Logging.getLogger(HotTileCache.class);
+
+    /**
+     * System/context/environment property controlling the cache size in megabytes
+     */
+    public static final String CACHE_SIZE_PROPERTY = "GWC_HOT_TILE_CACHE_SIZE";
+
+    /**
+     * System/context/environment property controlling how long, in seconds, a tile is kept in
+     * memory at most
+     */
+    public static final String CACHE_TTL_PROPERTY = "GWC_HOT_TILE_CACHE_TTL";
+
+    static final long DEFAULT_CACHE_SIZE = 64;
+
+    static final long DEFAULT_CACHE_TTL = 300;
+
+    /**
+     * Identifies a tile in the cache
+     */
+    public static final class TileKey {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final String parametersId;
+
+        final long x, y, z;
+
+        public TileKey(String layerName, String gridSetId, String format, String parametersId,
+                long[] index) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.format = format;
+            this.parametersId = parametersId;
+            this.x = index[0];
+            this.y = index[1];
+            this.z = index[2];
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            TileKey other = (TileKey) obj;
+            return x == other.x && y == other.y && z == other.z
+                    && layerName.equals(other.layerName) && gridSetId.equals(other.gridSetId)
+                    && format.equals(other.format)
+                    && Objects.equal(parametersId, other.parametersId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(new Object[] { layerName, gridSetId, format, parametersId, x,
+                    y, z });
+        }
+
+        @Override
+        public String toString() {
+            return layerName + "/" + gridSetId + "/" + format + "/" + parametersId + "/[" + x
+                    + ", " + y + ", " + z + "]";
+        }
+    }
+
+    /**
+     * A tile held in the cache
+     */
+    public static final class CachedTile {
+
+        final TileKey key;
+
+        final byte[] contents;
+
+        final long created;
+
+        final long expires;
+
+        /**
+         * Set on access, cleared when the eviction clock passes over the tile
+         */
+        volatile boolean referenced;
+
+        /**
+         * Set when the tile is removed from the map, the eviction queue drops dead tiles lazily
+         */
+        volatile boolean dead;
+
+        CachedTile(TileKey key, byte[] contents, long created, long expires) {
+            this.key = key;
+            this.contents = contents;
+            this.created = created;
+            this.expires = expires;
+        }
+
+        /**
+         * The encoded tile
+         */
+        public byte[] getContents() {
+            return contents;
+        }
+
+        /**
+         * The time the tile was created, as recorded by the storage
+         */
+        public long getCreated() {
+            return created;
+        }
+    }
+
+    private final long maxSize;
+
+    private final long timeToLive;
+
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * Incremented before each invalidation
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    private final ConcurrentHashMap<TileKey, CachedTile> tiles =
+            new ConcurrentHashMap<TileKey, CachedTile>(1024, 0.75f, Runtime.getRuntime()
+                    .availableProcessors());
+
+    /**
+     * Tiles in CLOCK order, along with its (approximate) length
+     */
+    private final ConcurrentLinkedQueue<CachedTile> clock = new ConcurrentLinkedQueue<CachedTile>();
+
+    private final AtomicInteger clockLength = new AtomicInteger();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public HotTileCache() {
+        this(getConfiguredSize(), getConfiguredTimeToLive());
+    }
+
+    /**
+     * @param maxSize the maximum size of the cache, in bytes
+     * @param timeToLive how long tiles are kept at most, in milliseconds
+     */
+    HotTileCache(long maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.timeToLive = timeToLive;
+    }
+
+    static long getConfiguredSize() {
+        return getLongProperty(CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE) * 1024 * 1024;
+    }
+
+    static long getConfiguredTimeToLive() {
+        return getLongProperty(CACHE_TTL_PROPERTY, DEFAULT_CACHE_TTL) * 1000;
+    }
+
+    private static long getLongProperty(String name, long defaultValue) {
+        String value = GeoServerExtensions.getProperty(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + name + ": " + value
+                        + ", using the default of " + defaultValue + " instead");
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Gathers a tile from the cache, if available and not older than the given age
+     *
+     * @param key
+     * @param maxAge the maximum age of the tile in milliseconds, or a non positive value to accept
+     *        tiles of any age
+     * @return
+     */
+    public CachedTile get(TileKey key, long maxAge) {
+        CachedTile tile = tiles.get(key);
+        if (tile != null) {
+            long now = System.currentTimeMillis();
+            if (now > tile.expires || (maxAge > 0 && now - tile.created > maxAge)) {
+                remove(tile);
+                tile = null;
+            }
+        }
+        if (tile == null) {
+            misses.incrementAndGet();
+        } else {
+            if (!tile.referenced) {
+                tile.referenced = true;
+            }
+            hits.incrementAndGet();
+        }
+        return tile;
+    }
+
+    /**
+     * Returns the current invalidation generation, to be passed to
+     * {@link #put(TileKey, byte[], long, long)} when the tile is read from the storage
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Stores a tile in the cache, evicting the least recently used ones if the cache size goes
+     * beyond the limit. Tiles bigger than the whole cache are not stored, and neither are the ones
+     * read before the last invalidation.
+     *
+     * @param key
+     * @param contents the encoded tile
+     * @param created the tile creation time
+     * @param generation the invalidation generation observed before reading or rendering the tile
+     * @return true if the tile has been cached
+     */
+    public boolean put(TileKey key, byte[] contents, long created, long generation) {
+        if (contents.length > maxSize || generation != this.generation.get()) {
+            return false;
+        }
+        CachedTile tile = new CachedTile(key, contents, created, System.currentTimeMillis()
+                + timeToLive);
+        size.addAndGet(contents.length);
+        CachedTile previous = tiles.put(key, tile);
+        if (previous != null) {
+            previous.dead = true;
+            size.addAndGet(-previous.contents.length);
+        }
+        if (generation != this.generation.get()) {
+            // invalidated meanwhile, the invalidation might not have seen the new tile
+            remove(tile);
+            return false;
+        }
+        clock.offer(tile);
+        clockLength.incrementAndGet();
+        if (size.get() > maxSize) {
+            evict();
+        }
+        purgeClock();
+        return true;
+    }
+
+    /**
+     * Evicts tiles until the cache is back to its maximum size. Only one thread evicts at a time,
+     * the others go on.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            while (size.get() > maxSize) {
+                CachedTile tile = clock.poll();
+                if (tile == null) {
+                    break;
+                }
+                clockLength.decrementAndGet();
+                if (tile.dead) {
+                    continue;
+                }
+                if (tile.referenced) {
+                    // second chance
+                    tile.referenced = false;
+                    clock.offer(tile);
+                    clockLength.incrementAndGet();
+                } else if (remove(tile)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the dead tiles from the eviction queue, if they make up most of it. Invalidated tiles
+     * would otherwise pile up in the queue until the cache fills up.
+     */
+    private void purgeClock() {
+        if (clockLength.get() <= 2 * tiles.size() + 64 || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            for (Iterator<CachedTile> it = clock.iterator(); it.hasNext();) {
+                if (it.next().dead) {
+                    it.remove();
+                    clockLength.decrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void remove(TileKey key, boolean deleted) {
+        if (deleted) {
+            // a tile read before the deletion must not make it back into the cache
+            generation.incrementAndGet();
+        }
+        CachedTile tile = tiles.get(key);
+        if (tile != null) {
+            remove(tile);
+        }
+    }
+
+    /**
+     * Removes the tile, unless it has been replaced in the meantime
+     */
+    private boolean remove(CachedTile tile) {
+        if (tiles.remove(tile.key, tile)) {
+            tile.dead = true;
+            size.addAndGet(-tile.contents.length);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Drops all the tiles of the given layer
+     *
+     * @param layerName
+     */
+    public void invalidate(String layerName) {
+        invalidate(layerName, null);
+    }
+
+    /**
+     * Drops all the tiles of the given layer and grid set
+     *
+     * @param layerName
+     * @param gridSetId the grid set, or null for all of them
+     */
+    public void invalidate(String layerName, String gridSetId) {
+        generation.incrementAndGet();
+        for (CachedTile tile : tiles.values()) {
+            TileKey key = tile.key;
+            if (key.layerName.equals(layerName)
+                    && (gridSetId == null || key.gridSetId.equals(gridSetId))) {
+                remove(tile);
+            }
+        }
+    }
+
+    /**
+     * Drops all cached tiles
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        for (CachedTile tile : tiles.values()) {
+            remove(tile);
+        }
+    }
+
+    /**
+     * Number of tiles currently held in the cache
+     */
+    public int getCount() {
+        return tiles.size();
+    }
+
+    /**
+     * Total size of the tiles held in the cache, in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * Maximum size of the cache, in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Ratio of hits over the total lookups, between 0 and 1
+     */
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : ((double) hits) / total;
+    }
+
+    @Override
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        remove(new TileKey(layerName, gridSetId, blobFormat, parametersId,
+                new long[] { x, y, z }), false);
+    }
+
+    @Override
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        remove(new TileKey(layerName, gridSetId, blobFormat, parametersId,
+                new long[] { x, y, z }), true);
+    }
+
+    @Override
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        remove(new TileKey(layerName, gridSetId, blobFormat, parametersId,
+                new long[] { x, y, z }), false);
+    }
+
+    @Override
+    public void layerDeleted(String layerName) {
+        invalidate(layerName);
+    }
+
+    @Override
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        invalidate(oldLayerName);
+        invalidate(newLayerName);
+    }
+
+    @Override
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        invalidate(layerName, gridSetId);
+    }
+}
@@ -0,0 +1,74 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+/**
+ * Reports the {@link HotTileCache} statistics as XML or JSON at
+ * {@code /gwc/rest/hottiles.<extension>}, and clears the cache on DELETE.
+ */
+public class HotTileCacheRestlet extends Restlet {
+
+    private final GWC gwc;
+
+    public HotTileCacheRestlet(GWC gwc) {
+        this.gwc = gwc;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+        final HotTileCache cache = gwc.getHotTileCache();
+        final Method method = request.getMethod();
+        if (Method.GET.equals(method)) {
+            String extension = (String) request.getAttributes().get("extension");
+            if ("json".equals(extension)) {
+                response.setEntity(toJSON(cache), MediaType.APPLICATION_JSON);
+            } else if (extension == null || "xml".equals(extension)) {
+                response.setEntity(toXML(cache), MediaType.TEXT_XML);
+            } else {
+                response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "Unknown extension: "
+                        + extension);
+            }
+        } else if (Method.DELETE.equals(method)) {
+            cache.clear();
+            response.setStatus(Status.SUCCESS_OK);
+        } else {
+            response.setStatus(Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
+        }
+    }
+
+    static String toXML(HotTileCache cache) {
+        StringBuilder sb = new StringBuilder("<hotTileCache>");
+        sb.append("<enabled>").append(cache.isEnabled()).append("</enabled>");
+        sb.append("<count>").append(cache.getCount()).append("</count>");
+        sb.append("<size>").append(cache.getSize()).append("</size>");
+        sb.append("<maxSize>").append(cache.getMaxSize()).append("</maxSize>");
+        sb.append("<hits>").append(cache.getHits()).append("</hits>");
+        sb.append("<misses>").append(cache.getMisses()).append("</misses>");
+        sb.append("<hitRatio>").append(cache.getHitRatio()).append("</hitRatio>");
+        sb.append("<evictions>").append(cache.getEvictions()).append("</evictions>");
+        return sb.append("</hotTileCache>").toString();
+    }
+
+    static String toJSON(HotTileCache cache) {
+        StringBuilder sb = new StringBuilder("{\"hotTileCache\":{");
+        sb.append("\"enabled\":").append(cache.isEnabled());
+        sb.append(",\"count\":").append(cache.getCount());
+        sb.append(",\"size\":").append(cache.getSize());
+        sb.append(",\"maxSize\":").append(cache.getMaxSize());
+        sb.append(",\"hits\":").append(cache.getHits());
+        sb.append(",\"misses\":").append(cache.getMisses());
+        sb.append(",\"hitRatio\":").append(cache.getHitRatio());
+        sb.append(",\"evictions\":").append(cache.getEvictions());
+        return sb.append("}}").toString();
+    }
+}
@@ -0,0 +1,402 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.geowebcache.seed.GWCTask.TYPE.SEED;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.gwc.TileUsageSketch.MetaTileKey;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.GeoWebCacheException;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.seed.GWCTask;
+import org.geowebcache.seed.GWCTask.STATE;
+import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+
+/**
+ * Seeds, in the background, the metatiles users request the most and are not cached yet.
+ * <p>
+ * At a configurable interval (see {@link #INTERVAL_PROPERTY}, disabled by default) the hottest
+ * metatiles recorded in a {@link TileUsageSketch} by the tile requests are checked against the
+ * storage, and the missing ones are seeded one at a time through the {@link TileBreeder}, so that
+ * the predictive seeding never renders more than one metatile at once. Tile requests are not
+ * recorded at all when the seeding is disabled.
+ * Each run stops after a configurable number of metatiles ({@link #MAX_METATILES_PROPERTY}) or
+ * time ({@link #TIME_BUDGET_PROPERTY}), whatever comes first, terminating the task in progress if
+ * it's the time budget to run out. The usage estimates are halved at the end of each run.
+ * </p>
+ * <p>
+ * The seeded metatiles are remembered, so that the ones requested afterwards count as hits of the
+ * predictive seeding, see {@link #getSeededHits()}.
+ * </p>
+ */
+public class PredictiveSeeder {
+
+    static final Logger LOGGER = Logging.getLogger(PredictiveSeeder.class);
+
+    /**
+     * System/context/environment property controlling how often, in seconds, the hottest metatiles
+     * are seeded. Zero or less disables predictive seeding
+     */
+    public static final String INTERVAL_PROPERTY = "GWC_PREDICTIVE_SEED_INTERVAL";
+
+    /**
+     * System/context/environment property controlling for how long, in seconds, a seeding run can
+     * go on at most
+     */
+    public static final String TIME_BUDGET_PROPERTY = "GWC_PREDICTIVE_SEED_TIME_BUDGET";
+
+    /**
+     * System/context/environment property controlling how many metatiles are seeded at most in a
+     * single run
+     */
+    public static final String MAX_METATILES_PROPERTY = "GWC_PREDICTIVE_SEED_MAX_METATILES";
+
+    static final long DEFAULT_INTERVAL = 0;
+
+    static final long DEFAULT_TIME_BUDGET = 60;
+
+    static final long DEFAULT_MAX_METATILES = 50;
+
+    /**
+     * How many seeded metatiles are remembered at most to measure the predictive seeding
+     * effectiveness
+     */
+    static final int SEEDED_HISTORY = 10000;
+
+    private final GWC gwc;
+
+    private final TileBreeder tileBreeder;
+
+    private final StorageBroker storageBroker;
+
+    private final TileUsageSketch usage;
+
+    private final long interval;
+
+    private final long timeBudget;
+
+    private final int maxMetaTiles;
+
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Seeded metatiles not requested yet
+     */
+    private final ConcurrentMap<MetaTileKey, Boolean> seededHistory = new ConcurrentHashMap<MetaTileKey, Boolean>();
+
+    private volatile List<MetaTileKey> lastSchedule = Collections.emptyList();
+
+    private volatile long lastRunStart;
+
+    private volatile long lastRunDuration;
+
+    private final AtomicLong runs = new AtomicLong();
+
+    private final AtomicLong seeded = new AtomicLong();
+
+    private final AtomicLong alreadyCached = new AtomicLong();
+
+    private final AtomicLong seededHits = new AtomicLong();
+
+    public PredictiveSeeder(GWC gwc, TileBreeder tileBreeder, StorageBroker storageBroker) {
+        this(gwc, tileBreeder, storageBroker, new TileUsageSketch(), getLongProperty(
+                INTERVAL_PROPERTY, DEFAULT_INTERVAL) * 1000, getLongProperty(
+                TIME_BUDGET_PROPERTY, DEFAULT_TIME_BUDGET) * 1000, (int) getLongProperty(
+                MAX_METATILES_PROPERTY, DEFAULT_MAX_METATILES));
+    }
+
+    /**
+     * @param interval how often to seed, in milliseconds, zero or less to disable seeding
+     * @param timeBudget the maximum duration of a run, in milliseconds
+     * @param maxMetaTiles the maximum number of metatiles seeded in a run
+     */
+    PredictiveSeeder(GWC gwc, TileBreeder tileBreeder, StorageBroker storageBroker,
+            TileUsageSketch usage, long interval, long timeBudget, int maxMetaTiles) {
+        this.gwc = gwc;
+        this.tileBreeder = tileBreeder;
+        this.storageBroker = storageBroker;
+        this.usage = usage;
+        this.interval = interval;
+        this.timeBudget = timeBudget;
+        this.maxMetaTiles = maxMetaTiles;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GWC predictive seeder");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        if (interval > 0) {
+            executor.scheduleWithFixedDelay(new Runnable() {
+
+                public void run() {
+                    seed();
+                }
+            }, interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static long getLongProperty(String name, long defaultValue) {
+        String value = GeoServerExtensions.getProperty(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + name + ": " + value
+                        + ", using the default of " + defaultValue + " instead");
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Records a tile request
+     *
+     * @param layer the tile layer serving the request
+     * @param tile the requested tile
+     * @param metaX the metatiling factor along the x axis
+     * @param metaY the metatiling factor along the y axis
+     */
+    public void tileRequested(TileLayer layer, ConveyorTile tile, int metaX, int metaY) {
+        if (interval <= 0) {
+            // nothing will ever seed from the usage, don't pay for tracking it
+            return;
+        }
+        MetaTileKey key = new MetaTileKey(layer.getName(), tile.getGridSetId(), tile
+                .getMimeType().getFormat(), tile.getParametersId(), tile.getFullParameters(),
+                tile.getTileIndex(), metaX, metaY);
+        usage.add(key);
+        if (!seededHistory.isEmpty() && seededHistory.remove(key) != null) {
+            seededHits.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs the seeding in the background, right away
+     */
+    public void seedNow() {
+        try {
+            executor.execute(new Runnable() {
+
+                public void run() {
+                    seed();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOGGER.fine("Predictive seeder shut down, ignoring seed request");
+        }
+    }
+
+    /**
+     * Seeds the hottest uncached metatiles in the calling thread, within the time and metatile
+     * budgets
+     */
+    synchronized void seed() {
+        final long start = System.currentTimeMillis();
+        final long deadline = start + timeBudget;
+        lastRunStart = start;
+        List<MetaTileKey> schedule = new ArrayList<MetaTileKey>();
+        try {
+            // look a bit further than the budget, some of the hottest metatiles are cached already
+            for (MetaTileKey key : usage.getHottest(4 * maxMetaTiles).keySet()) {
+                if (schedule.size() >= maxMetaTiles || System.currentTimeMillis() >= deadline) {
+                    break;
+                }
+                GWCTask task;
+                try {
+                    task = seed(key);
+                } catch (Exception e) {
+                    // the layer might have been removed or reconfigured in the meantime
+                    LOGGER.log(Level.FINE, "Skipping predictive seeding of " + key, e);
+                    continue;
+                }
+                if (task == null) {
+                    continue;
+                }
+                schedule.add(key);
+                if (seededHistory.size() < SEEDED_HISTORY) {
+                    seededHistory.put(key, Boolean.TRUE);
+                }
+                if (!await(task, deadline)) {
+                    LOGGER.fine("Predictive seeding ran out of time, terminating task "
+                            + task.getTaskId());
+                    tileBreeder.terminateGWCTask(task.getTaskId());
+                    break;
+                }
+                seeded.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            usage.decay();
+            lastSchedule = Collections.unmodifiableList(schedule);
+            lastRunDuration = System.currentTimeMillis() - start;
+            runs.incrementAndGet();
+        }
+    }
+
+    /**
+     * Dispatches a seed task for the metatile, unless it's out of the layer coverage or cached
+     * already
+     *
+     * @return the dispatched task, or {@code null} if there was nothing to seed
+     */
+    private GWCTask seed(MetaTileKey key) throws GeoWebCacheException {
+        final TileLayer layer = gwc.getTileLayerByName(key.getLayerName());
+        final GridSubset gridSubset = layer.getGridSubset(key.getGridSetId());
+        final int z = key.getZoomLevel();
+        if (gridSubset == null || z < gridSubset.getZoomStart() || z > gridSubset.getZoomStop()) {
+            return null;
+        }
+        final long[] coverage = gridSubset.getCoverage(z);
+        final long[] range = key.getTileRange();
+        range[0] = Math.max(range[0], coverage[0]);
+        range[1] = Math.max(range[1], coverage[1]);
+        range[2] = Math.min(range[2], coverage[2]);
+        range[3] = Math.min(range[3], coverage[3]);
+        if (range[0] > range[2] || range[1] > range[3]) {
+            return null;
+        }
+
+        // the whole metatile is rendered and stored at once, probing one of its tiles is enough
+        TileObject probe = TileObject.createQueryTileObject(key.getLayerName(), new long[] {
+                range[0], range[1], z }, key.getGridSetId(), key.getFormat(),
+                key.getParameters());
+        if (storageBroker.get(probe)) {
+            alreadyCached.incrementAndGet();
+            return null;
+        }
+
+        TileRange tr = new TileRange(key.getLayerName(), key.getGridSetId(), z, z,
+                new long[][] { range }, MimeType.createFromFormat(key.getFormat()),
+                key.getParameters());
+        GWCTask[] tasks = tileBreeder.createTasks(tr, SEED, 1, false);
+        tileBreeder.dispatchTasks(tasks);
+        return tasks[0];
+    }
+
+    /**
+     * Waits for the task to complete
+     *
+     * @return false if the deadline expired first
+     */
+    private boolean await(GWCTask task, long deadline) throws InterruptedException {
+        while (isActive(task)) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(50);
+        }
+        return true;
+    }
+
+    private boolean isActive(GWCTask task) {
+        STATE state = task.getState();
+        return state == STATE.UNSET || state == STATE.READY || state == STATE.RUNNING;
+    }
+
+    /**
+     * The usage estimates the seeding is driven by
+     */
+    public TileUsageSketch getUsage() {
+        return usage;
+    }
+
+    /**
+     * Returns whether the seeding runs periodically
+     */
+    public boolean isEnabled() {
+        return interval > 0;
+    }
+
+    /**
+     * The metatiles seeded by the last run, in seeding order
+     */
+    public List<MetaTileKey> getLastSchedule() {
+        return lastSchedule;
+    }
+
+    /**
+     * Start time of the last run, or zero if none happened yet
+     */
+    public long getLastRunStart() {
+        return lastRunStart;
+    }
+
+    /**
+     * Duration of the last run, in milliseconds
+     */
+    public long getLastRunDuration() {
+        return lastRunDuration;
+    }
+
+    public long getRunCount() {
+        return runs.get();
+    }
+
+    /**
+     * Total number of metatiles seeded
+     */
+    public long getSeededCount() {
+        return seeded.get();
+    }
+
+    /**
+     * Total number of hot metatiles found already cached
+     */
+    public long getAlreadyCachedCount() {
+        return alreadyCached.get();
+    }
+
+    /**
+     * Number of seeded metatiles that have been requested afterwards
+     */
+    public long getSeededHits() {
+        return seededHits.get();
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public long getTimeBudget() {
+        return timeBudget;
+    }
+
+    public int getMaxMetaTiles() {
+        return maxMetaTiles;
+    }
+
+    /**
+     * Stops the seeding, the task in progress, if any, is left to the tile breeder
+     */
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,138 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.Map;
+
+import org.geoserver.gwc.TileUsageSketch.MetaTileKey;
+import org.geoserver.ows.util.ResponseUtils;
+import org.restlet.Restlet;
+import org.restlet.data.MediaType;
+import org.restlet.data.Method;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+
+/**
+ * Reports the {@link PredictiveSeeder} schedule and effectiveness, along with the most requested
+ * metatiles, as XML or JSON at {@code /gwc/rest/predictiveseed.<extension>}. A POST starts a
+ * seeding run right away, a DELETE forgets the recorded tile usage.
+ */
+public class PredictiveSeederRestlet extends Restlet {
+
+    /**
+     * How many of the most requested metatiles are reported
+     */
+    static final int HOTTEST_REPORTED = 20;
+
+    private final GWC gwc;
+
+    public PredictiveSeederRestlet(GWC gwc) {
+        this.gwc = gwc;
+    }
+
+    @Override
+    public void handle(Request request, Response response) {
+        final PredictiveSeeder seeder = gwc.getPredictiveSeeder();
+        final Method method = request.getMethod();
+        if (Method.GET.equals(method)) {
+            String extension = (String) request.getAttributes().get("extension");
+            if ("json".equals(extension)) {
+                response.setEntity(toJSON(seeder), MediaType.APPLICATION_JSON);
+            } else if (extension == null || "xml".equals(extension)) {
+                response.setEntity(toXML(seeder), MediaType.TEXT_XML);
+            } else {
+                response.setStatus(Status.CLIENT_ERROR_BAD_REQUEST, "Unknown extension: "
+                        + extension);
+            }
+        } else if (Method.POST.equals(method)) {
+            seeder.seedNow();
+            response.setStatus(Status.SUCCESS_ACCEPTED);
+        } else if (Method.DELETE.equals(method)) {
+            seeder.getUsage().clear();
+            response.setStatus(Status.SUCCESS_OK);
+        } else {
+            response.setStatus(Status.CLIENT_ERROR_METHOD_NOT_ALLOWED);
+        }
+    }
+
+    /**
+     * Ratio of the seeded metatiles requested afterwards, between 0 and 1
+     */
+    static double getEffectiveness(PredictiveSeeder seeder) {
+        long seeded = seeder.getSeededCount();
+        return seeded == 0 ? 0 : Math.min(1d, ((double) seeder.getSeededHits()) / seeded);
+    }
+
+    static String toXML(PredictiveSeeder seeder) {
+        TileUsageSketch usage = seeder.getUsage();
+        StringBuilder sb = new StringBuilder("<predictiveSeeder>");
+        sb.append("<enabled>").append(seeder.isEnabled()).append("</enabled>");
+        sb.append("<interval>").append(seeder.getInterval()).append("</interval>");
+        sb.append("<timeBudget>").append(seeder.getTimeBudget()).append("</timeBudget>");
+        sb.append("<maxMetaTiles>").append(seeder.getMaxMetaTiles()).append("</maxMetaTiles>");
+        sb.append("<runs>").append(seeder.getRunCount()).append("</runs>");
+        sb.append("<lastRunStart>").append(seeder.getLastRunStart()).append("</lastRunStart>");
+        sb.append("<lastRunDuration>").append(seeder.getLastRunDuration())
+                .append("</lastRunDuration>");
+        sb.append("<seeded>").append(seeder.getSeededCount()).append("</seeded>");
+        sb.append("<alreadyCached>").append(seeder.getAlreadyCachedCount())
+                .append("</alreadyCached>");
+        sb.append("<seededHits>").append(seeder.getSeededHits()).append("</seededHits>");
+        sb.append("<effectiveness>").append(getEffectiveness(seeder)).append("</effectiveness>");
+        sb.append("<requests>").append(usage.getRequestCount()).append("</requests>");
+        sb.append("<lastSchedule>");
+        for (MetaTileKey key : seeder.getLastSchedule()) {
+            sb.append("<metaTile>").append(ResponseUtils.encodeXML(key.toString()))
+                    .append("</metaTile>");
+        }
+        sb.append("</lastSchedule>");
+        sb.append("<hottest>");
+        for (Map.Entry<MetaTileKey, Long> entry : usage.getHottest(HOTTEST_REPORTED).entrySet()) {
+            sb.append("<metaTile count=\"").append(entry.getValue()).append("\">")
+                    .append(ResponseUtils.encodeXML(entry.getKey().toString()))
+                    .append("</metaTile>");
+        }
+        sb.append("</hottest>");
+        return sb.append("</predictiveSeeder>").toString();
+    }
+
+    static String toJSON(PredictiveSeeder seeder) {
+        TileUsageSketch usage = seeder.getUsage();
+        StringBuilder sb = new StringBuilder("{\"predictiveSeeder\":{");
+        sb.append("\"enabled\":").append(seeder.isEnabled());
+        sb.append(",\"interval\":").append(seeder.getInterval());
+        sb.append(",\"timeBudget\":").append(seeder.getTimeBudget());
+        sb.append(",\"maxMetaTiles\":").append(seeder.getMaxMetaTiles());
+        sb.append(",\"runs\":").append(seeder.getRunCount());
+        sb.append(",\"lastRunStart\":").append(seeder.getLastRunStart());
+        sb.append(",\"lastRunDuration\":").append(seeder.getLastRunDuration());
+        sb.append(",\"seeded\":").append(seeder.getSeededCount());
+        sb.append(",\"alreadyCached\":").append(seeder.getAlreadyCachedCount());
+        sb.append(",\"seededHits\":").append(seeder.getSeededHits());
+        sb.append(",\"effectiveness\":").append(getEffectiveness(seeder));
+        sb.append(",\"requests\":").append(usage.getRequestCount());
+        sb.append(",\"lastSchedule\":[");
+        boolean first = true;
+        for (MetaTileKey key : seeder.getLastSchedule()) {
+            sb.append(first ? "" : ",").append(quote(key.toString()));
+            first = false;
+        }
+        sb.append("],\"hottest\":[");
+        first = true;
+        for (Map.Entry<MetaTileKey, Long> entry : usage.getHottest(HOTTEST_REPORTED).entrySet()) {
+            sb.append(first ? "" : ",").append("{\"metaTile\":")
+                    .append(quote(entry.getKey().toString())).append(",\"count\":")
+                    .append(entry.getValue()).append("}");
+            first = false;
+        }
+        return sb.append("]}}").toString();
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+}
@@ -0,0 +1,181 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.gwc.layer.GeoServerTileLayerInfo;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.GeoWebCacheException;
+
+/**
+ * Deletes, in a background thread, the tiles cached for a superseded
+ * {@link GeoServerTileLayerInfo#getStyleVersion() style version} of a tile layer.
+ * <p>
+ * Those tiles can no longer be requested, so there is no hurry in getting rid of them: the
+ * sweeper works on a single thread, one zoom level and parameter set at a time, pausing between
+ * each step for a configurable time (see {@link #PAUSE_PROPERTY}) to leave room to the requests
+ * hitting the same storage.
+ * </p>
+ */
+public class StyleVersionSweeper {
+
+    static final Logger LOGGER = Logging.getLogger(StyleVersionSweeper.class);
+
+    /**
+     * System/context/environment property controlling how long, in milliseconds, the sweeper
+     * pauses between the deletion of two zoom levels
+     */
+    public static final String PAUSE_PROPERTY = "GWC_STYLE_SWEEP_PAUSE";
+
+    static final long DEFAULT_PAUSE = 100;
+
+    private final GWC gwc;
+
+    private final long pause;
+
+    private final ExecutorService executor;
+
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final AtomicLong swept = new AtomicLong();
+
+    public StyleVersionSweeper(GWC gwc) {
+        this(gwc, getConfiguredPause());
+    }
+
+    /**
+     * @param gwc the GWC facade
+     * @param pause how long to pause between the deletion of two zoom levels, in milliseconds
+     */
+    StyleVersionSweeper(GWC gwc, long pause) {
+        this.gwc = gwc;
+        this.pause = Math.max(0, pause);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GWC style version sweeper");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    static long getConfiguredPause() {
+        String value = GeoServerExtensions.getProperty(PAUSE_PROPERTY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + PAUSE_PROPERTY + ": " + value
+                        + ", using the default of " + DEFAULT_PAUSE + "ms instead");
+            }
+        }
+        return DEFAULT_PAUSE;
+    }
+
+    /**
+     * Queues the deletion of the tiles cached for the given parameter sets, returning immediately
+     *
+     * @param tileLayerName
+     * @param parameters the full parameter sets of the superseded tiles, including their style
+     *        version
+     */
+    public void sweep(final String tileLayerName, final List<Map<String, String>> parameters) {
+        checkNotNull(tileLayerName);
+        checkNotNull(parameters);
+        final List<Map<String, String>> parameterSets = new ArrayList<Map<String, String>>(
+                parameters);
+        pending.incrementAndGet();
+        try {
+            executor.execute(new Runnable() {
+
+                public void run() {
+                    try {
+                        doSweep(tileLayerName, parameterSets);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            LOGGER.fine("Sweeper shut down, leaving the old tiles of " + tileLayerName
+                    + " behind");
+        }
+    }
+
+    private void doSweep(String tileLayerName, List<Map<String, String>> parameterSets) {
+        final int maxZoomLevel;
+        try {
+            maxZoomLevel = gwc.getMaxZoomLevel(tileLayerName);
+        } catch (Exception e) {
+            // the layer might have been removed in the meantime, along with all of its tiles
+            LOGGER.log(Level.FINE, "Skipping sweep of tile layer " + tileLayerName, e);
+            return;
+        }
+        for (int z = 0; z <= maxZoomLevel; z++) {
+            for (Map<String, String> parameters : parameterSets) {
+                try {
+                    gwc.truncate(tileLayerName, parameters, z);
+                } catch (GeoWebCacheException e) {
+                    LOGGER.warning("Error sweeping tile layer " + tileLayerName
+                            + " at zoom level " + z + " for parameters " + parameters + ": "
+                            + e.getMessage());
+                    return;
+                } catch (RuntimeException e) {
+                    LOGGER.log(Level.WARNING, "Error sweeping tile layer " + tileLayerName
+                            + " for parameters " + parameters, e);
+                    return;
+                }
+            }
+            swept.incrementAndGet();
+            if (pause > 0) {
+                try {
+                    Thread.sleep(pause);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of sweeps queued or in progress
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Total number of zoom levels swept so far
+     */
+    public long getSweptCount() {
+        return swept.get();
+    }
+
+    /**
+     * Stops the sweeper, abandoning the queued sweeps
+     */
+    public void destroy() {
+        executor.shutdownNow();
+    }
+}
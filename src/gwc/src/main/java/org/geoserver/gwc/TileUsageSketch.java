@@ -0,0 +1,318 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Compact, decaying estimate of how often each metatile of the tile layers is requested.
+ * <p>
+ * Request frequencies are kept in a count-min sketch, a fixed size table of counters that never
+ * underestimates a frequency and overestimates it by a small amount with high probability,
+ * whatever the number of distinct metatiles. Since a sketch can estimate but not enumerate, a
+ * bounded set of candidate heavy hitters is tracked alongside it: a metatile enters the set when
+ * its estimate beats the least requested candidate kept at the last pruning.
+ * </p>
+ * <p>
+ * {@link #decay()} halves all the counters, so that the estimates follow the current usage
+ * instead of growing forever.
+ * </p>
+ */
+public class TileUsageSketch {
+
+    static final int DEFAULT_DEPTH = 4;
+
+    static final int DEFAULT_WIDTH = 1 << 16;
+
+    static final int DEFAULT_CAPACITY = 1000;
+
+    /**
+     * Identifies a metatile, that is, a block of tiles rendered together, of a given zoom level
+     */
+    public static final class MetaTileKey {
+
+        final String layerName;
+
+        final String gridSetId;
+
+        final String format;
+
+        final String parametersId;
+
+        final Map<String, String> parameters;
+
+        final int z;
+
+        final long x, y;
+
+        final int metaX, metaY;
+
+        final long hash;
+
+        /**
+         * @param layerName
+         * @param gridSetId
+         * @param format
+         * @param parametersId the id of the tile parameters, or {@code null}
+         * @param parameters the full tile parameters, not taken into account for equality
+         * @param tileIndex the index of one of the tiles of the metatile
+         * @param metaX the metatiling factor along the x axis
+         * @param metaY the metatiling factor along the y axis
+         */
+        public MetaTileKey(String layerName, String gridSetId, String format,
+                String parametersId, Map<String, String> parameters, long[] tileIndex,
+                int metaX, int metaY) {
+            this.layerName = layerName;
+            this.gridSetId = gridSetId;
+            this.format = format;
+            this.parametersId = parametersId;
+            this.parameters = parameters;
+            this.metaX = Math.max(1, metaX);
+            this.metaY = Math.max(1, metaY);
+            this.x = tileIndex[0] / this.metaX;
+            this.y = tileIndex[1] / this.metaY;
+            this.z = (int) tileIndex[2];
+
+            Hasher hasher = Hashing.murmur3_128().newHasher();
+            hasher.putString(layerName, Charsets.UTF_8).putString(gridSetId, Charsets.UTF_8)
+                    .putString(format, Charsets.UTF_8);
+            if (parametersId != null) {
+                hasher.putString(parametersId, Charsets.UTF_8);
+            }
+            this.hash = hasher.putLong(x).putLong(y).putInt(z).hash().asLong();
+        }
+
+        public String getLayerName() {
+            return layerName;
+        }
+
+        public String getGridSetId() {
+            return gridSetId;
+        }
+
+        public String getFormat() {
+            return format;
+        }
+
+        public Map<String, String> getParameters() {
+            return parameters;
+        }
+
+        public int getZoomLevel() {
+            return z;
+        }
+
+        /**
+         * Returns the range of tile indexes covered by the metatile, as {@code [minx, miny, maxx,
+         * maxy, z]}
+         */
+        public long[] getTileRange() {
+            return new long[] { x * metaX, y * metaY, x * metaX + metaX - 1,
+                    y * metaY + metaY - 1, z };
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof MetaTileKey)) {
+                return false;
+            }
+            MetaTileKey other = (MetaTileKey) obj;
+            return hash == other.hash && x == other.x && y == other.y && z == other.z
+                    && layerName.equals(other.layerName) && gridSetId.equals(other.gridSetId)
+                    && format.equals(other.format)
+                    && Objects.equal(parametersId, other.parametersId);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32));
+        }
+
+        @Override
+        public String toString() {
+            return layerName + "/" + gridSetId + "/" + format + "/" + parametersId + "/[" + x
+                    + ", " + y + ", " + z + "]";
+        }
+    }
+
+    private final int depth;
+
+    private final int width;
+
+    private final int capacity;
+
+    private final AtomicLongArray counters;
+
+    private final ConcurrentMap<MetaTileKey, Long> candidates = new ConcurrentHashMap<MetaTileKey, Long>();
+
+    /**
+     * Estimate of the least requested candidate kept at the last pruning
+     */
+    private volatile long floor;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    public TileUsageSketch() {
+        this(DEFAULT_DEPTH, DEFAULT_WIDTH, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param depth number of hash functions, each one adds a row of counters
+     * @param width number of counters per row
+     * @param capacity number of heavy hitters tracked
+     */
+    TileUsageSketch(int depth, int width, int capacity) {
+        this.depth = depth;
+        this.width = width;
+        this.capacity = capacity;
+        this.counters = new AtomicLongArray(depth * width);
+    }
+
+    /**
+     * Records a request for the given metatile
+     *
+     * @return the updated frequency estimate of the metatile
+     */
+    public long add(MetaTileKey key) {
+        requests.incrementAndGet();
+        final int h1 = (int) key.hash;
+        final int h2 = (int) (key.hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int slot = ((h1 + i * h2) & Integer.MAX_VALUE) % width;
+            estimate = Math.min(estimate, counters.incrementAndGet(i * width + slot));
+        }
+
+        if (estimate > floor || candidates.size() < capacity || candidates.containsKey(key)) {
+            candidates.put(key, estimate);
+            if (candidates.size() > 2 * capacity) {
+                prune();
+            }
+        }
+        return estimate;
+    }
+
+    /**
+     * Returns the current frequency estimate of the given metatile
+     */
+    public long estimate(MetaTileKey key) {
+        final int h1 = (int) key.hash;
+        final int h2 = (int) (key.hash >>> 32);
+        long estimate = Long.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int slot = ((h1 + i * h2) & Integer.MAX_VALUE) % width;
+            estimate = Math.min(estimate, counters.get(i * width + slot));
+        }
+        return estimate;
+    }
+
+    /**
+     * Keeps the {@code capacity} most requested candidates only
+     */
+    private synchronized void prune() {
+        List<Map.Entry<MetaTileKey, Long>> sorted = sortedCandidates();
+        if (sorted.size() <= capacity) {
+            return;
+        }
+        for (Map.Entry<MetaTileKey, Long> entry : sorted.subList(capacity, sorted.size())) {
+            candidates.remove(entry.getKey(), entry.getValue());
+        }
+        floor = sorted.get(capacity - 1).getValue();
+    }
+
+    private List<Map.Entry<MetaTileKey, Long>> sortedCandidates() {
+        List<Map.Entry<MetaTileKey, Long>> sorted = new ArrayList<Map.Entry<MetaTileKey, Long>>(
+                candidates.entrySet());
+        Collections.sort(sorted, new Comparator<Map.Entry<MetaTileKey, Long>>() {
+
+            public int compare(Map.Entry<MetaTileKey, Long> e1, Map.Entry<MetaTileKey, Long> e2) {
+                return e2.getValue().compareTo(e1.getValue());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Returns the most requested metatiles along with their frequency estimates, most requested
+     * first
+     *
+     * @param count the maximum number of metatiles to return
+     */
+    public Map<MetaTileKey, Long> getHottest(int count) {
+        Map<MetaTileKey, Long> hottest = new LinkedHashMap<MetaTileKey, Long>();
+        for (Map.Entry<MetaTileKey, Long> entry : sortedCandidates()) {
+            if (hottest.size() >= count) {
+                break;
+            }
+            hottest.put(entry.getKey(), entry.getValue());
+        }
+        return hottest;
+    }
+
+    /**
+     * Halves all the frequency estimates, forgetting the metatiles no longer requested
+     */
+    public synchronized void decay() {
+        for (int i = 0; i < counters.length(); i++) {
+            long value;
+            do {
+                value = counters.get(i);
+            } while (value != 0 && !counters.compareAndSet(i, value, value >> 1));
+        }
+        for (Iterator<Map.Entry<MetaTileKey, Long>> it = candidates.entrySet().iterator(); it
+                .hasNext();) {
+            Map.Entry<MetaTileKey, Long> entry = it.next();
+            long value = entry.getValue() >> 1;
+            if (value == 0) {
+                it.remove();
+            } else {
+                entry.setValue(value);
+            }
+        }
+        floor = floor >> 1;
+    }
+
+    /**
+     * Forgets all the recorded requests
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        candidates.clear();
+        floor = 0;
+        requests.set(0);
+    }
+
+    /**
+     * Total number of requests recorded since startup or the last {@link #clear()}
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Number of heavy hitter candidates currently tracked
+     */
+    public int getCandidateCount() {
+        return candidates.size();
+    }
+}
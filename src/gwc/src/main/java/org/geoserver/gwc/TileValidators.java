@@ -0,0 +1,284 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import java.util.Date;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.util.DateParseException;
+import org.apache.commons.httpclient.util.DateUtil;
+import org.geoserver.gwc.HotTileCache.TileKey;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.storage.BlobStoreListener;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * In memory index of the creation time of the tiles recently served, used to answer conditional
+ * requests ({@code If-None-Match} and {@code If-Modified-Since}) with a single lookup, without
+ * reading the tile from the storage.
+ * <p>
+ * The creation time is the validator of a tile: the ETag is its hexadecimal representation, the
+ * same GeoWebCache uses for the tiles it serves, and the {@code Last-Modified} header its HTTP date.
+ * Entries are recorded when a tile is served, and dropped as soon as the blob store reports the
+ * tile, its grid subset or its layer as stored again, deleted or renamed, so an entry never
+ * outlives the tile it describes. Entries older than the time to live are dropped anyway, to
+ * bound the effect of an event racing with a tile being read.
+ * </p>
+ * <p>
+ * The maximum number of entries and the time to live, in seconds, are controlled by the
+ * {@link #SIZE_PROPERTY} and {@link #TTL_PROPERTY} properties, setting the size to zero disables
+ * the index.
+ * </p>
+ */
+public class TileValidators implements BlobStoreListener {
+
+    static final Logger LOGGER = Logging.getLogger(TileValidators.class);
+
+    /**
+     * System/context/environment property controlling how many tile validators are kept
+     */
+    public static final String SIZE_PROPERTY = "GWC_TILE_VALIDATORS_SIZE";
+
+    /**
+     * System/context/environment property controlling how long, in seconds, a tile validator is
+     * kept at most
+     */
+    public static final String TTL_PROPERTY = "GWC_TILE_VALIDATORS_TTL";
+
+    static final long DEFAULT_SIZE = 100000;
+
+    static final long DEFAULT_TTL = 3600;
+
+    private final long maxSize;
+
+    private final Cache<TileKey, Long> validators;
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public TileValidators() {
+        this(getLongProperty(SIZE_PROPERTY, DEFAULT_SIZE), getLongProperty(TTL_PROPERTY,
+                DEFAULT_TTL) * 1000);
+    }
+
+    /**
+     * @param maxSize the maximum number of validators kept
+     * @param timeToLive how long validators are kept at most, in milliseconds
+     */
+    TileValidators(long maxSize, long timeToLive) {
+        this.maxSize = maxSize;
+        this.validators = CacheBuilder.newBuilder().maximumSize(Math.max(0, maxSize))
+                .expireAfterWrite(timeToLive, TimeUnit.MILLISECONDS).build();
+    }
+
+    private static long getLongProperty(String name, long defaultValue) {
+        String value = GeoServerExtensions.getProperty(name);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + name + ": " + value
+                        + ", using the default of " + defaultValue + " instead");
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Returns true if the index is enabled
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Returns the creation time of the tile, if known
+     *
+     * @return the tile creation time, or {@code null} if the tile is not in the index
+     */
+    public Long getCreated(TileKey key) {
+        Long created = validators.getIfPresent(key);
+        if (created == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return created;
+    }
+
+    /**
+     * Returns the current invalidation generation, to be passed to
+     * {@link #put(TileKey, long, long)} when the tile is read from the storage
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Records the creation time of a tile, unless a layer or grid subset got invalidated since
+     * the given generation was observed
+     *
+     * @param key
+     * @param created the tile creation time, as recorded by the storage
+     * @param generation the invalidation generation observed before reading or rendering the tile
+     */
+    public void put(TileKey key, long created, long generation) {
+        if (created > 0 && isEnabled() && generation == this.generation.get()) {
+            validators.put(key, created);
+        }
+    }
+
+    /**
+     * Drops the validators of the given layer and grid set
+     *
+     * @param layerName
+     * @param gridSetId the grid set, or null for all of them
+     */
+    public void invalidate(String layerName, String gridSetId) {
+        generation.incrementAndGet();
+        for (Iterator<TileKey> it = validators.asMap().keySet().iterator(); it.hasNext();) {
+            TileKey key = it.next();
+            if (key.layerName.equals(layerName)
+                    && (gridSetId == null || key.gridSetId.equals(gridSetId))) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Drops all the validators
+     */
+    public void clear() {
+        generation.incrementAndGet();
+        validators.invalidateAll();
+    }
+
+    /**
+     * Number of validators currently held
+     */
+    public long getCount() {
+        return validators.size();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the ETag of a tile created at the given time
+     */
+    public static String getETag(long created) {
+        return Long.toHexString(created);
+    }
+
+    /**
+     * Returns the {@code Last-Modified} header value of a tile created at the given time
+     */
+    public static String getLastModified(long created) {
+        // commons-httpclient's DateUtil formats as per RFC-1123, which is one of the three formats
+        // allowed for the Last-Modified and If-Modified-Since headers
+        return DateUtil.formatDate(new Date(created));
+    }
+
+    /**
+     * Evaluates the conditional request headers against the tile validators. As mandated by the
+     * HTTP specification, {@code If-Modified-Since} is only taken into account when
+     * {@code If-None-Match} is missing.
+     *
+     * @param created the tile creation time
+     * @param ifNoneMatch the {@code If-None-Match} header, may be null
+     * @param ifModifiedSince the {@code If-Modified-Since} header, may be null
+     * @return true if the client copy of the tile is current, and a 304 should be returned
+     */
+    public static boolean isNotModified(long created, String ifNoneMatch, String ifModifiedSince) {
+        if (created <= 0) {
+            return false;
+        }
+        if (ifNoneMatch != null && ifNoneMatch.length() > 0) {
+            final String etag = getETag(created);
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) {
+                    tag = tag.substring(2);
+                }
+                if (tag.length() > 1 && tag.startsWith("\"") && tag.endsWith("\"")) {
+                    tag = tag.substring(1, tag.length() - 1);
+                }
+                if ("*".equals(tag) || etag.equals(tag)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (ifModifiedSince != null && ifModifiedSince.length() > 0) {
+            try {
+                Date since = DateUtil.parseDate(ifModifiedSince);
+                // the HTTP header has second precision
+                return since.getTime() / 1000 >= created / 1000;
+            } catch (DateParseException e) {
+                if (LOGGER.isLoggable(Level.FINER)) {
+                    LOGGER.finer("Can't parse client's If-Modified-Since header: '"
+                            + ifModifiedSince + "'");
+                }
+            }
+        }
+        return false;
+    }
+
+    private void tileChanged(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z) {
+        validators.invalidate(new TileKey(layerName, gridSetId, blobFormat, parametersId,
+                new long[] { x, y, z }));
+    }
+
+    @Override
+    public void tileStored(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        tileChanged(layerName, gridSetId, blobFormat, parametersId, x, y, z);
+    }
+
+    @Override
+    public void tileDeleted(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize) {
+        tileChanged(layerName, gridSetId, blobFormat, parametersId, x, y, z);
+    }
+
+    @Override
+    public void tileUpdated(String layerName, String gridSetId, String blobFormat,
+            String parametersId, long x, long y, int z, long blobSize, long oldSize) {
+        tileChanged(layerName, gridSetId, blobFormat, parametersId, x, y, z);
+    }
+
+    @Override
+    public void layerDeleted(String layerName) {
+        invalidate(layerName, null);
+    }
+
+    @Override
+    public void layerRenamed(String oldLayerName, String newLayerName) {
+        invalidate(oldLayerName, null);
+        invalidate(newLayerName, null);
+    }
+
+    @Override
+    public void gridSubsetDeleted(String layerName, String gridSetId) {
+        invalidate(layerName, gridSetId);
+    }
+}
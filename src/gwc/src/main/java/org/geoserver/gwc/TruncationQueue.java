@@ -0,0 +1,252 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.geotools.util.logging.Logging;
+import org.geowebcache.GeoWebCacheException;
+import org.springframework.beans.factory.DisposableBean;
+
+import com.vividsolutions.jts.geom.Envelope;
+
+/**
+ * Collects the regions of the tile layers made dirty by transactions and truncates them in a
+ * background thread, so that the transactions do not have to wait for the cache to be cleaned up.
+ * <p>
+ * The regions are accumulated for a configurable time window (see {@link #DELAY_PROPERTY}), during
+ * which overlapping or adjacent regions of the same layer are merged into one. When the window
+ * expires the pending regions are truncated one zoom level at a time, starting from the coarsest
+ * one, since each coarse tile covers a large area of the map and is the most likely to be seen
+ * stale.
+ * </p>
+ */
+public class TruncationQueue implements DisposableBean {
+
+    static final Logger LOGGER = Logging.getLogger(TruncationQueue.class);
+
+    /**
+     * System/context/environment property controlling how long, in milliseconds, the dirty
+     * regions are accumulated before being truncated
+     */
+    public static final String DELAY_PROPERTY = "GWC_TRUNCATE_DELAY";
+
+    static final long DEFAULT_DELAY = 1000;
+
+    private final GWC gwc;
+
+    private final long delay;
+
+    /**
+     * Pending dirty regions by tile layer, in the tile layer declared CRS
+     */
+    private final Map<String, List<ReferencedEnvelope>> pending = new LinkedHashMap<String, List<ReferencedEnvelope>>();
+
+    private final ScheduledExecutorService executor;
+
+    private ScheduledFuture<?> scheduledFlush;
+
+    private final Object flushLock = new Object();
+
+    private final AtomicLong queued = new AtomicLong();
+
+    private final AtomicLong truncated = new AtomicLong();
+
+    public TruncationQueue(GWC gwc) {
+        this(gwc, getConfiguredDelay());
+    }
+
+    /**
+     * @param gwc the GWC facade
+     * @param delay how long to accumulate dirty regions before truncating them, in milliseconds
+     */
+    TruncationQueue(GWC gwc, long delay) {
+        this.gwc = gwc;
+        this.delay = Math.max(0, delay);
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "GWC truncation queue");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    static long getConfiguredDelay() {
+        String value = GeoServerExtensions.getProperty(DELAY_PROPERTY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + DELAY_PROPERTY + ": " + value
+                        + ", using the default of " + DEFAULT_DELAY + "ms instead");
+            }
+        }
+        return DEFAULT_DELAY;
+    }
+
+    /**
+     * Queues a dirty region for truncation, merging it with the pending regions of the same layer
+     * it overlaps or touches
+     *
+     * @param tileLayerName
+     * @param bounds the dirty region, in the tile layer declared CRS
+     */
+    public void add(String tileLayerName, ReferencedEnvelope bounds) {
+        checkNotNull(tileLayerName);
+        checkNotNull(bounds);
+        queued.incrementAndGet();
+
+        synchronized (pending) {
+            List<ReferencedEnvelope> regions = pending.get(tileLayerName);
+            if (regions == null) {
+                regions = new ArrayList<ReferencedEnvelope>(2);
+                pending.put(tileLayerName, regions);
+            }
+            merge(regions, bounds);
+
+            if (scheduledFlush == null && !executor.isShutdown()) {
+                scheduledFlush = executor.schedule(new Runnable() {
+
+                    public void run() {
+                        flush();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Adds the region to the list, merging it with all the ones it intersects or touches, and the
+     * ones those intersect in turn
+     */
+    static void merge(List<ReferencedEnvelope> regions, ReferencedEnvelope bounds) {
+        ReferencedEnvelope merged = new ReferencedEnvelope(bounds);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Iterator<ReferencedEnvelope> it = regions.iterator(); it.hasNext();) {
+                ReferencedEnvelope region = it.next();
+                // Envelope.intersects is true for touching envelopes too
+                if (region.intersects((Envelope) merged)) {
+                    merged.expandToInclude(region);
+                    it.remove();
+                    changed = true;
+                }
+            }
+        }
+        regions.add(merged);
+    }
+
+    /**
+     * Truncates all the pending regions, in the calling thread, coarsest zoom levels first
+     */
+    public void flush() {
+        Map<String, List<ReferencedEnvelope>> regions;
+        synchronized (pending) {
+            regions = new LinkedHashMap<String, List<ReferencedEnvelope>>(pending);
+            pending.clear();
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+        }
+        if (regions.isEmpty()) {
+            return;
+        }
+
+        synchronized (flushLock) {
+            // figure out how deep each layer goes
+            Map<String, Integer> maxZoomLevels = new LinkedHashMap<String, Integer>();
+            int maxZoomLevel = -1;
+            for (String tileLayerName : regions.keySet()) {
+                try {
+                    int layerMax = gwc.getMaxZoomLevel(tileLayerName);
+                    maxZoomLevels.put(tileLayerName, layerMax);
+                    maxZoomLevel = Math.max(maxZoomLevel, layerMax);
+                } catch (Exception e) {
+                    // the layer might have been removed in the meantime
+                    LOGGER.log(Level.FINE, "Skipping truncation of tile layer " + tileLayerName, e);
+                }
+            }
+
+            for (int z = 0; z <= maxZoomLevel; z++) {
+                for (Map.Entry<String, Integer> entry : maxZoomLevels.entrySet()) {
+                    if (z > entry.getValue()) {
+                        continue;
+                    }
+                    final String tileLayerName = entry.getKey();
+                    for (ReferencedEnvelope bounds : regions.get(tileLayerName)) {
+                        try {
+                            gwc.truncate(tileLayerName, bounds, z);
+                        } catch (GeoWebCacheException e) {
+                            LOGGER.warning("Error truncating tile layer " + tileLayerName
+                                    + " at zoom level " + z + " for bounds " + bounds + ": "
+                                    + e.getMessage());
+                        } catch (RuntimeException e) {
+                            LOGGER.log(Level.WARNING, "Error truncating tile layer "
+                                    + tileLayerName + " for bounds " + bounds, e);
+                        }
+                    }
+                }
+            }
+
+            for (List<ReferencedEnvelope> layerRegions : regions.values()) {
+                truncated.addAndGet(layerRegions.size());
+            }
+        }
+    }
+
+    /**
+     * Number of dirty regions waiting to be truncated, after merging
+     */
+    public int getQueueDepth() {
+        synchronized (pending) {
+            int depth = 0;
+            for (List<ReferencedEnvelope> regions : pending.values()) {
+                depth += regions.size();
+            }
+            return depth;
+        }
+    }
+
+    /**
+     * Total number of dirty regions queued so far, before merging
+     */
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * Total number of merged regions truncated so far
+     */
+    public long getTruncatedCount() {
+        return truncated.get();
+    }
+
+    public void destroy() throws Exception {
+        executor.shutdown();
+        // don't leave stale tiles behind
+        flush();
+    }
+}
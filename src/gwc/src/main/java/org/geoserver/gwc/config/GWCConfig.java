@@ -42,6 +42,12 @@ public class GWCConfig implements Cloneable, Serializable {
      */
     private boolean cacheNonDefaultStyles;
 
+    /**
+     * Whether style changes move the affected layers to a fresh set of tiles, keyed by a
+     * fingerprint of the style contents, instead of truncating them
+     */
+    private boolean styleVersioningEnabled;
+
     /**
      * Default meta-tiling factor for the X axis
      */
@@ -174,6 +180,14 @@ public class GWCConfig implements Cloneable, Serializable {
         this.cacheNonDefaultStyles = cacheNonDefaultStyles;
     }
 
+    public boolean isStyleVersioningEnabled() {
+        return styleVersioningEnabled;
+    }
+
+    public void setStyleVersioningEnabled(boolean styleVersioningEnabled) {
+        this.styleVersioningEnabled = styleVersioningEnabled;
+    }
+
     public Set<String> getDefaultCachingGridSetIds() {
         return defaultCachingGridSetIds;
     }
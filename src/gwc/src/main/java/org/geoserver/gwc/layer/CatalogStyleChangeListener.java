@@ -210,6 +210,10 @@ public class CatalogStyleChangeListener implements CatalogListener {
     private void handleStyleChange(final StyleInfo modifiedStyle) {
         final String styleName = modifiedStyle.prefixedName();
         log.finer("Handling style modification: " + styleName);
+        if (mediator.isStyleVersioningEnabled()) {
+            handleVersionedStyleChange(modifiedStyle);
+            return;
+        }
         // First we collect all the layers that use this style
         for (LayerInfo affectedLayer : mediator.getLayerInfosFor(modifiedStyle)) {
             // If the style name changes, we need to update the layer's parameter filter
@@ -228,6 +232,30 @@ public class CatalogStyleChangeListener implements CatalogListener {
         }
     }
 
+    /**
+     * Moves the layers and layer groups using the modified style to a new style version, leaving
+     * the deletion of the tiles cached for the previous version to a background sweeper
+     * 
+     * @see GWC#updateStyleVersion(String)
+     */
+    private void handleVersionedStyleChange(final StyleInfo modifiedStyle) {
+        final String styleName = modifiedStyle.prefixedName();
+        for (LayerInfo affectedLayer : mediator.getLayerInfosFor(modifiedStyle)) {
+            String prefixedName = tileLayerName(affectedLayer);
+            if (mediator.updateStyleVersion(prefixedName)) {
+                log.info("Layer '" + prefixedName + "' moved to a new style version due to a "
+                        + "change in style '" + styleName + "'");
+            }
+        }
+        for (LayerGroupInfo layerGroup : mediator.getLayerGroupsFor(modifiedStyle)) {
+            String layerGroupName = tileLayerName(layerGroup);
+            if (mediator.updateStyleVersion(layerGroupName)) {
+                log.info("Layer group '" + layerGroupName + "' moved to a new style version due "
+                        + "to a change in style '" + styleName + "'");
+            }
+        }
+    }
+
     /**
      * No need to do anything here, when a style is removed all the layers that reference it are
      * updated first
@@ -14,15 +14,29 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geotools.util.logging.Logging;
 import org.geowebcache.config.XMLConfiguration;
@@ -32,24 +46,45 @@ import org.geowebcache.storage.blobstore.file.FilePathUtils;
 import org.geowebcache.util.FileUtils;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
 import com.thoughtworks.xstream.XStream;
 
+/**
+ * Stores each tile layer in its own file of the {@code gwc-layers} directory.
+ * <p>
+ * Only the ids and names of the tile layers are kept in memory. They are indexed at startup by
+ * scanning the beginning of each file, in parallel, and the files are fully parsed on demand. The
+ * index is held in concurrent maps, so lookups don't contend on a lock.
+ * </p>
+ */
 public class DefaultTileLayerCatalog implements TileLayerCatalog {
 
     private static final Logger LOGGER = Logging.getLogger(DefaultTileLayerCatalog.class);
 
     private static final String LAYERINFO_DIRECTORY = "gwc-layers";
 
-    private BiMap<String, String> layersById;
+    /**
+     * Below this number of files the index is built in the calling thread
+     */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+    static {
+        XML_INPUT_FACTORY = XMLInputFactory.newInstance();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES,
+                Boolean.FALSE);
+    }
+
+    /**
+     * Layer names by id
+     */
+    private final ConcurrentMap<String, String> layersById = new ConcurrentHashMap<String, String>();
 
     /**
-     * View of layer ids by name
+     * Layer ids by name
      */
-    private BiMap<String, String> layersByName;
+    private final ConcurrentMap<String, String> layersByName = new ConcurrentHashMap<String, String>();
 
     private final XStream serializer;
 
@@ -71,23 +106,19 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
         this.resourceLoader = resourceLoader;
         this.serializer = configuredXstream;
         this.baseDirectory = LAYERINFO_DIRECTORY;
-
-        BiMap<String, String> baseBiMap = HashBiMap.create();
-        this.layersById = Maps.synchronizedBiMap(baseBiMap);
-        this.layersByName = layersById.inverse();
         this.initialized = false;
     }
 
     @Override
-    public void reset() {
-        layersById.clear();
+    public synchronized void reset() {
+        clearIndex();
         this.initialized = false;
     }
 
     @Override
-    public void initialize() {
+    public synchronized void initialize() {
 
-        layersById.clear();
+        clearIndex();
 
         File baseDir;
         try {
@@ -106,24 +137,140 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
         });
 
         LOGGER.info("Loading tile layers from " + baseDir.getAbsolutePath());
-        for (String fileName : tileLayerFiles) {
-            GeoServerTileLayerInfoImpl info;
+        List<Callable<String[]>> readers = new ArrayList<Callable<String[]>>(
+                tileLayerFiles.length);
+        for (final String fileName : tileLayerFiles) {
+            final File file = new File(baseDir, fileName);
+            readers.add(new Callable<String[]>() {
+
+                @Override
+                public String[] call() throws Exception {
+                    return readIdentity(file);
+                }
+            });
+        }
+
+        final int threads = Math.min(8, Runtime.getRuntime().availableProcessors());
+        if (readers.size() < PARALLEL_THRESHOLD || threads < 2) {
+            for (int i = 0; i < readers.size(); i++) {
+                try {
+                    index(tileLayerFiles[i], readers.get(i).call());
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Error depersisting tile layer information from file "
+                            + tileLayerFiles[i], e);
+                }
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
             try {
-                File file = new File(baseDir, fileName);
-                info = depersist(file);
-            } catch (Exception e) {
-                LOGGER.log(Level.SEVERE, "Error depersisting tile layer information from file "
-                        + fileName, e);
-                continue;
+                List<Future<String[]>> identities = executor.invokeAll(readers);
+                for (int i = 0; i < identities.size(); i++) {
+                    try {
+                        index(tileLayerFiles[i], identities.get(i).get());
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.SEVERE,
+                                "Error depersisting tile layer information from file "
+                                        + tileLayerFiles[i], e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw propagate(e);
+            } finally {
+                executor.shutdown();
             }
+        }
+        LOGGER.info("Indexed " + layersById.size() + " tile layers");
+        this.initialized = true;
+    }
+
+    private void index(String fileName, String[] identity) {
+        final String id = identity[0];
+        final String name = identity[1];
+        final String duplicateNameId = layersByName.get(name);
+        if (duplicateNameId != null && !duplicateNameId.equals(id)) {
+            LOGGER.severe("Ignoring tile layer file " + fileName + ", a tile layer named " + name
+                    + " already exists: <" + duplicateNameId + ">");
+            return;
+        }
+        putIndex(id, name);
+        if (LOGGER.isLoggable(Level.FINER)) {
+            LOGGER.finer("Indexed tile layer '" + name + "'");
+        }
+    }
+
+    private synchronized void putIndex(String id, String name) {
+        String oldName = layersById.put(id, name);
+        if (oldName != null && !oldName.equals(name)) {
+            layersByName.remove(oldName, id);
+        }
+        String oldId = layersByName.put(name, id);
+        if (oldId != null && !oldId.equals(id)) {
+            // save rejects duplicate names, keep the two maps consistent anyways
+            LOGGER.warning("Tile layer <" + oldId + "> lost its name " + name + " to <" + id
+                    + ">");
+            layersById.remove(oldId, name);
+        }
+    }
+
+    private synchronized void removeIndex(String id) {
+        String name = layersById.remove(id);
+        if (name != null) {
+            layersByName.remove(name, id);
+        }
+    }
 
-            layersById.put(info.getId(), info.getName());
+    private synchronized void clearIndex() {
+        layersById.clear();
+        layersByName.clear();
+    }
 
-            if (LOGGER.isLoggable(Level.FINER)) {
-                LOGGER.finer("Loaded tile layer '" + info.getName() + "'");
+    /**
+     * Reads the id and name of the tile layer stored in the file, parsing only the beginning of it
+     * when possible, and falling back to a full parse otherwise
+     * 
+     * @return the tile layer {@code [id, name]}
+     */
+    String[] readIdentity(final File file) throws IOException {
+        String id = null;
+        String name = null;
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(in, "UTF-8");
+                try {
+                    int depth = 0;
+                    while (reader.hasNext() && (id == null || name == null)) {
+                        int event = reader.next();
+                        if (event == XMLStreamConstants.START_ELEMENT) {
+                            depth++;
+                            if (depth == 2 && "id".equals(reader.getLocalName())) {
+                                id = reader.getElementText();
+                                depth--;
+                            } else if (depth == 2 && "name".equals(reader.getLocalName())) {
+                                name = reader.getElementText();
+                                depth--;
+                            }
+                        } else if (event == XMLStreamConstants.END_ELEMENT) {
+                            depth--;
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } finally {
+                in.close();
             }
+        } catch (XMLStreamException e) {
+            LOGGER.log(Level.FINE, "Could not scan " + file + ", parsing it fully", e);
         }
-        this.initialized = true;
+
+        if (id == null || name == null) {
+            GeoServerTileLayerInfoImpl info = depersist(file);
+            id = info.getId();
+            name = info.getName();
+        }
+        return new String[] { id, name };
     }
 
     @Override
@@ -144,9 +291,13 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
         return null;
     }
 
-    private synchronized void checkInitialized() {
+    private void checkInitialized() {
         if (!initialized) {
-            initialize();
+            synchronized (this) {
+                if (!initialized) {
+                    initialize();
+                }
+            }
         }
     }
 
@@ -185,7 +336,7 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
             GeoServerTileLayerInfo info = getLayerById(tileLayerId);
             if (info != null) {
                 File file = getFile(tileLayerId, false);
-                layersById.remove(tileLayerId);
+                removeIndex(tileLayerId);
                 file.delete();
             }
             return info;
@@ -212,18 +363,15 @@ public class DefaultTileLayerCatalog implements TileLayerCatalog {
                 throw propagate(other);
             }
 
-            if (oldValue == null) {
-                final String duplicateNameId = layersByName.get(newValue.getName());
-                if (null != duplicateNameId) {
-                    throw new IllegalArgumentException("TileLayer with same name already exists: "
-                            + newValue.getName() + ": <" + duplicateNameId + ">");
-                }
-            } else {
-                layersByName.remove(oldValue.getName());
+            // new layers and renamed ones alike
+            final String duplicateNameId = layersByName.get(newValue.getName());
+            if (null != duplicateNameId && !duplicateNameId.equals(tileLayerId)) {
+                throw new IllegalArgumentException("TileLayer with same name already exists: "
+                        + newValue.getName() + ": <" + duplicateNameId + ">");
             }
 
             persist(newValue);
-            layersById.put(newValue.getId(), newValue.getName());
+            putIndex(newValue.getId(), newValue.getName());
 
         } catch (Exception e) {
             if (e instanceof ExecutionException) {
@@ -10,16 +10,28 @@ import static com.google.common.base.Preconditions.checkNotNull;
 import java.awt.Point;
 import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.media.jai.PlanarImage;
 import javax.media.jai.RenderedOp;
+import javax.media.jai.TiledImage;
 
 import org.geoserver.gwc.GWC;
 import org.geoserver.ows.Response;
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.wms.WMSMapContent;
 import org.geoserver.wms.map.RenderedImageMap;
 import org.geoserver.wms.map.RenderedImageMapResponse;
@@ -27,6 +39,7 @@ import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.image.crop.GTCropDescriptor;
 import org.geotools.resources.i18n.ErrorKeys;
 import org.geotools.resources.i18n.Errors;
+import org.geotools.util.logging.Logging;
 import org.geowebcache.grid.BoundingBox;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.io.Resource;
@@ -36,8 +49,36 @@ import org.geowebcache.mime.MimeType;
 
 public class GeoServerMetaTile extends MetaTile {
 
+    static final Logger LOGGER = Logging.getLogger(GeoServerMetaTile.class);
+
+    /**
+     * System/context/environment property controlling how many threads are used to encode the
+     * tiles of the metatiles, defaults to the number of processors. Setting it to 1 or less makes
+     * the tiles be encoded sequentially in the requesting thread.
+     */
+    public static final String ENCODER_THREADS_PROPERTY = "GWC_METATILE_ENCODER_THREADS";
+
+    /**
+     * System/context/environment property controlling how long, in milliseconds, requests for a
+     * metatile wait for its tiles to be stored in the background before rendering it again,
+     * defaults to 30 seconds
+     */
+    public static final String ENCODER_WAIT_PROPERTY = "GWC_METATILE_ENCODER_WAIT";
+
+    static final long DEFAULT_ENCODER_WAIT = 30000;
+
+    private static volatile long encoderWait = -1;
+
+    private static ExecutorService encoderPool;
+
+    private static boolean encoderPoolInitialized;
+
     private RenderedImageMap metaTileMap;
 
+    private boolean disposed;
+
+    private volatile boolean encodingInBackground;
+
     public GeoServerMetaTile(GridSubset gridSubset, MimeType responseFormat,
             FormatModifier formatModifier, long[] tileGridPosition, int metaX, int metaY,
             Integer gutter) {
@@ -50,6 +91,90 @@ public class GeoServerMetaTile extends MetaTile {
         setImage(webMap.getImage());
     }
 
+    /**
+     * Returns the thread pool shared by all metatiles to encode their tiles in parallel, or null if
+     * parallel encoding is disabled
+     */
+    static synchronized ExecutorService getEncoderPool() {
+        if (!encoderPoolInitialized) {
+            encoderPoolInitialized = true;
+            int threads = getConfiguredEncoderThreads();
+            if (threads > 1) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+                        TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(threads * 16),
+                        new ThreadFactory() {
+
+                            final AtomicInteger count = new AtomicInteger();
+
+                            public Thread newThread(Runnable r) {
+                                Thread t = new Thread(r, "GWC metatile encoder "
+                                        + count.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        }, new ThreadPoolExecutor.CallerRunsPolicy());
+                pool.allowCoreThreadTimeOut(true);
+                encoderPool = pool;
+            }
+        }
+        return encoderPool;
+    }
+
+    static int getConfiguredEncoderThreads() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String value = GeoServerExtensions.getProperty(ENCODER_THREADS_PROPERTY);
+        if (value != null) {
+            try {
+                threads = Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + ENCODER_THREADS_PROPERTY + ": "
+                        + value + ", using the default of " + threads + " threads instead");
+            }
+        }
+        return threads;
+    }
+
+    /**
+     * Returns how long requests wait for the tiles of a metatile being stored in the background,
+     * in milliseconds, see {@link #ENCODER_WAIT_PROPERTY}
+     */
+    static long getEncoderWait() {
+        if (encoderWait < 0) {
+            long wait = DEFAULT_ENCODER_WAIT;
+            String value = GeoServerExtensions.getProperty(ENCODER_WAIT_PROPERTY);
+            if (value != null) {
+                try {
+                    wait = Math.max(0, Long.parseLong(value.trim()));
+                } catch (NumberFormatException e) {
+                    LOGGER.log(Level.WARNING, "Invalid value for " + ENCODER_WAIT_PROPERTY + ": "
+                            + value + ", using the default of " + wait + "ms instead");
+                }
+            }
+            encoderWait = wait;
+        }
+        return encoderWait;
+    }
+
+    /**
+     * Sets how long requests wait for the tiles of a metatile being stored in the background, a
+     * negative value reverts to the configured one
+     */
+    static void setEncoderWait(long wait) {
+        encoderWait = wait;
+    }
+
+    /**
+     * True if the tiles of this metatile are being encoded and stored in the background, in which
+     * case the last background task disposes the metatile
+     */
+    boolean isEncodingInBackground() {
+        return encodingInBackground;
+    }
+
+    void setEncodingInBackground(boolean encodingInBackground) {
+        this.encodingInBackground = encodingInBackground;
+    }
+
     /**
      * Creates the {@link RenderedImage} corresponding to the tile at index {@code tileIdx} and uses
      * a {@link RenderedImageMapResponse} to encode it into the {@link #getResponseFormat() response
@@ -81,7 +206,10 @@ public class GeoServerMetaTile extends MetaTile {
         if (this.tiles.length > 1 || (this.tiles.length == 1 && metaHasGutter())) {
             final Rectangle tileDim = this.tiles[tileIdx];
             tile = createTile(tileDim.x, tileDim.y, tileDim.width, tileDim.height);
-            disposeLater(tile);
+            synchronized (this) {
+                // tiles can be written concurrently, see GeoServerTileLayer
+                disposeLater(tile);
+            }
             {
                 final WMSMapContent metaTileContext = metaTileMap.getMapContext();
                 // do not create tileContext with metaTileContext.getLayers() as the layer list.
@@ -144,6 +272,16 @@ public class GeoServerMetaTile extends MetaTile {
     @Override
     public RenderedImage createTile(final int x, final int y, final int tileWidth,
             final int tileHeight) {
+        // a TiledImage owns its tiles, so a child raster can share the metatile data as long as the
+        // tile is encoded before the metatile gets disposed. The tiles of other planar images might
+        // be held by the JAI tile cache and recycled when the cache is cleaned, those are copied
+        if (metaTileImage instanceof TiledImage) {
+            BufferedImage child = createChildTile(metaTileImage, x, y, tileWidth, tileHeight);
+            if (child != null) {
+                return child;
+            }
+        }
+
         // check image type
         final int type;
         if (metaTileImage instanceof PlanarImage) {
@@ -164,7 +302,9 @@ public class GeoServerMetaTile extends MetaTile {
                     .create(metaTileImage, Float.valueOf(x), Float.valueOf(y),
                             Float.valueOf(tileWidth), Float.valueOf(tileHeight), NO_CACHE);
             tile = cropped.getAsBufferedImage();
-            disposeLater(cropped);
+            synchronized (this) {
+                disposeLater(cropped);
+            }
             break;
         case 1:
             final PlanarImage pImage = (PlanarImage) metaTileImage;
@@ -198,8 +338,44 @@ public class GeoServerMetaTile extends MetaTile {
         return tile;
     }
 
+    /**
+     * Returns a {@link BufferedImage} backed by a child of the image raster, without copying any
+     * pixel, if the requested area falls within a single writable tile of the image. Returns null
+     * otherwise.
+     */
+    static BufferedImage createChildTile(final RenderedImage image, final int x, final int y,
+            final int tileWidth, final int tileHeight) {
+        final ColorModel cm = image.getColorModel();
+        if (cm == null) {
+            return null;
+        }
+        final int tx = PlanarImage.XToTileX(x, image.getTileGridXOffset(), image.getTileWidth());
+        final int ty = PlanarImage.YToTileY(y, image.getTileGridYOffset(), image.getTileHeight());
+        final int maxTx = PlanarImage.XToTileX(x + tileWidth - 1, image.getTileGridXOffset(),
+                image.getTileWidth());
+        final int maxTy = PlanarImage.YToTileY(y + tileHeight - 1, image.getTileGridYOffset(),
+                image.getTileHeight());
+        if (tx != maxTx || ty != maxTy) {
+            return null;
+        }
+
+        final Raster raster = image.getTile(tx, ty);
+        if (!(raster instanceof WritableRaster)
+                || !raster.getBounds().contains(x, y, tileWidth, tileHeight)) {
+            return null;
+        }
+        WritableRaster child = ((WritableRaster) raster).createWritableChild(x, y, tileWidth,
+                tileHeight, 0, 0, null);
+        return new BufferedImage(cm, child, cm.isAlphaPremultiplied(), null);
+    }
+
     @Override
-    public void dispose() {
+    public synchronized void dispose() {
+        if (disposed) {
+            // might be called both by the tile layer and by the last tile encoding task
+            return;
+        }
+        disposed = true;
         if (metaTileMap != null) {
             metaTileMap.dispose();
             metaTileMap = null;
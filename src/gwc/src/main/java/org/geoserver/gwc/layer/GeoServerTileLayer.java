@@ -10,7 +10,9 @@ import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.base.Throwables.propagate;
 import static org.geoserver.gwc.GWC.tileLayerName;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -20,14 +22,24 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
 
 import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.KeywordInfo;
+import org.geoserver.catalog.LayerGroupHelper;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.MetadataMap;
@@ -35,8 +47,14 @@ import org.geoserver.catalog.PublishedInfo;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.catalog.StyleInfo;
 import org.geoserver.gwc.GWC;
+import org.geoserver.gwc.HotTileCache;
+import org.geoserver.gwc.HotTileCache.CachedTile;
+import org.geoserver.gwc.HotTileCache.TileKey;
+import org.geoserver.gwc.PredictiveSeeder;
+import org.geoserver.gwc.TileValidators;
 import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
 import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.WMS;
 import org.geoserver.wms.WebMap;
@@ -47,6 +65,7 @@ import org.geotools.util.logging.Logging;
 import org.geowebcache.GeoWebCacheException;
 import org.geowebcache.config.ConfigurationException;
 import org.geowebcache.config.XMLGridSubset;
+import org.geowebcache.conveyor.Conveyor.CacheResult;
 import org.geowebcache.conveyor.ConveyorTile;
 import org.geowebcache.filter.parameters.ParameterException;
 import org.geowebcache.filter.parameters.ParameterFilter;
@@ -57,6 +76,7 @@ import org.geowebcache.grid.GridSetBroker;
 import org.geowebcache.grid.GridSubset;
 import org.geowebcache.grid.OutsideCoverageException;
 import org.geowebcache.grid.SRS;
+import org.geowebcache.io.ByteArrayResource;
 import org.geowebcache.io.Resource;
 import org.geowebcache.layer.ExpirationRule;
 import org.geowebcache.layer.LayerListenerList;
@@ -72,10 +92,18 @@ import org.geowebcache.locks.LockProvider.Lock;
 import org.geowebcache.mime.FormatModifier;
 import org.geowebcache.mime.MimeException;
 import org.geowebcache.mime.MimeType;
+import org.geowebcache.storage.StorageException;
+import org.geowebcache.storage.TileObject;
 import org.geowebcache.util.GWCVars;
 import org.geowebcache.util.ServletUtils;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.SettableFuture;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 
@@ -95,6 +123,16 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
 
     private static LayerListenerList listeners = new LayerListenerList();
 
+    /**
+     * An ETag as generated by {@link TileValidators#getETag(long)}, unquoted
+     */
+    private static final Pattern BARE_ETAG = Pattern.compile("[0-9a-f]+");
+
+    /**
+     * Metatiles whose tiles are still being encoded and stored in the background, by lock key
+     */
+    private static final ConcurrentMap<String, Future<?>> PENDING_METATILES = new ConcurrentHashMap<String, Future<?>>();
+
     private final GridSetBroker gridSetBroker;
     
     private Catalog catalog;
@@ -172,7 +210,12 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
 
     @Override
     public List<ParameterFilter> getParameterFilters() {
-        return new ArrayList<ParameterFilter>(info.getParameterFilters());
+        List<ParameterFilter> filters = new ArrayList<ParameterFilter>(info.getParameterFilters());
+        String styleVersion = info.getStyleVersion();
+        if (styleVersion != null) {
+            filters.add(new StyleVersionParameterFilter(styleVersion));
+        }
+        return filters;
     }
 
     public void resetParameterFilters() {
@@ -335,6 +378,55 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         return null;
     }
 
+    /**
+     * Computes a fingerprint of the contents of the styles the tiles of this layer are rendered
+     * with, that is, the default and cached styles of a layer, or the styles of the layers in a
+     * layer group, see {@link GeoServerTileLayerInfo#getStyleVersion()}
+     * 
+     * @throws IOException if a style can't be read
+     */
+    public String computeStyleVersion() throws IOException {
+        final PublishedInfo published = getPublishedInfo();
+        final List<StyleInfo> styles = new ArrayList<StyleInfo>();
+        if (published instanceof LayerInfo) {
+            LayerInfo layer = (LayerInfo) published;
+            styles.add(layer.getDefaultStyle());
+            Set<String> cachedStyles = info.cachedStyles();
+            for (StyleInfo style : layer.getStyles()) {
+                if (cachedStyles.contains(style.prefixedName())) {
+                    styles.add(style);
+                }
+            }
+        } else {
+            // walk the nested groups too, resolving the default styles the layers are drawn with
+            LayerGroupHelper helper = new LayerGroupHelper((LayerGroupInfo) published);
+            Iterator<LayerInfo> groupLayers = helper.allLayers().iterator();
+            Iterator<StyleInfo> groupStyles = helper.allStyles().iterator();
+            while (groupLayers.hasNext()) {
+                LayerInfo childLayer = groupLayers.next();
+                StyleInfo style = groupStyles.next();
+                styles.add(style == null ? childLayer.getDefaultStyle() : style);
+            }
+        }
+
+        // layers built straight from a catalog object have no catalog reference
+        final Catalog catalog = this.catalog == null ? GWC.get().getCatalog() : this.catalog;
+        Hasher hasher = Hashing.md5().newHasher();
+        for (StyleInfo style : styles) {
+            if (style == null) {
+                continue;
+            }
+            hasher.putString(style.prefixedName(), Charsets.UTF_8);
+            BufferedReader reader = catalog.getResourcePool().readStyle(style);
+            try {
+                hasher.putString(CharStreams.toString(reader), Charsets.UTF_8);
+            } finally {
+                reader.close();
+            }
+        }
+        return hasher.hash().toString();
+    }
+
     private ResourceInfo getResourceInfo() {
         LayerInfo layerInfo = getLayerInfo();
         return layerInfo == null ? null : layerInfo.getResource();
@@ -468,6 +560,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
             fullParameters = getDefaultParameterFilters();
         }
         wmsParams.putAll(fullParameters);
+        wmsParams.remove(StyleVersionParameterFilter.KEY);
 
         return wmsParams;
     }
@@ -475,6 +568,30 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
     @Override
     public ConveyorTile getTile(ConveyorTile tile) throws GeoWebCacheException, IOException,
             OutsideCoverageException {
+        String ifNoneMatch = null;
+        if (tile.servletReq != null) {
+            // GeoWebCache writes out the tile, and answers with a 304 only if the header is the
+            // exact ETag of the tile: skip the storage only when that check is bound to match
+            String header = tile.servletReq.getHeader("If-None-Match");
+            if (header != null && BARE_ETAG.matcher(header).matches()) {
+                ifNoneMatch = header;
+            }
+        }
+        return getTile(tile, ifNoneMatch, null);
+    }
+
+    /**
+     * Same as {@link #getTile(ConveyorTile)}, but skips the storage lookup when the conditional
+     * request headers match the validators of the tile (see {@link TileValidators}). In that case
+     * the returned tile has empty contents and its creation time set to the one the client
+     * already has, and the caller is expected to answer with a 304 status.
+     *
+     * @param tile the tile request
+     * @param ifNoneMatch the {@code If-None-Match} request header, may be null
+     * @param ifModifiedSince the {@code If-Modified-Since} request header, may be null
+     */
+    public ConveyorTile getTile(ConveyorTile tile, String ifNoneMatch, String ifModifiedSince)
+            throws GeoWebCacheException, IOException, OutsideCoverageException {
         MimeType mime = tile.getMimeType();
         final List<MimeType> formats = getMimeTypes();
         if (mime == null) {
@@ -509,9 +626,42 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
             metaX = metaY = 1;
         }
 
-        returnTile = getMetatilingReponse(tile, true, metaX, metaY);
+        final TileValidators validators = getTileValidators(tile);
+        TileKey key = null;
+        long generation = 0;
+        Long created = null;
+        if (validators != null) {
+            key = new TileKey(getName(), tileGridSetId, mime.getFormat(), tile.getParametersId(),
+                    gridLoc);
+            generation = validators.getGeneration();
+            if (ifNoneMatch != null || ifModifiedSince != null) {
+                created = validators.getCreated(key);
+                // the storage would consider the tile expired and render it again
+                int expireCache = getExpireCache((int) gridLoc[2]);
+                if (created != null && expireCache > 0
+                        && System.currentTimeMillis() - created > expireCache * 1000L) {
+                    created = null;
+                }
+            }
+        }
+
+        if (created != null && TileValidators.isNotModified(created, ifNoneMatch, ifModifiedSince)) {
+            tile.setBlob(new ByteArrayResource(new byte[0]));
+            tile.getStorageObject().setCreated(created);
+            tile.setCacheResult(CacheResult.HIT);
+            returnTile = finalizeTile(tile);
+        } else {
+            returnTile = getMetatilingReponse(tile, true, metaX, metaY);
+            if (validators != null && returnTile.getBlob() != null && !returnTile.getError()) {
+                validators.put(key, returnTile.getTSCreated(), generation);
+            }
+        }
 
         sendTileRequestedEvent(returnTile);
+        PredictiveSeeder seeder = GWC.get().getPredictiveSeeder();
+        if (seeder != null) {
+            seeder.tileRequested(this, returnTile, metaX, metaY);
+        }
 
         return returnTile;
     }
@@ -545,10 +695,13 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         }
 
         final GeoServerMetaTile metaTile = createMetaTile(tile, metaX, metaY);
+        final String lockKey = buildLockKey(tile, metaTile);
         Lock lock = null;
         try {
             /** ****************** Acquire lock ******************* */
-            lock = GWC.get().getLockProvider().getLock(buildLockKey(tile, metaTile));
+            lock = GWC.get().getLockProvider().getLock(lockKey);
+            // the previous lock holder might still be storing the tiles of this meta tile
+            awaitPendingTiles(lockKey);
             // got the lock on the meta tile, try again
             if (tryCache && tryCacheFetch(tile)) {
                 LOGGER.finest("--> " + Thread.currentThread().getName() + " returns cache hit for "
@@ -560,10 +713,15 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
                 RenderedImageMap map;
                 try {
                     long requestTime = System.currentTimeMillis();
+                    final HotTileCache hotTiles = getHotTileCache(tile);
+                    final long generation = hotTiles == null ? 0 : hotTiles.getGeneration();
                     map = dispatchGetMap(tile, metaTile);
                     checkNotNull(map, "Did not obtain a WebMap from GeoServer's Dispatcher");
                     metaTile.setWebMap(map);
-                    saveTiles(metaTile, tile, requestTime);
+                    saveTilesConcurrently(metaTile, tile, requestTime, lockKey);
+                    if (hotTiles != null) {
+                        cacheInMemory(hotTiles, tile, requestTime, generation);
+                    }
                 } catch (Exception e) {
                     throw new GeoWebCacheException("Problem communicating with GeoServer", e);
                 } 
@@ -573,12 +731,167 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
             if(lock != null) {
                 lock.release();
             }
-            metaTile.dispose();
+            if (!metaTile.isEncodingInBackground()) {
+                metaTile.dispose();
+            }
         }
 
 
         return finalizeTile(tile);
     }
+
+    /**
+     * Waits for the tiles of the meta tile identified by the lock key to be stored, if they are
+     * still being saved in the background
+     */
+    private void awaitPendingTiles(String lockKey) {
+        Future<?> pending = PENDING_METATILES.get(lockKey);
+        if (pending != null) {
+            long wait = GeoServerMetaTile.getEncoderWait();
+            try {
+                pending.get(wait, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                // the tiles that could not be stored will be rendered again
+                LOGGER.log(Level.FINE, "Failed to store the tiles of meta tile " + lockKey, e);
+            } catch (TimeoutException e) {
+                // a stuck blob store must not block the meta tile forever, render it again
+                LOGGER.warning("The tiles of meta tile " + lockKey + " are still being stored "
+                        + "after " + wait + "ms, rendering the meta tile again");
+            }
+        }
+    }
+
+    /**
+     * Encodes and stores the tiles of the meta tile in parallel, using the encoder pool shared by
+     * all meta tiles (see {@link GeoServerMetaTile#ENCODER_THREADS_PROPERTY}).
+     * <p>
+     * The tiles other than the requested one are handed to the pool first, each one being stored
+     * as soon as it is encoded. The requested tile is encoded in the calling thread and set as the
+     * tile contents, so that it can be returned to the client without waiting for the rest of the
+     * meta tile. Other requests hitting the same meta tile wait for the background work to complete
+     * before looking up the cache again, see {@link #awaitPendingTiles(String)}, for at most
+     * {@link GeoServerMetaTile#ENCODER_WAIT_PROPERTY} milliseconds.
+     * </p>
+     * <p>
+     * Once the background work has been submitted the meta tile is marked as
+     * {@link GeoServerMetaTile#isEncodingInBackground() encoding in background}, and the last task
+     * to complete disposes it, even if encoding the requested tile fails.
+     * </p>
+     * <p>
+     * Falls back on the sequential {@link #saveTiles} when parallel encoding is disabled, the
+     * meta tile holds a single tile, or the tiles are not cached at all.
+     * </p>
+     */
+    private void saveTilesConcurrently(final GeoServerMetaTile metaTile,
+            final ConveyorTile tile, final long requestTime, final String lockKey)
+            throws GeoWebCacheException, IOException {
+        final ExecutorService pool = GeoServerMetaTile.getEncoderPool();
+        final long[][] gridPositions = metaTile.getTilesGridPositions();
+        final long[] tileIndex = tile.getTileIndex();
+        final boolean store = getExpireCache((int) tileIndex[2]) != GWCVars.CACHE_DISABLE_CACHE;
+        if (pool == null || gridPositions.length == 1 || !store) {
+            saveTiles(metaTile, tile, requestTime);
+            return;
+        }
+
+        final GridSubset gridSubset = getGridSubset(tile.getGridSetId());
+        int requested = -1;
+        List<Integer> others = new ArrayList<Integer>(gridPositions.length);
+        for (int i = 0; i < gridPositions.length; i++) {
+            if (Arrays.equals(tileIndex, gridPositions[i])) {
+                requested = i;
+            } else if (gridSubset.covers(gridPositions[i])) {
+                // edge tiles outside of the coverage are not stored
+                others.add(i);
+            }
+        }
+        if (requested < 0) {
+            saveTiles(metaTile, tile, requestTime);
+            return;
+        }
+
+        // the last one to complete, the requesting thread included, disposes the meta tile
+        final SettableFuture<Void> pending = SettableFuture.create();
+        final AtomicInteger remaining = new AtomicInteger(others.size() + 1);
+        final Runnable tileDone = new Runnable() {
+
+            public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    PENDING_METATILES.remove(lockKey, pending);
+                    metaTile.dispose();
+                    pending.set(null);
+                }
+            }
+        };
+        PENDING_METATILES.put(lockKey, pending);
+        metaTile.setEncodingInBackground(true);
+
+        final Thread caller = Thread.currentThread();
+        final ThreadLocalsTransfer threadLocals = new ThreadLocalsTransfer();
+        for (final Integer tileIdx : others) {
+            pool.execute(new Runnable() {
+
+                public void run() {
+                    // the pool runs the task in the caller thread when saturated
+                    boolean transfer = Thread.currentThread() != caller;
+                    if (transfer) {
+                        threadLocals.apply();
+                    }
+                    try {
+                        saveTile(metaTile, tileIdx, tile, requestTime);
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Failed to encode and store tile "
+                                + Arrays.toString(gridPositions[tileIdx]) + " of layer "
+                                + getName(), e);
+                    } finally {
+                        if (transfer) {
+                            threadLocals.cleanup();
+                        }
+                        tileDone.run();
+                    }
+                }
+            });
+        }
+
+        try {
+            Resource resource = saveTile(metaTile, requested, tile, requestTime);
+            tile.setBlob(resource);
+            tile.getStorageObject().setCreated(requestTime);
+        } finally {
+            // the last task to complete disposes the meta tile, the caller does not wait
+            tileDone.run();
+        }
+    }
+
+    /**
+     * Encodes the tile at the given index of the meta tile and puts it in the storage broker
+     */
+    private Resource saveTile(GeoServerMetaTile metaTile, int tileIdx, ConveyorTile tileProto,
+            long requestTime) throws GeoWebCacheException, IOException {
+        final long[] gridPos = metaTile.getTilesGridPositions()[tileIdx];
+        Resource resource = new ByteArrayResource();
+        if (!metaTile.writeTileToStream(tileIdx, resource)) {
+            throw new GeoWebCacheException("Could not encode tile " + Arrays.toString(gridPos));
+        }
+
+        long[] idx = { gridPos[0], gridPos[1], gridPos[2] };
+        TileObject tileObject = TileObject.createCompleteTileObject(getName(), idx,
+                tileProto.getGridSetId(), tileProto.getMimeType().getFormat(),
+                tileProto.getParameters(), resource);
+        tileObject.setCreated(requestTime);
+        try {
+            if (tileProto.isMetaTileCacheOnly()) {
+                tileProto.getStorageBroker().putTransient(tileObject);
+            } else {
+                tileProto.getStorageBroker().put(tileObject);
+            }
+        } catch (StorageException e) {
+            throw new GeoWebCacheException(e);
+        }
+        return resource;
+    }
     
     private String buildLockKey(ConveyorTile tile, GeoServerMetaTile metaTile) {
         StringBuilder metaKey = new StringBuilder();
@@ -677,6 +990,8 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
             filteredParams = getDefaultParameterFilters();
         }
         params.putAll(filteredParams);
+        // only meaningful to the cache
+        params.remove(StyleVersionParameterFilter.KEY);
 
         return params;
     }
@@ -684,8 +999,25 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
     private boolean tryCacheFetch(ConveyorTile tile) {
         int expireCache = this.getExpireCache((int) tile.getTileIndex()[2]);
         if (expireCache != GWCVars.CACHE_DISABLE_CACHE) {
+            final HotTileCache hotTiles = getHotTileCache(tile);
+            long generation = 0;
+            if (hotTiles != null) {
+                generation = hotTiles.getGeneration();
+                CachedTile cached = hotTiles.get(getHotTileKey(tile), expireCache * 1000L);
+                if (cached != null) {
+                    tile.setBlob(new ByteArrayResource(cached.getContents()));
+                    tile.getStorageObject().setCreated(cached.getCreated());
+                    tile.setCacheResult(CacheResult.HIT);
+                    return true;
+                }
+            }
             try {
-                return tile.retrieve(expireCache * 1000L);
+                boolean hit = tile.retrieve(expireCache * 1000L);
+                if (hit && hotTiles != null) {
+                    cacheInMemory(hotTiles, tile, tile.getStorageObject().getCreated(),
+                            generation);
+                }
+                return hit;
             } catch (GeoWebCacheException gwce) {
                 LOGGER.info(gwce.getMessage());
                 tile.setErrorMsg(gwce.getMessage());
@@ -695,6 +1027,72 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
         return false;
     }
 
+    /**
+     * Returns the tile validators index if enabled, or null otherwise
+     */
+    private TileValidators getTileValidators(ConveyorTile tile) {
+        if (getExpireCache((int) tile.getTileIndex()[2]) == GWCVars.CACHE_DISABLE_CACHE) {
+            return null;
+        }
+        TileValidators validators = GWC.get().getTileValidators();
+        return validators != null && validators.isEnabled() ? validators : null;
+    }
+
+    /**
+     * Returns the in memory tile cache if this layer keeps the tiles at the zoom level of the
+     * given tile in memory, or null otherwise
+     */
+    private HotTileCache getHotTileCache(ConveyorTile tile) {
+        final Integer zoomStart = info.getInMemoryZoomStart();
+        if (zoomStart == null) {
+            return null;
+        }
+        final Integer zoomStop = info.getInMemoryZoomStop();
+        final int zoomLevel = (int) tile.getTileIndex()[2];
+        if (zoomLevel < zoomStart || (zoomStop != null && zoomLevel > zoomStop)
+                || getExpireCache(zoomLevel) == GWCVars.CACHE_DISABLE_CACHE) {
+            return null;
+        }
+        HotTileCache hotTiles = GWC.get().getHotTileCache();
+        return hotTiles != null && hotTiles.isEnabled() ? hotTiles : null;
+    }
+
+    private TileKey getHotTileKey(ConveyorTile tile) {
+        return new TileKey(getName(), tile.getGridSetId(), tile.getMimeType().getFormat(),
+                tile.getParametersId(), tile.getTileIndex());
+    }
+
+    /**
+     * Adds the contents of the tile to the in memory tile cache, reading them from the storage if
+     * necessary
+     */
+    private void cacheInMemory(HotTileCache hotTiles, ConveyorTile tile, long created,
+            long generation) {
+        final Resource blob = tile.getBlob();
+        if (blob == null || blob.getSize() > hotTiles.getMaxSize()) {
+            return;
+        }
+        try {
+            byte[] contents;
+            if (blob instanceof ByteArrayResource) {
+                contents = ((ByteArrayResource) blob).getContents();
+            } else {
+                InputStream in = blob.getInputStream();
+                try {
+                    contents = ByteStreams.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+                // no need to hit the storage again to write out the response
+                tile.setBlob(new ByteArrayResource(contents));
+            }
+            hotTiles.put(getHotTileKey(tile), contents, created, generation);
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Failed to read tile " + Arrays.toString(tile.getTileIndex())
+                    + " of layer " + getName() + " into the in memory tile cache", e);
+        }
+    }
+
     private ConveyorTile finalizeTile(ConveyorTile tile) {
         if (tile.getStatus() == 0 && !tile.getError()) {
             tile.setStatus(200);
@@ -944,7 +1342,7 @@ public class GeoServerTileLayer extends TileLayer implements ProxyLayer {
      */
     @Override
     public boolean useETags() {
-        return false;
+        return true;
     }
 
     /**
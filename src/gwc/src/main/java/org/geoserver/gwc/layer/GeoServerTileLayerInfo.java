@@ -45,6 +45,30 @@ public interface GeoServerTileLayerInfo extends Serializable, Cloneable {
     
     public abstract void setExpireClients(int seconds);
 
+    /**
+     * First zoom level whose tiles are kept in the in memory tile cache, or {@code null} if the
+     * layer tiles are not cached in memory
+     */
+    public abstract Integer getInMemoryZoomStart();
+
+    public abstract void setInMemoryZoomStart(Integer zoomStart);
+
+    /**
+     * Last zoom level whose tiles are kept in the in memory tile cache, or {@code null} for no
+     * upper limit
+     */
+    public abstract Integer getInMemoryZoomStop();
+
+    public abstract void setInMemoryZoomStop(Integer zoomStop);
+
+    /**
+     * Fingerprint of the contents of the styles the layer is rendered with, added to the cache key
+     * of every tile when style versioning is enabled, or {@code null} if the tiles are not versioned
+     */
+    public abstract String getStyleVersion();
+
+    public abstract void setStyleVersion(String styleVersion);
+
     /**
      * Derived property from {@link #getParameterFilters()}, returns the configured allowable values
      * for a parameter filter over the {@code STYLE} key, if exists, or the empty set.
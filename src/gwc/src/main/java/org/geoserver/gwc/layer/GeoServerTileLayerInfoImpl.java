@@ -89,6 +89,12 @@ public class GeoServerTileLayerInfoImpl implements Serializable, GeoServerTileLa
     @SuppressWarnings("unused")
     transient private List<ExpirationRule> expireClientsList;
 
+    private Integer inMemoryZoomStart;
+
+    private Integer inMemoryZoomStop;
+
+    private String styleVersion;
+
     @SuppressWarnings("unused")
     transient private Integer backendTimeout;
 
@@ -276,6 +282,36 @@ public class GeoServerTileLayerInfoImpl implements Serializable, GeoServerTileLa
     	expireClients = seconds;
     }
 
+    @Override
+    public Integer getInMemoryZoomStart() {
+        return inMemoryZoomStart;
+    }
+
+    @Override
+    public void setInMemoryZoomStart(Integer zoomStart) {
+        this.inMemoryZoomStart = zoomStart;
+    }
+
+    @Override
+    public Integer getInMemoryZoomStop() {
+        return inMemoryZoomStop;
+    }
+
+    @Override
+    public void setInMemoryZoomStop(Integer zoomStop) {
+        this.inMemoryZoomStop = zoomStop;
+    }
+
+    @Override
+    public String getStyleVersion() {
+        return styleVersion;
+    }
+
+    @Override
+    public void setStyleVersion(String styleVersion) {
+        this.styleVersion = styleVersion;
+    }
+
     /**
      * @see org.geoserver.gwc.layer.GeoServerTileLayerInfo#cachedStyles()
      */
@@ -0,0 +1,69 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc.layer;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.geowebcache.filter.parameters.ParameterFilter;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+
+/**
+ * Read only ParameterFilter adding the {@link GeoServerTileLayerInfo#getStyleVersion() style
+ * version} of a tile layer to the parameters of every tile, so that each version of the layer
+ * styles is cached in its own set of tiles.
+ * <p>
+ * The filter is not part of the layer configuration, {@link GeoServerTileLayer} adds it on the
+ * fly, and it's never sent to the WMS. Clients can't pick a version, whatever value they send is
+ * replaced by the current one.
+ * </p>
+ */
+@XStreamAlias("styleVersionParameterFilter")
+public class StyleVersionParameterFilter extends ParameterFilter {
+
+    /**
+     * The key of the parameter holding the style version
+     */
+    public static final String KEY = "GS_STYLE_VERSION";
+
+    /** serialVersionUID */
+    private static final long serialVersionUID = 1L;
+
+    public StyleVersionParameterFilter(String version) {
+        super(KEY);
+        checkNotNull(version);
+        super.setDefaultValue(version);
+    }
+
+    @Override
+    public boolean applies(String parameterValue) {
+        return true;
+    }
+
+    @Override
+    public String apply(String str) {
+        return getDefaultValue();
+    }
+
+    @Override
+    public List<String> getLegalValues() {
+        return Collections.singletonList(getDefaultValue());
+    }
+
+    @Override
+    public void setKey(String key) {
+        checkArgument(KEY.equalsIgnoreCase(key));
+    }
+
+    @Override
+    public StyleVersionParameterFilter clone() {
+        return new StyleVersionParameterFilter(getDefaultValue());
+    }
+}
@@ -12,9 +12,7 @@ import static org.geowebcache.conveyor.Conveyor.CacheResult.MISS;
 import java.io.ByteArrayOutputStream;
 import java.lang.reflect.Method;
 import java.nio.channels.Channels;
-import java.security.MessageDigest;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -22,12 +20,11 @@ import javax.servlet.http.HttpServletResponse;
 
 import org.aopalliance.intercept.MethodInterceptor;
 import org.aopalliance.intercept.MethodInvocation;
-import org.apache.commons.httpclient.util.DateParseException;
-import org.apache.commons.httpclient.util.DateUtil;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.MetadataMap;
 import org.geoserver.catalog.ResourceInfo;
 import org.geoserver.gwc.GWC;
+import org.geoserver.gwc.TileValidators;
 import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.gwc.layer.GeoServerTileLayer;
 import org.geoserver.ows.Dispatcher;
@@ -97,6 +94,18 @@ public class CachingWebMapService implements MethodInterceptor {
             LOGGER.finest("GetMap request intercepted, serving cached content: " + request);
         }
 
+        // Handle conditional requests before reading the tile contents, that are not even
+        // looked up if the tile validators tell the client copy is current
+        final long tileTimeStamp = cachedTile.getTSCreated();
+        final String ifNoneMatch = request.getHttpRequestHeader("If-None-Match");
+        final String ifModSinceHeader = request.getHttpRequestHeader("If-Modified-Since");
+        if (TileValidators.isNotModified(tileTimeStamp, ifNoneMatch, ifModSinceHeader)) {
+            // Client already has the current version
+            LOGGER.finer("Tile not modified, returning 304");
+            throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+
+        LOGGER.finer("Tile modified, returning cached tile");
         final byte[] tileBytes;
         {
             final Resource mapContents = cachedTile.getBlob();
@@ -109,17 +118,6 @@ public class CachingWebMapService implements MethodInterceptor {
             }
         }
 
-        // Handle Etags
-        final String ifNoneMatch = request.getHttpRequestHeader("If-None-Match");
-        final byte[] hash = MessageDigest.getInstance("MD5").digest(tileBytes);
-        final String etag = toHexString(hash);
-        if (etag.equals(ifNoneMatch)) {
-            // Client already has the current version
-            LOGGER.finer("ETag matches, returning 304");
-            throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
-        }
-
-        LOGGER.finer("No matching ETag, returning cached tile");
         final String mimeType = cachedTile.getMimeType().getMimeType();
 
         RawMap map = new RawMap(null, tileBytes, mimeType);
@@ -134,43 +132,17 @@ public class CachingWebMapService implements MethodInterceptor {
             map.setResponseHeader("Cache-Control", "no-cache");
         }
 
-        setConditionalGetHeaders(map, cachedTile, request, etag);
+        setConditionalGetHeaders(map, tileTimeStamp);
         setCacheMetadataHeaders(map, cachedTile, layer);
 
         return map;
 
     }
 
-    private void setConditionalGetHeaders(RawMap map, ConveyorTile cachedTile, GetMapRequest request, String etag) {
-        map.setResponseHeader("ETag", etag);
-
-        final long tileTimeStamp = cachedTile.getTSCreated();
-        final String ifModSinceHeader = request.getHttpRequestHeader("If-Modified-Since");
-        // commons-httpclient's DateUtil can encode and decode timestamps formatted as per RFC-1123,
-        // which is one of the three formats allowed for Last-Modified and If-Modified-Since headers
-        // (e.g. 'Sun, 06 Nov 1994 08:49:37 GMT'). See
-        // http://www.w3.org/Protocols/rfc2616/rfc2616-sec3.html#sec3.3.1
-
-        final String lastModified = org.apache.commons.httpclient.util.DateUtil
-                .formatDate(new Date(tileTimeStamp));
-        map.setResponseHeader("Last-Modified", lastModified);
-
-        final Date ifModifiedSince;
-        if (ifModSinceHeader != null && ifModSinceHeader.length() > 0) {
-            try {
-                ifModifiedSince = DateUtil.parseDate(ifModSinceHeader);
-                // the HTTP header has second precision
-                long ifModSinceSeconds = 1000 * (ifModifiedSince.getTime() / 1000);
-                long tileTimeStampSeconds = 1000 * (tileTimeStamp / 1000);
-                if (ifModSinceSeconds >= tileTimeStampSeconds) {
-                    throw new HttpErrorCodeException(HttpServletResponse.SC_NOT_MODIFIED);
-                }
-            } catch (DateParseException e) {
-                if (LOGGER.isLoggable(Level.FINER)) {
-                    LOGGER.finer("Can't parse client's If-Modified-Since header: '"
-                            + ifModSinceHeader + "'");
-                }
-            }
+    private void setConditionalGetHeaders(RawMap map, long tileTimeStamp) {
+        if (tileTimeStamp > 0) {
+            map.setResponseHeader("ETag", TileValidators.getETag(tileTimeStamp));
+            map.setResponseHeader("Last-Modified", TileValidators.getLastModified(tileTimeStamp));
         }
     }
 
@@ -218,19 +190,4 @@ public class CachingWebMapService implements MethodInterceptor {
         final GetMapRequest request = (GetMapRequest) arguments[0];
         return request;
     }
-
-    private String toHexString(byte[] hash) {
-
-        StringBuilder sb = new StringBuilder();
-
-        for (int i = 0; i < hash.length; i += 4) {
-            int c1 = 0xFF & hash[i];
-            int c2 = 0xFF & hash[i + 1];
-            int c3 = 0xFF & hash[i + 2];
-            int c4 = 0xFF & hash[i + 3];
-            int integer = ((c1 << 24) + (c2 << 16) + (c3 << 8) + (c4 << 0));
-            sb.append(Integer.toHexString(integer));
-        }
-        return sb.toString();
-    }
 }
@@ -343,6 +343,39 @@ public class GWCIntegrationTest extends GeoServerSystemTestSupport {
         assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getErrorCode());
     }
 
+    @Test public void testDirectWMSIntegrationIfNoneMatchSupport() throws Exception {
+        final GWC gwc = GWC.get();
+        gwc.getConfig().setDirectWMSIntegrationEnabled(true);
+
+        final String layerName = BASIC_POLYGONS.getPrefix() + ":" + BASIC_POLYGONS.getLocalPart();
+
+        final String path = buildGetMap(true, layerName, "EPSG:4326", null) + "&tiled=true";
+
+        MockHttpServletResponse response = getAsServletResponse(path);
+        assertEquals(200, response.getStatusCode());
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+
+        MockHttpServletRequest httpReq = createRequest(path);
+        httpReq.setMethod("GET");
+        httpReq.setBodyContent(new byte[] {});
+        httpReq.setHeader("If-None-Match", etag);
+        long hits = gwc.getTileValidators().getHits();
+        response = dispatch(httpReq, "UTF-8");
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getErrorCode());
+        // validated without hitting the storage
+        assertEquals(hits + 1, gwc.getTileValidators().getHits());
+
+        httpReq.setHeader("If-None-Match", "\"" + etag + "\"");
+        response = dispatch(httpReq, "UTF-8");
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getErrorCode());
+
+        httpReq.setHeader("If-None-Match", "abc");
+        response = dispatch(httpReq, "UTF-8");
+        assertEquals(HttpServletResponse.SC_OK, response.getErrorCode());
+        assertNotNull(response.getHeader("ETag"));
+    }
+
     @Test public void testDirectWMSIntegrationMaxAge() throws Exception {
         final GWC gwc = GWC.get();
         gwc.getConfig().setDirectWMSIntegrationEnabled(true);
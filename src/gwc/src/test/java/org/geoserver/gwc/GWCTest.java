@@ -17,7 +17,9 @@ import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.*;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.StringReader;
 import java.net.URL;
 import java.util.Arrays;
 import java.util.Collections;
@@ -30,7 +32,10 @@ import org.geoserver.catalog.Catalog;
 import org.geoserver.catalog.LayerGroupInfo;
 import org.geoserver.catalog.LayerInfo;
 import org.geoserver.catalog.PublishedType;
+import org.geoserver.catalog.ResourcePool;
+import org.geoserver.catalog.StyleInfo;
 import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.impl.StyleInfoImpl;
 import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.gwc.config.GWCConfigPersister;
 import org.geoserver.gwc.layer.CatalogLayerEventListener;
@@ -976,7 +981,8 @@ public class GWCTest {
 
         assertTrue(errors.toString(), errors.length() == 0);
 
-        verify(tileLayer, times(1)).getTile(captor.capture());
+        verify(tileLayer, times(1)).getTile(captor.capture(), (String) isNull(),
+                (String) isNull());
 
         ConveyorTile tileRequest = captor.getValue();
 
@@ -1082,6 +1088,140 @@ public class GWCTest {
 
     }
 
+    /**
+     * Has the catalog resource pool return the style contents held in the returned map, by style
+     * name
+     */
+    private Map<String, String> mockStyleContents() throws IOException {
+        final Map<String, String> contents = new HashMap<String, String>();
+        ResourcePool resourcePool = mock(ResourcePool.class);
+        when(catalog.getResourcePool()).thenReturn(resourcePool);
+        when(resourcePool.readStyle(any(StyleInfo.class))).thenAnswer(
+                new Answer<BufferedReader>() {
+                    @Override
+                    public BufferedReader answer(InvocationOnMock invocation) throws Throwable {
+                        StyleInfo style = (StyleInfo) invocation.getArguments()[0];
+                        String sld = contents.get(style.getName());
+                        return new BufferedReader(new StringReader(sld == null ? "" : sld));
+                    }
+                });
+        return contents;
+    }
+
+    private LayerGroupInfo mockNestedGroup() {
+        LayerInfo nestedLayer = mockLayer("nestedLayer", null, PublishedType.VECTOR);
+        StyleInfo nestedStyle = new StyleInfoImpl(null);
+        nestedStyle.setName("nested");
+        nestedLayer.setDefaultStyle(nestedStyle);
+
+        LayerGroupInfo inner = mockGroup("innerGroup", nestedLayer);
+        inner.getStyles().add(null);
+        LayerGroupInfo outer = mockGroup("outerGroup", layer, inner);
+        outer.getStyles().add(null);
+        outer.getStyles().add(null);
+        return outer;
+    }
+
+    @Test
+    public void testComputeStyleVersionLayer() throws Exception {
+        Map<String, String> styles = mockStyleContents();
+        styles.put("default", "v1");
+        String version = tileLayer.computeStyleVersion();
+        assertEquals(version, tileLayer.computeStyleVersion());
+
+        styles.put("default", "v2");
+        String defaultChanged = tileLayer.computeStyleVersion();
+        assertFalse(version.equals(defaultChanged));
+
+        // the cached alternate styles are part of the version too
+        styles.put("style1", "v2");
+        assertFalse(defaultChanged.equals(tileLayer.computeStyleVersion()));
+    }
+
+    @Test
+    public void testComputeStyleVersionGroup() throws Exception {
+        Map<String, String> styles = mockStyleContents();
+        // the layer is drawn with its default style
+        layerGroup.getStyles().add(null);
+        styles.put("default", "v1");
+        String version = tileLayerGroup.computeStyleVersion();
+        assertEquals(version, tileLayerGroup.computeStyleVersion());
+
+        styles.put("default", "v2");
+        assertFalse(version.equals(tileLayerGroup.computeStyleVersion()));
+
+        // an explicit style replaces the default one
+        StyleInfo explicit = new StyleInfoImpl(null);
+        explicit.setName("style1");
+        layerGroup.getStyles().set(0, explicit);
+        styles.put("style1", "v1");
+        version = tileLayerGroup.computeStyleVersion();
+        styles.put("default", "v3");
+        assertEquals(version, tileLayerGroup.computeStyleVersion());
+        styles.put("style1", "v2");
+        assertFalse(version.equals(tileLayerGroup.computeStyleVersion()));
+    }
+
+    @Test
+    public void testComputeStyleVersionNestedGroup() throws Exception {
+        Map<String, String> styles = mockStyleContents();
+        LayerGroupInfo outer = mockNestedGroup();
+        GeoServerTileLayer outerTileLayer = new GeoServerTileLayer(outer, gridSetBroker,
+                TileLayerInfoUtil.loadOrCreate(outer, defaults));
+
+        styles.put("default", "v1");
+        styles.put("nested", "v1");
+        String version = outerTileLayer.computeStyleVersion();
+
+        // the style of a layer in the nested group changed
+        styles.put("nested", "v2");
+        assertFalse(version.equals(outerTileLayer.computeStyleVersion()));
+    }
+
+    @Test
+    public void testUpdateStyleVersion() throws Exception {
+        Map<String, String> styles = mockStyleContents();
+        styles.put("default", "v1");
+        when(tld.modify(same(tileLayer))).thenReturn(config);
+        final String layerName = tileLayer.getName();
+
+        assertTrue(mediator.updateStyleVersion(layerName));
+        String version = tileLayerInfo.getStyleVersion();
+        assertEquals(tileLayer.computeStyleVersion(), version);
+        verify(config, times(1)).save();
+
+        // nothing changed
+        assertFalse(mediator.updateStyleVersion(layerName));
+        assertEquals(version, tileLayerInfo.getStyleVersion());
+
+        styles.put("default", "v2");
+        assertTrue(mediator.updateStyleVersion(layerName));
+        assertFalse(version.equals(tileLayerInfo.getStyleVersion()));
+        verify(config, times(2)).save();
+    }
+
+    @Test
+    public void testUpdateStyleVersionNestedGroup() throws Exception {
+        Map<String, String> styles = mockStyleContents();
+        LayerGroupInfo outer = mockNestedGroup();
+        GeoServerTileLayerInfo outerInfo = TileLayerInfoUtil.loadOrCreate(outer, defaults);
+        GeoServerTileLayer outerTileLayer = new GeoServerTileLayer(outer, gridSetBroker,
+                outerInfo);
+        final String layerName = outerTileLayer.getName();
+        when(tld.layerExists(eq(layerName))).thenReturn(true);
+        when(tld.getTileLayer(eq(layerName))).thenReturn(outerTileLayer);
+        when(tld.modify(same(outerTileLayer))).thenReturn(config);
+
+        styles.put("nested", "v1");
+        assertTrue(mediator.updateStyleVersion(layerName));
+        String version = outerInfo.getStyleVersion();
+        assertNotNull(version);
+
+        styles.put("nested", "v2");
+        assertTrue(mediator.updateStyleVersion(layerName));
+        assertFalse(version.equals(outerInfo.getStyleVersion()));
+    }
+
     private void testParameterFilter(GetMapRequest request, Map<String, String> rawKvp,
             String rawKvpParamName, String rawKvpParamValue) {
 
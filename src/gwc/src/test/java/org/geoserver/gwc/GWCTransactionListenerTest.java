@@ -10,6 +10,7 @@ import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.geotools.referencing.crs.DefaultGeographicCRS.WGS84;
+import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
@@ -42,12 +43,15 @@ public class GWCTransactionListenerTest {
 
     private GWC mediator;
 
+    private TruncationQueue truncationQueue;
+
     private GWCTransactionListener listener;
 
     @Before
     public void setUp() throws Exception {
         mediator = mock(GWC.class);
-        listener = new GWCTransactionListener(mediator);
+        truncationQueue = mock(TruncationQueue.class);
+        listener = new GWCTransactionListener(mediator, truncationQueue);
     }
 
     @Test
@@ -181,8 +185,10 @@ public class GWCTransactionListenerTest {
         ReferencedEnvelope expectedEnv = new ReferencedEnvelope(affectedBounds1);
         expectedEnv.expandToInclude(affectedBounds2);
 
-        verify(mediator, times(1)).truncate(eq("theLayer"), eq(expectedEnv));
-        verify(mediator, times(1)).truncate(eq("theGroup"), eq(expectedEnv));
+        // the truncation is left to the queue
+        verify(truncationQueue, times(1)).add(eq("theLayer"), eq(expectedEnv));
+        verify(truncationQueue, times(1)).add(eq("theGroup"), eq(expectedEnv));
+        verify(mediator, times(0)).truncate(anyString(), any(ReferencedEnvelope.class));
 
     }
 
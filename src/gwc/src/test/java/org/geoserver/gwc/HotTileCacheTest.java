@@ -0,0 +1,173 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.geoserver.gwc.HotTileCache.CachedTile;
+import org.geoserver.gwc.HotTileCache.TileKey;
+import org.geowebcache.io.ByteArrayResource;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.seed.TileRange;
+import org.geowebcache.storage.DefaultStorageBroker;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.blobstore.file.FileBlobStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HotTileCacheTest {
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    TileKey key(String layer, String gridSet, long x, long y, long z) {
+        return new TileKey(layer, gridSet, "image/png", null, new long[] { x, y, z });
+    }
+
+    @Test
+    public void testPutGet() {
+        HotTileCache cache = new HotTileCache(1024, 60000);
+        assertTrue(cache.isEnabled());
+        assertNull(cache.get(key("topp:states", "EPSG:4326", 0, 0, 0), 0));
+
+        long now = System.currentTimeMillis();
+        assertTrue(cache.put(key("topp:states", "EPSG:4326", 0, 0, 0), new byte[] { 1, 2, 3 }, now,
+                cache.getGeneration()));
+        CachedTile tile = cache.get(key("topp:states", "EPSG:4326", 0, 0, 0), 0);
+        assertNotNull(tile);
+        assertEquals(3, tile.getContents().length);
+        assertEquals(now, tile.getCreated());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.5, cache.getHitRatio(), 0d);
+
+        // different parameters, different tile
+        assertNull(cache.get(new TileKey("topp:states", "EPSG:4326", "image/png", "abc",
+                new long[] { 0, 0, 0 }), 0));
+    }
+
+    @Test
+    public void testMaxAge() {
+        HotTileCache cache = new HotTileCache(1024, 60000);
+        long created = System.currentTimeMillis() - 10000;
+        cache.put(key("topp:states", "EPSG:4326", 0, 0, 0), new byte[4], created,
+                cache.getGeneration());
+        assertNotNull(cache.get(key("topp:states", "EPSG:4326", 0, 0, 0), 20000));
+        assertNull(cache.get(key("topp:states", "EPSG:4326", 0, 0, 0), 5000));
+        // the expired tile has been dropped
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testTimeToLive() {
+        HotTileCache cache = new HotTileCache(1024, -1);
+        cache.put(key("topp:states", "EPSG:4326", 0, 0, 0), new byte[4],
+                System.currentTimeMillis(), cache.getGeneration());
+        assertNull(cache.get(key("topp:states", "EPSG:4326", 0, 0, 0), 0));
+    }
+
+    @Test
+    public void testEviction() {
+        HotTileCache cache = new HotTileCache(10, 60000);
+        long now = System.currentTimeMillis();
+        cache.put(key("a", "EPSG:4326", 0, 0, 0), new byte[4], now, cache.getGeneration());
+        cache.put(key("b", "EPSG:4326", 0, 0, 0), new byte[4], now, cache.getGeneration());
+        // touch a, so that b becomes the eldest
+        assertNotNull(cache.get(key("a", "EPSG:4326", 0, 0, 0), 0));
+        cache.put(key("c", "EPSG:4326", 0, 0, 0), new byte[4], now, cache.getGeneration());
+        assertEquals(2, cache.getCount());
+        assertEquals(8, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get(key("b", "EPSG:4326", 0, 0, 0), 0));
+
+        // too big to be cached
+        assertFalse(cache.put(key("d", "EPSG:4326", 0, 0, 0), new byte[11], now,
+                cache.getGeneration()));
+    }
+
+    @Test
+    public void testInvalidate() {
+        HotTileCache cache = new HotTileCache(1024, 60000);
+        long now = System.currentTimeMillis();
+        cache.put(key("a", "EPSG:4326", 0, 0, 0), new byte[4], now, cache.getGeneration());
+        cache.put(key("a", "EPSG:900913", 0, 0, 0), new byte[4], now, cache.getGeneration());
+        cache.put(key("b", "EPSG:4326", 0, 0, 0), new byte[4], now, cache.getGeneration());
+
+        cache.invalidate("a", "EPSG:900913");
+        assertEquals(2, cache.getCount());
+        assertNotNull(cache.get(key("a", "EPSG:4326", 0, 0, 0), 0));
+
+        cache.invalidate("a");
+        assertEquals(1, cache.getCount());
+        assertEquals(4, cache.getSize());
+        assertNull(cache.get(key("a", "EPSG:4326", 0, 0, 0), 0));
+        assertNotNull(cache.get(key("b", "EPSG:4326", 0, 0, 0), 0));
+    }
+
+    @Test
+    public void testStaleGeneration() {
+        HotTileCache cache = new HotTileCache(1024, 60000);
+        // a tile read from the storage before a truncation is not cached
+        long generation = cache.getGeneration();
+        cache.invalidate("a");
+        assertFalse(cache.put(key("a", "EPSG:4326", 0, 0, 0), new byte[4],
+                System.currentTimeMillis(), generation));
+        assertEquals(0, cache.getCount());
+    }
+
+    @Test
+    public void testDisabled() {
+        HotTileCache cache = new HotTileCache(0, 60000);
+        assertFalse(cache.isEnabled());
+        assertFalse(cache.put(key("a", "EPSG:4326", 0, 0, 0), new byte[1],
+                System.currentTimeMillis(), cache.getGeneration()));
+    }
+
+    @Test
+    public void testStorageBrokerDeletions() throws Exception {
+        HotTileCache cache = new HotTileCache(1024, 60000);
+        StorageBroker broker = new DefaultStorageBroker(new FileBlobStore(temp.getRoot()
+                .getAbsolutePath()));
+        broker.addBlobStoreListener(cache);
+
+        long now = System.currentTimeMillis();
+        for (String gridSet : new String[] { "EPSG:4326", "EPSG:900913" }) {
+            for (long x = 0; x < 2; x++) {
+                broker.put(TileObject.createCompleteTileObject("a", new long[] { x, 0, 0 },
+                        gridSet, "image/png", null, new ByteArrayResource(new byte[4])));
+                cache.put(key("a", gridSet, x, 0, 0), new byte[4], now, cache.getGeneration());
+            }
+        }
+        assertEquals(4, cache.getCount());
+
+        // truncating a single tile through the storage broker drops only that tile
+        long generation = cache.getGeneration();
+        broker.delete(new TileRange("a", "EPSG:4326", 0, 0, new long[][] { { 0, 0, 0, 0, 0 } },
+                MimeType.createFromFormat("image/png"), null));
+        assertEquals(3, cache.getCount());
+        assertNull(cache.get(key("a", "EPSG:4326", 0, 0, 0), 0));
+        assertNotNull(cache.get(key("a", "EPSG:4326", 1, 0, 0), 0));
+        // and a copy read before the truncation cannot make it back
+        assertFalse(cache.put(key("a", "EPSG:4326", 0, 0, 0), new byte[4], now, generation));
+
+        // grid set removal
+        broker.deleteByGridSetId("a", "EPSG:900913");
+        assertEquals(1, cache.getCount());
+        assertNull(cache.get(key("a", "EPSG:900913", 1, 0, 0), 0));
+
+        // layer removal
+        broker.delete("a");
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+    }
+}
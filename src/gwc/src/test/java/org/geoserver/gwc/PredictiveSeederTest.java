@@ -0,0 +1,155 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.geowebcache.seed.GWCTask.TYPE.SEED;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+
+import org.geoserver.gwc.TileUsageSketch.MetaTileKey;
+import org.geowebcache.conveyor.ConveyorTile;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.layer.TileLayer;
+import org.geowebcache.mime.MimeType;
+import org.geowebcache.seed.GWCTask;
+import org.geowebcache.seed.GWCTask.STATE;
+import org.geowebcache.seed.TileBreeder;
+import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.TileObject;
+import org.geowebcache.storage.TileRange;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class PredictiveSeederTest {
+
+    /**
+     * Long enough for the periodic seeding not to kick in while testing
+     */
+    static final long HOUR = 60 * 60 * 1000;
+
+    GWC gwc;
+
+    TileBreeder breeder;
+
+    StorageBroker storageBroker;
+
+    TileLayer layer;
+
+    PredictiveSeeder seeder;
+
+    @Before
+    public void setUp() throws Exception {
+        gwc = mock(GWC.class);
+        breeder = mock(TileBreeder.class);
+        storageBroker = mock(StorageBroker.class);
+
+        layer = mock(TileLayer.class);
+        when(layer.getName()).thenReturn("topp:states");
+        GridSubset gridSubset = mock(GridSubset.class);
+        when(gridSubset.getZoomStart()).thenReturn(0);
+        when(gridSubset.getZoomStop()).thenReturn(10);
+        when(gridSubset.getCoverage(5)).thenReturn(new long[] { 0, 0, 5, 31, 5 });
+        when(layer.getGridSubset("EPSG:4326")).thenReturn(gridSubset);
+        when(gwc.getTileLayerByName("topp:states")).thenReturn(layer);
+
+        // the metatile at the origin is cached already
+        when(storageBroker.get(any(TileObject.class))).thenAnswer(new Answer<Boolean>() {
+
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                TileObject tile = (TileObject) invocation.getArguments()[0];
+                return tile.getXYZ()[0] == 0 && tile.getXYZ()[1] == 0;
+            }
+        });
+
+        GWCTask task = mock(GWCTask.class);
+        when(task.getState()).thenReturn(STATE.DONE);
+        when(breeder.createTasks(any(TileRange.class), eq(SEED), eq(1), eq(false))).thenReturn(
+                new GWCTask[] { task });
+
+        seeder = new PredictiveSeeder(gwc, breeder, storageBroker, new TileUsageSketch(4, 1024,
+                10), HOUR, 60000, 10);
+    }
+
+    @After
+    public void tearDown() {
+        seeder.destroy();
+    }
+
+    private void request(long x, long y, long z) throws Exception {
+        ConveyorTile tile = mock(ConveyorTile.class);
+        when(tile.getGridSetId()).thenReturn("EPSG:4326");
+        when(tile.getMimeType()).thenReturn(MimeType.createFromExtension("png"));
+        when(tile.getTileIndex()).thenReturn(new long[] { x, y, z });
+        when(tile.getFullParameters()).thenReturn(Collections.<String, String> emptyMap());
+        seeder.tileRequested(layer, tile, 4, 4);
+    }
+
+    @Test
+    public void testSeedHottestUncached() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            request(1, 1, 5);
+            request(5, 9, 5);
+        }
+        request(0, 4, 5);
+
+        seeder.seed();
+
+        // a task for each uncached hot metatile, clipped to the layer coverage
+        ArgumentCaptor<TileRange> ranges = ArgumentCaptor.forClass(TileRange.class);
+        verify(breeder, times(2)).createTasks(ranges.capture(), eq(SEED), eq(1), eq(false));
+        TileRange range = ranges.getAllValues().get(0);
+        assertEquals("topp:states", range.getLayerName());
+        assertArrayEquals(new long[] { 4, 8, 5, 11, 5 }, range.rangeBounds(5));
+        assertEquals(2, seeder.getSeededCount());
+        assertEquals(1, seeder.getAlreadyCachedCount());
+        assertEquals(2, seeder.getLastSchedule().size());
+        assertEquals(1, seeder.getRunCount());
+
+        // the seeded metatiles got requested afterwards
+        request(4, 8, 5);
+        request(4, 8, 5);
+        assertEquals(1, seeder.getSeededHits());
+    }
+
+    @Test
+    public void testMetaTileBudget() throws Exception {
+        seeder.destroy();
+        seeder = new PredictiveSeeder(gwc, breeder, storageBroker, new TileUsageSketch(4, 1024,
+                10), HOUR, 60000, 1);
+        request(0, 4, 5);
+        request(0, 8, 5);
+        seeder.seed();
+        verify(breeder, times(1)).createTasks(any(TileRange.class), eq(SEED), eq(1), eq(false));
+        MetaTileKey seeded = seeder.getLastSchedule().get(0);
+        assertEquals("topp:states", seeded.getLayerName());
+    }
+
+    @Test
+    public void testDisabledIgnoresRequests() throws Exception {
+        seeder.destroy();
+        seeder = new PredictiveSeeder(gwc, breeder, storageBroker, new TileUsageSketch(4, 1024,
+                10), 0, 60000, 10);
+        assertFalse(seeder.isEnabled());
+        request(1, 1, 5);
+        seeder.seed();
+        verify(breeder, never()).createTasks(any(TileRange.class), eq(SEED), eq(1), eq(false));
+        assertEquals(0, seeder.getSeededCount());
+    }
+}
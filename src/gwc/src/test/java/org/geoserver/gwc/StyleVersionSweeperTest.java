@@ -0,0 +1,98 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyMap;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.gwc.layer.StyleVersionParameterFilter;
+import org.geowebcache.GeoWebCacheException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+@SuppressWarnings("unchecked")
+public class StyleVersionSweeperTest {
+
+    GWC gwc;
+
+    StyleVersionSweeper sweeper;
+
+    @Before
+    public void setUp() {
+        gwc = mock(GWC.class);
+        sweeper = new StyleVersionSweeper(gwc, 0);
+    }
+
+    @After
+    public void tearDown() {
+        sweeper.destroy();
+    }
+
+    @Test
+    public void testSweepAllZoomLevels() throws Exception {
+        when(gwc.getMaxZoomLevel("topp:states")).thenReturn(2);
+        Map<String, String> defaultStyle = Collections.singletonMap(
+                StyleVersionParameterFilter.KEY, "abc");
+        Map<String, String> population = Collections.singletonMap("STYLES", "population");
+        List<Map<String, String>> parameters = Arrays.asList(defaultStyle, population);
+
+        sweeper.sweep("topp:states", parameters);
+
+        for (int z = 0; z <= 2; z++) {
+            verify(gwc, timeout(5000)).truncate(eq("topp:states"), eq(defaultStyle), eq(z));
+            verify(gwc, timeout(5000)).truncate(eq("topp:states"), eq(population), eq(z));
+        }
+        verify(gwc, never()).truncate(anyString(), anyMap(), eq(3));
+        awaitIdle();
+        assertEquals(3, sweeper.getSweptCount());
+    }
+
+    @Test
+    public void testSweepRemovedLayer() throws Exception {
+        when(gwc.getMaxZoomLevel("topp:states")).thenThrow(
+                new GeoWebCacheException("no such layer"));
+        sweeper.sweep("topp:states",
+                Collections.singletonList(Collections.singletonMap("STYLES", "population")));
+        awaitIdle();
+        verify(gwc, never()).truncate(anyString(), anyMap(), anyInt());
+        assertEquals(0, sweeper.getSweptCount());
+    }
+
+    @Test
+    public void testSweepStopsOnError() throws Exception {
+        when(gwc.getMaxZoomLevel("topp:states")).thenReturn(5);
+        Map<String, String> parameters = Collections.singletonMap("STYLES", "population");
+        doThrow(new GeoWebCacheException("storage failure")).when(gwc).truncate(
+                eq("topp:states"), eq(parameters), eq(1));
+        sweeper.sweep("topp:states", Collections.singletonList(parameters));
+        awaitIdle();
+        verify(gwc, never()).truncate(anyString(), anyMap(), eq(2));
+        assertEquals(1, sweeper.getSweptCount());
+    }
+
+    private void awaitIdle() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sweeper.getPendingCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, sweeper.getPendingCount());
+    }
+}
@@ -0,0 +1,90 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.geoserver.gwc.TileUsageSketch.MetaTileKey;
+import org.junit.Test;
+
+public class TileUsageSketchTest {
+
+    MetaTileKey key(String layer, long x, long y, long z) {
+        return new MetaTileKey(layer, "EPSG:4326", "image/png", null, null, new long[] { x, y,
+                z }, 4, 4);
+    }
+
+    @Test
+    public void testMetaTileKey() {
+        // tiles of the same metatile share the key
+        assertEquals(key("a", 0, 0, 5), key("a", 3, 3, 5));
+        assertEquals(key("a", 4, 8, 5), key("a", 7, 11, 5));
+        assertTrue(!key("a", 0, 0, 5).equals(key("a", 4, 0, 5)));
+        assertTrue(!key("a", 0, 0, 5).equals(key("b", 0, 0, 5)));
+        assertArrayEquals(new long[] { 4, 8, 7, 11, 5 }, key("a", 5, 9, 5).getTileRange());
+    }
+
+    @Test
+    public void testNeverUnderestimates() {
+        TileUsageSketch sketch = new TileUsageSketch(4, 64, 10);
+        for (int i = 0; i < 100; i++) {
+            for (int j = 0; j <= i % 10; j++) {
+                sketch.add(key("layer" + i, 0, 0, 0));
+            }
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(sketch.estimate(key("layer" + i, 0, 0, 0)) >= i % 10 + 1);
+        }
+        assertEquals(550, sketch.getRequestCount());
+    }
+
+    @Test
+    public void testHottest() {
+        TileUsageSketch sketch = new TileUsageSketch(4, 1024, 5);
+        // lots of cold metatiles, a few hot ones
+        for (int i = 0; i < 200; i++) {
+            sketch.add(key("cold", i, 0, 10));
+        }
+        for (int n = 0; n < 50; n++) {
+            sketch.add(key("hot", 0, 0, 3));
+            if (n % 2 == 0) {
+                sketch.add(key("warm", 0, 0, 3));
+            }
+        }
+        assertTrue(sketch.getCandidateCount() <= 10);
+
+        List<MetaTileKey> hottest = new ArrayList<MetaTileKey>(sketch.getHottest(2).keySet());
+        assertEquals(2, hottest.size());
+        assertEquals(key("hot", 0, 0, 3), hottest.get(0));
+        assertEquals(key("warm", 0, 0, 3), hottest.get(1));
+    }
+
+    @Test
+    public void testDecay() {
+        TileUsageSketch sketch = new TileUsageSketch(4, 1024, 5);
+        for (int n = 0; n < 8; n++) {
+            sketch.add(key("hot", 0, 0, 3));
+        }
+        sketch.add(key("cold", 0, 0, 3));
+
+        sketch.decay();
+        Map<MetaTileKey, Long> hottest = sketch.getHottest(10);
+        assertEquals(Long.valueOf(4), hottest.get(key("hot", 0, 0, 3)));
+        // requested once, forgotten
+        assertEquals(1, hottest.size());
+        assertEquals(4, sketch.estimate(key("hot", 0, 0, 3)));
+
+        sketch.clear();
+        assertEquals(0, sketch.estimate(key("hot", 0, 0, 3)));
+        assertEquals(0, sketch.getCandidateCount());
+    }
+}
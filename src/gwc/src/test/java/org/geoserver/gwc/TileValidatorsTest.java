@@ -0,0 +1,108 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Date;
+
+import org.apache.commons.httpclient.util.DateUtil;
+import org.geoserver.gwc.HotTileCache.TileKey;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TileValidatorsTest {
+
+    TileValidators validators;
+
+    @Before
+    public void setUp() {
+        validators = new TileValidators(100, 60000);
+    }
+
+    private TileKey key(String layer, String gridSet, long x) {
+        return new TileKey(layer, gridSet, "image/png", null, new long[] { x, 0, 3 });
+    }
+
+    @Test
+    public void testPutGet() {
+        validators.put(key("topp:states", "EPSG:4326", 1), 1000, validators.getGeneration());
+        assertEquals(Long.valueOf(1000), validators.getCreated(key("topp:states", "EPSG:4326", 1)));
+        assertNull(validators.getCreated(key("topp:states", "EPSG:4326", 2)));
+        assertEquals(1, validators.getHits());
+        assertEquals(1, validators.getMisses());
+    }
+
+    @Test
+    public void testStaleGeneration() {
+        long generation = validators.getGeneration();
+        validators.invalidate("topp:states", null);
+        validators.put(key("topp:states", "EPSG:4326", 1), 1000, generation);
+        assertNull(validators.getCreated(key("topp:states", "EPSG:4326", 1)));
+    }
+
+    @Test
+    public void testBlobStoreEvents() {
+        long generation = validators.getGeneration();
+        validators.put(key("topp:states", "EPSG:4326", 1), 1000, generation);
+        validators.put(key("topp:states", "EPSG:4326", 2), 1000, generation);
+        validators.put(key("topp:states", "EPSG:900913", 1), 1000, generation);
+        validators.put(key("topp:roads", "EPSG:4326", 1), 1000, generation);
+
+        validators.tileDeleted("topp:states", "EPSG:4326", "image/png", null, 1, 0, 3, 100);
+        assertNull(validators.getCreated(key("topp:states", "EPSG:4326", 1)));
+        assertEquals(Long.valueOf(1000), validators.getCreated(key("topp:states", "EPSG:4326", 2)));
+
+        validators.gridSubsetDeleted("topp:states", "EPSG:4326");
+        assertNull(validators.getCreated(key("topp:states", "EPSG:4326", 2)));
+        assertEquals(Long.valueOf(1000),
+                validators.getCreated(key("topp:states", "EPSG:900913", 1)));
+
+        validators.layerDeleted("topp:states");
+        assertNull(validators.getCreated(key("topp:states", "EPSG:900913", 1)));
+        assertEquals(Long.valueOf(1000), validators.getCreated(key("topp:roads", "EPSG:4326", 1)));
+    }
+
+    @Test
+    public void testDisabled() {
+        validators = new TileValidators(0, 60000);
+        assertFalse(validators.isEnabled());
+        validators.put(key("topp:states", "EPSG:4326", 1), 1000, validators.getGeneration());
+        assertNull(validators.getCreated(key("topp:states", "EPSG:4326", 1)));
+    }
+
+    @Test
+    public void testIfNoneMatch() {
+        final long created = 1400000000123L;
+        final String etag = TileValidators.getETag(created);
+        assertTrue(TileValidators.isNotModified(created, etag, null));
+        assertTrue(TileValidators.isNotModified(created, "\"" + etag + "\"", null));
+        assertTrue(TileValidators.isNotModified(created, "W/\"" + etag + "\"", null));
+        assertTrue(TileValidators.isNotModified(created, "\"abc\", \"" + etag + "\"", null));
+        assertTrue(TileValidators.isNotModified(created, "*", null));
+        assertFalse(TileValidators.isNotModified(created, "abc", null));
+        // If-Modified-Since is ignored when If-None-Match is present
+        assertFalse(TileValidators.isNotModified(created, "abc",
+                TileValidators.getLastModified(created)));
+        // unknown creation time
+        assertFalse(TileValidators.isNotModified(0, "0", null));
+    }
+
+    @Test
+    public void testIfModifiedSince() {
+        final long created = 1400000000123L;
+        assertTrue(TileValidators.isNotModified(created, null,
+                TileValidators.getLastModified(created)));
+        assertTrue(TileValidators.isNotModified(created, null,
+                DateUtil.formatDate(new Date(created + 5000))));
+        assertFalse(TileValidators.isNotModified(created, null,
+                DateUtil.formatDate(new Date(created - 5000))));
+        assertFalse(TileValidators.isNotModified(created, null, "not a date"));
+    }
+}
@@ -0,0 +1,103 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc;
+
+import static org.geotools.referencing.crs.DefaultGeographicCRS.WGS84;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.geotools.geometry.jts.ReferencedEnvelope;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+
+public class TruncationQueueTest {
+
+    private GWC mediator;
+
+    private TruncationQueue queue;
+
+    @Before
+    public void setUp() throws Exception {
+        mediator = mock(GWC.class);
+        when(mediator.getMaxZoomLevel(anyString())).thenReturn(2);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (queue != null) {
+            queue.destroy();
+        }
+    }
+
+    @Test
+    public void testMerge() {
+        List<ReferencedEnvelope> regions = new ArrayList<ReferencedEnvelope>();
+        TruncationQueue.merge(regions, new ReferencedEnvelope(0, 10, 0, 10, WGS84));
+        TruncationQueue.merge(regions, new ReferencedEnvelope(20, 30, 0, 10, WGS84));
+        assertEquals(2, regions.size());
+
+        // overlaps the first
+        TruncationQueue.merge(regions, new ReferencedEnvelope(5, 12, 0, 10, WGS84));
+        assertEquals(2, regions.size());
+        assertEquals(new ReferencedEnvelope(0, 12, 0, 10, WGS84), regions.get(1));
+
+        // touches both, everything collapses into one region
+        TruncationQueue.merge(regions, new ReferencedEnvelope(12, 20, 5, 6, WGS84));
+        assertEquals(1, regions.size());
+        assertEquals(new ReferencedEnvelope(0, 30, 0, 10, WGS84), regions.get(0));
+    }
+
+    @Test
+    public void testFlushCoarsestFirst() throws Exception {
+        queue = new TruncationQueue(mediator, 60000);
+        ReferencedEnvelope bounds1 = new ReferencedEnvelope(0, 10, 0, 10, WGS84);
+        ReferencedEnvelope bounds2 = new ReferencedEnvelope(5, 15, 5, 15, WGS84);
+        ReferencedEnvelope bounds3 = new ReferencedEnvelope(-20, -10, 0, 10, WGS84);
+        queue.add("theLayer", bounds1);
+        queue.add("theLayer", bounds2);
+        queue.add("theGroup", bounds3);
+        assertEquals(3, queue.getQueuedCount());
+        assertEquals(2, queue.getQueueDepth());
+
+        // nothing happens until the window expires
+        verify(mediator, never()).truncate(anyString(), any(ReferencedEnvelope.class), anyInt());
+
+        queue.flush();
+        assertEquals(0, queue.getQueueDepth());
+        assertEquals(2, queue.getTruncatedCount());
+
+        ReferencedEnvelope merged = new ReferencedEnvelope(0, 15, 0, 15, WGS84);
+        InOrder order = inOrder(mediator);
+        for (int z = 0; z <= 2; z++) {
+            order.verify(mediator).truncate(eq("theLayer"), eq(merged), eq(z));
+            order.verify(mediator).truncate(eq("theGroup"), eq(bounds3), eq(z));
+        }
+    }
+
+    @Test
+    public void testBackgroundFlush() throws Exception {
+        queue = new TruncationQueue(mediator, 10);
+        ReferencedEnvelope bounds = new ReferencedEnvelope(0, 10, 0, 10, WGS84);
+        queue.add("theLayer", bounds);
+
+        verify(mediator, timeout(5000)).truncate(eq("theLayer"), eq(bounds), eq(2));
+        assertEquals(0, queue.getQueueDepth());
+    }
+}
@@ -180,4 +180,25 @@ public class CatalogStyleChangeListenerTest {
 
         verify(mockMediator, times(1)).truncate(eq("mockGroup"));
     }
+
+    @SuppressWarnings("unchecked")
+    @Test public void testStyleChangedVersioned() throws Exception {
+        when(mockMediator.isStyleVersioningEnabled()).thenReturn(true);
+        when(mockMediator.getLayerInfosFor(same(mockStyle))).thenReturn(
+                Collections.singleton(mockLayerInfo));
+        LayerGroupInfo mockGroup = mock(LayerGroupInfo.class);
+        when(GWC.tileLayerName(mockGroup)).thenReturn("mockGroup");
+        when(mockMediator.getLayerGroupsFor(same(mockStyle))).thenReturn(
+                Collections.singleton(mockGroup));
+
+        CatalogPostModifyEventImpl postModifyEvent = new CatalogPostModifyEventImpl();
+        postModifyEvent.setSource(mockStyle);
+        listener.handlePostModifyEvent(postModifyEvent);
+
+        // the layers move to a new namespace, nothing is deleted on the style save path
+        verify(mockMediator, times(1)).updateStyleVersion(eq(PREFIXED_RESOURCE_NAME));
+        verify(mockMediator, times(1)).updateStyleVersion(eq("mockGroup"));
+        verify(mockMediator, never()).truncateByLayerAndStyle(anyString(), anyString());
+        verify(mockMediator, never()).truncate(anyString());
+    }
 }
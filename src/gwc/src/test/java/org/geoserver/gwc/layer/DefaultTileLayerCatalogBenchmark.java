@@ -0,0 +1,98 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc.layer;
+
+import static org.geoserver.test.ConcurrentBenchmark.intArg;
+
+import java.io.File;
+
+import org.apache.commons.io.FileUtils;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.test.ConcurrentBenchmark;
+import org.geowebcache.config.ContextualConfigurationProvider.Context;
+import org.geowebcache.config.XMLConfiguration;
+import org.springframework.web.context.WebApplicationContext;
+
+import com.thoughtworks.xstream.XStream;
+
+/**
+ * Measures how long {@link DefaultTileLayerCatalog} takes to index a large number of tile layers,
+ * and the lookup throughput once indexed. Not a unit test, run it from the IDE or with:
+ *
+ * <pre>
+ * java org.geoserver.gwc.layer.DefaultTileLayerCatalogBenchmark [layers] [threads] [seconds]
+ * </pre>
+ */
+public class DefaultTileLayerCatalogBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int layers = intArg(args, 0, 30000);
+        final int threads = intArg(args, 1, Runtime.getRuntime().availableProcessors());
+        final int seconds = intArg(args, 2, 10);
+
+        File baseDirectory = new File("target", "tileLayerCatalogBenchmark");
+        FileUtils.deleteDirectory(baseDirectory);
+        baseDirectory.mkdirs();
+        try {
+            GeoServerResourceLoader resourceLoader = new GeoServerResourceLoader(baseDirectory);
+            XStream xStream = XMLConfiguration.getConfiguredXStreamWithContext(new XStream(),
+                    (WebApplicationContext) null, Context.PERSIST);
+
+            DefaultTileLayerCatalog catalog = new DefaultTileLayerCatalog(resourceLoader, xStream);
+            System.out.println("Creating " + layers + " tile layers...");
+            for (int i = 0; i < layers; i++) {
+                GeoServerTileLayerInfoImpl info = new GeoServerTileLayerInfoImpl();
+                info.setId("LayerInfoImpl-" + i);
+                info.setName("workspace:layer" + i);
+                info.getMimeFormats().add("image/png");
+                info.getMimeFormats().add("image/jpeg");
+                catalog.save(info);
+            }
+
+            // warm up, then time a cold start of a new catalog
+            new DefaultTileLayerCatalog(resourceLoader, xStream).initialize();
+            final DefaultTileLayerCatalog benchmarked = new DefaultTileLayerCatalog(
+                    resourceLoader, xStream);
+            long start = System.nanoTime();
+            benchmarked.initialize();
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Indexed %d tile layers in %d ms%n", benchmarked.getLayerIds()
+                    .size(), elapsed / 1000000);
+
+            lookups(benchmarked, layers, threads, seconds, false);
+            lookups(benchmarked, layers, threads, seconds, true);
+        } finally {
+            FileUtils.deleteDirectory(baseDirectory);
+        }
+    }
+
+    private static void lookups(final DefaultTileLayerCatalog catalog, final int layers,
+            int threads, int seconds, final boolean parse) throws Exception {
+        long rate = ConcurrentBenchmark.run("lookup", threads, seconds,
+                new ConcurrentBenchmark.Worker() {
+
+                    @Override
+                    public long run(int thread, long deadline) {
+                        long count = 0;
+                        int i = thread;
+                        while ((count & 0xff) != 0 || System.currentTimeMillis() < deadline) {
+                            i = (i * 31 + 7) % layers;
+                            if (parse) {
+                                catalog.getLayerByName("workspace:layer" + i);
+                            } else {
+                                String id = catalog.getLayerId("workspace:layer" + i);
+                                catalog.getLayerName(id);
+                                catalog.exists(id);
+                            }
+                            count++;
+                        }
+                        return count;
+                    }
+                });
+        System.out.printf("%s: %,d ops/s with %d threads%n", parse ? "getLayerByName"
+                : "getLayerId + getLayerName + exists", rate, threads);
+    }
+}
@@ -8,6 +8,7 @@ package org.geoserver.gwc.layer;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.fail;
 
 import java.io.File;
 
@@ -115,4 +116,79 @@ public class DefaultTileLayerCatalogTest {
         assertEquals(ImmutableSet.of("image/gif"), modified.getMimeFormats());
     }
 
+    @Test public void testRenameToExistingName() {
+        GeoServerTileLayerInfo info1 = new GeoServerTileLayerInfoImpl();
+        info1.setId("id1");
+        info1.setName("name1");
+        catalog.save(info1);
+        GeoServerTileLayerInfo info2 = new GeoServerTileLayerInfoImpl();
+        info2.setId("id2");
+        info2.setName("name2");
+        catalog.save(info2);
+
+        info2.setName("name1");
+        try {
+            catalog.save(info2);
+            fail("Expected the duplicate name to be rejected");
+        } catch (IllegalArgumentException e) {
+            // fine
+        }
+        assertEquals("id1", catalog.getLayerId("name1"));
+        assertEquals("name1", catalog.getLayerName("id1"));
+        assertEquals("name2", catalog.getLayerName("id2"));
+        assertEquals("name2", catalog.getLayerById("id2").getName());
+    }
+
+    @Test public void testInitializeIndexesExistingLayers() {
+        // enough layers to have them indexed in parallel
+        for (int i = 0; i < 100; i++) {
+            GeoServerTileLayerInfo info = new GeoServerTileLayerInfoImpl();
+            info.setId("id" + i);
+            info.setName("name" + i);
+            catalog.save(info);
+        }
+
+        catalog.reset();
+        catalog.initialize();
+
+        assertEquals(100, catalog.getLayerIds().size());
+        assertEquals(100, catalog.getLayerNames().size());
+        assertEquals("name42", catalog.getLayerName("id42"));
+        assertEquals("id42", catalog.getLayerId("name42"));
+        assertEquals("name42", catalog.getLayerById("id42").getName());
+    }
+
+    @Test public void testInitializeSkipsDuplicateNames() throws Exception {
+        GeoServerTileLayerInfo info = new GeoServerTileLayerInfoImpl();
+        info.setId("id1");
+        info.setName("name1");
+        catalog.save(info);
+
+        // a second layer with the same name, created behind the catalog's back
+        File dir = new File(baseDirectory, "gwc-layers");
+        String contents = FileUtils.readFileToString(new File(dir, "id1.xml"), "UTF-8");
+        FileUtils.writeStringToFile(new File(dir, "id2.xml"),
+                contents.replace("<id>id1</id>", "<id>id2</id>"), "UTF-8");
+
+        catalog.reset();
+        catalog.initialize();
+        assertEquals(1, catalog.getLayerIds().size());
+        assertEquals(1, catalog.getLayerNames().size());
+        assertNotNull(catalog.getLayerByName("name1"));
+    }
+
+    @Test public void testReadIdentity() throws Exception {
+        GeoServerTileLayerInfo info = new GeoServerTileLayerInfoImpl();
+        info.setId("LayerInfoImpl--570ae188:124761b8d78:-7fb0");
+        info.setName("topp:states & <more>");
+        info.getMimeFormats().add("image/png");
+        catalog.save(info);
+
+        File dir = new File(baseDirectory, "gwc-layers");
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+        String[] identity = catalog.readIdentity(files[0]);
+        assertEquals(info.getId(), identity[0]);
+        assertEquals(info.getName(), identity[1]);
+    }
 }
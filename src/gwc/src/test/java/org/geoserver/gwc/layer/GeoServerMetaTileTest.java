@@ -0,0 +1,94 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.gwc.layer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+
+import javax.media.jai.PlanarImage;
+import javax.media.jai.RenderedOp;
+import javax.media.jai.TiledImage;
+import javax.media.jai.operator.NullDescriptor;
+
+import org.geoserver.wms.WMSMapContent;
+import org.geoserver.wms.map.RenderedImageMap;
+import org.geowebcache.grid.GridSetBroker;
+import org.geowebcache.grid.GridSubset;
+import org.geowebcache.grid.GridSubsetFactory;
+import org.geowebcache.mime.MimeType;
+import org.junit.Test;
+
+public class GeoServerMetaTileTest {
+
+    @Test
+    public void testChildTileSharesData() {
+        BufferedImage meta = new BufferedImage(512, 512, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g = meta.createGraphics();
+        g.setColor(Color.RED);
+        g.fillRect(256, 0, 256, 256);
+        g.dispose();
+
+        PlanarImage wrapped = PlanarImage.wrapRenderedImage(meta);
+        BufferedImage tile = GeoServerMetaTile.createChildTile(wrapped, 256, 0, 256, 256);
+        assertNotNull(tile);
+        assertEquals(256, tile.getWidth());
+        assertEquals(256, tile.getHeight());
+        assertEquals(0, tile.getMinX());
+        assertEquals(0, tile.getMinY());
+        assertEquals(Color.RED.getRGB(), tile.getRGB(0, 0));
+        assertEquals(Color.RED.getRGB(), tile.getRGB(255, 255));
+
+        // no copy, the tile is backed by the meta tile buffer
+        assertSame(meta.getRaster().getDataBuffer(), tile.getRaster().getDataBuffer());
+    }
+
+    @Test
+    public void testChildTileAcrossImageTiles() {
+        BufferedImage sample = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+        TiledImage tiled = new TiledImage(0, 0, 512, 512, 0, 0, sample.getSampleModel()
+                .createCompatibleSampleModel(256, 256), sample.getColorModel());
+
+        // within a single image tile
+        assertNotNull(GeoServerMetaTile.createChildTile(tiled, 256, 256, 256, 256));
+        // spanning four image tiles, cannot be done without copying
+        assertNull(GeoServerMetaTile.createChildTile(tiled, 128, 128, 256, 256));
+    }
+
+    @Test
+    public void testCreateTileCopiesPlanarImages() {
+        GridSetBroker broker = new GridSetBroker(true, true);
+        GridSubset subset = GridSubsetFactory.createGridSubSet(broker.WORLD_EPSG4326);
+        BufferedImage sample = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+
+        // the tiles of a TiledImage belong to the image, they can be shared
+        TiledImage tiled = new TiledImage(0, 0, 512, 256, 0, 0, sample.getSampleModel()
+                .createCompatibleSampleModel(256, 256), sample.getColorModel());
+        GeoServerMetaTile metaTile = new GeoServerMetaTile(subset,
+                MimeType.createFromFormat("image/png"), null, new long[] { 0, 0, 0 }, 2, 1, 0);
+        metaTile.setWebMap(new RenderedImageMap(new WMSMapContent(), tiled, "image/png"));
+        BufferedImage tile = (BufferedImage) metaTile.createTile(256, 0, 256, 256);
+        assertSame(tiled.getTile(1, 0).getDataBuffer(), tile.getRaster().getDataBuffer());
+        metaTile.dispose();
+
+        // other planar images might have their tiles recycled by the tile cache, copy them
+        RenderedOp wrapped = NullDescriptor.create(tiled, null);
+        metaTile = new GeoServerMetaTile(subset, MimeType.createFromFormat("image/png"), null,
+                new long[] { 0, 0, 0 }, 2, 1, 0);
+        metaTile.setWebMap(new RenderedImageMap(new WMSMapContent(), wrapped, "image/png"));
+        tile = (BufferedImage) metaTile.createTile(256, 0, 256, 256);
+        assertNotSame(tiled.getTile(1, 0).getDataBuffer(), tile.getRaster().getDataBuffer());
+        assertEquals(256, tile.getWidth());
+        assertEquals(0, tile.getMinX());
+        metaTile.dispose();
+    }
+}
@@ -13,6 +13,7 @@ import static junit.framework.Assert.assertSame;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 import static org.geoserver.gwc.GWC.tileLayerName;
+import static org.junit.Assume.assumeTrue;
 import static org.mockito.Matchers.anyObject;
 import static org.mockito.Matchers.eq;
 import static org.mockito.Matchers.isA;
@@ -32,6 +33,14 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
@@ -72,12 +81,16 @@ import org.geowebcache.layer.meta.LayerMetaInformation;
 import org.geowebcache.locks.MemoryLockProvider;
 import org.geowebcache.mime.MimeType;
 import org.geowebcache.storage.StorageBroker;
+import org.geowebcache.storage.StorageException;
 import org.geowebcache.storage.TileObject;
 import org.junit.After;
 import org.junit.Before;
+import org.junit.BeforeClass;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
 import com.mockrunner.mock.web.MockHttpServletRequest;
@@ -101,6 +114,14 @@ public class GeoServerTileLayerTest {
 
     private GWC mockGWC;
 
+    @BeforeClass
+    public static void setupEncoderPool() {
+        // have the meta tile encoder pool enabled even on single processor machines
+        if (System.getProperty(GeoServerMetaTile.ENCODER_THREADS_PROPERTY) == null) {
+            System.setProperty(GeoServerMetaTile.ENCODER_THREADS_PROPERTY, "2");
+        }
+    }
+
     @After
     public void tearDown() throws Exception {
         GWC.set(null);
@@ -548,6 +569,52 @@ public class GeoServerTileLayerTest {
         verify(mockGWC, times(1)).getResponseEncoder(eq(mimeType), isA(RenderedImageMap.class));
     }
 
+    @Test
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public void testGetTileStyleVersionNotSentToWMS() throws Exception {
+
+        Resource mockResult = mock(Resource.class);
+        ArgumentCaptor<Map> argument = ArgumentCaptor.forClass(Map.class);
+        Mockito.when(mockGWC.dispatchOwsRequest(argument.capture(), (Cookie[]) anyObject()))
+                .thenReturn(mockResult);
+
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_ARGB);
+        RenderedImageMap fakeDispatchedMap = new RenderedImageMap(new WMSMapContent(), image,
+                "image/png");
+
+        RenderedImageMapResponse fakeResponseEncoder = mock(RenderedImageMapResponse.class);
+        MimeType mimeType = MimeType.createFromFormat("image/png");
+        when(mockGWC.getResponseEncoder(eq(mimeType), (RenderedImageMap) anyObject())).thenReturn(
+                fakeResponseEncoder);
+
+        StorageBroker storageBroker = mock(StorageBroker.class);
+        when(storageBroker.get((TileObject) anyObject())).thenReturn(false);
+
+        layerInfoTileLayer = new GeoServerTileLayer(layerInfo, defaults, gridSetBroker);
+        layerInfoTileLayer.getInfo().setStyleVersion("abcdef");
+        layerInfoTileLayer.resetParameterFilters();
+        // the tiles are cached by style version
+        assertEquals("abcdef",
+                layerInfoTileLayer.getDefaultParameterFilters().get(StyleVersionParameterFilter.KEY));
+
+        MockHttpServletRequest servletReq = new MockHttpServletRequest();
+        HttpServletResponse servletResp = new MockHttpServletResponse();
+        long[] tileIndex = { 0, 0, 0 };
+
+        ConveyorTile tile = new ConveyorTile(storageBroker, layerInfoTileLayer.getName(),
+                "EPSG:4326", tileIndex, mimeType, null, servletReq, servletResp);
+
+        GeoServerTileLayer.WEB_MAP.set(fakeDispatchedMap);
+        ConveyorTile returned = layerInfoTileLayer.getTile(tile);
+        assertNotNull(returned);
+        assertEquals(200, returned.getStatus());
+
+        // but the version is meaningless to the WMS
+        Map<String, String> wmsParams = argument.getValue();
+        assertEquals("GetMap", wmsParams.get("REQUEST"));
+        assertFalse(wmsParams.containsKey(StyleVersionParameterFilter.KEY));
+    }
+
     @Test
     public void testGetMimeTypes() throws Exception {
 
@@ -616,4 +683,186 @@ public class GeoServerTileLayerTest {
         assertNull(layerGroupInfoTileLayer.getLayerInfo());
         assertNotNull(layerGroupInfoTileLayer.getLayerGroupInfo());
     }
+
+    /**
+     * Requests for a meta tile whose tiles are still being stored in the background wait for them
+     * instead of rendering the meta tile again
+     */
+    @Test
+    public void testConcurrentRequestsSameMetaTile() throws Exception {
+        assumeTrue(GeoServerMetaTile.getEncoderPool() != null);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger renders = new AtomicInteger();
+        StorageBroker storageBroker = setupConcurrentTiles(renders, release, null);
+        layerInfoTileLayer = new GeoServerTileLayer(layerInfo, defaults, gridSetBroker);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // the requested tile is returned while the other one is still being stored
+            ConveyorTile first = layerInfoTileLayer.getTile(tile(storageBroker, 0, 0, 1));
+            assertNotNull(first.getBlob());
+            assertEquals(1, renders.get());
+
+            Future<ConveyorTile> second = executor.submit(getTileTask(storageBroker, 1, 0, 1));
+            Thread.sleep(200);
+            assertFalse(second.isDone());
+
+            release.countDown();
+            ConveyorTile returned = second.get(10, TimeUnit.SECONDS);
+            assertNotNull(returned.getBlob());
+            assertEquals(CacheResult.HIT, returned.getCacheResult());
+            assertEquals(1, renders.get());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A stuck blob store does not block the requests for the meta tile forever
+     */
+    @Test
+    public void testStuckSaveTimesOut() throws Exception {
+        assumeTrue(GeoServerMetaTile.getEncoderPool() != null);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger renders = new AtomicInteger();
+        StorageBroker storageBroker = setupConcurrentTiles(renders, release, null);
+        layerInfoTileLayer = new GeoServerTileLayer(layerInfo, defaults, gridSetBroker);
+
+        GeoServerMetaTile.setEncoderWait(100);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            layerInfoTileLayer.getTile(tile(storageBroker, 0, 0, 1));
+            assertEquals(1, renders.get());
+
+            // the background save never completes, the meta tile gets rendered again
+            Future<ConveyorTile> second = executor.submit(getTileTask(storageBroker, 1, 0, 1));
+            ConveyorTile returned = second.get(10, TimeUnit.SECONDS);
+            assertNotNull(returned.getBlob());
+            assertEquals(2, renders.get());
+        } finally {
+            GeoServerMetaTile.setEncoderWait(-1);
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Tiles that could not be stored are rendered again, and a failure storing the requested tile
+     * does not leave the meta tile pending
+     */
+    @Test
+    public void testFailedSave() throws Exception {
+        assumeTrue(GeoServerMetaTile.getEncoderPool() != null);
+        AtomicInteger renders = new AtomicInteger();
+        Set<String> failing = Collections.synchronizedSet(new HashSet<String>());
+        StorageBroker storageBroker = setupConcurrentTiles(renders, null, failing);
+        layerInfoTileLayer = new GeoServerTileLayer(layerInfo, defaults, gridSetBroker);
+
+        // the background save of the other tile fails
+        failing.add("[1, 0, 1]");
+        layerInfoTileLayer.getTile(tile(storageBroker, 0, 0, 1));
+        assertEquals(1, renders.get());
+        ConveyorTile returned = layerInfoTileLayer.getTile(tile(storageBroker, 1, 0, 1));
+        assertNotNull(returned.getBlob());
+        assertEquals(2, renders.get());
+
+        // the requested tile save fails
+        failing.add("[0, 0, 2]");
+        try {
+            layerInfoTileLayer.getTile(tile(storageBroker, 0, 0, 2));
+            fail("Expected a GeoWebCacheException");
+        } catch (GeoWebCacheException e) {
+            assertTrue(true);
+        }
+        assertEquals(3, renders.get());
+        returned = layerInfoTileLayer.getTile(tile(storageBroker, 0, 0, 2));
+        assertNotNull(returned.getBlob());
+        assertEquals(4, renders.get());
+        // the other tiles of the meta tile have been stored meanwhile
+        returned = layerInfoTileLayer.getTile(tile(storageBroker, 1, 0, 2));
+        assertEquals(CacheResult.HIT, returned.getCacheResult());
+        assertEquals(4, renders.get());
+    }
+
+    private ConveyorTile tile(StorageBroker storageBroker, long x, long y, long z) {
+        return new ConveyorTile(storageBroker, layerInfoTileLayer.getName(), "EPSG:4326",
+                new long[] { x, y, z }, MimeType.createFromFormat("image/png"), null,
+                new MockHttpServletRequest(), new MockHttpServletResponse());
+    }
+
+    private Callable<ConveyorTile> getTileTask(final StorageBroker storageBroker, final long x,
+            final long y, final long z) {
+        return new Callable<ConveyorTile>() {
+
+            public ConveyorTile call() throws Exception {
+                return layerInfoTileLayer.getTile(tile(storageBroker, x, y, z));
+            }
+        };
+    }
+
+    /**
+     * Sets up the GetMap dispatch, counting the renders, and a storage broker holding the tiles
+     * in memory. The puts made by the encoder pool wait for {@code release}, if not null, and the
+     * first put of each tile listed in {@code failing} fails.
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private StorageBroker setupConcurrentTiles(final AtomicInteger renders,
+            final CountDownLatch release, final Set<String> failing) throws Exception {
+        when(mockGWC.dispatchOwsRequest((Map) anyObject(), (Cookie[]) anyObject())).thenAnswer(
+                new Answer<Resource>() {
+
+                    public Resource answer(InvocationOnMock invocation) throws Throwable {
+                        renders.incrementAndGet();
+                        Map<String, String> params = (Map<String, String>) invocation
+                                .getArguments()[0];
+                        BufferedImage image = new BufferedImage(Integer.parseInt(params
+                                .get("WIDTH")), Integer.parseInt(params.get("HEIGHT")),
+                                BufferedImage.TYPE_INT_ARGB);
+                        GeoServerTileLayer.WEB_MAP.set(new RenderedImageMap(new WMSMapContent(),
+                                image, "image/png"));
+                        return null;
+                    }
+                });
+        RenderedImageMapResponse fakeResponseEncoder = mock(RenderedImageMapResponse.class);
+        when(mockGWC.getResponseEncoder((MimeType) anyObject(), (RenderedImageMap) anyObject()))
+                .thenReturn(fakeResponseEncoder);
+
+        final Map<String, TileObject> tiles = new ConcurrentHashMap<String, TileObject>();
+        Answer<Boolean> get = new Answer<Boolean>() {
+
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                TileObject tile = (TileObject) invocation.getArguments()[0];
+                TileObject stored = tiles.get(Arrays.toString(tile.getXYZ()));
+                if (stored == null) {
+                    return false;
+                }
+                tile.setBlob(stored.getBlob());
+                tile.setCreated(stored.getCreated());
+                return true;
+            }
+        };
+        Answer<Boolean> put = new Answer<Boolean>() {
+
+            public Boolean answer(InvocationOnMock invocation) throws Throwable {
+                TileObject tile = (TileObject) invocation.getArguments()[0];
+                String key = Arrays.toString(tile.getXYZ());
+                if (release != null
+                        && Thread.currentThread().getName().startsWith("GWC metatile encoder")) {
+                    release.await();
+                }
+                if (failing != null && failing.remove(key)) {
+                    throw new StorageException("Failed to store " + key);
+                }
+                tiles.put(key, tile);
+                return true;
+            }
+        };
+        StorageBroker storageBroker = mock(StorageBroker.class);
+        when(storageBroker.get((TileObject) anyObject())).thenAnswer(get);
+        when(storageBroker.getTransient((TileObject) anyObject())).thenAnswer(get);
+        when(storageBroker.put((TileObject) anyObject())).thenAnswer(put);
+        Mockito.doAnswer(put).when(storageBroker).putTransient((TileObject) anyObject());
+        return storageBroker;
+    }
 }
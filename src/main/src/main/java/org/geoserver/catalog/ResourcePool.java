@@ -1787,11 +1787,12 @@ public class ResourcePool {
      * @return A reader for the style.
      */
     public BufferedReader readStyle( StyleInfo style ) throws IOException {
-        File styleFile = dataDir().findStyleSldFile(style);
-        if( styleFile == null ) {
+        // read through the resource store, so that it can be cached
+        Resource styleResource = dataDir().style(style);
+        if( styleResource.getType() != Resource.Type.RESOURCE ) {
             throw new IOException( "No such file: " + style.getFilename() );
         }
-        return new BufferedReader( new InputStreamReader( new FileInputStream( styleFile ) ) );
+        return new BufferedReader( new InputStreamReader( styleResource.in() ) );
         
     }
     
@@ -5,10 +5,12 @@
  */
 package org.geoserver.config;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.Reader;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URL;
@@ -22,6 +24,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.geoserver.catalog.CoverageInfo;
 import org.geoserver.catalog.CoverageStoreInfo;
 import org.geoserver.catalog.DataStoreInfo;
@@ -36,6 +39,7 @@ import org.geoserver.catalog.Styles;
 import org.geoserver.catalog.WMSLayerInfo;
 import org.geoserver.catalog.WMSStoreInfo;
 import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.ows.util.RequestUtils;
 import org.geoserver.platform.GeoServerResourceLoader;
 import org.geoserver.platform.resource.Files;
 import org.geoserver.platform.resource.Paths;
@@ -782,6 +786,11 @@ public class GeoServerDataDirectory implements ResourceStore {
         return resource.file();
     }
     
+    /**
+     * Characters looked ahead for the encoding of a style, as in SLDHandler
+     */
+    static final int XML_LOOKAHEAD = 8192;
+
     // Resource lookup methods
     static final String WORKSPACE_XML = "workspace.xml";
     static final String NAMESPACE_XML = "namespace.xml";
@@ -1225,7 +1234,17 @@ public class GeoServerDataDirectory implements ResourceStore {
         if ( styleResource.getType() == Type.UNDEFINED ){
             throw new IOException( "No such resource: " + s.getFilename());
         }
-        File input = styleResource.file();
+        // read through the resource store, so that it can be cached
+        byte[] contents;
+        InputStream in = styleResource.in();
+        try {
+            contents = IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+        // unlike a plain reader, picks the encoding from the xml declaration as parsing a file did
+        Reader input = RequestUtils.getBufferedXMLReader(new ByteArrayInputStream(contents),
+                XML_LOOKAHEAD);
 
         DefaultResourceLocator locator = new DefaultResourceLocator() {
             
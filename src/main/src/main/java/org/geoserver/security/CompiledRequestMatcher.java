@@ -0,0 +1,282 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.security;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.springframework.security.web.util.AntPathRequestMatcher;
+import org.springframework.security.web.util.RequestMatcher;
+import org.springframework.util.StringUtils;
+
+/**
+ * Finds the first {@link RequestFilterChain} matching a request, giving the same result as
+ * testing the {@link GeoServerRequestMatcher} of each chain in order, without going through all
+ * the chains.
+ * <p>
+ * The ant patterns of the chains are compiled into a trie over their leading literal path
+ * segments, and the HTTP methods of each chain into a bitmask. A request walks down the trie along
+ * its path segments and only the patterns found on the way, whose literal prefix matches the
+ * request path, are tested with their {@link AntPathRequestMatcher}, in chain order, so that the
+ * cost of matching depends on the depth of the request path rather than on the number of chains.
+ * Patterns starting with a wildcard, like <code>/**</code>, are tested for every request.
+ * </p>
+ * <p>
+ * The matching chain is computed once per request, the matchers returned by
+ * {@link #getChainMatcher(int)} just compare it against the position of their chain.
+ * </p>
+ */
+public class CompiledRequestMatcher {
+
+    /**
+     * Request attribute holding the last match
+     */
+    static final String MATCH_ATTRIBUTE = CompiledRequestMatcher.class.getName() + ".match";
+
+    /**
+     * Mask of a chain matching all HTTP methods
+     */
+    static final int ALL_METHODS = -1;
+
+    /**
+     * A pattern of a chain
+     */
+    static final class Entry {
+
+        final int chain;
+
+        final int methods;
+
+        final RequestMatcher matcher;
+
+        Entry(int chain, int methods, RequestMatcher matcher) {
+            this.chain = chain;
+            this.methods = methods;
+            this.matcher = matcher;
+        }
+    }
+
+    /**
+     * A node of the trie, with the patterns whose literal prefix ends there, in chain order
+     */
+    static final class Node {
+
+        final Map<String, Node> children = new HashMap<String, Node>();
+
+        Entry[] entries = new Entry[0];
+    }
+
+    /**
+     * The result of matching a request
+     */
+    static final class Match {
+
+        final CompiledRequestMatcher owner;
+
+        final String servletPath;
+
+        final String pathInfo;
+
+        final String method;
+
+        final int chain;
+
+        Match(CompiledRequestMatcher owner, HttpServletRequest request, int chain) {
+            this.owner = owner;
+            this.servletPath = request.getServletPath();
+            this.pathInfo = request.getPathInfo();
+            this.method = request.getMethod();
+            this.chain = chain;
+        }
+
+        boolean isFor(CompiledRequestMatcher owner, HttpServletRequest request) {
+            return this.owner == owner && equals(servletPath, request.getServletPath())
+                    && equals(pathInfo, request.getPathInfo())
+                    && equals(method, request.getMethod());
+        }
+
+        static boolean equals(String s1, String s2) {
+            return s1 == null ? s2 == null : s1.equals(s2);
+        }
+    }
+
+    /**
+     * Matches the requests whose first matching chain is the one at the given position
+     */
+    class ChainMatcher implements RequestMatcher {
+
+        final int chain;
+
+        ChainMatcher(int chain) {
+            this.chain = chain;
+        }
+
+        @Override
+        public boolean matches(HttpServletRequest request) {
+            return indexOf(request) == chain;
+        }
+
+        @Override
+        public String toString() {
+            return "ChainMatcher[" + chain + "]";
+        }
+    }
+
+    final Node root = new Node();
+
+    final int size;
+
+    /**
+     * Position of the first chain matching HTTP methods, -1 if none
+     */
+    final int firstMethodChain;
+
+    final ChainMatcher[] chainMatchers;
+
+    public CompiledRequestMatcher(List<RequestFilterChain> chains) {
+        this.size = chains.size();
+        this.chainMatchers = new ChainMatcher[size];
+        int firstMethodChain = -1;
+        for (int i = 0; i < size; i++) {
+            RequestFilterChain chain = chains.get(i);
+            chainMatchers[i] = new ChainMatcher(i);
+
+            int methods = ALL_METHODS;
+            if (chain.isMatchHTTPMethod() && chain.getHttpMethods() != null) {
+                methods = mask(chain.getHttpMethods());
+                if (firstMethodChain < 0) {
+                    firstMethodChain = i;
+                }
+            }
+            if (chain.getPatterns() == null) {
+                continue;
+            }
+            for (String pattern : GeoServerSecurityFilterChainProxy.splitPatterns(chain
+                    .getPatterns())) {
+                add(new Entry(i, methods, new AntPathRequestMatcher(pattern)), pattern);
+            }
+        }
+        this.firstMethodChain = firstMethodChain;
+    }
+
+    static int mask(Set<HTTPMethod> methods) {
+        int mask = 0;
+        for (HTTPMethod method : methods) {
+            mask |= 1 << method.ordinal();
+        }
+        return mask;
+    }
+
+    /**
+     * Adds the entry at the node of the leading literal segments of its pattern
+     */
+    private void add(Entry entry, String pattern) {
+        Node node = root;
+        // patterns not starting with a slash never match a path starting with one, keep them at
+        // the root, they are tested against all requests anyways
+        if (pattern.startsWith("/")) {
+            for (String segment : segments(pattern)) {
+                if (segment.indexOf('*') >= 0 || segment.indexOf('?') >= 0
+                        || segment.indexOf('{') >= 0) {
+                    break;
+                }
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+        }
+        // chains are added in order, so are the entries
+        Entry[] entries = Arrays.copyOf(node.entries, node.entries.length + 1);
+        entries[entries.length - 1] = entry;
+        node.entries = entries;
+    }
+
+    /**
+     * Splits a path the same way {@link org.springframework.util.AntPathMatcher} does, ignoring
+     * the case like {@link AntPathRequestMatcher}
+     */
+    static String[] segments(String path) {
+        return StringUtils.tokenizeToStringArray(path.toLowerCase(), "/", true, true);
+    }
+
+    /**
+     * The matcher for the chain at the given position, matching the requests this chain is the
+     * first match of
+     */
+    public RequestMatcher getChainMatcher(int chain) {
+        return chainMatchers[chain];
+    }
+
+    /**
+     * Returns the position of the first chain matching the request, -1 if none does
+     */
+    public int indexOf(HttpServletRequest request) {
+        Object last = request.getAttribute(MATCH_ATTRIBUTE);
+        if (last instanceof Match && ((Match) last).isFor(this, request)) {
+            return ((Match) last).chain;
+        }
+        int chain = match(request);
+        request.setAttribute(MATCH_ATTRIBUTE, new Match(this, request, chain));
+        return chain;
+    }
+
+    int match(HttpServletRequest request) {
+        int method = 0;
+        RuntimeException unknownMethod = null;
+        if (firstMethodChain >= 0) {
+            try {
+                method = 1 << HTTPMethod.fromString(request.getMethod()).ordinal();
+            } catch (RuntimeException e) {
+                unknownMethod = e;
+            }
+        }
+
+        String path = request.getServletPath();
+        if (request.getPathInfo() != null) {
+            path = path == null ? request.getPathInfo() : path + request.getPathInfo();
+        }
+        String[] segments = path == null ? new String[0] : segments(path);
+
+        int best = Integer.MAX_VALUE;
+        Node node = root;
+        for (int i = 0; node != null; i++) {
+            for (Entry entry : node.entries) {
+                if (entry.chain >= best) {
+                    break;
+                }
+                if (entry.methods != ALL_METHODS && (entry.methods & method) == 0) {
+                    continue;
+                }
+                if (entry.matcher.matches(request)) {
+                    best = entry.chain;
+                }
+            }
+            node = i < segments.length ? node.children.get(segments[i]) : null;
+        }
+
+        // ordered matching fails on unknown methods as soon as it reaches a chain matching
+        // methods
+        if (unknownMethod != null && best > firstMethodChain) {
+            throw unknownMethod;
+        }
+        return best == Integer.MAX_VALUE ? -1 : best;
+    }
+
+    /**
+     * Number of chains
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -167,8 +167,12 @@ public class GeoServerSecurityFilterChainProxy extends FilterChainProxy
         Map<RequestMatcher,List<Filter>> filterChainMap = 
                 new LinkedHashMap<RequestMatcher,List<Filter>>();
 
-        for (RequestFilterChain chain : filterChain.getRequestChains()) {
-            RequestMatcher matcher = matcherForChain(chain);
+        // match the chains in one pass instead of testing them one by one
+        List<RequestFilterChain> requestChains = filterChain.getRequestChains();
+        CompiledRequestMatcher compiled = new CompiledRequestMatcher(requestChains);
+        for (int i = 0; i < requestChains.size(); i++) {
+            RequestFilterChain chain = requestChains.get(i);
+            RequestMatcher matcher = compiled.getChainMatcher(i);
             List<Filter> filters = new ArrayList<Filter>();
             for (String filterName : chain.getCompiledFilterNames()) {
                 try {
@@ -224,13 +228,7 @@ public class GeoServerSecurityFilterChainProxy extends FilterChainProxy
         if (tmp==null)
             return new GeoServerRequestMatcher(methods, (RequestMatcher[])null);
         
-        // resolve multiple patterns separated by a comma
-        List<String> patterns=new ArrayList<String>();
-        for (String pattern : tmp) {
-            String[] array = pattern.split(",");
-            for (String singlePattern : array)
-                patterns.add(singlePattern);
-        }
+        List<String> patterns=splitPatterns(tmp);
         
         AntPathRequestMatcher[] matchers=new AntPathRequestMatcher[patterns.size()];
         for (int i = 0;i<matchers.length;i++) {
@@ -239,6 +237,19 @@ public class GeoServerSecurityFilterChainProxy extends FilterChainProxy
         return new GeoServerRequestMatcher(methods,matchers); 
     }
     
+    /**
+     * Resolves multiple patterns separated by a comma
+     */
+    static List<String> splitPatterns(List<String> tmp) {
+        List<String> patterns=new ArrayList<String>();
+        for (String pattern : tmp) {
+            String[] array = pattern.split(",");
+            for (String singlePattern : array)
+                patterns.add(singlePattern);
+        }
+        return patterns;
+    }
+
     /**
      * looks up a named filter  
      */
@@ -0,0 +1,444 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.security.auth;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geotools.util.logging.Logging;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.core.Authentication;
+
+/**
+ * An {@link AuthenticationCache} implementation meant for high request rates, whose lookups take
+ * no locks.
+ * <p>
+ * Entries are kept in a {@link ConcurrentHashMap}. A lookup only marks the entry as referenced and
+ * updates its last access time, while {@link LRUAuthenticationCacheImpl} has to reorder its map,
+ * under an exclusive lock, on every hit.
+ * </p>
+ * <p>
+ * When the maximum number of entries is exceeded the entries are evicted in approximate LRU order
+ * using the CLOCK (second chance) algorithm: entries are queued in insertion order, and an entry
+ * referenced since it was last examined is queued again instead of being evicted.
+ * </p>
+ * <p>
+ * Expired entries (see {@link AuthenticationCacheEntry} for the idle and live times) are never
+ * returned, and are removed by a background task advancing a timer wheel: each entry is placed in
+ * the wheel slot of its expiry time, and when the slot comes up the entries whose idle time got
+ * extended by later accesses are moved ahead instead of being removed, so that the cleanup cost
+ * is proportional to the entries expiring, not to the cache size.
+ * </p>
+ */
+public class ConcurrentAuthenticationCacheImpl implements AuthenticationCache, DisposableBean {
+
+    static Logger LOGGER = Logging.getLogger("org.geoserver.security");
+
+    /**
+     * Default timer wheel tick, in milliseconds
+     */
+    public static final int DEFAULT_TICK = 1000;
+
+    /**
+     * Number of slots of the timer wheel, covering ten minutes with the default tick
+     */
+    static final int WHEEL_SLOTS = 512;
+
+    /**
+     * A cache entry, along with its eviction state
+     */
+    static final class Node {
+
+        final AuthenticationCacheKey key;
+
+        final AuthenticationCacheEntry entry;
+
+        /**
+         * Set on access, cleared when the eviction clock passes over the entry
+         */
+        volatile boolean referenced;
+
+        /**
+         * Set when the entry is removed from the map, the eviction queue and the timer wheel
+         * drop dead entries lazily
+         */
+        volatile boolean dead;
+
+        Node(AuthenticationCacheKey key, AuthenticationCacheEntry entry) {
+            this.key = key;
+            this.entry = entry;
+        }
+
+        long getExpiry() {
+            return Math.min(entry.getLastAccessed() + entry.getTimeToIdleSeconds() * 1000L,
+                    entry.getCreated() + entry.getTimeToLiveSeconds() * 1000L);
+        }
+    }
+
+    private final ConcurrentHashMap<AuthenticationCacheKey, Node> cache;
+
+    private final int maxEntries;
+
+    private final int timeToIdleSeconds, timeToLiveSeconds;
+
+    /**
+     * Entries in CLOCK order, along with its (approximate) length
+     */
+    private final ConcurrentLinkedQueue<Node> clock = new ConcurrentLinkedQueue<Node>();
+
+    private final AtomicInteger clockLength = new AtomicInteger();
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * The timer wheel, guarded by its own monitor
+     */
+    private final List<Node>[] wheel;
+
+    private final long tick;
+
+    private long currentTick;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong expirations = new AtomicLong();
+
+    // Use a counter to ensure a unique prefix for each pool.
+    private static AtomicInteger poolCounter = new AtomicInteger();
+
+    public ConcurrentAuthenticationCacheImpl(int maxEntries) {
+        this(maxEntries, DEFAULT_IDLE_TIME, DEFAULT_LIVE_TIME);
+    }
+
+    public ConcurrentAuthenticationCacheImpl(int maxEntries, int timeToIdleSeconds,
+            int timeToLiveSeconds) {
+        this(maxEntries, timeToIdleSeconds, timeToLiveSeconds, DEFAULT_TICK, true);
+    }
+
+    /**
+     * @param tick the timer wheel tick, in milliseconds
+     * @param schedule whether to start the task advancing the wheel, if not {@link #expire(long)}
+     *        has to be called
+     */
+    @SuppressWarnings("unchecked")
+    ConcurrentAuthenticationCacheImpl(int maxEntries, int timeToIdleSeconds,
+            int timeToLiveSeconds, int tick, boolean schedule) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("The maximum number of entries must be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.timeToIdleSeconds = timeToIdleSeconds;
+        this.timeToLiveSeconds = timeToLiveSeconds;
+        this.cache = new ConcurrentHashMap<AuthenticationCacheKey, Node>(Math.min(maxEntries,
+                1024), 0.75f, Runtime.getRuntime().availableProcessors());
+        this.tick = tick;
+        this.wheel = new List[WHEEL_SLOTS];
+        for (int i = 0; i < wheel.length; i++) {
+            wheel[i] = new ArrayList<Node>();
+        }
+        this.currentTick = System.currentTimeMillis() / tick;
+
+        if (schedule) {
+            CustomizableThreadFactory tFactory = new CustomizableThreadFactory(String.format(
+                    "ConcurrentAuthCache-%d-", poolCounter.getAndIncrement()));
+            tFactory.setDaemon(true);
+            scheduler = Executors.newScheduledThreadPool(1, tFactory);
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        expire(System.currentTimeMillis());
+                    } catch (Throwable t) {
+                        LOGGER.log(Level.WARNING, "AuthenticationCache expiry task failed", t);
+                    }
+                }
+            }, tick, tick, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler = null;
+        }
+        if (LOGGER.isLoggable(Level.INFO)) {
+            LOGGER.info("AuthenticationCache Initialized with " + maxEntries
+                    + " Max Entries, " + timeToIdleSeconds + " seconds idle time, "
+                    + timeToLiveSeconds + " seconds time to live");
+        }
+    }
+
+    public int getTimeToIdleSeconds() {
+        return timeToIdleSeconds;
+    }
+
+    public int getTimeToLiveSeconds() {
+        return timeToLiveSeconds;
+    }
+
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public Authentication get(String filterName, String cacheKey) {
+        Node node = cache.get(new AuthenticationCacheKey(filterName, cacheKey));
+        if (node == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        long currentTime = System.currentTimeMillis();
+        if (node.entry.hasExpired(currentTime)) {
+            if (remove(node)) {
+                expirations.incrementAndGet();
+            }
+            misses.incrementAndGet();
+            return null;
+        }
+        node.entry.setLastAccessed(currentTime);
+        if (!node.referenced) {
+            node.referenced = true;
+        }
+        hits.incrementAndGet();
+        return node.entry.getAuthentication();
+    }
+
+    @Override
+    public void put(String filterName, String cacheKey, Authentication auth,
+            Integer timeToIdleSeconds, Integer timeToLiveSeconds) {
+        timeToIdleSeconds = timeToIdleSeconds != null ? timeToIdleSeconds : this.timeToIdleSeconds;
+        timeToLiveSeconds = timeToLiveSeconds != null ? timeToLiveSeconds : this.timeToLiveSeconds;
+
+        AuthenticationCacheKey key = new AuthenticationCacheKey(filterName, cacheKey);
+        Node node = new Node(key, new AuthenticationCacheEntry(auth, timeToIdleSeconds,
+                timeToLiveSeconds));
+        Node previous = cache.put(key, node);
+        if (previous != null) {
+            previous.dead = true;
+        }
+        clock.offer(node);
+        clockLength.incrementAndGet();
+        synchronized (wheel) {
+            schedule(node);
+        }
+        if (cache.size() > maxEntries) {
+            evict();
+        }
+    }
+
+    @Override
+    public void put(String filterName, String cacheKey, Authentication auth) {
+        put(filterName, cacheKey, auth, timeToIdleSeconds, timeToLiveSeconds);
+    }
+
+    @Override
+    public void remove(String filterName, String cacheKey) {
+        Node node = cache.remove(new AuthenticationCacheKey(filterName, cacheKey));
+        if (node != null) {
+            node.dead = true;
+        }
+    }
+
+    @Override
+    public void removeAll() {
+        for (Iterator<Node> it = cache.values().iterator(); it.hasNext();) {
+            Node node = it.next();
+            it.remove();
+            node.dead = true;
+        }
+    }
+
+    @Override
+    public void removeAll(String filterName) {
+        if (filterName == null)
+            return;
+        for (Node node : cache.values()) {
+            if (filterName.equals(node.key.getFilterName())) {
+                remove(node);
+            }
+        }
+    }
+
+    /**
+     * Removes the entry, unless it has been replaced in the meantime
+     */
+    private boolean remove(Node node) {
+        if (cache.remove(node.key, node)) {
+            node.dead = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evicts entries until the cache is back to its maximum size. Only one thread evicts at a
+     * time, the others go on, the cache can exceed its size for a short while.
+     */
+    private void evict() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            while (cache.size() > maxEntries) {
+                Node node = clock.poll();
+                if (node == null) {
+                    break;
+                }
+                clockLength.decrementAndGet();
+                if (node.dead) {
+                    continue;
+                }
+                if (node.referenced) {
+                    // second chance
+                    node.referenced = false;
+                    clock.offer(node);
+                    clockLength.incrementAndGet();
+                } else if (remove(node)) {
+                    evictions.incrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Places the node in the wheel slot of its expiry. Called holding the wheel monitor.
+     */
+    private void schedule(Node node) {
+        long expiryTick = Math.max(node.getExpiry() / tick + 1, currentTick + 1);
+        wheel[(int) (expiryTick % wheel.length)].add(node);
+    }
+
+    /**
+     * Advances the timer wheel up to the specified time, removing the expired entries
+     */
+    void expire(long now) {
+        synchronized (wheel) {
+            long target = now / tick;
+            // after a long pause no need to go around the wheel more than once
+            currentTick = Math.max(currentTick, target - wheel.length);
+            while (currentTick < target) {
+                currentTick++;
+                int slot = (int) (currentTick % wheel.length);
+                List<Node> nodes = wheel[slot];
+                wheel[slot] = new ArrayList<Node>();
+                for (Node node : nodes) {
+                    if (node.dead) {
+                        continue;
+                    }
+                    if (node.entry.hasExpired(now)) {
+                        if (remove(node)) {
+                            expirations.incrementAndGet();
+                        }
+                    } else {
+                        // accessed since it was scheduled, or due in a later round
+                        schedule(node);
+                    }
+                }
+            }
+        }
+        purgeClock();
+    }
+
+    /**
+     * Drops the dead entries from the eviction queue, if they make up most of it. The cache might
+     * never fill up, removed and expired entries would otherwise pile up in the queue.
+     */
+    private void purgeClock() {
+        if (clockLength.get() <= 2 * cache.size() + 64 || !evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            for (Iterator<Node> it = clock.iterator(); it.hasNext();) {
+                if (it.next().dead) {
+                    it.remove();
+                    clockLength.decrementAndGet();
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Number of entries in the cache
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    public boolean isEmpty() {
+        return cache.isEmpty();
+    }
+
+    /**
+     * Number of lookups that found a valid entry
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of lookups that found no entry, or an expired one
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Ratio of lookups that found a valid entry, between 0 and 1
+     */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /**
+     * Number of entries evicted to keep the cache within its maximum size
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Number of entries removed because their idle or live time passed
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * Resets the hit, miss, eviction and expiration counters
+     */
+    public void resetStatistics() {
+        hits.set(0);
+        misses.set(0);
+        evictions.set(0);
+        expirations.set(0);
+    }
+
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdown();
+        }
+    }
+}
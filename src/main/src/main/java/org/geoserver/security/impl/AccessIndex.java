@@ -0,0 +1,267 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.security.impl;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.CatalogInfo;
+import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.StoreInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.security.AccessMode;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * Caches the access decisions taken walking a {@link SecureTreeNode} tree, for each distinct set of
+ * roles, as bitsets over ordinals assigned to the catalog objects (workspaces and resources).
+ * <p>
+ * Users sharing the same roles share the same decisions, so that once warmed up listing the
+ * secured catalog is a matter of bit lookups. The decisions are dropped entirely when the rules
+ * change, and per object when the catalog changes: modifying or removing a resource drops the
+ * decisions about it, modifying or removing a workspace or a store (which can move resources across
+ * workspaces) drops all of them.
+ * </p>
+ * <p>
+ * Each invalidation bumps a generation counter, a decision computed while an invalidation happened
+ * is not recorded.
+ * </p>
+ */
+class AccessIndex implements CatalogListener {
+
+    /**
+     * Maximum number of distinct role sets tracked, the cache is dropped when exceeded
+     */
+    static final int MAX_ROLE_SETS = 1024;
+
+    static final int UNKNOWN = -1;
+
+    static final int DENIED = 0;
+
+    static final int ALLOWED = 1;
+
+    /**
+     * The decisions for a set of roles
+     */
+    static final class RoleSetAccess {
+
+        final BitSet[] known = new BitSet[AccessMode.values().length];
+
+        final BitSet[] allowed = new BitSet[AccessMode.values().length];
+
+        RoleSetAccess() {
+            for (int i = 0; i < known.length; i++) {
+                known[i] = new BitSet();
+                allowed[i] = new BitSet();
+            }
+        }
+
+        synchronized int get(int ordinal, AccessMode mode) {
+            int m = mode.ordinal();
+            if (!known[m].get(ordinal)) {
+                return UNKNOWN;
+            }
+            return allowed[m].get(ordinal) ? ALLOWED : DENIED;
+        }
+
+        synchronized void set(int ordinal, AccessMode mode, boolean access) {
+            int m = mode.ordinal();
+            known[m].set(ordinal);
+            allowed[m].set(ordinal, access);
+        }
+
+        synchronized void clear(int ordinal) {
+            for (BitSet bits : known) {
+                bits.clear(ordinal);
+            }
+        }
+    }
+
+    /**
+     * The role set of the last user seen by a thread, requests check many objects in a row for
+     * the same user
+     */
+    static final class LastUser {
+
+        final Authentication user;
+
+        final Set<String> roles;
+
+        LastUser(Authentication user, Set<String> roles) {
+            this.user = user;
+            this.roles = roles;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Integer> ordinals = new ConcurrentHashMap<String, Integer>();
+
+    private final AtomicInteger nextOrdinal = new AtomicInteger();
+
+    private final ConcurrentHashMap<Set<String>, RoleSetAccess> roleSets = new ConcurrentHashMap<Set<String>, RoleSetAccess>();
+
+    private final AtomicLong generation = new AtomicLong();
+
+    private final ThreadLocal<LastUser> lastUser = new ThreadLocal<LastUser>();
+
+    /**
+     * Returns the ordinal of a catalog object, or -1 if it cannot be indexed
+     */
+    int ordinal(CatalogInfo info) {
+        String id = info.getId();
+        if (id == null) {
+            return -1; // not in the catalog (yet)
+        }
+        Integer ordinal = ordinals.get(id);
+        if (ordinal == null) {
+            Integer candidate = nextOrdinal.getAndIncrement();
+            ordinal = ordinals.putIfAbsent(id, candidate);
+            if (ordinal == null) {
+                ordinal = candidate;
+            }
+        }
+        return ordinal;
+    }
+
+    /**
+     * The decisions for the roles of the specified user
+     */
+    RoleSetAccess get(Authentication user) {
+        Set<String> roles = roles(user);
+        RoleSetAccess access = roleSets.get(roles);
+        if (access == null) {
+            if (roleSets.size() >= MAX_ROLE_SETS) {
+                roleSets.clear();
+            }
+            RoleSetAccess created = new RoleSetAccess();
+            access = roleSets.putIfAbsent(roles, created);
+            if (access == null) {
+                access = created;
+            }
+        }
+        return access;
+    }
+
+    private Set<String> roles(Authentication user) {
+        LastUser last = lastUser.get();
+        if (last != null && last.user == user) {
+            return last.roles;
+        }
+        Set<String> roles;
+        Collection<? extends GrantedAuthority> authorities = user == null ? null : user
+                .getAuthorities();
+        if (authorities == null || authorities.isEmpty()) {
+            // same decisions as the anonymous user
+            roles = Collections.emptySet();
+        } else {
+            roles = new HashSet<String>();
+            for (GrantedAuthority authority : authorities) {
+                roles.add(authority.getAuthority());
+            }
+        }
+        lastUser.set(new LastUser(user, roles));
+        return roles;
+    }
+
+    /**
+     * The current generation, to be passed to {@link #set} along with decisions computed after
+     * this call
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Records a decision, unless an invalidation happened since the generation was read
+     */
+    void set(RoleSetAccess access, int ordinal, AccessMode mode, boolean allowed, long generation) {
+        synchronized (access) {
+            if (this.generation.get() == generation) {
+                access.set(ordinal, mode, allowed);
+            }
+        }
+    }
+
+    /**
+     * Drops the decisions about a catalog object
+     */
+    void invalidate(CatalogInfo info) {
+        String id = info.getId();
+        Integer ordinal = id == null ? null : ordinals.get(id);
+        if (ordinal == null) {
+            return;
+        }
+        generation.incrementAndGet();
+        for (RoleSetAccess access : roleSets.values()) {
+            access.clear(ordinal);
+        }
+    }
+
+    /**
+     * Drops all the decisions
+     */
+    void clear() {
+        generation.incrementAndGet();
+        roleSets.clear();
+    }
+
+    /**
+     * Number of distinct role sets decisions are cached for
+     */
+    int getRoleSetCount() {
+        return roleSets.size();
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // nothing known about new objects
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        changed(event.getSource());
+        String id = event.getSource().getId();
+        if (id != null) {
+            ordinals.remove(id);
+        }
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        changed(event.getSource());
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        changed(event.getSource());
+    }
+
+    private void changed(CatalogInfo source) {
+        if (source instanceof WorkspaceInfo || source instanceof StoreInfo) {
+            clear();
+        } else if (source instanceof ResourceInfo) {
+            invalidate(source);
+        }
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+        ordinals.clear();
+    }
+}
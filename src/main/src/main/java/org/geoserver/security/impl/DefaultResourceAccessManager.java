@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -31,6 +32,7 @@ import org.geoserver.security.CatalogMode;
 import org.geoserver.security.CoverageAccessLimits;
 import org.geoserver.security.DataAccessLimits;
 import org.geoserver.security.DataAccessManager;
+import org.geoserver.security.GeoServerSecurityFilterChainProxy;
 import org.geoserver.security.InMemorySecurityFilter;
 import org.geoserver.security.LayerGroupAccessLimits;
 import org.geoserver.security.ResourceAccessManager;
@@ -68,13 +70,18 @@ import org.springframework.security.core.Authentication;
  * If no {@link Properties} is provided, one will be looked upon in
  * <code>GEOSERVER_DATA_DIR/security/layers.properties, and the class will
  * keep up to date vs changes in the file</code>
+ * <p>
+ * The decisions taken on workspaces and resources are cached for each set of roles in an
+ * {@link AccessIndex}, kept up to date with the rules and the catalog contents, and the resulting
+ * access limits are shared, so that securing a long list of catalog objects costs little more
+ * than listing them.
  * 
  * @author Andrea Aime - TOPP
  */
 public class DefaultResourceAccessManager implements ResourceAccessManager, DataAccessManager {
     static final Logger LOGGER = Logging.getLogger(DefaultResourceAccessManager.class);
 
-    SecureTreeNode root;
+    volatile SecureTreeNode root;
 
 //    Catalog catalog;
     
@@ -82,9 +89,27 @@ public class DefaultResourceAccessManager implements ResourceAccessManager, Data
 
     long lastLoaded = Long.MIN_VALUE;
 
+    /**
+     * Cached decisions, by role set
+     */
+    final AccessIndex index = new AccessIndex();
+
+    /**
+     * Shared data access limits, by resource class, see {@link #limitsSlot}
+     */
+    final Map<Class<?>, DataAccessLimits[]> dataLimits = new ConcurrentHashMap<Class<?>, DataAccessLimits[]>();
+
+    /**
+     * Shared workspace access limits, by catalog mode and access flags
+     */
+    final WorkspaceAccessLimits[] workspaceLimits = new WorkspaceAccessLimits[CatalogMode.values().length * 8];
+
     public DefaultResourceAccessManager(DataAccessRuleDAO dao) {
         this.dao = dao;
         this.root = buildAuthorizationTree(dao);
+        if (dao != null && dao.rawCatalog != null) {
+            dao.rawCatalog.addListener(index);
+        }
     }
 
     public CatalogMode getMode() {
@@ -93,8 +118,25 @@ public class DefaultResourceAccessManager implements ResourceAccessManager, Data
 
     public boolean canAccess(Authentication user, WorkspaceInfo workspace, AccessMode mode) {
         checkPropertyFile();
+        if (!GeoServerSecurityFilterChainProxy.isSecurityEnabledForCurrentRequest()) {
+            return true;
+        }
+        // read the decisions before the tree, see checkPropertyFile
+        AccessIndex.RoleSetAccess access = index.get(user);
+        int ordinal = index.ordinal(workspace);
+        if (ordinal >= 0) {
+            int cached = access.get(ordinal, mode);
+            if (cached != AccessIndex.UNKNOWN) {
+                return cached == AccessIndex.ALLOWED;
+            }
+        }
+        long generation = index.getGeneration();
         SecureTreeNode node = root.getDeepestNode(new String[] { workspace.getName() });
-        return node.canAccess(user, mode);
+        boolean allowed = node.canAccess(user, mode);
+        if (ordinal >= 0) {
+            index.set(access, ordinal, mode, allowed, generation);
+        }
+        return allowed;
     }
 
     public boolean canAccess(Authentication user, LayerInfo layer, AccessMode mode) {
@@ -112,6 +154,18 @@ public class DefaultResourceAccessManager implements ResourceAccessManager, Data
 
     public boolean canAccess(Authentication user, ResourceInfo resource, AccessMode mode) {
         checkPropertyFile();
+        if (!GeoServerSecurityFilterChainProxy.isSecurityEnabledForCurrentRequest()) {
+            return true;
+        }
+        AccessIndex.RoleSetAccess access = index.get(user);
+        int ordinal = index.ordinal(resource);
+        if (ordinal >= 0) {
+            int cached = access.get(ordinal, mode);
+            if (cached != AccessIndex.UNKNOWN) {
+                return cached == AccessIndex.ALLOWED;
+            }
+        }
+        long generation = index.getGeneration();
         String workspace;
         try {
             workspace = resource.getStore().getWorkspace().getName();
@@ -123,13 +177,19 @@ public class DefaultResourceAccessManager implements ResourceAccessManager, Data
         }
 
         SecureTreeNode node = root.getDeepestNode(new String[] { workspace, resource.getName() });
-        return node.canAccess(user, mode);
+        boolean allowed = node.canAccess(user, mode);
+        if (ordinal >= 0) {
+            index.set(access, ordinal, mode, allowed, generation);
+        }
+        return allowed;
     }
 
     void checkPropertyFile() {
         long daoLastModified = dao.getLastModified();
         if(lastLoaded < daoLastModified) {
+            // swap the tree before dropping the decisions, readers pick the decisions first
             root = buildAuthorizationTree(dao);
+            index.clear();
             lastLoaded = daoLastModified;
         }
     }
@@ -198,6 +258,39 @@ public class DefaultResourceAccessManager implements ResourceAccessManager, Data
     DataAccessLimits buildLimits(Class<? extends ResourceInfo> resourceClass, Filter readFilter,
             Filter writeFilter) {
         CatalogMode mode = getMode();
+        int slot = limitsSlot(mode, readFilter, writeFilter);
+        if (slot < 0) {
+            return createLimits(mode, resourceClass, readFilter, writeFilter);
+        }
+        // limits are immutable, share them among the resources of the same class
+        DataAccessLimits[] limits = dataLimits.get(resourceClass);
+        if (limits == null) {
+            limits = new DataAccessLimits[CatalogMode.values().length * 4];
+            dataLimits.put(resourceClass, limits);
+        }
+        DataAccessLimits result = limits[slot];
+        if (result == null) {
+            result = createLimits(mode, resourceClass, readFilter, writeFilter);
+            limits[slot] = result;
+        }
+        return result;
+    }
+
+    /**
+     * Position of the limits in the shared limits array, -1 if the filters are not the
+     * include/exclude ones
+     */
+    private int limitsSlot(CatalogMode mode, Filter readFilter, Filter writeFilter) {
+        if ((readFilter != Filter.INCLUDE && readFilter != Filter.EXCLUDE)
+                || (writeFilter != Filter.INCLUDE && writeFilter != Filter.EXCLUDE)) {
+            return -1;
+        }
+        return mode.ordinal() * 4 + (readFilter == Filter.INCLUDE ? 2 : 0)
+                + (writeFilter == Filter.INCLUDE ? 1 : 0);
+    }
+
+    private DataAccessLimits createLimits(CatalogMode mode,
+            Class<? extends ResourceInfo> resourceClass, Filter readFilter, Filter writeFilter) {
 
         // allow the secure catalog to avoid any kind of wrapping if there are no limits
         if ((readFilter == null || readFilter == Filter.INCLUDE)
@@ -235,7 +328,14 @@ public class DefaultResourceAccessManager implements ResourceAccessManager, Data
                 return null;
             }
         }
-        return new WorkspaceAccessLimits(mode, readable, writable, adminable);
+        int slot = mode.ordinal() * 8 + (readable ? 4 : 0) + (writable ? 2 : 0)
+                + (adminable ? 1 : 0);
+        WorkspaceAccessLimits limits = workspaceLimits[slot];
+        if (limits == null) {
+            limits = new WorkspaceAccessLimits(mode, readable, writable, adminable);
+            workspaceLimits[slot] = limits;
+        }
+        return limits;
     }
 
     @Override
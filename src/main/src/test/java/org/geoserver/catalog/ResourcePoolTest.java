@@ -9,6 +9,7 @@ package org.geoserver.catalog;
 import static org.junit.Assert.*;
 
 import java.awt.image.RenderedImage;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
@@ -24,12 +25,17 @@ import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.geoserver.catalog.impl.CatalogImpl;
 import org.geoserver.catalog.util.ReaderUtils;
 import org.geoserver.config.GeoServer;
 import org.geoserver.config.GeoServerDataDirectory;
 import org.geoserver.config.GeoServerInfo;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
+import org.geoserver.platform.GeoServerResourceLoader;
+import org.geoserver.platform.resource.CachingResourceStore;
+import org.geoserver.platform.resource.FileSystemResourceStore;
 import org.geoserver.test.GeoServerSystemTestSupport;
 import org.geoserver.test.RunTestSetup;
 import org.geoserver.test.SystemTest;
@@ -287,6 +293,30 @@ public class ResourcePoolTest extends GeoServerSystemTestSupport {
         assertEquals("foo", lakes.getTitle());
     }
     
+    @Test
+    public void testStyleReadsCached() throws IOException {
+        CachingResourceStore store = new CachingResourceStore(new FileSystemResourceStore(
+                getDataDirectory().root()), 1024 * 1024, 64 * 1024);
+        CatalogImpl catalog = new CatalogImpl();
+        catalog.setResourceLoader(new GeoServerResourceLoader(store));
+        ResourcePool pool = ResourcePool.create(catalog);
+        StyleInfo si = getCatalog().getStyleByName(StyleInfo.DEFAULT_POINT);
+
+        String sld;
+        try (BufferedReader reader = pool.readStyle(si)) {
+            sld = IOUtils.toString(reader);
+        }
+        assertEquals(0, store.getHits());
+        try (BufferedReader reader = pool.readStyle(si)) {
+            assertEquals(sld, IOUtils.toString(reader));
+        }
+        assertEquals(1, store.getHits());
+
+        // parsing goes through the cache as well
+        assertNotNull(new GeoServerDataDirectory(catalog.getResourceLoader()).parsedStyle(si));
+        assertEquals(2, store.getHits());
+    }
+
     @Test
     public void testSEStyleWithRelativePath() throws IOException {
         StyleInfo si = getCatalog().getStyleByName("relative");
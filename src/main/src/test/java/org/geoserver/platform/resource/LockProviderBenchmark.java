@@ -0,0 +1,92 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.platform.resource;
+
+import static org.geoserver.test.ConcurrentBenchmark.intArg;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.FileUtils;
+import org.geoserver.test.ConcurrentBenchmark;
+
+/**
+ * Compares the throughput of the lock providers under contention, with a number of threads
+ * locking a limited set of keys, the way concurrent requests hit the same metatiles. Not a unit
+ * test, run it from the IDE or with:
+ *
+ * <pre>
+ * java org.geoserver.platform.resource.LockProviderBenchmark [threads] [keys] [seconds]
+ * </pre>
+ */
+public class LockProviderBenchmark {
+
+    /**
+     * Keeps the critical section from being optimized away
+     */
+    static final AtomicLong SINK = new AtomicLong();
+
+    public static void main(String[] args) throws Exception {
+        final int threads = intArg(args, 0, 32);
+        final int keys = intArg(args, 1, 64);
+        final int seconds = intArg(args, 2, 10);
+
+        File root = new File("target", "lockProviderBenchmark");
+        FileUtils.deleteDirectory(root);
+        root.mkdirs();
+        try {
+            run("MemoryLockProvider", new MemoryLockProvider(), threads, keys, seconds);
+            run("FileLockProvider", new FileLockProvider(root), threads, keys, seconds);
+            StripedLockProvider striped = new StripedLockProvider();
+            run("StripedLockProvider", striped, threads, keys, seconds);
+            System.out.printf("  contended: %d/%d, average wait: %.3f ms, max wait: %d ms, "
+                    + "max queue: %d%n", striped.getContendedAcquisitions(),
+                    striped.getAcquisitions(), striped.getAverageWaitTime(),
+                    striped.getMaxWaitTime(), striped.getMaxQueueLength());
+        } finally {
+            FileUtils.deleteDirectory(root);
+        }
+    }
+
+    private static void run(String name, final LockProvider provider, int threads,
+            final int keys, int seconds) throws InterruptedException {
+        final AtomicLong maxWait = new AtomicLong();
+        long rate = ConcurrentBenchmark.run(name, threads, seconds,
+                new ConcurrentBenchmark.Worker() {
+
+                    @Override
+                    public long run(int thread, long deadline) {
+                        long count = 0;
+                        long worst = 0;
+                        long sink = 0;
+                        int key = thread;
+                        while (System.currentTimeMillis() < deadline) {
+                            key = (key * 31 + 17) % keys;
+                            long start = System.nanoTime();
+                            Resource.Lock lock = provider.acquire("layer/EPSG:4326/png/" + key);
+                            worst = Math.max(worst, System.nanoTime() - start);
+                            try {
+                                // a short critical section
+                                for (int i = 0; i < 1000; i++) {
+                                    sink += i ^ key;
+                                }
+                            } finally {
+                                lock.release();
+                            }
+                            count++;
+                        }
+                        SINK.addAndGet(sink);
+                        long max;
+                        do {
+                            max = maxWait.get();
+                        } while (worst > max && !maxWait.compareAndSet(max, worst));
+                        return count;
+                    }
+                });
+        System.out.printf("%s: %,d locks/s with %d threads on %d keys, max wait %d ms%n", name,
+                rate, threads, keys, maxWait.get() / 1000000);
+    }
+}
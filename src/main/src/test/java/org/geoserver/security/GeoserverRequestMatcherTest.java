@@ -7,6 +7,10 @@ package org.geoserver.security;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import org.geoserver.test.GeoServerMockTestSupport;
 import org.junit.Test;
 import org.springframework.security.web.util.RequestMatcher;
@@ -69,6 +73,121 @@ public class GeoserverRequestMatcherTest extends GeoServerMockTestSupport {
     }
     
     
+    static final String[] PATTERNS = { "/**", "**", "/web/**", "/wms", "/wms/**", "/WMS/**",
+            "/gwc/rest/**", "/gwc/rest/web/**", "/gwc/**", "/*/wms", "/*/wms/**", "/**/*.png",
+            "/rest/**", "/rest/*/styles/**", "/web/?ab", "/j_spring_security_check",
+            "/j_spring_security_check/", "/**/ows", "/ows*", "/{ws}/wms/**", "/topp/wfs/**",
+            "wms/**", "/web", "/web/", "/ Web /**" };
+
+    static final String[] PATHS = { "/", "", "/wms", "/WMS", "/wms/", "/wms/GetMap", "/web",
+            "/web/", "/web/xab", "/web/abab", "/website", "/gwc/rest/web/layers",
+            "/gwc/rest/layers.xml", "/gwc/service/wmts", "/topp/wms", "/topp/wms/reflect",
+            "/topp/wfs", "/rest/workspaces/styles/a.sld", "/rest/topp/styles/a.sld",
+            "/j_spring_security_check", "/j_spring_security_check/", "//web/x", "/a/b/c/d.png",
+            "/ows", "/owsx", "/topp/ows", "/Topp/WFS/x", "/ web /x" };
+
+    @Test
+    public void testCompiledMatcher() {
+        GeoServerSecurityFilterChainProxy proxy = new GeoServerSecurityFilterChainProxy(getSecurityManager());
+
+        List<RequestFilterChain> chains = new ArrayList<RequestFilterChain>();
+        chains.add(new ServiceLoginFilterChain("/web/**,/gwc/rest/web/**"));
+        ServiceLoginFilterChain rest = new ServiceLoginFilterChain("/rest/**");
+        rest.getHttpMethods().add(HTTPMethod.PUT);
+        rest.setMatchHTTPMethod(true);
+        chains.add(rest);
+        chains.add(new ServiceLoginFilterChain("/**"));
+        CompiledRequestMatcher compiled = new CompiledRequestMatcher(chains);
+
+        assertEquals(0, compiled.indexOf(createRequest(HTTPMethod.GET, "/gwc/rest/web/x")));
+        assertEquals(1, compiled.indexOf(createRequest(HTTPMethod.PUT, "/rest/layers")));
+        assertEquals(2, compiled.indexOf(createRequest(HTTPMethod.GET, "/rest/layers")));
+        assertEquals(2, compiled.indexOf(createRequest(HTTPMethod.GET, "/wms")));
+
+        MockHttpServletRequest request = createRequest(HTTPMethod.GET, "/web/");
+        assertTrue(compiled.getChainMatcher(0).matches(request));
+        assertFalse(compiled.getChainMatcher(2).matches(request));
+        // the match is recomputed if the request changes
+        request.setPathInfo("/ows");
+        assertFalse(compiled.getChainMatcher(0).matches(request));
+        assertTrue(compiled.getChainMatcher(2).matches(request));
+        checkSameMatch(proxy, chains, compiled, request);
+    }
+
+    /**
+     * Checks the compiled matcher against the ordered matching on random chains and requests
+     */
+    @Test
+    public void testCompiledMatcherRandom() {
+        GeoServerSecurityFilterChainProxy proxy = new GeoServerSecurityFilterChainProxy(getSecurityManager());
+        Random random = new Random(42);
+        for (int run = 0; run < 500; run++) {
+            List<RequestFilterChain> chains = new ArrayList<RequestFilterChain>();
+            int size = 1 + random.nextInt(12);
+            for (int i = 0; i < size; i++) {
+                ServiceLoginFilterChain chain;
+                if (random.nextInt(10) == 0) {
+                    // comma separated patterns
+                    chain = new ServiceLoginFilterChain(randomPattern(random) + ","
+                            + randomPattern(random));
+                } else {
+                    String[] patterns = new String[1 + random.nextInt(3)];
+                    for (int j = 0; j < patterns.length; j++) {
+                        patterns[j] = randomPattern(random);
+                    }
+                    chain = new ServiceLoginFilterChain(patterns);
+                }
+                chain.setName("chain" + i);
+                for (HTTPMethod method : HTTPMethod.values()) {
+                    if (random.nextBoolean()) {
+                        chain.getHttpMethods().add(method);
+                    }
+                }
+                chain.setMatchHTTPMethod(random.nextInt(3) == 0);
+                chains.add(chain);
+            }
+            CompiledRequestMatcher compiled = new CompiledRequestMatcher(chains);
+
+            for (String path : PATHS) {
+                for (HTTPMethod method : HTTPMethod.values()) {
+                    checkSameMatch(proxy, chains, compiled, createRequest(method, path));
+                }
+                MockHttpServletRequest request = createRequest(HTTPMethod.GET, path);
+                request.setMethod("PATCH");
+                checkSameMatch(proxy, chains, compiled, request);
+            }
+        }
+    }
+
+    String randomPattern(Random random) {
+        return PATTERNS[random.nextInt(PATTERNS.length)];
+    }
+
+    void checkSameMatch(GeoServerSecurityFilterChainProxy proxy, List<RequestFilterChain> chains,
+            CompiledRequestMatcher compiled, MockHttpServletRequest request) {
+        String expected;
+        try {
+            expected = "none";
+            for (int i = 0; i < chains.size(); i++) {
+                if (proxy.matcherForChain(chains.get(i)).matches(request)) {
+                    expected = String.valueOf(i);
+                    break;
+                }
+            }
+        } catch (RuntimeException e) {
+            expected = "error";
+        }
+        String actual;
+        try {
+            int index = compiled.match(request);
+            actual = index < 0 ? "none" : String.valueOf(index);
+        } catch (RuntimeException e) {
+            actual = "error";
+        }
+        assertEquals(request.getMethod() + " " + request.getPathInfo() + " on " + chains,
+                expected, actual);
+    }
+
     MockHttpServletRequest createRequest(HTTPMethod method,String pathInfo) {
         MockHttpServletRequest request=new MockHttpServletRequest();
         request.setServletPath("");
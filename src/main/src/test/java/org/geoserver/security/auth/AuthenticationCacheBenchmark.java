@@ -0,0 +1,93 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.security.auth;
+
+import static org.geoserver.test.ConcurrentBenchmark.intArg;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.geoserver.test.ConcurrentBenchmark;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+
+/**
+ * Compares the throughput of the authentication caches with a number of threads looking up a
+ * limited set of users, the way concurrent requests authenticated by a caching filter do, with a
+ * small fraction of misses followed by a put. Not a unit test, run it from the IDE or with:
+ *
+ * <pre>
+ * java org.geoserver.security.auth.AuthenticationCacheBenchmark [threads] [users] [seconds]
+ * </pre>
+ */
+public class AuthenticationCacheBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        final int threads = intArg(args, 0, 32);
+        final int users = intArg(args, 1, 2000);
+        final int seconds = intArg(args, 2, 10);
+        // smaller than the user base, so that the eviction gets exercised
+        final int maxEntries = users * 3 / 4;
+
+        run("LRUAuthenticationCacheImpl", new LRUAuthenticationCacheImpl(maxEntries), threads,
+                users, seconds);
+        GuavaAuthenticationCacheImpl guava = new GuavaAuthenticationCacheImpl(maxEntries);
+        try {
+            run("GuavaAuthenticationCacheImpl", guava, threads, users, seconds);
+        } finally {
+            guava.destroy();
+        }
+        ConcurrentAuthenticationCacheImpl concurrent = new ConcurrentAuthenticationCacheImpl(
+                maxEntries);
+        try {
+            run("ConcurrentAuthenticationCacheImpl", concurrent, threads, users, seconds);
+            System.out.printf("  hit ratio: %.3f, evictions: %d%n", concurrent.getHitRatio(),
+                    concurrent.getEvictions());
+        } finally {
+            concurrent.destroy();
+        }
+    }
+
+    private static void run(String name, final AuthenticationCache cache, int threads,
+            final int users, int seconds) throws InterruptedException {
+        final String[] keys = new String[users];
+        for (int i = 0; i < users; i++) {
+            keys[i] = "user" + i + ":secret";
+            cache.put("basic", keys[i], new UsernamePasswordAuthenticationToken("user" + i,
+                    "secret"));
+        }
+        final AtomicLong misses = new AtomicLong();
+        long rate = ConcurrentBenchmark.run(name, threads, seconds,
+                new ConcurrentBenchmark.Worker() {
+
+                    @Override
+                    public long run(int thread, long deadline) {
+                        long count = 0;
+                        long missed = 0;
+                        int x = thread * 7919 + 1;
+                        while (System.currentTimeMillis() < deadline) {
+                            for (int i = 0; i < 100; i++) {
+                                // skewed access, a few users make most of the requests
+                                x ^= x << 13;
+                                x ^= x >>> 17;
+                                x ^= x << 5;
+                                int r = (x & Integer.MAX_VALUE) % users;
+                                int user = (int) ((long) r * r / users);
+                                if (cache.get("basic", keys[user]) == null) {
+                                    missed++;
+                                    cache.put("basic", keys[user],
+                                            new UsernamePasswordAuthenticationToken("user"
+                                                    + user, "secret"));
+                                }
+                            }
+                            count += 100;
+                        }
+                        misses.addAndGet(missed);
+                        return count;
+                    }
+                });
+        System.out.printf("%s: %,d lookups/s with %d threads on %d users, %.2f%% misses%n", name,
+                rate, threads, users, misses.get() * 100.0 / Math.max(1, rate * seconds));
+    }
+}
@@ -0,0 +1,77 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.security.auth;
+
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+
+/**
+ * Unit tests for the lock free AuthenticationCache implementation.
+ */
+public class ConcurrentAuthenticationCacheTest extends BaseAuthenticationCacheTest {
+
+    @Override
+    protected AuthenticationCache createAuthenticationCache() {
+        return new ConcurrentAuthenticationCacheImpl(MAX_ENTRIES, TIME_IDLE, TIME_LIVE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        ((ConcurrentAuthenticationCacheImpl) cache).destroy();
+    }
+
+    public void testEviction() {
+        ConcurrentAuthenticationCacheImpl cache = new ConcurrentAuthenticationCacheImpl(3, 10,
+                10, 1000, false);
+        cache.put("filtera", "key1", new UsernamePasswordAuthenticationToken("user1", "pw"));
+        cache.put("filtera", "key2", new UsernamePasswordAuthenticationToken("user2", "pw"));
+        cache.put("filtera", "key3", new UsernamePasswordAuthenticationToken("user3", "pw"));
+        // key1 is referenced, gets a second chance
+        assertNotNull(cache.get("filtera", "key1"));
+        cache.put("filtera", "key4", new UsernamePasswordAuthenticationToken("user4", "pw"));
+
+        assertEquals(3, cache.size());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get("filtera", "key1"));
+        assertNull(cache.get("filtera", "key2"));
+        assertNotNull(cache.get("filtera", "key3"));
+        assertNotNull(cache.get("filtera", "key4"));
+    }
+
+    public void testTimerWheel() {
+        ConcurrentAuthenticationCacheImpl cache = new ConcurrentAuthenticationCacheImpl(10, 1,
+                600, 100, false);
+        cache.put("filtera", "idle", new UsernamePasswordAuthenticationToken("user1", "pw"));
+        cache.put("filtera", "live", new UsernamePasswordAuthenticationToken("user2", "pw"), 600,
+                2);
+        long now = System.currentTimeMillis();
+
+        cache.expire(now + 500);
+        assertEquals(2, cache.size());
+        cache.expire(now + 1500);
+        assertEquals(1, cache.size());
+        cache.expire(now + 2500);
+        assertTrue(cache.isEmpty());
+        assertEquals(2, cache.getExpirations());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    public void testStatistics() {
+        ConcurrentAuthenticationCacheImpl cache = (ConcurrentAuthenticationCacheImpl) this.cache;
+        putAuthenticationInCache();
+        assertNotNull(cache.get(SAMPLE_FILTER, SAMPLE_CACHE_KEY));
+        assertNotNull(cache.get(SAMPLE_FILTER, SAMPLE_CACHE_KEY));
+        assertNotNull(cache.get(SAMPLE_FILTER, SAMPLE_CACHE_KEY));
+        assertNull(cache.get(SAMPLE_FILTER, OTHER_CACHE_KEY));
+
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRatio(), 1e-9);
+
+        cache.resetStatistics();
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getHitRatio(), 1e-9);
+    }
+}
@@ -4,10 +4,17 @@
  * application directory.
  */
 package org.geoserver.security.impl;
+import static org.easymock.EasyMock.*;
 import static org.junit.Assert.*;
 
+import java.util.Arrays;
+
+import org.springframework.security.authentication.TestingAuthenticationToken;
 import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+import org.geoserver.catalog.FeatureTypeInfo;
 import org.geoserver.catalog.ResourceInfo;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
 import org.geoserver.security.AccessMode;
 import org.geoserver.security.CatalogMode;
 import org.geoserver.security.DataAccessManager;
@@ -144,4 +151,38 @@ public class DefaultDataAccessManagerAuthTest extends AbstractAuthorizationTest
         assertEquals(CatalogMode.HIDE, wo.getMode());
     }
     
+    @Test
+    public void testCachedDecisions() throws Exception {
+        DefaultResourceAccessManager manager = (DefaultResourceAccessManager) buildLegacyAccessManager("complex.properties");
+        FeatureTypeInfo states = buildIndexedResource("ft-1", "states");
+        // the same catalog object, once renamed
+        FeatureTypeInfo renamed = buildIndexedResource("ft-1", "roads");
+
+        assertFalse(manager.canAccess(anonymous, states, AccessMode.READ));
+        assertTrue(manager.canAccess(roUser, states, AccessMode.READ));
+        // users with the same roles share the decisions
+        Authentication otherReader = new TestingAuthenticationToken("ro2", "secret",
+                Arrays.asList(new GrantedAuthority[] { new GeoServerRole("READER") }));
+        assertTrue(manager.canAccess(otherReader, states, AccessMode.READ));
+        assertEquals(2, manager.index.getRoleSetCount());
+
+        // the decision sticks until the catalog reports the change
+        assertFalse(manager.canAccess(anonymous, renamed, AccessMode.READ));
+        CatalogPostModifyEvent event = createNiceMock(CatalogPostModifyEvent.class);
+        expect(event.getSource()).andReturn(renamed).anyTimes();
+        replay(event);
+        manager.index.handlePostModifyEvent(event);
+        assertTrue(manager.canAccess(anonymous, renamed, AccessMode.READ));
+        assertTrue(manager.canAccess(otherReader, renamed, AccessMode.READ));
+    }
+
+    private FeatureTypeInfo buildIndexedResource(String id, String name) {
+        FeatureTypeInfo resource = createNiceMock(FeatureTypeInfo.class);
+        expect(resource.getId()).andReturn(id).anyTimes();
+        expect(resource.getName()).andReturn(name).anyTimes();
+        expect(resource.getStore()).andReturn(statesStore).anyTimes();
+        replay(resource);
+        return resource;
+    }
+
 }
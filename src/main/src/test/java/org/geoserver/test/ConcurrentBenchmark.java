@@ -0,0 +1,75 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Shared harness for the throughput benchmarks found in the test trees: a number of threads repeat
+ * an operation until a deadline, and the operations per second are reported back. The benchmarks
+ * are not unit tests, but main classes run from the IDE or the command line.
+ */
+public class ConcurrentBenchmark {
+
+    /**
+     * The work done by each of the benchmark threads
+     */
+    public interface Worker {
+
+        /**
+         * Repeats the benchmarked operation until the deadline is passed
+         *
+         * @param thread the index of the running thread, to vary the access pattern among threads
+         * @param deadline the end of the run, as returned by {@link System#currentTimeMillis()}
+         * @return the number of operations performed
+         */
+        long run(int thread, long deadline) throws Exception;
+    }
+
+    /**
+     * Returns the command line argument at the given position as an integer, or the default value
+     * if missing
+     */
+    public static int intArg(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+
+    /**
+     * Runs the worker in the given number of threads for the given number of seconds
+     *
+     * @param name the benchmark name, used to name the threads
+     * @return the operations per second performed by all threads together
+     */
+    public static long run(String name, int threads, int seconds, final Worker worker)
+            throws InterruptedException {
+        final AtomicLong operations = new AtomicLong();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long deadline = System.currentTimeMillis() + seconds * 1000L;
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            new Thread(name + "-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        operations.addAndGet(worker.run(thread, deadline));
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        done.await();
+        if (failure.get() != null) {
+            throw new RuntimeException(name + " benchmark failed", failure.get());
+        }
+        return operations.get() / seconds;
+    }
+}
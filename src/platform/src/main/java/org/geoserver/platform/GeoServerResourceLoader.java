@@ -18,6 +18,7 @@ import java.util.logging.Logger;
 
 import javax.servlet.ServletContext;
 
+import org.geoserver.platform.resource.CachingResourceStore;
 import org.geoserver.platform.resource.FileSystemResourceStore;
 import org.geoserver.platform.resource.Files;
 import org.geoserver.platform.resource.Paths;
@@ -165,7 +166,13 @@ public class GeoServerResourceLoader extends DefaultResourceLoader implements Re
      */
     public void setBaseDirectory(File baseDirectory) {
         this.baseDirectory = baseDirectory;
-        this.resources = new FileSystemResourceStore( baseDirectory );
+        ResourceStore store = new FileSystemResourceStore( baseDirectory );
+        if( resources instanceof CachingResourceStore ){
+            // keep caching the resources of the new base directory
+            CachingResourceStore cache = (CachingResourceStore) resources;
+            store = new CachingResourceStore( store, cache.getMaxSize(), cache.getMaxEntrySize() );
+        }
+        this.resources = store;
     }
 
     @Override
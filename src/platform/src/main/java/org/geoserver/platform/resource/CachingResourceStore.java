@@ -0,0 +1,595 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.platform.resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.resource.ResourceNotification.Event;
+
+/**
+ * ResourceStore decorator keeping the contents of small resources in memory, so that hot
+ * configuration (styles, templates, security configuration) is not read again from disk by every
+ * request using it.
+ * <p>
+ * Contents are cached as they are read through {@link Resource#in()}, when read completely, and
+ * are served from memory afterwards. The cache is bounded by the total size of the cached contents,
+ * evicting the least recently used resources first; resources larger than the maximum entry size
+ * are never cached.
+ * <p>
+ * Cached contents are invalidated by writes through this store ({@link Resource#out()},
+ * {@link Resource#delete()}, {@link Resource#renameTo(Resource)}, {@link #remove(String)} and
+ * {@link #move(String, String)}), and by the change notifications of the delegate store for edits
+ * made behind its back, tracked with a listener on the directory of each cached resource. Since
+ * those notifications are delivered asynchronously, and callers may write to the file returned by
+ * {@link Resource#file()} at any time, each cached entry also records the last modified time of
+ * the resource, and is dropped as soon as that changes. Resources accessed as files keep being
+ * cached, only reads going straight to the file bypass the cache.
+ * <p>
+ * The size of the cache can be set with the {@value #CACHE_SIZE_PROPERTY} property (in bytes,
+ * zero disables caching).
+ */
+public class CachingResourceStore implements ResourceStore {
+
+    static final Logger LOGGER = Logger.getLogger(CachingResourceStore.class.getPackage()
+            .getName());
+
+    /**
+     * System property, servlet context parameter or environment variable setting the cache size
+     */
+    public static final String CACHE_SIZE_PROPERTY = "GEOSERVER_RESOURCE_CACHE_SIZE";
+
+    static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    static final int DEFAULT_MAX_ENTRY_SIZE = 256 * 1024;
+
+    final ResourceStore delegate;
+
+    final long maxSize;
+
+    final int maxEntrySize;
+
+    /**
+     * Cached contents by resource path, least recently used first
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16,
+            0.75f, true);
+
+    /**
+     * Total size of the cached contents, guarded by {@link #entries}
+     */
+    private long size;
+
+    /**
+     * Incremented on each invalidation, contents read before an invalidation are not cached
+     */
+    private final AtomicLong generation = new AtomicLong();
+
+    /**
+     * Directories listened to for external changes
+     */
+    private final Set<String> watched = Collections
+            .newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Invalidates the resources changed in a watched directory
+     */
+    private final ResourceListener listener = new ResourceListener() {
+        @Override
+        public void changed(ResourceNotification notify) {
+            List<Event> events = notify.events();
+            if (events.isEmpty()) {
+                invalidate(notify.getPath());
+            } else {
+                for (Event event : events) {
+                    invalidate(Paths.path(notify.getPath(), event.getPath()));
+                }
+            }
+        }
+    };
+
+    public CachingResourceStore(ResourceStore delegate) {
+        this(delegate, getCacheSize(), DEFAULT_MAX_ENTRY_SIZE);
+    }
+
+    /**
+     * @param delegate the store holding the resources
+     * @param maxSize the maximum total size of the cached contents, in bytes
+     * @param maxEntrySize the size of the largest resource cached, in bytes
+     */
+    public CachingResourceStore(ResourceStore delegate, long maxSize, int maxEntrySize) {
+        if (delegate == null) {
+            throw new NullPointerException("Delegate resource store required");
+        }
+        this.delegate = delegate;
+        this.maxSize = Math.max(0, maxSize);
+        this.maxEntrySize = (int) Math.min(Math.max(0, maxEntrySize), this.maxSize);
+    }
+
+    private static long getCacheSize() {
+        String value = GeoServerExtensions.getProperty(CACHE_SIZE_PROPERTY);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Invalid " + CACHE_SIZE_PROPERTY + " value " + value
+                        + ", using the default cache size");
+            }
+        }
+        return DEFAULT_CACHE_SIZE;
+    }
+
+    /**
+     * The decorated store
+     */
+    public ResourceStore getDelegate() {
+        return delegate;
+    }
+
+    @Override
+    public Resource get(String path) {
+        return wrap(delegate.get(path));
+    }
+
+    @Override
+    public boolean remove(String path) {
+        try {
+            return delegate.remove(path);
+        } finally {
+            invalidate(Paths.valid(path));
+        }
+    }
+
+    @Override
+    public boolean move(String path, String target) {
+        try {
+            return delegate.move(path, target);
+        } finally {
+            invalidate(Paths.valid(path));
+            invalidate(Paths.valid(target));
+        }
+    }
+
+    private Resource wrap(Resource resource) {
+        return resource == null ? null : new CachingResource(resource);
+    }
+
+    private byte[] lookup(Resource resource) {
+        String path = resource.path();
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(path);
+        }
+        if (entry != null && entry.lastModified != resource.lastmodified()) {
+            // changed behind our back, the notification might not have arrived yet
+            invalidate(path);
+            entry = null;
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.bytes;
+    }
+
+    private void put(String path, byte[] bytes, long lastModified, long readGeneration) {
+        if (bytes.length > maxEntrySize) {
+            return;
+        }
+        synchronized (entries) {
+            if (generation.get() != readGeneration) {
+                return; // changed while being read
+            }
+            Entry previous = entries.put(path, new Entry(bytes, lastModified));
+            size += bytes.length - (previous == null ? 0 : previous.bytes.length);
+            Iterator<Entry> it = entries.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                size -= it.next().bytes.length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+        String parent = parent(path);
+        if (watched.add(parent)) {
+            try {
+                delegate.get(parent).addListener(listener);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Unable to listen to changes of " + parent, e);
+            }
+        }
+    }
+
+    /**
+     * Drops the cached contents of a resource, or of all the resources in a directory.
+     */
+    void invalidate(String path) {
+        String prefix = Paths.BASE.equals(path) ? Paths.BASE : path + "/";
+        synchronized (entries) {
+            generation.incrementAndGet();
+            for (Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator(); it
+                    .hasNext();) {
+                Map.Entry<String, Entry> entry = it.next();
+                if (entry.getKey().equals(path) || entry.getKey().startsWith(prefix)) {
+                    size -= entry.getValue().bytes.length;
+                    it.remove();
+                    invalidations.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static String parent(String path) {
+        int split = path.lastIndexOf('/');
+        return split == -1 ? Paths.BASE : path.substring(0, split);
+    }
+
+    /**
+     * The maximum total size of the cached contents, in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * The size of the largest resource cached, in bytes
+     */
+    public int getMaxEntrySize() {
+        return maxEntrySize;
+    }
+
+    /**
+     * Number of reads served from memory
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Number of reads that had to go to the delegate store
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Share of the reads served from memory, between 0 and 1
+     */
+    public double getHitRatio() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : hits / (double) total;
+    }
+
+    /**
+     * Number of cached resources dropped to make room for others
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Number of cached resources dropped as they were changed
+     */
+    public long getInvalidations() {
+        return invalidations.get();
+    }
+
+    /**
+     * Number of resources cached
+     */
+    public int getCount() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Total size of the cached contents, in bytes
+     */
+    public long getSize() {
+        synchronized (entries) {
+            return size;
+        }
+    }
+
+    /**
+     * Drops all the cached contents
+     */
+    public void clear() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CachingResourceStore " + delegate;
+    }
+
+    /**
+     * The cached contents of a resource, along with its last modified time when read
+     */
+    static final class Entry {
+
+        final byte[] bytes;
+
+        final long lastModified;
+
+        Entry(byte[] bytes, long lastModified) {
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+    }
+
+    /**
+     * Input stream keeping a copy of the contents read, cached once the end of the resource is
+     * reached and the stream closed
+     */
+    class CachingInputStream extends FilterInputStream {
+
+        final String path;
+
+        final long lastModified;
+
+        final long readGeneration;
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+        boolean complete;
+
+        CachingInputStream(InputStream in, String path, long lastModified, long readGeneration) {
+            super(in);
+            this.path = path;
+            this.lastModified = lastModified;
+            this.readGeneration = readGeneration;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                complete = true;
+            } else if (capture(1)) {
+                buffer.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                complete = true;
+            } else if (capture(read)) {
+                buffer.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            buffer = null; // contents incomplete
+            return super.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private boolean capture(int length) {
+            if (buffer != null && buffer.size() + length > maxEntrySize) {
+                buffer = null; // too large to be cached
+            }
+            return buffer != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            if (complete && buffer != null) {
+                put(path, buffer.toByteArray(), lastModified, readGeneration);
+                buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Resource serving its contents from memory when cached
+     */
+    class CachingResource implements Resource {
+
+        final Resource delegate;
+
+        CachingResource(Resource delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String path() {
+            return delegate.path();
+        }
+
+        @Override
+        public String name() {
+            return delegate.name();
+        }
+
+        @Override
+        public Lock lock() {
+            return delegate.lock();
+        }
+
+        @Override
+        public void addListener(ResourceListener listener) {
+            delegate.addListener(listener);
+        }
+
+        @Override
+        public void removeListener(ResourceListener listener) {
+            delegate.removeListener(listener);
+        }
+
+        @Override
+        public InputStream in() {
+            if (maxSize == 0) {
+                return delegate.in();
+            }
+            byte[] bytes = lookup(delegate);
+            if (bytes != null) {
+                return new ByteArrayInputStream(bytes);
+            }
+            // taken before reading, a change while reading makes the entry stale right away
+            long readGeneration = generation.get();
+            long lastModified = delegate.lastmodified();
+            return new CachingInputStream(delegate.in(), delegate.path(), lastModified,
+                    readGeneration);
+        }
+
+        @Override
+        public OutputStream out() {
+            final OutputStream out = delegate.out();
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    try {
+                        out.close();
+                    } finally {
+                        invalidate(delegate.path());
+                    }
+                }
+            };
+        }
+
+        @Override
+        public File file() {
+            return delegate.file();
+        }
+
+        @Override
+        public File dir() {
+            return delegate.dir();
+        }
+
+        @Override
+        public long lastmodified() {
+            return delegate.lastmodified();
+        }
+
+        @Override
+        public Resource parent() {
+            return wrap(delegate.parent());
+        }
+
+        @Override
+        public Resource get(String resourcePath) {
+            return wrap(delegate.get(resourcePath));
+        }
+
+        @Override
+        public List<Resource> list() {
+            List<Resource> children = delegate.list();
+            if (children == null) {
+                return null;
+            }
+            List<Resource> list = new ArrayList<Resource>(children.size());
+            for (Resource child : children) {
+                list.add(wrap(child));
+            }
+            return list;
+        }
+
+        @Override
+        public Type getType() {
+            return delegate.getType();
+        }
+
+        @Override
+        public boolean delete() {
+            try {
+                return delegate.delete();
+            } finally {
+                invalidate(delegate.path());
+            }
+        }
+
+        @Override
+        public boolean renameTo(Resource dest) {
+            Resource target = dest instanceof CachingResource ? ((CachingResource) dest).delegate
+                    : dest;
+            try {
+                return delegate.renameTo(target);
+            } finally {
+                invalidate(delegate.path());
+                invalidate(target.path());
+            }
+        }
+
+        @Override
+        public int hashCode() {
+            return delegate.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof CachingResource)) {
+                return false;
+            }
+            return delegate.equals(((CachingResource) obj).delegate);
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+}
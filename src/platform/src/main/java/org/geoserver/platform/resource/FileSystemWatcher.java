@@ -1,34 +1,76 @@
 package org.geoserver.platform.resource;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.resource.ResourceNotification.Kind;
 import org.springframework.beans.factory.DisposableBean;
 import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 
 
 /**
- * Active object (using a ScheduledExecutorService) used to watch file system for changes.
+ * Active object used to watch file system for changes.
  * <p>
- * This implementation currently polls the file system and should be updated with Java 7 WatchService when available. The internal design is similar
- * to WatchService, WatchKey and WatchEvent in order to facilitate this transition.
+ * Watched directories (or the parent directory of a watched file) are registered with a Java 7
+ * {@link WatchService}, and a watch is only checked on disk once the operating system reports a
+ * change in its directory. Events are coalesced: a burst of changes (a configuration save rewriting
+ * several files) is reported with a single notification per watch once the directory has been quiet
+ * for a short while.
+ * <p>
+ * Watches that cannot be registered (directory not there yet, WatchService not available) are
+ * polled with a ScheduledExecutorService instead, as are all watches on filesystems known not to
+ * report remote changes (NFS, CIFS). Polling can be forced everywhere setting the
+ * {@value #POLLING_PROPERTY} property to true.
  * <p>
  * This implementation makes a few concessions to being associated with ResourceStore, reporting changes with resource paths rather than files.
  * 
  * @author Jody Garnett (Boundless)
  */
 public class FileSystemWatcher implements DisposableBean {
+
+    static final Logger LOGGER = Logger.getLogger(FileSystemWatcher.class.getPackage().getName());
+
+    /**
+     * System property, servlet context parameter or environment variable forcing the watcher to
+     * poll the file system rather than relying on file system events
+     */
+    public static final String POLLING_PROPERTY = "GEOSERVER_FILESYSTEM_WATCHER_POLLING";
+
+    /**
+     * Longest time events are collected, waiting for the file system to settle down, before
+     * notifying listeners (in milliseconds)
+     */
+    static final long COALESCE_WINDOW = 500;
+
+    /**
+     * File store types that accept watch registrations without reporting changes made by other
+     * hosts, polled instead
+     */
+    static final Set<String> REMOTE_FILE_STORES = new LinkedHashSet<String>(Arrays.asList("nfs",
+            "nfs4", "cifs", "smb", "smbfs", "smb2", "fuse.sshfs", "9p", "afs", "ncpfs"));
+
     /**
      * Change to file system
      */
@@ -89,6 +131,21 @@ public class FileSystemWatcher implements DisposableBean {
         
         File[] contents; // directory contents at last check
 
+        /** Key of the directory registered for file system events, null when polled */
+        volatile WatchKey key;
+
+        /** True if the registered directory is the watched file itself */
+        boolean self;
+
+        /**
+         * Keys of the sub directories of a watched directory, whose modification is reported as a
+         * change of the directory contents
+         */
+        volatile List<WatchKey> nested = Collections.emptyList();
+
+        /** True if the directory is on a remote file store, polled */
+        boolean remote;
+
         public Watch(File file, String path) {
             this.file = file;
             this.path = path;
@@ -155,7 +212,20 @@ public class FileSystemWatcher implements DisposableBean {
             return path.compareTo(other.path);
         }
 
-        public Delta changed(long now) {
+        /**
+         * Checks if an event on the registered directory may concern this watch.
+         * 
+         * @param context name of the changed entry, null if unknown
+         */
+        public boolean accepts(WatchKey key, Path context) {
+            if (key == this.key) {
+                return self || context == null || file.getName().equals(context.toString());
+            }
+            return nested.contains(key);
+        }
+
+        public synchronized Delta changed(long now) {
+            checks.incrementAndGet();
             if (!file.exists()) {
                 if (exsists) {
                     exsists = false;
@@ -275,42 +345,65 @@ public class FileSystemWatcher implements DisposableBean {
     protected long lastmodified;
 
     CopyOnWriteArrayList<Watch> watchers = new CopyOnWriteArrayList<Watch>();
-    
+
     /**
-     * Note we have a single runnable here to review all outstanding Watch instances.
-     * The focus is on using minimal system resources while we wait for Java 7 WatchService
-     * (to be more efficient).
+     * Event source for the registered directories, null if polling
+     */
+    private WatchService watchService;
+
+    private Thread dispatcher;
+
+    private final AtomicLong checks = new AtomicLong();
+
+    private final AtomicLong events = new AtomicLong();
+
+    /**
+     * Note we have a single runnable here to review all outstanding Watch instances not registered
+     * for file system events. Registration is tried again on each run, as the directory may have
+     * been created in the meantime.
      */
     private Runnable sync = new Runnable() {
         @Override
         public void run() {
             long now = System.currentTimeMillis();
             for (Watch watch : watchers) {
-                if( watch.getListeners().isEmpty()){
-                    watchers.remove(watch);
-                    continue;
+                if (watch.key == null) {
+                    if (register(watch)) {
+                        // pick up whatever happened before the registration
+                        now = System.currentTimeMillis();
+                    }
+                    check(watch, now);
                 }
-                Delta delta = watch.changed(now);
-                if (delta != null) {
-                    
-                    /** Created based on created/removed/modified files */
-                    List<ResourceNotification.Event> events = ResourceNotification.delta(
-                            watch.file, delta.created, delta.removed, delta.modified);
-                    
-                    ResourceNotification notify = new ResourceNotification( watch.getPath(),
-                            delta.kind, watch.last, events);
-                    
-                    for (ResourceListener listener : watch.getListeners()) {
-                        try {
-                            listener.changed(notify);
-                        } catch (Throwable t) {
-                            Logger logger = Logger.getLogger(listener.getClass().getPackage()
-                                    .getName());
-                            logger.log(Level.FINE,
-                                    "Unable to notify " + watch + ":" + t.getMessage(), t);
-                        }
+            }
+        }
+    };
+
+    /**
+     * Waits for file system events, collecting them until the file system is quiet for the
+     * coalescing window (and no longer than the polling delay), then checks the watches concerned.
+     */
+    private Runnable dispatch = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    WatchKey key = watchService.take();
+                    Set<Watch> changed = new LinkedHashSet<Watch>();
+                    collect(key, changed);
+                    long limit = System.currentTimeMillis() + unit.toMillis(delay);
+                    while (System.currentTimeMillis() < limit
+                            && (key = watchService.poll(coalesce, TimeUnit.MILLISECONDS)) != null) {
+                        collect(key, changed);
+                    }
+                    long now = System.currentTimeMillis();
+                    for (Watch watch : changed) {
+                        check(watch, now);
                     }
                 }
+            } catch (InterruptedException e) {
+                // shutting down
+            } catch (ClosedWatchServiceException e) {
+                // shutting down
             }
         }
     };
@@ -321,6 +414,9 @@ public class FileSystemWatcher implements DisposableBean {
 
     private long delay = 10;
 
+    /** Coalescing window, in milliseconds */
+    private volatile long coalesce = COALESCE_WINDOW;
+
     private static CustomizableThreadFactory tFactory;
     static {
         tFactory = new CustomizableThreadFactory("FileSystemWatcher-");
@@ -330,12 +426,212 @@ public class FileSystemWatcher implements DisposableBean {
     /**
      * FileSystemWatcher used to track file changes.
      * <p>
-     * Internally a single threaded schedule executor is used to monitor files.
+     * A single daemon thread waits for file system events, and a single threaded schedule executor
+     * polls the watches that could not be registered.
      */
     FileSystemWatcher() {
+        this(Boolean.parseBoolean(GeoServerExtensions.getProperty(POLLING_PROPERTY)));
+    }
+
+    /**
+     * @param polling true to poll the file system rather than using file system events
+     */
+    FileSystemWatcher(boolean polling) {
         this.pool = Executors.newSingleThreadScheduledExecutor(tFactory);
+        if (!polling) {
+            try {
+                WatchService service = FileSystems.getDefault().newWatchService();
+                if (service.getClass().getSimpleName().startsWith("Polling")) {
+                    // the JDK polls as well on this platform, rather use our own poller that
+                    // honours the configured delay
+                    service.close();
+                } else {
+                    watchService = service;
+                }
+            } catch (IOException | UnsupportedOperationException e) {
+                LOGGER.log(Level.FINE, "File system events not available, polling", e);
+            }
+        }
     }
-    
+
+    /**
+     * Registers the directory of the watch for file system events.
+     * 
+     * @return true if the watch is registered, false if it has to be polled
+     */
+    private synchronized boolean register(Watch watch) {
+        if (watchService == null || watch.remote) {
+            return false;
+        }
+        File dir = watch.file.isDirectory() ? watch.file : watch.file.getParentFile();
+        if (dir == null || !dir.isDirectory()) {
+            return false;
+        }
+        try {
+            Path path = dir.getAbsoluteFile().toPath();
+            if (REMOTE_FILE_STORES.contains(java.nio.file.Files.getFileStore(path).type())) {
+                watch.remote = true;
+                return false;
+            }
+            watch.self = dir == watch.file;
+            watch.key = register(path);
+            if (watch.self) {
+                registerNested(watch);
+            }
+            if (dispatcher == null) {
+                dispatcher = tFactory.newThread(dispatch);
+                dispatcher.start();
+            }
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.log(Level.FINE, "Unable to register " + dir + " for file system events", e);
+            return false;
+        }
+    }
+
+    private WatchKey register(Path path) throws IOException {
+        return path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+    }
+
+    /**
+     * Registers the current sub directories of a watched directory, releasing the ones gone.
+     */
+    private synchronized void registerNested(Watch watch) {
+        List<WatchKey> previous = watch.nested;
+        List<WatchKey> nested = new ArrayList<WatchKey>();
+        File[] files = watch.file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                if (child.isDirectory()) {
+                    try {
+                        nested.add(register(child.getAbsoluteFile().toPath()));
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Unable to register " + child, e);
+                    }
+                }
+            }
+        }
+        watch.nested = nested;
+        for (WatchKey key : previous) {
+            if (!nested.contains(key)) {
+                release(key);
+            }
+        }
+    }
+
+    /**
+     * Cancels the registration of the watch, and of its directories when no other watch uses them.
+     */
+    private synchronized void unregister(Watch watch) {
+        WatchKey key = watch.key;
+        List<WatchKey> nested = watch.nested;
+        watch.key = null;
+        watch.nested = Collections.emptyList();
+        if (key != null) {
+            release(key);
+        }
+        for (WatchKey child : nested) {
+            release(child);
+        }
+    }
+
+    private void release(WatchKey key) {
+        for (Watch other : watchers) {
+            if (other.key == key || other.nested.contains(key)) {
+                return; // still in use
+            }
+        }
+        key.cancel();
+    }
+
+    /**
+     * Collects the watches concerned by the events of a key, and resets it.
+     */
+    private void collect(WatchKey key, Set<Watch> changed) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            events.incrementAndGet();
+            Path context = event.kind() == StandardWatchEventKinds.OVERFLOW ? null
+                    : (Path) event.context();
+            for (Watch watch : watchers) {
+                if (watch.accepts(key, context)) {
+                    changed.add(watch);
+                }
+            }
+        }
+        if (!key.reset()) {
+            // directory removed, or no longer accessible
+            for (Watch watch : watchers) {
+                if (watch.accepts(key, null)) {
+                    changed.add(watch);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks a watch on disk, notifying its listeners of any change, and follows the creation or
+     * removal of directories in the registrations.
+     */
+    private void check(Watch watch, long now) {
+        if (watch.getListeners().isEmpty()) {
+            watchers.remove(watch);
+            unregister(watch);
+            return;
+        }
+        Delta delta = watch.changed(now);
+        if (delta != null) {
+            notify(watch, delta);
+        }
+        WatchKey key = watch.key;
+        if (key != null && (!key.isValid() || watch.self != watch.file.isDirectory())) {
+            unregister(watch);
+            register(watch);
+        } else if (key != null && watch.self && delta != null && delta.created != null
+                && (!delta.created.isEmpty() || !delta.removed.isEmpty())) {
+            registerNested(watch);
+        }
+    }
+
+    private void notify(Watch watch, Delta delta) {
+        /** Created based on created/removed/modified files */
+        List<ResourceNotification.Event> events = ResourceNotification.delta(watch.file,
+                delta.created, delta.removed, delta.modified);
+
+        ResourceNotification notify = new ResourceNotification(watch.getPath(), delta.kind,
+                watch.last, events);
+
+        for (ResourceListener listener : watch.getListeners()) {
+            try {
+                listener.changed(notify);
+            } catch (Throwable t) {
+                Logger logger = Logger.getLogger(listener.getClass().getPackage().getName());
+                logger.log(Level.FINE, "Unable to notify " + watch + ":" + t.getMessage(), t);
+            }
+        }
+    }
+
+    /**
+     * True if file system events are used, false if all watches are polled
+     */
+    public boolean isEventBased() {
+        return watchService != null;
+    }
+
+    /**
+     * Number of times a watched file or directory has been checked on disk
+     */
+    public long getChecks() {
+        return checks.get();
+    }
+
+    /**
+     * Number of file system events received
+     */
+    public long getEvents() {
+        return events.get();
+    }
+
     private Watch watch(File file, String path ){
         if( file == null || path == null ){
             return null;
@@ -358,6 +654,7 @@ public class FileSystemWatcher implements DisposableBean {
         if( watch == null ){
             watch = new Watch(file, path);
             watchers.add(watch);
+            register(watch);
             if( monitor == null){
                 monitor = pool.scheduleWithFixedDelay(sync, delay, delay, unit);
             }                
@@ -378,6 +675,7 @@ public class FileSystemWatcher implements DisposableBean {
             watch.removeListener(listener);
             if( watch.getListeners().isEmpty()){
                 removed = watchers.remove(watch);
+                unregister(watch);
             }
         }
         if (removed && watchers.isEmpty()) {
@@ -397,6 +695,7 @@ public class FileSystemWatcher implements DisposableBean {
     void schedule(long delay, TimeUnit unit) {
         this.delay = delay;
         this.unit = unit;
+        this.coalesce = Math.min(unit.toMillis(delay), COALESCE_WINDOW);
         if (monitor != null) {
             monitor.cancel(false);
             monitor = pool.scheduleWithFixedDelay(sync, delay, delay, unit);
@@ -406,5 +705,8 @@ public class FileSystemWatcher implements DisposableBean {
     @Override
     public void destroy() throws Exception {
         pool.shutdown();
+        if (watchService != null) {
+            watchService.close();
+        }
     }
 }
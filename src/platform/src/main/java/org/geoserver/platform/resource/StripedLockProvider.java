@@ -0,0 +1,343 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.platform.resource;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * An in memory lock provider striping the lock keys over a fixed set of locks, like
+ * {@link MemoryLockProvider}, whose locks are leased for a limited time.
+ * <p>
+ * A lock whose holder does not release it within the lease timeout (a rendering thread stuck on a
+ * remote data source, or a code path leaking the lock) is expired and handed over to the next
+ * waiting thread, instead of blocking every request hitting the same stripe forever. The late
+ * release of an expired lock is ignored. Acquiring again a lock already held by the current thread
+ * succeeds immediately and renews its lease.
+ * </p>
+ * <p>
+ * Waiting threads are granted each lock in arrival order. The provider records how many locks
+ * were acquired, how many had to wait and for how long, along with a histogram of the wait times,
+ * to tell how fair and how contended the locking is.
+ * </p>
+ */
+public class StripedLockProvider implements LockProvider {
+
+    public static Log LOGGER = LogFactory.getLog(StripedLockProvider.class);
+
+    static final int DEFAULT_CONCURRENCY = 1024;
+
+    /**
+     * Default lease timeout, the same as the maximum time {@link FileLockProvider} waits for a
+     * lock
+     */
+    static final long DEFAULT_LEASE_TIMEOUT = 120 * 1000;
+
+    /**
+     * Number of buckets of the wait time histogram, bucket {@code i} counting the waits between
+     * {@code 2^(i-1)} and {@code 2^i} microseconds
+     */
+    public static final int HISTOGRAM_BUCKETS = 32;
+
+    /**
+     * One of the locks the keys are striped over
+     */
+    static final class Stripe {
+
+        final ReentrantLock mutex = new ReentrantLock();
+
+        final Condition changed = mutex.newCondition();
+
+        /**
+         * Threads waiting for the lock, in arrival order
+         */
+        final ArrayDeque<Thread> queue = new ArrayDeque<Thread>();
+
+        Thread owner;
+
+        String ownerKey;
+
+        int holds;
+
+        long leaseExpiry;
+
+        /**
+         * Identifies the current lease, incremented on every release and expiry so that the
+         * release of an expired lease can be told apart
+         */
+        long leaseId;
+    }
+
+    final Stripe[] stripes;
+
+    final long leaseTimeout;
+
+    private final AtomicLong acquisitions = new AtomicLong();
+
+    private final AtomicLong contendedAcquisitions = new AtomicLong();
+
+    private final AtomicLong totalWaitTime = new AtomicLong();
+
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    private final AtomicLong expiredLeases = new AtomicLong();
+
+    private final AtomicInteger maxQueueLength = new AtomicInteger();
+
+    private final AtomicLongArray waitHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+
+    public StripedLockProvider() {
+        this(DEFAULT_CONCURRENCY, DEFAULT_LEASE_TIMEOUT);
+    }
+
+    /**
+     * @param concurrency the number of stripes
+     * @param leaseTimeout how long a lock can be held before being expired, in milliseconds
+     */
+    public StripedLockProvider(int concurrency, long leaseTimeout) {
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("The number of stripes must be positive");
+        }
+        if (leaseTimeout <= 0) {
+            throw new IllegalArgumentException("The lease timeout must be positive");
+        }
+        this.stripes = new Stripe[concurrency];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe();
+        }
+        this.leaseTimeout = TimeUnit.MILLISECONDS.toNanos(leaseTimeout);
+    }
+
+    public Resource.Lock acquire(final String lockKey) {
+        final Stripe stripe = stripes[getIndex(lockKey)];
+        final Thread current = Thread.currentThread();
+        final long start = System.nanoTime();
+        boolean contended = false;
+        boolean interrupted = false;
+        final long leaseId;
+
+        stripe.mutex.lock();
+        try {
+            if (stripe.owner == current) {
+                stripe.holds++;
+                stripe.leaseExpiry = System.nanoTime() + leaseTimeout;
+            } else {
+                stripe.queue.addLast(current);
+                updateMax(maxQueueLength, stripe.queue.size());
+                try {
+                    while (stripe.owner != null || stripe.queue.peekFirst() != current) {
+                        contended = true;
+                        try {
+                            if (stripe.owner == null) {
+                                // free, but another thread came first
+                                stripe.changed.await();
+                            } else {
+                                long remaining = stripe.leaseExpiry - System.nanoTime();
+                                if (remaining <= 0) {
+                                    expire(stripe);
+                                } else {
+                                    stripe.changed.awaitNanos(remaining);
+                                }
+                            }
+                        } catch (InterruptedException e) {
+                            // like MemoryLockProvider, keep waiting for the lock
+                            interrupted = true;
+                        }
+                    }
+                } finally {
+                    stripe.queue.remove(current);
+                }
+                stripe.owner = current;
+                stripe.ownerKey = lockKey;
+                stripe.holds = 1;
+                stripe.leaseExpiry = System.nanoTime() + leaseTimeout;
+                // let the next waiter move to the head of the queue
+                stripe.changed.signalAll();
+            }
+            leaseId = stripe.leaseId;
+        } finally {
+            stripe.mutex.unlock();
+        }
+        if (interrupted) {
+            current.interrupt();
+        }
+        recordAcquisition(contended, System.nanoTime() - start);
+
+        return new Resource.Lock() {
+
+            boolean released = false;
+
+            public void release() {
+                if (released) {
+                    return;
+                }
+                released = true;
+                stripe.mutex.lock();
+                try {
+                    if (stripe.leaseId != leaseId) {
+                        if (LOGGER.isDebugEnabled()) {
+                            LOGGER.debug("Lock " + lockKey
+                                    + " released after its lease expired, ignoring");
+                        }
+                        return;
+                    }
+                    if (--stripe.holds == 0) {
+                        stripe.owner = null;
+                        stripe.ownerKey = null;
+                        stripe.leaseId++;
+                        stripe.changed.signalAll();
+                    }
+                } finally {
+                    stripe.mutex.unlock();
+                }
+            }
+
+            public String toString() {
+                return "StripedLock " + lockKey;
+            }
+        };
+    }
+
+    /**
+     * Takes away the lock from its current holder, whose lease expired. Called with the stripe
+     * mutex held.
+     */
+    private void expire(Stripe stripe) {
+        LOGGER.warn("Lock " + stripe.ownerKey + " held by thread " + stripe.owner.getName()
+                + " for more than " + TimeUnit.NANOSECONDS.toMillis(leaseTimeout)
+                + "ms, expiring its lease");
+        expiredLeases.incrementAndGet();
+        stripe.owner = null;
+        stripe.ownerKey = null;
+        stripe.holds = 0;
+        stripe.leaseId++;
+        stripe.changed.signalAll();
+    }
+
+    private void recordAcquisition(boolean contended, long waitTime) {
+        acquisitions.incrementAndGet();
+        if (!contended) {
+            return;
+        }
+        contendedAcquisitions.incrementAndGet();
+        totalWaitTime.addAndGet(waitTime);
+        long max;
+        do {
+            max = maxWaitTime.get();
+        } while (waitTime > max && !maxWaitTime.compareAndSet(max, waitTime));
+        long micros = TimeUnit.NANOSECONDS.toMicros(waitTime);
+        int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+        waitHistogram.incrementAndGet(Math.min(bucket, HISTOGRAM_BUCKETS - 1));
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        do {
+            current = max.get();
+        } while (value > current && !max.compareAndSet(current, value));
+    }
+
+    int getIndex(String lockKey) {
+        // spread the bits of the hash code (murmur3 finalizer), similar keys hash to
+        // neighbouring values and would otherwise collide on the same stripes
+        int h = lockKey.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return (h & Integer.MAX_VALUE) % stripes.length;
+    }
+
+    /**
+     * Number of locks acquired so far
+     */
+    public long getAcquisitions() {
+        return acquisitions.get();
+    }
+
+    /**
+     * Number of locks acquired after waiting for another holder
+     */
+    public long getContendedAcquisitions() {
+        return contendedAcquisitions.get();
+    }
+
+    /**
+     * Total time spent waiting for locks, in milliseconds
+     */
+    public long getTotalWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(totalWaitTime.get());
+    }
+
+    /**
+     * Average time spent waiting for a contended lock, in milliseconds
+     */
+    public double getAverageWaitTime() {
+        long contended = contendedAcquisitions.get();
+        return contended == 0 ? 0 : totalWaitTime.get() / 1e6 / contended;
+    }
+
+    /**
+     * Longest time spent waiting for a lock, in milliseconds
+     */
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get());
+    }
+
+    /**
+     * Longest queue of threads observed waiting on the same stripe
+     */
+    public int getMaxQueueLength() {
+        return maxQueueLength.get();
+    }
+
+    /**
+     * Number of locks taken away from their holder because their lease expired
+     */
+    public long getExpiredLeases() {
+        return expiredLeases.get();
+    }
+
+    /**
+     * Histogram of the contended wait times, see {@link #HISTOGRAM_BUCKETS}
+     */
+    public long[] getWaitTimeHistogram() {
+        long[] histogram = new long[HISTOGRAM_BUCKETS];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = waitHistogram.get(i);
+        }
+        return histogram;
+    }
+
+    /**
+     * Resets all the recorded statistics
+     */
+    public void resetStatistics() {
+        acquisitions.set(0);
+        contendedAcquisitions.set(0);
+        totalWaitTime.set(0);
+        maxWaitTime.set(0);
+        expiredLeases.set(0);
+        maxQueueLength.set(0);
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            waitHistogram.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "StripedLockProvider";
+    }
+}
@@ -0,0 +1,163 @@
+package org.geoserver.platform.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.theories.DataPoints;
+import org.junit.rules.TemporaryFolder;
+
+public class CachingResourceTheoryTest extends ResourceTheoryTest {
+
+    CachingResourceStore store;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @DataPoints
+    public static String[] testPaths() {
+        return new String[] { "FileA", "FileB", "DirC", "DirC/FileD", "DirE", "UndefF",
+                "DirC/UndefF", "DirE/UndefF", "DirE/UndefG/UndefH/UndefI" };
+    }
+
+    @Override
+    protected Resource getResource(String path) throws Exception {
+        return store.get(path);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        folder.newFile("FileA");
+        folder.newFile("FileB");
+        File c = folder.newFolder("DirC");
+        (new File(c, "FileD")).createNewFile();
+        folder.newFolder("DirE");
+        store = new CachingResourceStore(new FileSystemResourceStore(folder.getRoot()), 1024, 64);
+    }
+
+    private String read(Resource resource) throws IOException {
+        try (InputStream in = resource.in()) {
+            return IOUtils.toString(in, "UTF-8");
+        }
+    }
+
+    private void write(Resource resource, String contents) throws IOException {
+        try (OutputStream out = resource.out()) {
+            out.write(contents.getBytes("UTF-8"));
+        }
+    }
+
+    @Test
+    public void cachedReads() throws Exception {
+        Resource resource = store.get("DirC/FileD");
+        write(resource, "first");
+        assertEquals("first", read(resource));
+        assertEquals("first", read(store.get("DirC/FileD")));
+        assertEquals(1, store.getMisses());
+        assertEquals(1, store.getHits());
+        assertEquals(1, store.getCount());
+
+        // own writes
+        write(resource, "second");
+        assertEquals("second", read(resource));
+        store.move("DirC", "DirE/DirC");
+        assertEquals(0, store.getCount());
+        assertEquals("second", read(store.get("DirE/DirC/FileD")));
+        store.remove("DirE/DirC/FileD");
+        assertEquals(Resource.Type.UNDEFINED, store.get("DirE/DirC/FileD").getType());
+    }
+
+    @Test
+    public void externalEdits() throws Exception {
+        Resource resource = store.get("FileA");
+        write(resource, "first");
+        assertEquals("first", read(resource));
+
+        File file = new File(folder.getRoot(), "FileA");
+        Thread.sleep(1100); // file system timestamp resolution
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("second".getBytes("UTF-8"));
+        }
+        long timeout = System.currentTimeMillis() + 15000;
+        while (store.getCount() > 0 && System.currentTimeMillis() < timeout) {
+            Thread.sleep(50);
+        }
+        assertEquals("second", read(resource));
+    }
+
+    @Test
+    public void fileAccess() throws Exception {
+        Resource resource = store.get("FileB");
+        write(resource, "first");
+        assertEquals("first", read(resource));
+
+        // still cached after handing out the file
+        File file = resource.file();
+        assertEquals("first", read(resource));
+        assertEquals(1, store.getHits());
+
+        // writes through the file are caught by the last modified time, before any notification
+        Thread.sleep(1100); // file system timestamp resolution
+        try (OutputStream out = new FileOutputStream(file)) {
+            out.write("second".getBytes("UTF-8"));
+        }
+        assertEquals("second", read(resource));
+        assertEquals(1, store.getHits());
+        assertEquals("second", read(resource));
+        assertEquals(2, store.getHits());
+    }
+
+    @Test
+    public void largeResources() throws Exception {
+        Resource resource = store.get("FileB");
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            sb.append('x');
+        }
+        write(resource, sb.toString());
+        assertEquals(sb.toString(), read(resource));
+        assertEquals(0, store.getCount());
+
+        // bounded by total size
+        for (int i = 0; i < 40; i++) {
+            write(store.get("DirE/file" + i), "0123456789012345678901234567890123456789");
+            read(store.get("DirE/file" + i));
+        }
+        assertEquals(1024 / 40, store.getCount());
+        assertEquals(40 - 1024 / 40, store.getEvictions());
+    }
+
+    @Override
+    protected Resource getDirectory() {
+        try {
+            folder.newFolder("NonTestDir");
+        } catch (IOException e) {
+            fail();
+        }
+        return store.get("NonTestDir");
+    }
+
+    @Override
+    protected Resource getResource() {
+        try {
+            folder.newFile("NonTestFile");
+        } catch (IOException e) {
+            fail();
+        }
+        return store.get("NonTestFile");
+    }
+
+    @Override
+    protected Resource getUndefined() {
+        return store.get("NonTestUndef");
+    }
+}
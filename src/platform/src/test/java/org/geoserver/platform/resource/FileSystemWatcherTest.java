@@ -0,0 +1,111 @@
+package org.geoserver.platform.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.geoserver.platform.resource.ResourceNotification.Kind;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileSystemWatcherTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    FileSystemWatcher watcher;
+
+    final BlockingQueue<ResourceNotification> notifications = new LinkedBlockingQueue<ResourceNotification>();
+
+    final ResourceListener listener = new ResourceListener() {
+        @Override
+        public void changed(ResourceNotification notify) {
+            notifications.add(notify);
+        }
+    };
+
+    @After
+    public void tearDown() throws Exception {
+        if (watcher != null) {
+            watcher.destroy();
+        }
+    }
+
+    @Test
+    public void testIdle() throws Exception {
+        watcher = new FileSystemWatcher(false);
+        Assume.assumeTrue(watcher.isEventBased());
+        watcher.schedule(30, TimeUnit.MILLISECONDS);
+        for (int i = 0; i < 100; i++) {
+            folder.newFile("file" + i);
+        }
+        watcher.addListener(folder.getRoot(), Paths.BASE, listener);
+        watcher.addListener(new File(folder.getRoot(), "file0"), "file0", listener);
+
+        Thread.sleep(500);
+        assertEquals(0, watcher.getChecks());
+        assertNull(notifications.poll());
+
+        // changes still reported
+        new File(folder.getRoot(), "file0").delete();
+        assertNotNull(notifications.poll(5, TimeUnit.SECONDS));
+        assertNotNull(notifications.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        watcher = new FileSystemWatcher(false);
+        Assume.assumeTrue(watcher.isEventBased());
+        watcher.schedule(1, TimeUnit.SECONDS);
+        watcher.addListener(folder.getRoot(), Paths.BASE, listener);
+
+        for (int i = 0; i < 20; i++) {
+            folder.newFile("file" + i);
+        }
+        ResourceNotification n = notifications.poll(5, TimeUnit.SECONDS);
+        assertNotNull(n);
+        assertEquals(20, n.events().size());
+        assertNull(notifications.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPolling() throws Exception {
+        watcher = new FileSystemWatcher(true);
+        assertFalse(watcher.isEventBased());
+        watcher.schedule(30, TimeUnit.MILLISECONDS);
+        File file = new File(folder.getRoot(), "file");
+        watcher.addListener(file, "file", listener);
+
+        file.createNewFile();
+        ResourceNotification n = notifications.poll(5, TimeUnit.SECONDS);
+        assertNotNull(n);
+        assertEquals(Kind.ENTRY_CREATE, n.getKind());
+        assertEquals(0, watcher.getEvents());
+    }
+
+    @Test
+    public void testDirectoryCreatedLater() throws Exception {
+        watcher = new FileSystemWatcher(false);
+        watcher.schedule(30, TimeUnit.MILLISECONDS);
+        File dir = new File(folder.getRoot(), "dir");
+        File file = new File(dir, "file");
+        // nothing to register yet, polled until the directory shows up
+        watcher.addListener(file, "dir/file", listener);
+
+        dir.mkdir();
+        Thread.sleep(100);
+        file.createNewFile();
+        ResourceNotification n = notifications.poll(5, TimeUnit.SECONDS);
+        assertNotNull(n);
+        assertEquals(Kind.ENTRY_CREATE, n.getKind());
+    }
+}
@@ -0,0 +1,147 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2014 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.platform.resource;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class StripedLockProviderTest {
+
+    @Test
+    public void testMutualExclusion() throws Exception {
+        final StripedLockProvider provider = new StripedLockProvider(4, 60000);
+        final AtomicInteger inside = new AtomicInteger();
+        final AtomicBoolean overlap = new AtomicBoolean();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread() {
+                public void run() {
+                    for (int i = 0; i < 200; i++) {
+                        Resource.Lock lock = provider.acquire("metatile");
+                        try {
+                            if (inside.incrementAndGet() > 1) {
+                                overlap.set(true);
+                            }
+                            Thread.yield();
+                            inside.decrementAndGet();
+                        } finally {
+                            lock.release();
+                        }
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertFalse(overlap.get());
+        assertEquals(8 * 200, provider.getAcquisitions());
+        assertEquals(0, provider.getExpiredLeases());
+    }
+
+    @Test
+    public void testReentrant() {
+        // a single stripe, every key collides
+        StripedLockProvider provider = new StripedLockProvider(1, 60000);
+        Resource.Lock outer = provider.acquire("a");
+        Resource.Lock inner = provider.acquire("b");
+        inner.release();
+        outer.release();
+        assertEquals(2, provider.getAcquisitions());
+        assertEquals(0, provider.getContendedAcquisitions());
+    }
+
+    @Test
+    public void testLeaseExpiry() throws Exception {
+        final StripedLockProvider provider = new StripedLockProvider(16, 100);
+        // acquired and never released by another thread
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Resource.Lock[] leaked = new Resource.Lock[1];
+        Thread holder = new Thread() {
+            public void run() {
+                leaked[0] = provider.acquire("stuck");
+                acquired.countDown();
+            }
+        };
+        holder.start();
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+
+        long start = System.currentTimeMillis();
+        Resource.Lock lock = provider.acquire("stuck");
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertEquals(1, provider.getExpiredLeases());
+        assertEquals(1, provider.getContendedAcquisitions());
+
+        // the late release of the expired lease does not free the current one
+        leaked[0].release();
+        final AtomicBoolean third = new AtomicBoolean();
+        Thread other = new Thread() {
+            public void run() {
+                provider.acquire("stuck").release();
+                third.set(true);
+            }
+        };
+        other.start();
+        Thread.sleep(50);
+        assertFalse(third.get());
+        lock.release();
+        other.join(5000);
+        assertTrue(third.get());
+    }
+
+    @Test
+    public void testWaitStatistics() throws Exception {
+        final StripedLockProvider provider = new StripedLockProvider(16, 60000);
+        Resource.Lock lock = provider.acquire("key");
+        Thread waiter = new Thread() {
+            public void run() {
+                provider.acquire("key").release();
+            }
+        };
+        waiter.start();
+        Thread.sleep(50);
+        lock.release();
+        waiter.join(5000);
+
+        assertEquals(2, provider.getAcquisitions());
+        assertEquals(1, provider.getContendedAcquisitions());
+        assertTrue(provider.getMaxWaitTime() >= 40);
+        assertEquals(1, provider.getMaxQueueLength());
+        long total = 0;
+        for (long count : provider.getWaitTimeHistogram()) {
+            total += count;
+        }
+        assertEquals(1, total);
+
+        provider.resetStatistics();
+        assertEquals(0, provider.getAcquisitions());
+        assertEquals(0, provider.getMaxWaitTime());
+    }
+
+    @Test
+    public void testDistribution() {
+        StripedLockProvider provider = new StripedLockProvider(64, 60000);
+        int[] counts = new int[64];
+        for (int i = 0; i < 6400; i++) {
+            counts[provider.getIndex("layer/EPSG:4326/png/" + i + "/0/12")]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 50 && count < 150);
+        }
+    }
+}
@@ -89,6 +89,12 @@ public class CachingOptionsPanel extends Panel {
                 nonDefaultStylesModel);
         configs.add(cacheNonDefaultStyles);
 
+        IModel<Boolean> styleVersioningModel;
+        styleVersioningModel = new PropertyModel<Boolean>(gwcConfigModel, "styleVersioningEnabled");
+        CheckBox styleVersioningEnabled = new CheckBox("styleVersioningEnabled",
+                styleVersioningModel);
+        configs.add(styleVersioningEnabled);
+
         List<Integer> metaTilingChoices = Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13,
                 14, 16, 16, 17, 18, 19, 20);
         IModel<Integer> metaTilingXModel = new PropertyModel<Integer>(gwcConfigModel, "metaTilingX");
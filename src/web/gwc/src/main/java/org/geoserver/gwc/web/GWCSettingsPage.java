@@ -12,18 +12,22 @@ import java.util.logging.Logger;
 import org.apache.wicket.AttributeModifier;
 import org.apache.wicket.Component;
 import org.apache.wicket.ajax.AjaxRequestTarget;
+import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.Button;
 import org.apache.wicket.markup.html.form.CheckBox;
 import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.markup.html.panel.Fragment;
+import org.apache.wicket.model.AbstractReadOnlyModel;
 import org.apache.wicket.model.IModel;
 import org.apache.wicket.model.Model;
 import org.apache.wicket.model.ResourceModel;
 import org.apache.wicket.model.StringResourceModel;
 import org.geoserver.gwc.GWC;
+import org.geoserver.gwc.HotTileCache;
 import org.geoserver.gwc.config.GWCConfig;
 import org.geoserver.web.GeoServerSecuredPage;
 import org.geoserver.web.wicket.GeoServerAjaxFormLink;
+import org.geoserver.web.wicket.ParamResourceModel;
 import org.geotools.image.io.ImageIOExt;
 import org.geotools.util.logging.Logging;
 
@@ -80,6 +84,23 @@ public class GWCSettingsPage extends GeoServerSecuredPage {
 
         });
 
+        add(new Label("hotTileCacheStatus", new AbstractReadOnlyModel<String>() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            public String getObject() {
+                HotTileCache cache = GWC.get().getHotTileCache();
+                if (!cache.isEnabled()) {
+                    return new ResourceModel("GWCSettingsPage.hotTileCacheDisabled").getObject();
+                }
+                return new ParamResourceModel("GWCSettingsPage.hotTileCacheStatus",
+                        GWCSettingsPage.this, cache.getCount(),
+                        cache.getSize() / 1024 / 1024, cache.getMaxSize() / 1024 / 1024,
+                        cache.getHits(), cache.getMisses(),
+                        Math.round(cache.getHitRatio() * 100)).getObject();
+            }
+        }));
+
         checkWarnings();
     }
 
@@ -10,7 +10,11 @@ import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.opengis.wfs.FeatureCollectionType;
 
@@ -87,6 +91,16 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
      */
     public static int MIN_OL_HEIGHT = 330;
 
+    /**
+     * default number of threads used to identify layers in parallel in GetFeatureInfo
+     */
+    static final int DEFAULT_FEATURE_INFO_THREADS = 8;
+
+    /**
+     * default time limit, in seconds, for the GetFeatureInfo layer identification
+     */
+    static final int DEFAULT_FEATURE_INFO_TIMEOUT = 60;
+
     /**
      * default for 'srs' parameter.
      */
@@ -102,6 +116,11 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
      */
     public static ExecutorService RENDERING_POOL;
 
+    /**
+     * Pool used to identify multiple layers concurrently in GetFeatureInfo
+     */
+    private static ExecutorService FEATURE_INFO_POOL;
+
     /**
      * default for 'bbox' paramter
      */
@@ -143,6 +162,26 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
      */
     private static Boolean USE_GLOBAL_RENDERING_POOL = null;
 
+    /**
+     * Number of pixels above which image maps are rendered and encoded in horizontal strips
+     */
+    private static Long MAP_STRIPING_THRESHOLD = null;
+
+    /**
+     * Height of the strips used when rendering large maps
+     */
+    private static Integer MAP_STRIP_HEIGHT = null;
+
+    /**
+     * Max number of threads used to identify layers in parallel in GetFeatureInfo
+     */
+    private static Integer FEATURE_INFO_THREADS = null;
+
+    /**
+     * Max time, in seconds, a GetFeatureInfo can take to identify all the query layers
+     */
+    private static Integer FEATURE_INFO_TIMEOUT = null;
+
     private GetCapabilities getCapabilities;
 
     private DescribeLayer describeLayer;
@@ -263,6 +302,40 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
             else
                 USE_GLOBAL_RENDERING_POOL = Boolean.valueOf(usePool);
         }
+
+        // control striped rendering of large maps
+        if (MAP_STRIPING_THRESHOLD == null) {
+            String threshold = GeoServerExtensions.getProperty("MAP_STRIPING_THRESHOLD", context);
+            // default to 4096x4096, allow switching off with a negative value
+            if (threshold == null)
+                MAP_STRIPING_THRESHOLD = 4096l * 4096l;
+            else
+                MAP_STRIPING_THRESHOLD = Long.valueOf(threshold);
+        }
+        if (MAP_STRIP_HEIGHT == null) {
+            String height = GeoServerExtensions.getProperty("MAP_STRIP_HEIGHT", context);
+            if (height == null)
+                MAP_STRIP_HEIGHT = 512;
+            else
+                MAP_STRIP_HEIGHT = Integer.valueOf(height);
+        }
+
+        // control the concurrent layer identification in GetFeatureInfo
+        if (FEATURE_INFO_THREADS == null) {
+            String threads = GeoServerExtensions.getProperty("FEATURE_INFO_THREADS", context);
+            // default to a small pool, one or less disables parallel identification
+            if (threads == null)
+                FEATURE_INFO_THREADS = DEFAULT_FEATURE_INFO_THREADS;
+            else
+                FEATURE_INFO_THREADS = Integer.valueOf(threads);
+        }
+        if (FEATURE_INFO_TIMEOUT == null) {
+            String timeout = GeoServerExtensions.getProperty("FEATURE_INFO_TIMEOUT", context);
+            if (timeout == null)
+                FEATURE_INFO_TIMEOUT = DEFAULT_FEATURE_INFO_TIMEOUT;
+            else
+                FEATURE_INFO_TIMEOUT = Integer.valueOf(timeout);
+        }
     }
 
     /**
@@ -303,6 +376,46 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
         return MAX_FILTER_RULES;
     }
     
+    /**
+     * Returns the number of pixels above which maps are rendered in horizontal strips that are
+     * streamed to the encoder one at a time (defaults to 4096x4096, a value less or equal than
+     * zero disables striped rendering)
+     * 
+     * @return
+     */
+    public static long getMapStripingThreshold() {
+        return MAP_STRIPING_THRESHOLD == null ? 4096l * 4096l : MAP_STRIPING_THRESHOLD;
+    }
+
+    /**
+     * Returns the height of the strips used when rendering large maps (defaults to 512)
+     * 
+     * @return
+     */
+    public static int getMapStripHeight() {
+        return MAP_STRIP_HEIGHT == null ? 512 : MAP_STRIP_HEIGHT;
+    }
+
+    /**
+     * Returns the max number of threads used to identify the query layers of a GetFeatureInfo
+     * request in parallel (defaults to 8, one or less disables the parallel identification)
+     * 
+     * @return
+     */
+    public static int getFeatureInfoThreads() {
+        return FEATURE_INFO_THREADS == null ? DEFAULT_FEATURE_INFO_THREADS : FEATURE_INFO_THREADS;
+    }
+
+    /**
+     * Returns the max time, in seconds, allowed to identify all the query layers of a
+     * GetFeatureInfo request (defaults to 60, zero or less means no limit)
+     * 
+     * @return
+     */
+    public static int getFeatureInfoTimeout() {
+        return FEATURE_INFO_TIMEOUT == null ? DEFAULT_FEATURE_INFO_TIMEOUT : FEATURE_INFO_TIMEOUT;
+    }
+
     /**
      * If true (default) the direct raster rendering path is enabled
      * @return
@@ -714,12 +827,51 @@ public class DefaultWebMapService implements WebMapService, ApplicationContextAw
         return RENDERING_POOL;
     }
 
+    /**
+     * Returns a app wide bounded pool used to identify layers in parallel during GetFeatureInfo
+     * requests, or null if the parallel identification is disabled
+     * 
+     * @return
+     */
+    public static ExecutorService getFeatureInfoPool() {
+        final int threads = getFeatureInfoThreads();
+        if (threads <= 1) {
+            return null;
+        }
+        if (FEATURE_INFO_POOL == null) {
+            synchronized (DefaultWebMapService.class) {
+                if (FEATURE_INFO_POOL == null) {
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+                            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                            new ThreadFactory() {
+                                final AtomicInteger count = new AtomicInteger();
+
+                                public Thread newThread(Runnable r) {
+                                    Thread t = new Thread(r, "GetFeatureInfo-"
+                                            + count.incrementAndGet());
+                                    t.setDaemon(true);
+                                    return t;
+                                }
+                            });
+                    pool.allowCoreThreadTimeOut(true);
+                    FEATURE_INFO_POOL = pool;
+                }
+            }
+        }
+
+        return FEATURE_INFO_POOL;
+    }
+
     public void destroy() throws Exception {
         if (RENDERING_POOL != null) {
             RENDERING_POOL.shutdown();
             RENDERING_POOL.awaitTermination(10, TimeUnit.SECONDS);
             RENDERING_POOL = null;
         }
+        if (FEATURE_INFO_POOL != null) {
+            FEATURE_INFO_POOL.shutdownNow();
+            FEATURE_INFO_POOL = null;
+        }
     }
 
 }
@@ -95,6 +95,35 @@ public class FeatureInfoRequestParameters {
         this.propertyNames = request.getPropertyNames();
     }
 
+    /**
+     * Builds a copy of the parameters positioned on the specified layer, allowing each query layer
+     * to be identified independently (and concurrently) from the others
+     * 
+     * @param other
+     * @param layer
+     */
+    FeatureInfoRequestParameters(FeatureInfoRequestParameters other, int layer) {
+        this.layers = other.layers;
+        this.filters = other.filters;
+        this.styles = other.styles;
+        this.x = other.x;
+        this.y = other.y;
+        this.buffer = other.buffer;
+        this.viewParams = other.viewParams;
+        this.getMapReq = other.getMapReq;
+        this.requestedCRS = other.requestedCRS;
+        this.maxFeatures = other.maxFeatures;
+        this.width = other.width;
+        this.height = other.height;
+        this.bbox = other.bbox;
+        this.scaleDenominator = other.scaleDenominator;
+        this.elevations = other.elevations;
+        this.times = other.times;
+        this.ff = other.ff;
+        this.propertyNames = other.propertyNames;
+        this.currentLayer = layer;
+    }
+
     private double getScaleDenominator(GetMapRequest request) {
         final Envelope envelope = request.getBbox();
         final CoordinateReferenceSystem mapcrs = request.getCrs();
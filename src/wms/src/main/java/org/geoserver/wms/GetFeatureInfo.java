@@ -9,6 +9,12 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Logger;
 
 import net.opengis.wfs.FeatureCollectionType;
@@ -16,11 +22,13 @@ import net.opengis.wfs.WfsFactory;
 
 import org.geoserver.platform.GeoServerExtensions;
 import org.geoserver.platform.ServiceException;
+import org.geoserver.threadlocals.ThreadLocalsTransfer;
 import org.geoserver.wms.featureinfo.FeatureCollectionDecorator;
 import org.geoserver.wms.featureinfo.LayerIdentifier;
 import org.geotools.data.DataUtilities;
 import org.geotools.data.Query;
 import org.geotools.data.simple.SimpleFeatureCollection;
+import org.geotools.data.store.MaxFeaturesFeatureCollection;
 import org.geotools.feature.FeatureCollection;
 import org.geotools.feature.NameImpl;
 import org.geotools.util.logging.Logging;
@@ -71,29 +79,78 @@ public class GetFeatureInfo {
 
         int maxFeatures = request.getFeatureCount();
         List<LayerIdentifier> identifiers = GeoServerExtensions.extensions(LayerIdentifier.class);
+        List<IdentifyTask> tasks = new ArrayList<IdentifyTask>(requestedLayers.size());
         for (int i = 0; i < requestedLayers.size(); i++) {
             final MapLayerInfo layer = requestedLayers.get(i);
-
             LayerIdentifier identifier = getLayerIdentifier(layer, identifiers);
-            List<FeatureCollection> identifiedCollections = identifier.identify(requestParams,
-                    maxFeatures);
-            if (identifiedCollections != null) {
-                for (FeatureCollection identifierCollection : identifiedCollections) {
-                    FeatureCollection fc = selectProperties(requestParams, identifierCollection);
-                    maxFeatures = addToResults(fc, results, layer, request, maxFeatures);
-                }
+            tasks.add(new IdentifyTask(new FeatureInfoRequestParameters(requestParams, i), layer,
+                    identifier, maxFeatures));
+        }
+
+        ExecutorService pool = DefaultWebMapService.getFeatureInfoPool();
+        if (pool == null || tasks.size() == 1) {
+            for (IdentifyTask task : tasks) {
+                // each layer is identified with the features left to collect
+                task.maxFeatures = maxFeatures;
+                maxFeatures = addToResults(task.call(), results, request, maxFeatures, false);
 
                 // exit when we have collected enough features
                 if (maxFeatures <= 0) {
                     break;
                 }
             }
-
-            requestParams.nextLayer();
+        } else {
+            identifyConcurrently(pool, tasks, results, request);
         }
         return results;
     }
 
+    /**
+     * Identifies all the layers in parallel, and then collects the results in the same order as
+     * the query layers, honoring the feature count as the sequential identification would do
+     */
+    @SuppressWarnings("rawtypes")
+    private void identifyConcurrently(ExecutorService pool, List<IdentifyTask> tasks,
+            List<FeatureCollection> results, GetFeatureInfoRequest request) throws Exception {
+        List<Future<List<IdentifiedCollection>>> futures = new ArrayList<Future<List<IdentifiedCollection>>>(
+                tasks.size());
+        try {
+            for (IdentifyTask task : tasks) {
+                futures.add(pool.submit(task));
+            }
+
+            final int timeout = DefaultWebMapService.getFeatureInfoTimeout();
+            final long deadline = System.currentTimeMillis() + timeout * 1000l;
+            int maxFeatures = request.getFeatureCount();
+            for (int i = 0; i < futures.size() && maxFeatures > 0; i++) {
+                List<IdentifiedCollection> identified;
+                try {
+                    if (timeout > 0) {
+                        long wait = Math.max(0, deadline - System.currentTimeMillis());
+                        identified = futures.get(i).get(wait, TimeUnit.MILLISECONDS);
+                    } else {
+                        identified = futures.get(i).get();
+                    }
+                } catch (TimeoutException e) {
+                    throw new ServiceException("GetFeatureInfo took more than " + timeout
+                            + "s to identify the query layers and has been forcefully stopped");
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+
+                maxFeatures = addToResults(identified, results, request, maxFeatures, true);
+            }
+        } finally {
+            // layers not needed to fill the feature count, or past the deadline
+            for (Future<List<IdentifiedCollection>> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
     private LayerIdentifier getLayerIdentifier(MapLayerInfo layer, List<LayerIdentifier> identifiers) {
         for (LayerIdentifier identifier : identifiers) {
             if (identifier.canHandle(layer)) {
@@ -105,18 +162,25 @@ public class GetFeatureInfo {
                 + layer.getLayerInfo().prefixedName() + " among these identifiers: " + identifiers);
     }
 
-    private int addToResults(FeatureCollection collection, List<FeatureCollection> results,
-            final MapLayerInfo layer, GetFeatureInfoRequest request, int maxFeatures) {
-        if (collection != null) {
-            if (!(collection.getSchema() instanceof SimpleFeatureType)) {
-                // put wrapper around it with layer name
-                Name name = new NameImpl(layer.getFeature().getNamespace().getName(), layer
-                        .getFeature().getName());
-                collection = new FeatureCollectionDecorator(name, collection);
-            }
-
-            int size = collection.size();
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private int addToResults(List<IdentifiedCollection> identified,
+            List<FeatureCollection> results, GetFeatureInfoRequest request, int maxFeatures,
+            boolean limit) {
+        for (IdentifiedCollection ic : identified) {
+            FeatureCollection collection = ic.collection;
+            int size = ic.size;
             if (size != 0) {
+                // the layer might have been identified without knowing how many features the
+                // previous layers would have returned
+                if (limit && size > maxFeatures) {
+                    if (collection instanceof SimpleFeatureCollection) {
+                        collection = DataUtilities.simple(new MaxFeaturesFeatureCollection(
+                                collection, maxFeatures));
+                    } else {
+                        collection = new MaxFeaturesFeatureCollection(collection, maxFeatures);
+                    }
+                    size = maxFeatures;
+                }
 
                 // HACK HACK HACK
                 // For complex features, we need the targetCrs and version in scenario where we have
@@ -145,6 +209,85 @@ public class GetFeatureInfo {
         return maxFeatures;
     }
 
+    /**
+     * A feature collection returned by a {@link LayerIdentifier}, along with its size
+     */
+    @SuppressWarnings("rawtypes")
+    static class IdentifiedCollection {
+        FeatureCollection collection;
+
+        int size;
+
+        IdentifiedCollection(FeatureCollection collection, int size) {
+            this.collection = collection;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Identifies a single query layer, selecting the requested properties and computing the size
+     * of the results, so that the bulk of the work can be run in a separate thread
+     */
+    class IdentifyTask implements Callable<List<IdentifiedCollection>> {
+
+        final FeatureInfoRequestParameters params;
+
+        final MapLayerInfo layer;
+
+        final LayerIdentifier identifier;
+
+        int maxFeatures;
+
+        final ThreadLocalsTransfer threadLocalTransfer;
+
+        final Thread callerThread;
+
+        IdentifyTask(FeatureInfoRequestParameters params, MapLayerInfo layer,
+                LayerIdentifier identifier, int maxFeatures) {
+            this.params = params;
+            this.layer = layer;
+            this.identifier = identifier;
+            this.maxFeatures = maxFeatures;
+            this.threadLocalTransfer = new ThreadLocalsTransfer();
+            this.callerThread = Thread.currentThread();
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public List<IdentifiedCollection> call() throws Exception {
+            // thread locals are transferred only when running in the identification pool
+            final boolean transfer = Thread.currentThread() != callerThread;
+            try {
+                if (transfer) {
+                    threadLocalTransfer.apply();
+                }
+
+                List<IdentifiedCollection> result = new ArrayList<IdentifiedCollection>();
+                List<FeatureCollection> identifiedCollections = identifier.identify(params,
+                        maxFeatures);
+                if (identifiedCollections != null) {
+                    for (FeatureCollection identifierCollection : identifiedCollections) {
+                        FeatureCollection fc = selectProperties(params, identifierCollection);
+                        if (fc != null) {
+                            if (!(fc.getSchema() instanceof SimpleFeatureType)) {
+                                // put wrapper around it with layer name
+                                Name name = new NameImpl(layer.getFeature().getNamespace()
+                                        .getName(), layer.getFeature().getName());
+                                fc = new FeatureCollectionDecorator(name, fc);
+                            }
+                            result.add(new IdentifiedCollection(fc, fc.size()));
+                        }
+                    }
+                }
+                return result;
+            } finally {
+                if (transfer) {
+                    threadLocalTransfer.cleanup();
+                }
+            }
+        }
+    }
+
     protected FeatureCollection selectProperties(FeatureInfoRequestParameters params,
             FeatureCollection collection) throws IOException {
         String[] names = params.getPropertyNames();
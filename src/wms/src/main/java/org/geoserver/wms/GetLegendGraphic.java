@@ -5,10 +5,23 @@
  */
 package org.geoserver.wms;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.geoserver.ows.Dispatcher;
+import org.geoserver.ows.Request;
 import org.geoserver.ows.Response;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.platform.Operation;
 import org.geoserver.platform.ServiceException;
 import org.geoserver.wms.legendgraphic.BufferedImageLegendGraphic;
-import org.geotools.filter.function.EnvFunction;
+import org.geoserver.wms.legendgraphic.EncodedLegendGraphic;
+import org.geoserver.wms.legendgraphic.LegendGraphicCache;
+import org.geotools.util.logging.Logging;
 
 /**
  * WMS GetLegendGraphic operation default implementation.
@@ -17,10 +30,19 @@ import org.geotools.filter.function.EnvFunction;
  */
 public class GetLegendGraphic {
 
+    static final Logger LOGGER = Logging.getLogger(GetLegendGraphic.class);
+
     private final WMS wms;
 
+    private final LegendGraphicCache cache;
+
     public GetLegendGraphic(final WMS wms) {
+        this(wms, null);
+    }
+
+    public GetLegendGraphic(final WMS wms, final LegendGraphicCache cache) {
         this.wms = wms;
+        this.cache = cache;
     }
 
     /**
@@ -46,8 +68,71 @@ public class GetLegendGraphic {
             throw new ServiceException("There is no support for creating legends in "
                     + outputFormat + " format", "InvalidFormat");
         }
-        Object legend = format.produceLegendGraphic(request);
-        return legend;
+
+        // see if we can use the legend cache, we need to be in a dispatched request to encode
+        final Request owsRequest = Dispatcher.REQUEST.get();
+        final String key = cache == null || owsRequest == null ? null : cache.getKey(request);
+        if (key == null) {
+            return format.produceLegendGraphic(request);
+        }
+
+        EncodedLegendGraphic encoded = cache.get(key);
+        if (encoded == null) {
+            // taken before rendering, a style change while rendering keeps the legend out
+            long generation = cache.getGeneration();
+            Object legend = format.produceLegendGraphic(request);
+            encoded = encode(legend, request.getFormat(), owsRequest.getOperation(), key,
+                    generation);
+            if (encoded == null) {
+                return legend;
+            }
+        }
+
+        // conditional request support
+        if (owsRequest.getHttpRequest() != null && owsRequest.getHttpResponse() != null) {
+            String ifNoneMatch = owsRequest.getHttpRequest().getHeader("If-None-Match");
+            if (ifNoneMatch != null && ifNoneMatch.contains(encoded.getEtag())) {
+                owsRequest.getHttpResponse().setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return encoded.notModified();
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Encodes the legend using the {@link Response} that would have written it out, and stores
+     * the result in the cache
+     * 
+     * @return the encoded legend, or null if no suitable response could be found
+     */
+    private EncodedLegendGraphic encode(Object legend, String outputFormat, Operation operation,
+            String key, long generation) {
+        for (Response response : GeoServerExtensions.extensions(Response.class)) {
+            if (!response.getBinding().isInstance(legend) || !response.canHandle(operation)) {
+                continue;
+            }
+            boolean formatMatch = false;
+            for (String format : response.getOutputFormats()) {
+                formatMatch |= format.equalsIgnoreCase(outputFormat);
+            }
+            if (!formatMatch) {
+                continue;
+            }
+
+            try {
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                response.write(legend, bos, operation);
+                String mimeType = response.getMimeType(legend, operation);
+                return cache.put(key, bos.toByteArray(), mimeType, generation);
+            } catch (IOException e) {
+                throw new ServiceException("Failed to encode the legend graphic", e);
+            }
+        }
+
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Could not find a response to cache legends in format " + outputFormat);
+        }
+        return null;
     }
 
 }
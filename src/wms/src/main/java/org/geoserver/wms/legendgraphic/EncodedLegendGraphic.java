@@ -0,0 +1,71 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+/**
+ * A legend graphic that has already been encoded in its final output format, as held by the
+ * {@link LegendGraphicCache}.
+ *
+ * @see EncodedLegendGraphicResponse
+ */
+public class EncodedLegendGraphic {
+
+    private final byte[] contents;
+
+    private final String mimeType;
+
+    private final String etag;
+
+    private final boolean notModified;
+
+    public EncodedLegendGraphic(byte[] contents, String mimeType, String etag) {
+        this(contents, mimeType, etag, false);
+    }
+
+    private EncodedLegendGraphic(byte[] contents, String mimeType, String etag,
+            boolean notModified) {
+        this.contents = contents;
+        this.mimeType = mimeType;
+        this.etag = etag;
+        this.notModified = notModified;
+    }
+
+    /**
+     * Returns a copy of this legend that tells the response to skip the body, used when the
+     * client already holds a representation matching the entity tag
+     */
+    public EncodedLegendGraphic notModified() {
+        return new EncodedLegendGraphic(contents, mimeType, etag, true);
+    }
+
+    /**
+     * The encoded legend
+     */
+    public byte[] getContents() {
+        return contents;
+    }
+
+    /**
+     * The MIME type of the encoded legend
+     */
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * The quoted HTTP entity tag of the encoded legend
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Whether the client copy is still valid, and the body should not be sent
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+}
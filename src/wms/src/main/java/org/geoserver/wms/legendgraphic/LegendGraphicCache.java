@@ -0,0 +1,364 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.geoserver.catalog.Catalog;
+import org.geoserver.catalog.CatalogException;
+import org.geoserver.catalog.LayerGroupInfo;
+import org.geoserver.catalog.LayerInfo;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogAddEvent;
+import org.geoserver.catalog.event.CatalogListener;
+import org.geoserver.catalog.event.CatalogModifyEvent;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.catalog.event.CatalogRemoveEvent;
+import org.geoserver.config.impl.GeoServerLifecycleHandler;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.platform.GeoServerExtensions;
+import org.geoserver.wms.GetLegendGraphicRequest;
+import org.geotools.util.logging.Logging;
+import org.opengis.feature.type.FeatureType;
+
+/**
+ * Bounded in memory cache of encoded legend graphics.
+ * <p>
+ * Legends only depend on the layers, the style, the scale, the size and the format options of the
+ * request, so the cache key is built out of the resolved layer names, the local workspace and the
+ * raw request parameters, minus the ones that do not affect the output. Requests carrying their
+ * own style (SLD or SLD_BODY) are not cached. The cache is bounded by the total size of the
+ * encoded legends, and evicts the least recently used ones first.
+ * </p>
+ * <p>
+ * The cache listens to the catalog and drops its contents whenever a style, layer or layer group
+ * is modified or removed, since any of them can change which style a legend request resolves to.
+ * Legends rendered before the last invalidation are not stored, as they might have been produced
+ * with the old style.
+ * </p>
+ * <p>
+ * The maximum cache size, in megabytes, is controlled by the {@link #LEGEND_CACHE_SIZE} property,
+ * setting it to zero disables the cache.
+ * </p>
+ */
+public class LegendGraphicCache implements CatalogListener, GeoServerLifecycleHandler {
+
+    static final Logger LOGGER = Logging.getLogger(LegendGraphicCache.class);
+
+    /**
+     * System/context/environment property controlling the cache size in megabytes
+     */
+    public static final String LEGEND_CACHE_SIZE = "LEGEND_GRAPHIC_CACHE_SIZE";
+
+    static final int DEFAULT_CACHE_SIZE = 16;
+
+    /**
+     * Parameters that do not influence the legend output
+     */
+    static final Set<String> IGNORED_PARAMETERS;
+
+    static {
+        IGNORED_PARAMETERS = new HashSet<String>();
+        IGNORED_PARAMETERS.add("REQUEST");
+        IGNORED_PARAMETERS.add("SERVICE");
+        IGNORED_PARAMETERS.add("VERSION");
+        IGNORED_PARAMETERS.add("WMTVER");
+        IGNORED_PARAMETERS.add("EXCEPTIONS");
+    }
+
+    private final long maxSize;
+
+    private long size;
+
+    /**
+     * Incremented on each invalidation, guarded by this cache
+     */
+    private long generation;
+
+    private final LinkedHashMap<String, EncodedLegendGraphic> legends =
+            new LinkedHashMap<String, EncodedLegendGraphic>(16, 0.75f, true);
+
+    private Catalog catalog;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    public LegendGraphicCache(Catalog catalog) {
+        this(getConfiguredSize());
+        this.catalog = catalog;
+        catalog.addListener(this);
+    }
+
+    /**
+     * Builds a cache not attached to the catalog, mostly useful for testing
+     *
+     * @param maxSize the maximum size of the cache, in bytes
+     */
+    LegendGraphicCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    static long getConfiguredSize() {
+        String value = GeoServerExtensions.getProperty(LEGEND_CACHE_SIZE);
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim()) * 1024 * 1024;
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Invalid value for " + LEGEND_CACHE_SIZE + ": " + value
+                        + ", using the default of " + DEFAULT_CACHE_SIZE + "MB instead");
+            }
+        }
+        return DEFAULT_CACHE_SIZE * 1024 * 1024;
+    }
+
+    /**
+     * Returns true if the cache is enabled
+     */
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Builds the cache key for the specified request, or returns null if the request legend
+     * cannot be cached
+     *
+     * @param request
+     * @return
+     */
+    public String getKey(GetLegendGraphicRequest request) {
+        Map<String, String> rawKvp = request.getRawKvp();
+        if (!isEnabled() || rawKvp == null) {
+            return null;
+        }
+
+        // sort the parameters so that the key does not depend on their order
+        Map<String, String> sorted = new TreeMap<String, String>();
+        for (Map.Entry<String, String> entry : rawKvp.entrySet()) {
+            String name = entry.getKey().toUpperCase();
+            if ("SLD".equals(name) || "SLD_BODY".equals(name)) {
+                // styles not managed by the catalog, we'd have no way to invalidate
+                return null;
+            }
+            if (!IGNORED_PARAMETERS.contains(name)) {
+                sorted.put(name, entry.getValue());
+            }
+        }
+        // the format might have been defaulted
+        sorted.put("FORMAT", request.getFormat());
+
+        // the same LAYER value can resolve to different layers depending on the virtual service,
+        // so key on the layers it has actually been resolved to
+        StringBuilder sb = new StringBuilder();
+        WorkspaceInfo workspace = LocalWorkspace.get();
+        if (workspace != null) {
+            sb.append(workspace.getName());
+        }
+        sb.append('[');
+        if (request.getLayers() != null) {
+            for (FeatureType layer : request.getLayers()) {
+                if (layer != null && layer.getName() != null) {
+                    sb.append(layer.getName().getURI());
+                }
+                sb.append(',');
+            }
+        }
+        sb.append(']');
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append('&');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gathers a legend from the cache, if available
+     *
+     * @param key
+     * @return
+     */
+    public synchronized EncodedLegendGraphic get(String key) {
+        EncodedLegendGraphic legend = legends.get(key);
+        if (legend == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return legend;
+    }
+
+    /**
+     * Returns the current invalidation generation, to be passed to
+     * {@link #put(String, byte[], String, long)} when the legend is rendered
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Stores an encoded legend in the cache, evicting the least recently used ones if the cache
+     * size goes beyond the limit. Legends bigger than the whole cache are not stored, and neither
+     * are the ones rendered before the last invalidation.
+     *
+     * @param key
+     * @param contents
+     * @param mimeType
+     * @param generation the invalidation generation observed before rendering the legend
+     * @return the legend, with its entity tag
+     */
+    public EncodedLegendGraphic put(String key, byte[] contents, String mimeType, long generation) {
+        EncodedLegendGraphic legend = new EncodedLegendGraphic(contents, mimeType,
+                computeEtag(contents));
+        if (contents.length > maxSize) {
+            return legend;
+        }
+
+        synchronized (this) {
+            if (generation != this.generation) {
+                return legend;
+            }
+            EncodedLegendGraphic previous = legends.put(key, legend);
+            if (previous != null) {
+                size -= previous.getContents().length;
+            }
+            size += contents.length;
+
+            Iterator<EncodedLegendGraphic> it = legends.values().iterator();
+            while (size > maxSize && it.hasNext()) {
+                EncodedLegendGraphic eldest = it.next();
+                size -= eldest.getContents().length;
+                it.remove();
+                evictions.incrementAndGet();
+            }
+        }
+
+        return legend;
+    }
+
+    /**
+     * Computes a strong entity tag for the legend contents
+     *
+     * @param contents
+     * @return
+     */
+    static String computeEtag(byte[] contents) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(contents);
+            StringBuilder sb = new StringBuilder("\"");
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 is not available", e);
+        }
+    }
+
+    /**
+     * Drops all cached legends
+     */
+    public synchronized void clear() {
+        generation++;
+        legends.clear();
+        size = 0;
+    }
+
+    /**
+     * Number of legends currently held in the cache
+     */
+    public synchronized int getCount() {
+        return legends.size();
+    }
+
+    /**
+     * Total size of the legends held in the cache, in bytes
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    boolean affectsLegends(Object source) {
+        return source instanceof StyleInfo || source instanceof LayerInfo
+                || source instanceof LayerGroupInfo;
+    }
+
+    @Override
+    public void handleAddEvent(CatalogAddEvent event) throws CatalogException {
+        // a new object cannot be referenced by an already cached legend
+    }
+
+    @Override
+    public void handleRemoveEvent(CatalogRemoveEvent event) throws CatalogException {
+        if (affectsLegends(event.getSource())) {
+            clear();
+        }
+    }
+
+    @Override
+    public void handleModifyEvent(CatalogModifyEvent event) throws CatalogException {
+        // wait for the post modify, the style contents might not be saved yet
+    }
+
+    @Override
+    public void handlePostModifyEvent(CatalogPostModifyEvent event) throws CatalogException {
+        if (affectsLegends(event.getSource())) {
+            clear();
+        }
+    }
+
+    @Override
+    public void reloaded() {
+        clear();
+    }
+
+    @Override
+    public void onReset() {
+        clear();
+    }
+
+    @Override
+    public void onDispose() {
+        clear();
+        if (catalog != null) {
+            catalog.removeListener(this);
+        }
+    }
+
+    @Override
+    public void beforeReload() {
+        // nothing to do
+    }
+
+    @Override
+    public void onReload() {
+        clear();
+    }
+}
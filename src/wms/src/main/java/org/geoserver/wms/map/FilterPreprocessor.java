@@ -0,0 +1,132 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.geotools.filter.visitor.DuplicatingFilterVisitor;
+import org.opengis.filter.Filter;
+import org.opengis.filter.Id;
+
+/**
+ * Prepares the GetMap filters for repeated in memory evaluation, and keeps the results around so
+ * that requests using the same filters, like the tiles of a filtered map, share them:
+ * <ul>
+ * <li>large feature id filters are turned into {@link HashedIdFilter}</li>
+ * <li>spatial filters are rebuilt through the filter factory, whose implementations prepare
+ * their literal geometries (JTS <code>PreparedGeometry</code>) once, when built</li>
+ * </ul>
+ * The filters are cached by their textual representation in the request, the cache is bounded and
+ * evicts the least recently used entries first.
+ */
+class FilterPreprocessor {
+
+    /**
+     * Id filters with at least this many identifiers are turned into hash lookups
+     */
+    static final int ID_HASH_THRESHOLD = 16;
+
+    /**
+     * Number of filter lists kept in the cache, set to zero to disable caching
+     */
+    static final int CACHE_SIZE = Integer.getInteger("org.geoserver.wms.filterCacheSize", 100);
+
+    final int cacheSize;
+
+    final Map<String, List<Filter>> cache;
+
+    public FilterPreprocessor() {
+        this(CACHE_SIZE);
+    }
+
+    FilterPreprocessor(final int cacheSize) {
+        this.cacheSize = cacheSize;
+        this.cache = new LinkedHashMap<String, List<Filter>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Filter>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * Returns the preprocessed version of the filters, reusing a cached copy if the same filters
+     * were already seen
+     * 
+     * @param key the textual representation of the filters, or null if they should not be cached
+     * @param filters the filters parsed from the request
+     * @return a new list with the preprocessed filters
+     */
+    public List<Filter> preprocess(String key, List<Filter> filters) {
+        if (filters == null) {
+            return null;
+        }
+        if (key == null || cacheSize <= 0) {
+            return preprocess(filters);
+        }
+
+        List<Filter> result;
+        synchronized (cache) {
+            result = cache.get(key);
+        }
+        if (result == null) {
+            result = Collections.unmodifiableList(preprocess(filters));
+            synchronized (cache) {
+                cache.put(key, result);
+            }
+        }
+        // callers might modify the list
+        return new ArrayList<Filter>(result);
+    }
+
+    List<Filter> preprocess(List<Filter> filters) {
+        PreprocessingVisitor visitor = new PreprocessingVisitor();
+        List<Filter> result = new ArrayList<Filter>(filters.size());
+        for (Filter filter : filters) {
+            result.add(filter == null ? null : (Filter) filter.accept(visitor, null));
+        }
+        return result;
+    }
+
+    /**
+     * Drops all the cached filters
+     */
+    public void clear() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+
+    int getCachedCount() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    /**
+     * Copies the filter, hashing the large feature id filters along the way
+     */
+    static class PreprocessingVisitor extends DuplicatingFilterVisitor {
+
+        @Override
+        public Object visit(Id filter, Object extraData) {
+            if (filter instanceof HashedIdFilter) {
+                return filter;
+            }
+            if (filter.getIdentifiers().size() >= ID_HASH_THRESHOLD
+                    && HashedIdFilter.canHash(filter)) {
+                return new HashedIdFilter(filter);
+            }
+            return super.visit(filter, extraData);
+        }
+    }
+}
@@ -117,6 +117,12 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
      * the first style that can be applied to a given layer. This is for backwards compatibility
      */
     private boolean laxStyleMatchAllowed = true;
+
+    /**
+     * Prepares the filters for in memory evaluation, sharing them among requests with the same
+     * filters (e.g., the tiles of a filtered map)
+     */
+    private FilterPreprocessor filterPreprocessor = new FilterPreprocessor();
     
     
     public GetMapKvpRequestReader(WMS wms) {
@@ -554,8 +560,30 @@ public class GetMapKvpRequestReader extends KvpRequestReader implements HttpServ
         if (filters.size() == 0) {
             filters = null;
         }
-        return filters;
-    }   
+        return filterPreprocessor.preprocess(getFilterKey(getMap), filters);
+    }
+
+    /**
+     * Builds a key identifying the filters out of their textual representation in the request,
+     * or returns null if that is not available
+     * 
+     * @param getMap
+     * @return
+     */
+    String getFilterKey(GetMapRequest getMap) {
+        Map<String, String> rawKvp = getMap.getRawKvp();
+        if (rawKvp == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (String name : new String[] { "FILTER", "CQL_FILTER", "FEATUREID" }) {
+            String value = rawKvp.get(name);
+            if (value != null) {
+                sb.append(name).append('=').append(value).append('&');
+            }
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
     
     /**
      * validates an style document.
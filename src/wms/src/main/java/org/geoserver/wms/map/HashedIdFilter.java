@@ -0,0 +1,92 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.opengis.feature.Feature;
+import org.opengis.filter.FilterVisitor;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
+import org.opengis.filter.identity.Identifier;
+
+/**
+ * An {@link Id} filter that evaluates features with a hash lookup on their identifier, instead of
+ * matching each identifier in turn. Visitors and stores see it as the original filter.
+ * 
+ * @see FilterPreprocessor
+ */
+class HashedIdFilter implements Id {
+
+    final Id delegate;
+
+    final Set<Object> ids;
+
+    HashedIdFilter(Id delegate) {
+        this.delegate = delegate;
+        this.ids = new HashSet<Object>();
+        for (Identifier identifier : delegate.getIdentifiers()) {
+            ids.add(identifier.getID());
+        }
+    }
+
+    /**
+     * Returns true if all the identifiers are plain, unversioned feature ids, the only ones that
+     * can be matched by a simple lookup
+     */
+    static boolean canHash(Id filter) {
+        for (Identifier identifier : filter.getIdentifiers()) {
+            if (!(identifier instanceof FeatureId)
+                    || ((FeatureId) identifier).getFeatureVersion() != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean evaluate(Object object) {
+        if (object instanceof Feature) {
+            FeatureId fid = ((Feature) object).getIdentifier();
+            return fid != null && ids.contains(fid.getID());
+        }
+        return delegate.evaluate(object);
+    }
+
+    @Override
+    public Object accept(FilterVisitor visitor, Object extraData) {
+        return visitor.visit(this, extraData);
+    }
+
+    @Override
+    public Set<Object> getIDs() {
+        return delegate.getIDs();
+    }
+
+    @Override
+    public Set<Identifier> getIdentifiers() {
+        return delegate.getIdentifiers();
+    }
+
+    @Override
+    public int hashCode() {
+        return delegate.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof HashedIdFilter) {
+            return delegate.equals(((HashedIdFilter) obj).delegate);
+        }
+        return delegate.equals(obj);
+    }
+
+    @Override
+    public String toString() {
+        return delegate.toString();
+    }
+}
@@ -0,0 +1,96 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import org.geoserver.wms.SymbolizerFilteringVisitor;
+import org.geotools.styling.FeatureTypeStyle;
+import org.geotools.styling.LineSymbolizer;
+import org.geotools.styling.PointSymbolizer;
+import org.geotools.styling.PolygonSymbolizer;
+import org.geotools.styling.RasterSymbolizer;
+import org.geotools.styling.Rule;
+import org.geotools.styling.Style;
+import org.geotools.styling.TextSymbolizer;
+
+/**
+ * A style visitor that copies styles keeping either only the text symbolizers, or everything but
+ * the text symbolizers. Used to paint labels separately from the rest of the map.
+ */
+class LabelFilteringVisitor extends SymbolizerFilteringVisitor {
+
+    boolean labels;
+
+    /**
+     * @param labels if true only the text symbolizers are kept, otherwise only the text
+     *        symbolizers are removed
+     */
+    public LabelFilteringVisitor(boolean labels) {
+        this.labels = labels;
+    }
+
+    /**
+     * Returns a copy of the style containing only the labels, or everything but the labels
+     */
+    public static Style filter(Style style, boolean labels) {
+        LabelFilteringVisitor visitor = new LabelFilteringVisitor(labels);
+        style.accept(visitor);
+        return (Style) visitor.getCopy();
+    }
+
+    /**
+     * Returns true if the style contains at least one symbolizer
+     */
+    public static boolean hasSymbolizers(Style style) {
+        for (FeatureTypeStyle fts : style.featureTypeStyles()) {
+            for (Rule rule : fts.rules()) {
+                if (!rule.symbolizers().isEmpty()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public void visit(TextSymbolizer ts) {
+        if (labels) {
+            super.visit(ts);
+        } else {
+            pages.push(null);
+        }
+    }
+
+    public void visit(PointSymbolizer ps) {
+        if (labels) {
+            pages.push(null);
+        } else {
+            super.visit(ps);
+        }
+    }
+
+    public void visit(LineSymbolizer line) {
+        if (labels) {
+            pages.push(null);
+        } else {
+            super.visit(line);
+        }
+    }
+
+    public void visit(PolygonSymbolizer poly) {
+        if (labels) {
+            pages.push(null);
+        } else {
+            super.visit(poly);
+        }
+    }
+
+    public void visit(RasterSymbolizer raster) {
+        if (labels) {
+            pages.push(null);
+        } else {
+            super.visit(raster);
+        }
+    }
+}
@@ -12,6 +12,8 @@ import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.Transparency;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.NoninvertibleTransformException;
+import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
 import java.awt.image.ComponentColorModel;
@@ -78,6 +80,7 @@ import org.geotools.referencing.CRS;
 import org.geotools.referencing.CRS.AxisOrder;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.referencing.operation.transform.AffineTransform2D;
+import org.geotools.renderer.label.LabelCacheImpl;
 import org.geotools.renderer.lite.RendererUtilities;
 import org.geotools.renderer.lite.RenderingTransformationHelper;
 import org.geotools.renderer.lite.StreamingRenderer;
@@ -298,17 +301,27 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
                 palette = pe.getPalette();
         }
 
+        // we use the alpha channel if the image is transparent or if the meta tiler
+        // is enabled, since apparently the Crop operation inside the meta-tiler
+        // generates striped images in that case (see GEOS-
+        boolean useAlpha = transparent || MetatileMapOutputFormat.isRequestTiled(request, this);
+
+        // very large maps are painted and encoded one horizontal strip at a time
+        final boolean striped = isStripedRendering(mapContent, paintArea, tiled, palette, useAlpha);
+        final int surfaceHeight = striped ? Math.min(getMapStripHeight(), paintArea.height)
+                : paintArea.height;
+
         // before even preparing the rendering surface, check it's not too big,
         // if so, throw a service exception
         long maxMemory = wms.getMaxRequestMemory() * KB;
         // ... base image memory
-        long memory = getDrawingSurfaceMemoryUse(paintArea.width, paintArea.height, palette,
+        long memory = getDrawingSurfaceMemoryUse(paintArea.width, surfaceHeight, palette,
                 transparent);
         // .. use a fake streaming renderer to evaluate the extra back buffers used when rendering
         // multiple featureTypeStyles against the same layer
         StreamingRenderer testRenderer = new StreamingRenderer();
         testRenderer.setMapContent(mapContent);
-        memory += testRenderer.getMaxBackBufferMemory(paintArea.width, paintArea.height);
+        memory += testRenderer.getMaxBackBufferMemory(paintArea.width, surfaceHeight);
         if (maxMemory > 0 && memory > maxMemory) {
             long kbUsed = memory / KB;
             long kbMax = maxMemory / KB;
@@ -343,20 +356,132 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
             }
         }
 
-        // we use the alpha channel if the image is transparent or if the meta tiler
-        // is enabled, since apparently the Crop operation inside the meta-tiler
-        // generates striped images in that case (see GEOS-
-        boolean useAlpha = transparent || MetatileMapOutputFormat.isRequestTiled(request, this);
+        filterPlacemarkSymbolizers(mapContent, request);
+
+        if (striped) {
+            // all strips are painted here, so that rendering errors and timeouts are reported
+            // before the response is committed, and only the encoding is streamed
+            MapStripPainter painter = new MapStripPainter(mapContent, paintArea, layout, antialias,
+                    palette, useAlpha, transparent, bgColor);
+            StripedRenderedImage stripedImage = new StripedRenderedImage(paintArea.width,
+                    paintArea.height, surfaceHeight, painter);
+            painter.start();
+            try {
+                stripedImage.paintStrips();
+            } finally {
+                painter.dispose();
+            }
+            return buildMap(mapContent, stripedImage);
+        }
+
         final RenderedImage preparedImage = prepareImage(paintArea.width, paintArea.height,
                 palette, useAlpha);
         final Map<RenderingHints.Key, Object> hintsMap = new HashMap<RenderingHints.Key, Object>();
 
         final Graphics2D graphic = getGraphics(transparent, bgColor, preparedImage, hintsMap);
+        setupRenderingHints(hintsMap, antialias, preparedImage.getColorModel());
+
+        // make sure the hints are set before we start rendering the map
+        graphic.setRenderingHints(hintsMap);
+
+        RenderingHints hints = new RenderingHints(hintsMap);
+        StreamingRenderer renderer = new StreamingRenderer();
+        renderer .setThreadPool(DefaultWebMapService.getRenderingPool());
+        renderer.setMapContent(mapContent);
+        renderer.setJava2DHints(hints);
+        renderer.setRendererHints(getRendererParams(mapContent, antialias));
+
+        // if abort already requested bail out
+        // if (this.abortRequested) {
+        // graphic.dispose();
+        // return null;
+        // }
 
+        // enforce no more than x rendering errors
+        int maxErrors = wms.getMaxRenderingErrors();
+        MaxErrorEnforcer errorChecker = new MaxErrorEnforcer(renderer, maxErrors);
+
+        // Add a render listener that ignores well known rendering exceptions and reports back non
+        // ignorable ones
+        final RenderExceptionStrategy nonIgnorableExceptionListener;
+        nonIgnorableExceptionListener = new RenderExceptionStrategy(renderer);
+        renderer.addRenderListener(nonIgnorableExceptionListener);
+        
+        onBeforeRender(renderer);
+
+        // setup the timeout enforcer (the enforcer is neutral when the timeout is 0)
+        int maxRenderingTime = wms.getMaxRenderingTime() * 1000;
+        RenderingTimeoutEnforcer timeout = new RenderingTimeoutEnforcer(maxRenderingTime, renderer,
+                graphic);
+        timeout.start();
+        try {
+            // finally render the image;
+            renderer.paint(graphic, paintArea, mapContent.getRenderingArea(),
+                    mapContent.getRenderingTransform());
+
+            // apply watermarking
+            if (layout != null) {
+                try {
+                    layout.paint(graphic, paintArea, mapContent);
+                } catch (Exception e) {
+                    throw new ServiceException("Problem occurred while trying to watermark data", e);
+                }
+            }
+        } finally {
+            timeout.stop();
+            graphic.dispose();
+        }
+
+        checkRenderingErrors(timeout, maxRenderingTime, nonIgnorableExceptionListener,
+                errorChecker, maxErrors);
+
+        if (palette != null && palette.getMapSize() < 256) {
+            image = optimizeSampleModel(preparedImage);
+        } else {
+            image = preparedImage;
+        }
+
+        RenderedImageMap map = buildMap(mapContent, image);
+        return map;
+    }
+
+    /**
+     * Checks the outcome of a rendering, throwing a {@link ServiceException} if it timed out or
+     * failed
+     */
+    private void checkRenderingErrors(RenderingTimeoutEnforcer timeout, int maxRenderingTime,
+            RenderExceptionStrategy nonIgnorableExceptionListener, MaxErrorEnforcer errorChecker,
+            int maxErrors) {
+        // check if the request did timeout
+        if (timeout.isTimedOut()) {
+            throw new ServiceException(
+                    "This requested used more time than allowed and has been forcefully stopped. "
+                            + "Max rendering time is " + (maxRenderingTime / 1000.0) + "s");
+        }
+
+        // check if a non ignorable error occurred
+        if (nonIgnorableExceptionListener.exceptionOccurred()) {
+            Exception renderError = nonIgnorableExceptionListener.getException();
+            throw new ServiceException("Rendering process failed", renderError, "internalError");
+        }
+
+        // check if too many errors occurred
+        if (errorChecker.exceedsMaxErrors()) {
+            throw new ServiceException("More than " + maxErrors
+                    + " rendering errors occurred, bailing out.", errorChecker.getLastException(),
+                    "internalError");
+        }
+    }
+
+    /**
+     * Sets up the Java2D hints used for rendering
+     */
+    private void setupRenderingHints(final Map<RenderingHints.Key, Object> hintsMap,
+            String antialias, ColorModel colorModel) {
         // set up the antialias hints
         if (AA_NONE.equals(antialias)) {
             hintsMap.put(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
-            if (preparedImage.getColorModel() instanceof IndexColorModel) {
+            if (colorModel instanceof IndexColorModel) {
                 // otherwise we end up with dithered colors where the match is
                 // not 100%
                 hintsMap.put(RenderingHints.KEY_DITHERING, RenderingHints.VALUE_DITHER_DISABLE);
@@ -395,15 +520,13 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
                         RenderingHints.VALUE_INTERPOLATION_BICUBIC);
             }
         }
+    }
 
-        // make sure the hints are set before we start rendering the map
-        graphic.setRenderingHints(hintsMap);
-
-        RenderingHints hints = new RenderingHints(hintsMap);
-        StreamingRenderer renderer = new StreamingRenderer();
-        renderer .setThreadPool(DefaultWebMapService.getRenderingPool());
-        renderer.setMapContent(mapContent);
-        renderer.setJava2DHints(hints);
+    /**
+     * Builds the {@link StreamingRenderer} hints
+     */
+    private Map<Object, Object> getRendererParams(final WMSMapContent mapContent, String antialias) {
+        final GetMapRequest request = mapContent.getRequest();
 
         // setup the renderer hints
         Map<Object, Object> rendererParams = new HashMap<Object, Object>();
@@ -440,6 +563,15 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
                     .getFormatOptions().get("dpi")));
         }
 
+        return rendererParams;
+    }
+
+    /**
+     * Removes the point and text symbolizers from the layers styles if the KML placemarks are
+     * going to be used
+     */
+    private void filterPlacemarkSymbolizers(final WMSMapContent mapContent,
+            final GetMapRequest request) {
         boolean kmplacemark = false;
         if (request.getFormatOptions().get("kmplacemark") != null)
             kmplacemark = ((Boolean) request.getFormatOptions().get("kmplacemark"))
@@ -464,77 +596,288 @@ public class RenderedImageMapOutputFormat extends AbstractMapOutputFormat {
                 }
             }
         }
-        renderer.setRendererHints(rendererParams);
+    }
 
-        // if abort already requested bail out
-        // if (this.abortRequested) {
-        // graphic.dispose();
-        // return null;
-        // }
+    /**
+     * Number of pixels above which maps are rendered in strips, see
+     * {@link DefaultWebMapService#getMapStripingThreshold()}
+     */
+    long getMapStripingThreshold() {
+        return DefaultWebMapService.getMapStripingThreshold();
+    }
 
-        // enforce no more than x rendering errors
-        int maxErrors = wms.getMaxRenderingErrors();
-        MaxErrorEnforcer errorChecker = new MaxErrorEnforcer(renderer, maxErrors);
+    /**
+     * Height of the strips used for large maps, see
+     * {@link DefaultWebMapService#getMapStripHeight()}
+     */
+    int getMapStripHeight() {
+        return DefaultWebMapService.getMapStripHeight();
+    }
 
-        // Add a render listener that ignores well known rendering exceptions and reports back non
-        // ignorable ones
-        final RenderExceptionStrategy nonIgnorableExceptionListener;
-        nonIgnorableExceptionListener = new RenderExceptionStrategy(renderer);
-        renderer.addRenderListener(nonIgnorableExceptionListener);
-        
-        onBeforeRender(renderer);
+    /**
+     * Checks if the map should be painted and encoded in horizontal strips. This happens for
+     * large, untiled, non rotated maps, encoded in formats whose encoders read the image top to
+     * bottom (PNG and TIFF)
+     */
+    boolean isStripedRendering(WMSMapContent mapContent, Rectangle paintArea, boolean tiled,
+            IndexColorModel palette, boolean useAlpha) {
+        long threshold = getMapStripingThreshold();
+        if (threshold <= 0 || getMapStripHeight() <= 0
+                || ((long) paintArea.width) * paintArea.height <= threshold) {
+            return false;
+        }
+        if (tiled || MetatileMapOutputFormat.isRequestTiled(mapContent.getRequest(), this)
+                || mapContent.getAngle() != 0.0) {
+            return false;
+        }
+        String mime = getMimeType();
+        if (mime == null || !(mime.startsWith("image/png") || mime.startsWith("image/tiff"))) {
+            return false;
+        }
 
-        // setup the timeout enforcer (the enforcer is neutral when the timeout is 0)
-        int maxRenderingTime = wms.getMaxRenderingTime() * 1000;
-        RenderingTimeoutEnforcer timeout = new RenderingTimeoutEnforcer(maxRenderingTime, renderer,
-                graphic);
-        timeout.start();
-        try {
-            // finally render the image;
-            renderer.paint(graphic, paintArea, mapContent.getRenderingArea(),
-                    mapContent.getRenderingTransform());
+        // subclasses might be using a custom drawing surface
+        return prepareImage(1, 1, palette, useAlpha) instanceof BufferedImage;
+    }
 
-            // apply watermarking
-            if (layout != null) {
-                try {
-                    layout.paint(graphic, paintArea, mapContent);
-                } catch (Exception e) {
-                    throw new ServiceException("Problem occurred while trying to watermark data", e);
+    /**
+     * Paints a map strip by strip, using a single renderer and a single set of error and timeout
+     * checks for the whole map. Each strip is painted in two passes:
+     * <ul>
+     * <li>all symbolizers but the text ones, limited to the strip area (plus the usual rendering
+     * buffer), using the same world to screen transform as the full map</li>
+     * <li>the text symbolizers, clipped to the strip. The labels are collected and placed only
+     * once, over the whole map, while painting the first strip, and the same label cache is then
+     * painted again on the following strips, so that label placement is exactly the same in all
+     * strips and labels crossing the strip borders are painted consistently</li>
+     * </ul>
+     * This matches the normal rendering, where labels are painted after all layers, on top of them.
+     */
+    class MapStripPainter implements StripedRenderedImage.StripPainter {
+
+        final WMSMapContent mapContent;
+
+        final Rectangle paintArea;
+
+        final MapDecorationLayout layout;
+
+        final String antialias;
+
+        final IndexColorModel palette;
+
+        final boolean useAlpha;
+
+        final boolean transparent;
+
+        final Color bgColor;
+
+        final List<Layer> layers;
+
+        final Style[] originalStyles;
+
+        final Style[] geometryStyles;
+
+        final Style[] labelStyles;
+
+        final boolean[] originalVisibility;
+
+        final boolean[] hasGeometries;
+
+        final boolean hasLabels;
+
+        final StreamingRenderer renderer;
+
+        final Map<Object, Object> geometryParams;
+
+        final Map<Object, Object> labelParams;
+
+        final LabelCacheImpl labelCache;
+
+        final int maxErrors;
+
+        final MaxErrorEnforcer errorChecker;
+
+        final RenderExceptionStrategy nonIgnorableExceptionListener;
+
+        final int maxRenderingTime;
+
+        final RenderingTimeoutEnforcer timeout;
+
+        boolean labelsCollected;
+
+        MapStripPainter(WMSMapContent mapContent, Rectangle paintArea, MapDecorationLayout layout,
+                String antialias, IndexColorModel palette, boolean useAlpha, boolean transparent,
+                Color bgColor) {
+            this.mapContent = mapContent;
+            this.paintArea = paintArea;
+            this.layout = layout;
+            this.antialias = antialias;
+            this.palette = palette;
+            this.useAlpha = useAlpha;
+            this.transparent = transparent;
+            this.bgColor = bgColor;
+
+            // split the styles into labels and everything else
+            layers = new ArrayList<Layer>(mapContent.layers());
+            originalStyles = new Style[layers.size()];
+            geometryStyles = new Style[layers.size()];
+            labelStyles = new Style[layers.size()];
+            originalVisibility = new boolean[layers.size()];
+            hasGeometries = new boolean[layers.size()];
+            boolean labels = false;
+            for (int i = 0; i < layers.size(); i++) {
+                Layer layer = layers.get(i);
+                originalVisibility[i] = layer.isVisible();
+                hasGeometries[i] = true;
+                if (layer instanceof StyleLayer && layer.getStyle() != null) {
+                    Style style = layer.getStyle();
+                    originalStyles[i] = style;
+                    geometryStyles[i] = LabelFilteringVisitor.filter(style, false);
+                    hasGeometries[i] = LabelFilteringVisitor.hasSymbolizers(geometryStyles[i]);
+                    Style labelStyle = LabelFilteringVisitor.filter(style, true);
+                    if (LabelFilteringVisitor.hasSymbolizers(labelStyle)) {
+                        labelStyles[i] = labelStyle;
+                        labels = true;
+                    }
                 }
             }
-        } finally {
-            timeout.stop();
-            graphic.dispose();
+            hasLabels = labels;
+
+            // one renderer for the whole map. The geometry passes get a label cache of their
+            // own, which stays empty, so that they do not paint the map labels
+            final Map<RenderingHints.Key, Object> hintsMap = new HashMap<RenderingHints.Key, Object>();
+            setupRenderingHints(hintsMap, antialias, createStrip(1, 1).getColorModel());
+            renderer = new StreamingRenderer();
+            renderer.setThreadPool(DefaultWebMapService.getRenderingPool());
+            renderer.setMapContent(mapContent);
+            renderer.setJava2DHints(new RenderingHints(hintsMap));
+            geometryParams = getRendererParams(mapContent, antialias);
+            geometryParams.put(StreamingRenderer.LABEL_CACHE_KEY, new LabelCacheImpl());
+            labelCache = new LabelCacheImpl();
+            labelParams = getRendererParams(mapContent, antialias);
+            labelParams.put(StreamingRenderer.LABEL_CACHE_KEY, labelCache);
+
+            // the error and time limits apply to the map as a whole, not to the single strips
+            maxErrors = wms.getMaxRenderingErrors();
+            errorChecker = new MaxErrorEnforcer(renderer, maxErrors);
+            nonIgnorableExceptionListener = new RenderExceptionStrategy(renderer);
+            renderer.addRenderListener(nonIgnorableExceptionListener);
+
+            onBeforeRender(renderer);
+
+            maxRenderingTime = wms.getMaxRenderingTime() * 1000;
+            timeout = new RenderingTimeoutEnforcer(maxRenderingTime, renderer, null);
         }
 
-        // check if the request did timeout
-        if (timeout.isTimedOut()) {
-            throw new ServiceException(
-                    "This requested used more time than allowed and has been forcefully stopped. "
-                            + "Max rendering time is " + (maxRenderingTime / 1000.0) + "s");
+        /**
+         * Starts the rendering timeout, to be called before painting the first strip
+         */
+        void start() {
+            timeout.start();
         }
 
-        // check if a non ignorable error occurred
-        if (nonIgnorableExceptionListener.exceptionOccurred()) {
-            Exception renderError = nonIgnorableExceptionListener.getException();
-            throw new ServiceException("Rendering process failed", renderError, "internalError");
+        /**
+         * Stops the rendering timeout, releases the collected labels and restores the layers as
+         * they were before painting
+         */
+        void dispose() {
+            timeout.stop();
+            labelCache.clear();
+            for (int i = 0; i < layers.size(); i++) {
+                Layer layer = layers.get(i);
+                if (originalStyles[i] != null) {
+                    ((StyleLayer) layer).setStyle(originalStyles[i]);
+                }
+                layer.setVisible(originalVisibility[i]);
+            }
         }
 
-        // check if too many errors occurred
-        if (errorChecker.exceedsMaxErrors()) {
-            throw new ServiceException("More than " + maxErrors
-                    + " rendering errors occurred, bailing out.", errorChecker.getLastException(),
-                    "internalError");
+        public BufferedImage createStrip(int width, int height) {
+            return (BufferedImage) prepareImage(width, height, palette, useAlpha);
         }
 
-        if (palette != null && palette.getMapSize() < 256) {
-            image = optimizeSampleModel(preparedImage);
-        } else {
-            image = preparedImage;
+        public void paint(BufferedImage strip, Rectangle bounds) {
+            final Map<RenderingHints.Key, Object> hintsMap = new HashMap<RenderingHints.Key, Object>();
+            final Graphics2D graphic = getGraphics(transparent, bgColor, strip, hintsMap);
+            setupRenderingHints(hintsMap, antialias, strip.getColorModel());
+            graphic.setRenderingHints(hintsMap);
+            timeout.setGraphics(graphic);
+
+            try {
+                // first pass, everything but labels, on the strip area only
+                for (int i = 0; i < layers.size(); i++) {
+                    if (geometryStyles[i] != null) {
+                        ((StyleLayer) layers.get(i)).setStyle(geometryStyles[i]);
+                    }
+                    layers.get(i).setVisible(originalVisibility[i] && hasGeometries[i]);
+                }
+                ReferencedEnvelope area = mapContent.getRenderingArea();
+                // map the strip back to the world with the rendering transform, that takes care of
+                // the CRS axis order, with north/east ones the strip cuts the first axis instead
+                Rectangle2D stripBounds;
+                try {
+                    stripBounds = mapContent.getRenderingTransform().createInverse()
+                            .createTransformedShape(bounds).getBounds2D();
+                } catch (NoninvertibleTransformException e) {
+                    throw new ServiceException("Could not compute the area of the map strip "
+                            + bounds, e);
+                }
+                ReferencedEnvelope stripArea = new ReferencedEnvelope(stripBounds,
+                        area.getCoordinateReferenceSystem());
+                Rectangle stripPaintArea = new Rectangle(0, 0, bounds.width, bounds.height);
+                AffineTransform stripTransform = AffineTransform.getTranslateInstance(0,
+                        -bounds.y);
+                stripTransform.concatenate(mapContent.getRenderingTransform());
+                renderer.setRendererHints(geometryParams);
+                renderer.paint(graphic, stripPaintArea, stripArea, stripTransform);
+                checkStrip();
+
+                // second pass, labels over the whole map, clipped to the strip
+                graphic.translate(0, -bounds.y);
+                graphic.clip(bounds);
+                if (hasLabels) {
+                    if (!labelsCollected) {
+                        for (int i = 0; i < layers.size(); i++) {
+                            if (labelStyles[i] != null) {
+                                ((StyleLayer) layers.get(i)).setStyle(labelStyles[i]);
+                                layers.get(i).setVisible(originalVisibility[i]);
+                            } else {
+                                layers.get(i).setVisible(false);
+                            }
+                        }
+                        // reads the labelled layers, places and paints the labels
+                        renderer.setRendererHints(labelParams);
+                        renderer.paint(graphic, paintArea, area,
+                                mapContent.getRenderingTransform());
+                        labelsCollected = true;
+                    } else {
+                        // just paint the labels collected in the first strip again
+                        labelCache.end(graphic, paintArea);
+                    }
+                    checkStrip();
+                }
+
+                // decorations
+                if (layout != null) {
+                    try {
+                        layout.paint(graphic, paintArea, mapContent);
+                    } catch (Exception e) {
+                        throw new ServiceException(
+                                "Problem occurred while trying to watermark data", e);
+                    }
+                }
+            } finally {
+                graphic.dispose();
+            }
         }
 
-        RenderedImageMap map = buildMap(mapContent, image);
-        return map;
+        /**
+         * Checks the errors and the timeout after each pass, the renderer forgets about a stop
+         * request as soon as a new paint starts
+         */
+        private void checkStrip() {
+            checkRenderingErrors(timeout, maxRenderingTime, nonIgnorableExceptionListener,
+                    errorChecker, maxErrors);
+        }
     }
 
     protected Graphics2D getGraphics(final boolean transparent, final Color bgColor,
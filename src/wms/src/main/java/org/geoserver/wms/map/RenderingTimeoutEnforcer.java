@@ -21,7 +21,7 @@ public class RenderingTimeoutEnforcer {
     
     long timeout;
     GTRenderer renderer;
-    Graphics graphics;
+    volatile Graphics graphics;
     Timer timer;
     boolean timedOut = false;
 
@@ -31,6 +31,14 @@ public class RenderingTimeoutEnforcer {
         this.graphics = graphics;
     }
 
+    /**
+     * Sets the graphics to be disposed of when the timeout occurs, for renderings that paint
+     * over multiple surfaces one after the other
+     */
+    public void setGraphics(Graphics graphics) {
+        this.graphics = graphics;
+    }
+
     /**
      * Starts checking the rendering timeout (if timeout is positive, does nothing otherwise)
      */
@@ -76,7 +84,10 @@ public class RenderingTimeoutEnforcer {
             // ... but also be rude for extra measure (coverage rendering is
             // an atomic call to the graphics, it cannot be stopped
             // by the above)
-            graphics.dispose();
+            Graphics graphics = RenderingTimeoutEnforcer.this.graphics;
+            if (graphics != null) {
+                graphics.dispose();
+            }
             
         }
         
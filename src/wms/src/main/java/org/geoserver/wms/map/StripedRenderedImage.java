@@ -0,0 +1,171 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.io.ByteArrayOutputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.media.jai.PlanarImage;
+
+/**
+ * A {@link RenderedImage} made of full width, horizontal strips. The strips are all painted
+ * upfront by {@link #paintStrips()}, one at a time, and kept in memory deflate compressed, so
+ * that rendering errors surface before the image is encoded, while the memory used is
+ * proportional to the strip size plus the compressed map size, rather than to the full image
+ * size. The strips are inflated again when the encoder asks for them, only the last one is kept
+ * uncompressed. Reading the image more than once, like the palette computation for paletted
+ * formats does, only inflates the strips again, nothing gets painted twice.
+ *
+ * @see RenderedImageMapOutputFormat
+ */
+class StripedRenderedImage extends PlanarImage {
+
+    /**
+     * Paints a strip of the map
+     */
+    interface StripPainter {
+
+        /**
+         * Creates an empty strip image of the given height, using the same color and sample model
+         * for all calls. The image must be backed by a single byte data buffer.
+         */
+        BufferedImage createStrip(int width, int height);
+
+        /**
+         * Paints the portion of the map identified by <code>bounds</code>, in image coordinates,
+         * into the strip
+         */
+        void paint(BufferedImage strip, Rectangle bounds);
+    }
+
+    private final StripPainter painter;
+
+    private final byte[][] strips;
+
+    private int currentStrip = -1;
+
+    private Raster currentRaster;
+
+    private int paintedStrips;
+
+    public StripedRenderedImage(int width, int height, int stripHeight, StripPainter painter) {
+        this.painter = painter;
+
+        // the sample and color models are inferred from a tiny sample strip
+        BufferedImage sample = painter.createStrip(1, 1);
+        this.minX = 0;
+        this.minY = 0;
+        this.width = width;
+        this.height = height;
+        this.tileGridXOffset = 0;
+        this.tileGridYOffset = 0;
+        this.tileWidth = width;
+        this.tileHeight = Math.min(stripHeight, height);
+        this.colorModel = sample.getColorModel();
+        this.sampleModel = sample.getSampleModel().createCompatibleSampleModel(tileWidth,
+                tileHeight);
+        this.strips = new byte[getNumYTiles()][];
+    }
+
+    /**
+     * Paints all the strips, top to bottom, and stores them compressed. Any exception thrown by
+     * the painter is propagated as is.
+     */
+    public synchronized void paintStrips() {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            for (int tileY = 0; tileY < strips.length; tileY++) {
+                int y = tileY * tileHeight;
+                int h = Math.min(tileHeight, height - y);
+                BufferedImage strip = painter.createStrip(width, tileHeight);
+                painter.paint(strip, new Rectangle(0, y, width, h));
+                paintedStrips++;
+
+                deflater.reset();
+                deflater.setInput(getData(strip.getRaster()));
+                deflater.finish();
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                byte[] buffer = new byte[64 * 1024];
+                while (!deflater.finished()) {
+                    bos.write(buffer, 0, deflater.deflate(buffer));
+                }
+                strips[tileY] = bos.toByteArray();
+            }
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public synchronized Raster getTile(int tileX, int tileY) {
+        if (tileX != 0 || tileY < 0 || tileY >= getNumYTiles()) {
+            return null;
+        }
+        if (strips[tileY] == null) {
+            throw new IllegalStateException("The map strips have not been painted yet");
+        }
+        if (tileY != currentStrip) {
+            // release the old strip before inflating the next one
+            currentRaster = null;
+
+            BufferedImage strip = painter.createStrip(width, tileHeight);
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(strips[tileY]);
+                inflater.inflate(getData(strip.getRaster()));
+            } catch (DataFormatException e) {
+                throw new IllegalStateException("Failed to inflate map strip " + tileY, e);
+            } finally {
+                inflater.end();
+            }
+
+            currentRaster = strip.getRaster().createTranslatedChild(0, tileY * tileHeight);
+            currentStrip = tileY;
+        }
+        return currentRaster;
+    }
+
+    private byte[] getData(Raster raster) {
+        return ((DataBufferByte) raster.getDataBuffer()).getData();
+    }
+
+    /**
+     * Returns how many strips have been painted so far
+     */
+    public synchronized int getPaintedStrips() {
+        return paintedStrips;
+    }
+
+    /**
+     * Returns the total size of the compressed strips, in bytes
+     */
+    public synchronized long getCompressedSize() {
+        long size = 0;
+        for (byte[] strip : strips) {
+            if (strip != null) {
+                size += strip.length;
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public synchronized void dispose() {
+        currentRaster = null;
+        currentStrip = -1;
+        for (int i = 0; i < strips.length; i++) {
+            strips[i] = null;
+        }
+        super.dispose();
+    }
+}
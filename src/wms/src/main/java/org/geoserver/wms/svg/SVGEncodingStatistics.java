@@ -0,0 +1,95 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.svg;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cumulative statistics about the streaming SVG encoder, used to track how effective the path
+ * generalization is.
+ *
+ * @see StreamingSVGMap
+ */
+public class SVGEncodingStatistics {
+
+    static final AtomicLong maps = new AtomicLong();
+
+    static final AtomicLong verticesWritten = new AtomicLong();
+
+    static final AtomicLong verticesSkipped = new AtomicLong();
+
+    static final AtomicLong bytesWritten = new AtomicLong();
+
+    private SVGEncodingStatistics() {
+        // static access only
+    }
+
+    static void update(long written, long skipped, long bytes) {
+        maps.incrementAndGet();
+        verticesWritten.addAndGet(written);
+        verticesSkipped.addAndGet(skipped);
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * Number of SVG maps encoded
+     */
+    public static long getEncodedMaps() {
+        return maps.get();
+    }
+
+    /**
+     * Number of path vertices written out
+     */
+    public static long getVerticesWritten() {
+        return verticesWritten.get();
+    }
+
+    /**
+     * Number of path vertices dropped by the generalization
+     */
+    public static long getVerticesSkipped() {
+        return verticesSkipped.get();
+    }
+
+    /**
+     * Total size of the encoded SVG documents
+     */
+    public static long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Ratio of skipped vertices over the total, between 0 and 1
+     */
+    public static double getVertexReduction() {
+        long skipped = verticesSkipped.get();
+        long total = skipped + verticesWritten.get();
+        return total == 0 ? 0 : ((double) skipped) / total;
+    }
+
+    /**
+     * Estimate of the bytes saved by the generalization, computed as the number of skipped
+     * vertices times the average size of the written ones
+     */
+    public static long getEstimatedBytesSaved() {
+        long written = verticesWritten.get();
+        if (written == 0) {
+            return 0;
+        }
+        return (long) (verticesSkipped.get() * ((double) bytesWritten.get() / written));
+    }
+
+    /**
+     * Resets all counters
+     */
+    public static void reset() {
+        maps.set(0);
+        verticesWritten.set(0);
+        verticesSkipped.set(0);
+        bytesWritten.set(0);
+    }
+}
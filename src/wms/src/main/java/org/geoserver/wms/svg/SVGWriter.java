@@ -22,7 +22,7 @@ import org.geotools.data.simple.SimpleFeatureIterator;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
 
-import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.CoordinateSequence;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.LineString;
@@ -74,10 +74,23 @@ class SVGWriter extends OutputStreamWriter {
         formatter.setMinimumFractionDigits(0);
     }
 
+    private double minX;
+
+    private double maxX;
+
     private double minY;
 
     private double maxY;
 
+    /**
+     * Scale factors from world units to output units, used only when writing in screen space
+     */
+    private double scaleX;
+
+    private double scaleY;
+
+    private boolean screenSpace;
+
     private int coordsSkipCount;
 
     private int coordsWriteCount;
@@ -98,6 +111,8 @@ class SVGWriter extends OutputStreamWriter {
     public SVGWriter(OutputStream out, Envelope mapAreaOfInterest) {
         super(out);
 
+        this.minX = mapAreaOfInterest.getMinX();
+        this.maxX = mapAreaOfInterest.getMaxX();
         this.minY = mapAreaOfInterest.getMinY();
         this.maxY = mapAreaOfInterest.getMaxY();
 
@@ -169,18 +184,61 @@ class SVGWriter extends OutputStreamWriter {
         this.minCoordDistance = minCoordDistance;
     }
 
+    /**
+     * Switches the writer to screen space output: coordinates are scaled so that one pixel of a
+     * <code>width</code> x <code>height</code> image maps to <code>10^precision</code> output
+     * units, and then rounded to integers. Vertices closer than half a pixel to the last written
+     * one are skipped.
+     * 
+     * @param width the map width, in pixels
+     * @param height the map height, in pixels
+     * @param precision the number of sub-pixel decimal digits to preserve
+     */
+    public void setScreenSpace(int width, int height, int precision) {
+        double unitsPerPixel = Math.pow(10, precision);
+        this.scaleX = width * unitsPerPixel / (maxX - minX);
+        this.scaleY = height * unitsPerPixel / (maxY - minY);
+        this.minCoordDistance = unitsPerPixel / 2;
+        this.screenSpace = true;
+    }
+
+    public boolean isScreenSpace() {
+        return screenSpace;
+    }
+
     /**
      * if a reference space has been set, returns a translated Y coordinate wich is inverted based
-     * on the height of such a reference space, otherwise just returns <code>y</code>
+     * on the height of such a reference space, otherwise just returns <code>y</code>. In screen
+     * space mode the result is also scaled and rounded.
      */
     public double getY(double y) {
+        if (screenSpace) {
+            return Math.round((maxY - y) * scaleY);
+        }
         return (maxY - y) + minY;
     }
 
     public double getX(double x) {
+        if (screenSpace) {
+            return Math.round((x - minX) * scaleX);
+        }
         return x;
     }
 
+    /**
+     * Number of vertices written out since this writer was created
+     */
+    public int getCoordsWriteCount() {
+        return coordsWriteCount;
+    }
+
+    /**
+     * Number of vertices skipped by the generalization since this writer was created
+     */
+    public int getCoordsSkipCount() {
+        return coordsSkipCount;
+    }
+
     public void setMaximunFractionDigits(int numDigits) {
         formatter.setMaximumFractionDigits(numDigits);
     }
@@ -519,43 +577,53 @@ class SVGWriter extends OutputStreamWriter {
          * field <code>minCoordDistance</code> and established by the method
          * {@link #setReferenceSpace(Envelope, float) setReferenceSpace(Envelope, blurFactor)}
          * </p>
+         * <p>
+         * The distance is computed in output space, and the relative offsets are computed against
+         * the last written output coordinate, so that in screen space mode rounding errors do not
+         * accumulate along the path
+         * </p>
          * 
          * @param coords
          * 
          * @throws IOException
          */
-        protected void writePathContent(Coordinate[] coords) throws IOException {
+        protected void writePathContent(CoordinateSequence coords) throws IOException {
             write('M');
 
-            Coordinate prev = coords[0];
-            Coordinate curr = null;
-            write(getX(prev.x));
+            double prevX = getX(coords.getX(0));
+            double prevY = getY(coords.getY(0));
+            write(prevX);
             write(' ');
-            write(getY(prev.y));
+            write(prevY);
+            ++coordsWriteCount;
 
-            int nCoords = coords.length;
+            int nCoords = coords.size();
             write('l');
 
             for (int i = 1; i < nCoords; i++) {
-                curr = coords[i];
+                double currX = getX(coords.getX(i));
+                double currY = getY(coords.getY(i));
+                double dx = currX - prevX;
+                double dy = currY - prevY;
 
                 // let at least 3 points in case it is a polygon
-                if ((i > 3) && (prev.distance(curr) <= minCoordDistance)) {
+                if ((i > 3) && (Math.sqrt(dx * dx + dy * dy) <= minCoordDistance)) {
                     ++coordsSkipCount;
 
                     continue;
                 }
 
                 ++coordsWriteCount;
-                write((getX(curr.x) - getX(prev.x)));
+                write(dx);
                 write(' ');
-                write(getY(curr.y) - getY(prev.y));
+                write(dy);
                 write(' ');
-                prev = curr;
+                prevX = currX;
+                prevY = currY;
             }
         }
 
-        protected void writeClosedPathContent(Coordinate[] coords) throws IOException {
+        protected void writeClosedPathContent(CoordinateSequence coords) throws IOException {
             writePathContent(coords);
             write('Z');
         }
@@ -695,7 +763,7 @@ class SVGWriter extends OutputStreamWriter {
         }
 
         protected void writeGeometry(Geometry geom) throws IOException {
-            writePathContent(((LineString) geom).getCoordinates());
+            writePathContent(((LineString) geom).getCoordinateSequence());
         }
     }
 
@@ -740,10 +808,10 @@ class SVGWriter extends OutputStreamWriter {
             Polygon poly = (Polygon) geom;
             LineString shell = poly.getExteriorRing();
             int nHoles = poly.getNumInteriorRing();
-            writeClosedPathContent(shell.getCoordinates());
+            writeClosedPathContent(shell.getCoordinateSequence());
 
             for (int i = 0; i < nHoles; i++)
-                writeClosedPathContent(poly.getInteriorRingN(i).getCoordinates());
+                writeClosedPathContent(poly.getInteriorRingN(i).getCoordinateSequence());
         }
     }
 
@@ -8,8 +8,11 @@ package org.geoserver.wms.svg;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.List;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import org.apache.commons.io.output.CountingOutputStream;
+import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.WMSMapContent;
 import org.geoserver.wms.WebMap;
 import org.geotools.data.DataUtilities;
@@ -19,6 +22,7 @@ import org.geotools.data.simple.SimpleFeatureSource;
 import org.geotools.factory.CommonFactoryFinder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.Layer;
+import org.geotools.util.Converters;
 import org.opengis.feature.simple.SimpleFeatureType;
 import org.opengis.feature.type.GeometryDescriptor;
 import org.opengis.filter.FilterFactory2;
@@ -46,6 +50,19 @@ public class StreamingSVGMap extends WebMap {
     /** the SVG closing element */
     private static final String SVG_FOOTER = "</svg>\n";
 
+    /**
+     * Format option enabling screen space output, with the given number of sub-pixel digits
+     */
+    public static final String PRECISION_FORMAT_OPTION = "svgPrecision";
+
+    /**
+     * Default screen space precision, if not set screen space output is used only on demand via
+     * the {@link #PRECISION_FORMAT_OPTION} format option
+     */
+    static final Integer DEFAULT_PRECISION = Integer.getInteger("org.geoserver.wms.svg.precision");
+
+    static final int MAX_PRECISION = 6;
+
     private SVGWriter writer;
 
     /**
@@ -60,8 +77,14 @@ public class StreamingSVGMap extends WebMap {
 
     public void encode(final OutputStream out) throws IOException {
         Envelope env = this.mapContent.getRenderingArea();
-        this.writer = new SVGWriter(out, mapContent.getRenderingArea());
-        writer.setMinCoordDistance(env.getWidth() / 1000);
+        CountingOutputStream counter = new CountingOutputStream(out);
+        this.writer = new SVGWriter(counter, mapContent.getRenderingArea());
+        Integer precision = getPrecision();
+        if (precision != null) {
+            writer.setScreenSpace(mapContent.getMapWidth(), mapContent.getMapHeight(), precision);
+        } else {
+            writer.setMinCoordDistance(env.getWidth() / 1000);
+        }
 
         long t = System.currentTimeMillis();
 
@@ -75,9 +98,39 @@ public class StreamingSVGMap extends WebMap {
         t = System.currentTimeMillis() - t;
         LOGGER.info("SVG generated in " + t + " ms");
 
+        SVGEncodingStatistics.update(writer.getCoordsWriteCount(), writer.getCoordsSkipCount(),
+                counter.getByteCount());
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("SVG vertices written: " + writer.getCoordsWriteCount() + ", skipped: "
+                    + writer.getCoordsSkipCount() + ", bytes: " + counter.getByteCount());
+        }
+    }
+
+    /**
+     * Returns the number of sub-pixel digits to be used for screen space output, or null if the
+     * map is to be encoded in world coordinates
+     */
+    Integer getPrecision() {
+        Integer precision = DEFAULT_PRECISION;
+        GetMapRequest request = mapContent.getRequest();
+        if (request != null) {
+            Object value = request.getFormatOptions().get(PRECISION_FORMAT_OPTION);
+            if (value != null) {
+                precision = Converters.convert(value, Integer.class);
+            }
+        }
+        if (precision == null || precision < 0) {
+            return null;
+        }
+        return Math.min(precision, MAX_PRECISION);
     }
 
     public String createViewBox() {
+        if (writer.isScreenSpace()) {
+            double unitsPerPixel = Math.pow(10, getPrecision());
+            return "0 0 " + Math.round(mapContent.getMapWidth() * unitsPerPixel) + " "
+                    + Math.round(mapContent.getMapHeight() * unitsPerPixel);
+        }
         Envelope referenceSpace = mapContent.getRenderingArea();
         String viewBox = writer.getX(referenceSpace.getMinX()) + " "
                 + (writer.getY(referenceSpace.getMinY()) - referenceSpace.getHeight()) + " "
@@ -0,0 +1,170 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.legendgraphic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.easymock.EasyMock;
+import org.geoserver.catalog.StyleInfo;
+import org.geoserver.catalog.WorkspaceInfo;
+import org.geoserver.catalog.event.CatalogPostModifyEvent;
+import org.geoserver.ows.LocalWorkspace;
+import org.geoserver.wms.GetLegendGraphicRequest;
+import org.geotools.feature.NameImpl;
+import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeatureType;
+
+import com.vividsolutions.jts.geom.Polygon;
+
+public class LegendGraphicCacheTest {
+
+    GetLegendGraphicRequest request(String... kvp) {
+        Map<String, String> rawKvp = new HashMap<String, String>();
+        for (int i = 0; i < kvp.length; i += 2) {
+            rawKvp.put(kvp[i], kvp[i + 1]);
+        }
+        GetLegendGraphicRequest request = new GetLegendGraphicRequest();
+        request.setRawKvp(rawKvp);
+        request.setFormat("image/png", cache.getGeneration());
+        return request;
+    }
+
+    @Test
+    public void testKey() {
+        LegendGraphicCache cache = new LegendGraphicCache(1024);
+        String k1 = cache.getKey(request("LAYER", "topp:states", "WIDTH", "20", "REQUEST",
+                "GetLegendGraphic"));
+        String k2 = cache.getKey(request("WIDTH", "20", "LAYER", "topp:states", "VERSION",
+                "1.1.1"));
+        String k3 = cache.getKey(request("WIDTH", "30", "LAYER", "topp:states"));
+        assertNotNull(k1);
+        assertEquals(k1, k2);
+        assertFalse(k1.equals(k3));
+
+        // inline and remote styles are not cached
+        assertNull(cache.getKey(request("LAYER", "topp:states", "SLD_BODY", "<sld/>")));
+        assertNull(cache.getKey(request("LAYER", "topp:states", "SLD", "http://foo/bar.sld")));
+    }
+
+    @Test
+    public void testKeyResolvedLayers() {
+        LegendGraphicCache cache = new LegendGraphicCache(1024);
+        GetLegendGraphicRequest sf = request("LAYER", "states");
+        sf.setLayer(featureType("http://www.opengis.net/sf", "states"));
+        GetLegendGraphicRequest cite = request("LAYER", "states");
+        cite.setLayer(featureType("http://www.opengis.net/cite", "states"));
+        assertFalse(cache.getKey(sf).equals(cache.getKey(cite)));
+
+        // same request in a different virtual service
+        String global = cache.getKey(sf);
+        WorkspaceInfo ws = EasyMock.createNiceMock(WorkspaceInfo.class);
+        EasyMock.expect(ws.getName()).andReturn("sf").anyTimes();
+        EasyMock.replay(ws);
+        LocalWorkspace.set(ws);
+        try {
+            assertFalse(global.equals(cache.getKey(sf)));
+        } finally {
+            LocalWorkspace.remove();
+        }
+    }
+
+    SimpleFeatureType featureType(String namespace, String name) {
+        SimpleFeatureTypeBuilder tb = new SimpleFeatureTypeBuilder();
+        tb.setName(new NameImpl(namespace, name));
+        tb.add("the_geom", Polygon.class);
+        return tb.buildFeatureType();
+    }
+
+    @Test
+    public void testDisabled() {
+        LegendGraphicCache cache = new LegendGraphicCache(0);
+        assertFalse(cache.isEnabled());
+        assertNull(cache.getKey(request("LAYER", "topp:states")));
+    }
+
+    @Test
+    public void testPutGet() {
+        LegendGraphicCache cache = new LegendGraphicCache(1024);
+        assertNull(cache.get("a"));
+        EncodedLegendGraphic legend = cache.put("a", new byte[] { 1, 2, 3 }, "image/png",
+                cache.getGeneration());
+        assertSame(legend, cache.get("a"));
+        assertEquals("image/png", legend.getMimeType());
+        assertTrue(legend.getEtag().startsWith("\"") && legend.getEtag().endsWith("\""));
+        assertFalse(legend.isNotModified());
+        assertTrue(legend.notModified().isNotModified());
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        // same contents, same etag
+        EncodedLegendGraphic other = cache.put("b", new byte[] { 1, 2, 3 }, "image/png",
+                cache.getGeneration());
+        assertEquals(legend.getEtag(), other.getEtag());
+        EncodedLegendGraphic different = cache.put("c", new byte[] { 3, 2, 1 }, "image/png",
+                cache.getGeneration());
+        assertFalse(legend.getEtag().equals(different.getEtag()));
+    }
+
+    @Test
+    public void testEviction() {
+        LegendGraphicCache cache = new LegendGraphicCache(10);
+        cache.put("a", new byte[4], "image/png", cache.getGeneration());
+        cache.put("b", new byte[4], "image/png", cache.getGeneration());
+        // touch a, so that b becomes the eldest
+        assertNotNull(cache.get("a"));
+        cache.put("c", new byte[4], "image/png", cache.getGeneration());
+        assertEquals(2, cache.getCount());
+        assertEquals(8, cache.getSize());
+        assertEquals(1, cache.getEvictions());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+
+        // too big to be cached
+        cache.put("d", new byte[11], "image/png", cache.getGeneration());
+        assertNull(cache.get("d"));
+        assertEquals(2, cache.getCount());
+    }
+
+    @Test
+    public void testStaleLegendNotStored() {
+        LegendGraphicCache cache = new LegendGraphicCache(1024);
+        long generation = cache.getGeneration();
+        // invalidated while the legend was being rendered
+        cache.clear();
+        EncodedLegendGraphic legend = cache.put("a", new byte[4], "image/png", generation);
+        assertNotNull(legend);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.getCount());
+
+        cache.put("a", new byte[4], "image/png", cache.getGeneration());
+        assertNotNull(cache.get("a"));
+    }
+
+    @Test
+    public void testStyleChangeInvalidates() {
+        LegendGraphicCache cache = new LegendGraphicCache(1024);
+        cache.put("a", new byte[4], "image/png", cache.getGeneration());
+
+        CatalogPostModifyEvent event = EasyMock.createNiceMock(CatalogPostModifyEvent.class);
+        EasyMock.expect(event.getSource()).andReturn(EasyMock.createNiceMock(StyleInfo.class))
+                .anyTimes();
+        EasyMock.replay(event);
+
+        cache.handlePostModifyEvent(event);
+        assertEquals(0, cache.getCount());
+        assertEquals(0, cache.getSize());
+    }
+}
@@ -0,0 +1,119 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.geotools.data.DataUtilities;
+import org.geotools.factory.CommonFactoryFinder;
+import org.geotools.feature.simple.SimpleFeatureBuilder;
+import org.geotools.filter.text.ecql.ECQL;
+import org.junit.Test;
+import org.opengis.feature.simple.SimpleFeature;
+import org.opengis.feature.simple.SimpleFeatureType;
+import org.opengis.filter.Filter;
+import org.opengis.filter.FilterFactory;
+import org.opengis.filter.Id;
+import org.opengis.filter.identity.FeatureId;
+
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.io.WKTReader;
+
+public class FilterPreprocessorTest {
+
+    static final FilterFactory FF = CommonFactoryFinder.getFilterFactory(null);
+
+    Id buildIdFilter(int count) {
+        Set<FeatureId> ids = new HashSet<FeatureId>();
+        for (int i = 0; i < count; i++) {
+            ids.add(FF.featureId("poi." + i));
+        }
+        return FF.id(ids);
+    }
+
+    SimpleFeature buildFeature(String fid, String wkt) throws Exception {
+        SimpleFeatureType type = DataUtilities.createType("poi", "geom:Point,name:String");
+        Point point = (Point) new WKTReader().read(wkt);
+        return SimpleFeatureBuilder.build(type, new Object[] { point, fid }, fid);
+    }
+
+    @Test
+    public void testSmallIdFilterNotHashed() {
+        FilterPreprocessor preprocessor = new FilterPreprocessor(10);
+        List<Filter> result = preprocessor.preprocess(null,
+                Arrays.asList((Filter) buildIdFilter(3)));
+        assertFalse(result.get(0) instanceof HashedIdFilter);
+        assertEquals(3, ((Id) result.get(0)).getIDs().size());
+    }
+
+    @Test
+    public void testLargeIdFilterHashed() throws Exception {
+        FilterPreprocessor preprocessor = new FilterPreprocessor(10);
+        Id original = buildIdFilter(1000);
+        List<Filter> result = preprocessor.preprocess(null, Arrays.asList((Filter) original));
+        assertTrue(result.get(0) instanceof HashedIdFilter);
+        Id hashed = (Id) result.get(0);
+        assertEquals(original.getIDs(), hashed.getIDs());
+
+        SimpleFeature inside = buildFeature("poi.500", "POINT(0 0)");
+        SimpleFeature outside = buildFeature("poi.1000", "POINT(0 0)");
+        assertTrue(hashed.evaluate(inside));
+        assertFalse(hashed.evaluate(outside));
+        assertEquals(original.evaluate(inside), hashed.evaluate(inside));
+        assertEquals(original.evaluate(outside), hashed.evaluate(outside));
+    }
+
+    @Test
+    public void testNestedIdFilterHashed() throws Exception {
+        FilterPreprocessor preprocessor = new FilterPreprocessor(10);
+        Filter filter = FF.and(buildIdFilter(100), ECQL.toFilter("name = 'poi.5'"));
+        List<Filter> result = preprocessor.preprocess(null, Arrays.asList(filter));
+        assertTrue(result.get(0).evaluate(buildFeature("poi.5", "POINT(0 0)")));
+        assertFalse(result.get(0).evaluate(buildFeature("poi.500", "POINT(0 0)")));
+    }
+
+    @Test
+    public void testSpatialFilter() throws Exception {
+        FilterPreprocessor preprocessor = new FilterPreprocessor(10);
+        Filter filter = ECQL.toFilter("INTERSECTS(geom, POLYGON((0 0, 10 0, 10 10, 0 10, 0 0)))");
+        Filter result = preprocessor.preprocess(null, Arrays.asList(filter)).get(0);
+        assertTrue(result.evaluate(buildFeature("poi.1", "POINT(5 5)")));
+        assertFalse(result.evaluate(buildFeature("poi.2", "POINT(15 5)")));
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        FilterPreprocessor preprocessor = new FilterPreprocessor(2);
+        List<Filter> filters = Arrays.asList((Filter) buildIdFilter(100));
+
+        List<Filter> r1 = preprocessor.preprocess("a", filters);
+        List<Filter> r2 = preprocessor.preprocess("a", Arrays.asList((Filter) buildIdFilter(100)));
+        // same filter instances, but not the same list
+        assertNotSame(r1, r2);
+        assertSame(r1.get(0), r2.get(0));
+        assertEquals(1, preprocessor.getCachedCount());
+
+        // the cache is bounded
+        preprocessor.preprocess("b", filters);
+        preprocessor.preprocess("c", filters);
+        assertEquals(2, preprocessor.getCachedCount());
+        assertNotSame(r1.get(0), preprocessor.preprocess("a", filters).get(0));
+
+        // no caching without a key
+        preprocessor.clear();
+        preprocessor.preprocess(null, filters);
+        assertEquals(0, preprocessor.getCachedCount());
+    }
+}
@@ -6,6 +6,7 @@
 package org.geoserver.wms.map;
 
 import static org.geoserver.data.test.SystemTestData.STREAMS;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -13,6 +14,7 @@ import static org.junit.Assert.fail;
 import java.awt.Color;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
 import java.awt.image.RenderedImage;
 import java.io.IOException;
 import java.util.List;
@@ -40,13 +42,16 @@ import org.geotools.feature.IllegalAttributeException;
 import org.geotools.filter.IllegalFilterException;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.FeatureLayer;
+import org.geotools.referencing.CRS;
 import org.geotools.referencing.crs.DefaultGeographicCRS;
 import org.geotools.styling.Style;
+import org.geotools.styling.StyleBuilder;
 import org.geotools.util.logging.Logging;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.opengis.referencing.FactoryException;
+import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.TransformException;
 
 import com.vividsolutions.jts.geom.Envelope;
@@ -300,6 +305,175 @@ public class RenderedImageMapOutputFormatTest extends WMSTestSupport {
         return image;
     }
 
+    /**
+     * Large maps are rendered in strips, the result must match the map rendered in one go,
+     * labels included
+     */
+    @Test
+    public void testStripedRendering() throws Exception {
+        RenderedImageMap fullMap = produceLabelledMap(new PNGMapProducer(getWMS(), 0, 0), true);
+        RenderedImage full = fullMap.getImage();
+        assertTrue(full instanceof BufferedImage);
+
+        // a strip height that does not divide the map height, and cuts through the labels
+        RenderedImageMap stripedMap = produceLabelledMap(new PNGMapProducer(getWMS(), 1, 37),
+                true);
+        RenderedImage striped = stripedMap.getImage();
+        assertTrue(striped instanceof StripedRenderedImage);
+        assertEquals(6, ((StripedRenderedImage) striped).getPaintedStrips());
+
+        // the labels are there, and in the same places
+        RenderedImageMap unlabelledMap = produceLabelledMap(new PNGMapProducer(getWMS(), 1, 37),
+                false);
+        assertTrue(countDifferentPixels(striped, unlabelledMap.getImage()) > 100);
+        assertTrue(countDifferentPixels(full, striped) < full.getWidth() * full.getHeight()
+                / 1000);
+
+        fullMap.dispose();
+        stripedMap.dispose();
+        unlabelledMap.dispose();
+    }
+
+    /**
+     * Rendering errors in striped maps are reported by produceMap, before any encoding happens
+     */
+    @Test
+    public void testStripedRenderingErrors() throws Exception {
+        this.rasterMapProducer = new PNGMapProducer(getWMS(), 1, 16);
+        try {
+            forceRenderingError(new RuntimeException("fake runtime exception"));
+            fail("Expected WMSException");
+        } catch (ServiceException e) {
+            assertTrue(true);
+        }
+    }
+
+    /**
+     * With a north/east CRS, like EPSG:4326 in WMS 1.3.0, the strips cut the latitude axis, the
+     * first one
+     */
+    @Test
+    public void testStripedRenderingNorthEast() throws Exception {
+        RenderedImageMap fullMap = produceLabelledMap(new PNGMapProducer(getWMS(), 0, 0), true,
+                true);
+        RenderedImage full = fullMap.getImage();
+        assertTrue(full instanceof BufferedImage);
+
+        RenderedImageMap stripedMap = produceLabelledMap(new PNGMapProducer(getWMS(), 1, 37),
+                true, true);
+        RenderedImage striped = stripedMap.getImage();
+        assertTrue(striped instanceof StripedRenderedImage);
+        assertEquals(6, ((StripedRenderedImage) striped).getPaintedStrips());
+
+        // about the same as the east/north map, and the same in strips or not
+        RenderedImageMap eastNorthMap = produceLabelledMap(new PNGMapProducer(getWMS(), 0, 0),
+                true, false);
+        assertTrue(countDifferentPixels(full, eastNorthMap.getImage()) < full.getWidth()
+                * full.getHeight() / 100);
+        assertTrue(countDifferentPixels(full, striped) < full.getWidth() * full.getHeight()
+                / 1000);
+
+        fullMap.dispose();
+        stripedMap.dispose();
+        eastNorthMap.dispose();
+    }
+
+    private RenderedImageMap produceLabelledMap(RenderedImageMapOutputFormat producer,
+            boolean labels) throws Exception {
+        return produceLabelledMap(producer, labels, false);
+    }
+
+    private RenderedImageMap produceLabelledMap(RenderedImageMapOutputFormat producer,
+            boolean labels, boolean northEast) throws Exception {
+        Catalog catalog = getCatalog();
+        FeatureSource lakes = catalog.getFeatureTypeByName(MockData.LAKES.getNamespaceURI(),
+                MockData.LAKES.getLocalPart()).getFeatureSource(null, null);
+        FeatureSource places = catalog.getFeatureTypeByName(
+                MockData.NAMED_PLACES.getNamespaceURI(), MockData.NAMED_PLACES.getLocalPart())
+                .getFeatureSource(null, null);
+        Envelope env = lakes.getBounds();
+        env.expandToInclude(places.getBounds());
+        env.expandBy(env.getWidth() / 10);
+
+        StyleBuilder sb = new StyleBuilder();
+        Style style = sb.createStyle(sb.createPolygonSymbolizer(Color.BLUE, Color.BLACK, 1));
+        if (labels) {
+            style.featureTypeStyles().get(0).rules().get(0).symbolizers()
+                    .add(sb.createTextSymbolizer(Color.BLACK, sb.createFont("Serif", 14), "NAME"));
+        }
+
+        GetMapRequest request = new GetMapRequest();
+        request.setFormat("image/png");
+        request.getFormatOptions().put("antialias", "none");
+        WMSMapContent map = new WMSMapContent();
+        map.setRequest(request);
+        if (northEast) {
+            // as a WMS 1.3.0 request in EPSG:4326 would have it
+            request.setVersion("1.3.0");
+            CoordinateReferenceSystem crs = CRS.decode("urn:ogc:def:crs:EPSG::4326");
+            assertEquals(CRS.AxisOrder.NORTH_EAST, CRS.getAxisOrder(crs));
+            request.setCrs(crs);
+            map.getViewport().setBounds(new ReferencedEnvelope(env.getMinY(), env.getMaxY(),
+                    env.getMinX(), env.getMaxX(), crs));
+        } else {
+            map.getViewport().setBounds(new ReferencedEnvelope(env, DefaultGeographicCRS.WGS84));
+        }
+        map.setMapWidth(300);
+        map.setMapHeight(200);
+        map.setBgColor(Color.WHITE);
+        map.setTransparent(false);
+        map.addLayer(new FeatureLayer(lakes, style));
+        map.addLayer(new FeatureLayer(places, style));
+
+        return producer.produceMap(map);
+    }
+
+    private int countDifferentPixels(RenderedImage image1, RenderedImage image2) {
+        assertEquals(image1.getWidth(), image2.getWidth());
+        assertEquals(image1.getHeight(), image2.getHeight());
+        Raster data1 = image1.getData();
+        Raster data2 = image2.getData();
+        int bands = Math.min(data1.getNumBands(), data2.getNumBands());
+        int differences = 0;
+        for (int y = 0; y < image1.getHeight(); y++) {
+            for (int x = 0; x < image1.getWidth(); x++) {
+                for (int b = 0; b < bands; b++) {
+                    if (data1.getSample(x, y, b) != data2.getSample(x, y, b)) {
+                        differences++;
+                        break;
+                    }
+                }
+            }
+        }
+        return differences;
+    }
+
+    /**
+     * A PNG producer with a custom striping setup
+     */
+    private static class PNGMapProducer extends RenderedImageMapOutputFormat {
+
+        long stripingThreshold;
+
+        int stripHeight;
+
+        public PNGMapProducer(WMS wms, long stripingThreshold, int stripHeight) {
+            super("image/png", new String[] { "image/png" }, wms);
+            this.stripingThreshold = stripingThreshold;
+            this.stripHeight = stripHeight;
+        }
+
+        @Override
+        long getMapStripingThreshold() {
+            return stripingThreshold;
+        }
+
+        @Override
+        int getMapStripHeight() {
+            return stripHeight;
+        }
+    }
+
     /**
      * This dummy producer adds no functionality to DefaultRasterMapOutputFormat, just implements a
      * void formatImageOutputStream to have a concrete class over which test that
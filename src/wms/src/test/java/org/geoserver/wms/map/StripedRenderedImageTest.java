@@ -0,0 +1,126 @@
+/* (c) 2014 Open Source Geospatial Foundation - all rights reserved
+ * (c) 2001 - 2013 OpenPlans
+ * This code is licensed under the GPL 2.0 license, available at the root
+ * application directory.
+ */
+package org.geoserver.wms.map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class StripedRenderedImageTest {
+
+    /**
+     * Paints each row with a gray level depending on its position in the full image
+     */
+    static class RowPainter implements StripedRenderedImage.StripPainter {
+
+        List<Rectangle> painted = new ArrayList<Rectangle>();
+
+        public BufferedImage createStrip(int width, int height) {
+            return new BufferedImage(width, height, BufferedImage.TYPE_4BYTE_ABGR);
+        }
+
+        public void paint(BufferedImage strip, Rectangle bounds) {
+            painted.add(bounds);
+            Graphics2D graphics = strip.createGraphics();
+            for (int y = 0; y < bounds.height; y++) {
+                int level = (bounds.y + y) % 256;
+                graphics.setColor(new Color(level, level, level));
+                graphics.drawLine(0, y, bounds.width, y);
+            }
+            graphics.dispose();
+        }
+    }
+
+    @Test
+    public void testLayout() {
+        RowPainter painter = new RowPainter();
+        StripedRenderedImage image = new StripedRenderedImage(100, 250, 64, painter);
+        assertEquals(100, image.getWidth());
+        assertEquals(250, image.getHeight());
+        assertEquals(100, image.getTileWidth());
+        assertEquals(64, image.getTileHeight());
+        assertEquals(1, image.getNumXTiles());
+        assertEquals(4, image.getNumYTiles());
+        assertEquals(4, image.getSampleModel().getNumBands());
+        // nothing painted until paintStrips is called
+        assertEquals(0, image.getPaintedStrips());
+        assertNull(image.getTile(0, 4));
+    }
+
+    @Test
+    public void testSequentialRead() {
+        RowPainter painter = new RowPainter();
+        StripedRenderedImage image = new StripedRenderedImage(100, 250, 64, painter);
+        image.paintStrips();
+        assertEquals(4, image.getPaintedStrips());
+        assertTrue(image.getCompressedSize() > 0);
+        for (int ty = 0; ty < image.getNumYTiles(); ty++) {
+            // the encoders might ask for the same tile more than once
+            Raster tile = image.getTile(0, ty);
+            tile = image.getTile(0, ty);
+            assertEquals(ty * 64, tile.getMinY());
+            int maxY = Math.min(tile.getMinY() + tile.getHeight(), image.getHeight());
+            for (int y = tile.getMinY(); y < maxY; y++) {
+                assertEquals(y % 256, tile.getSample(50, y, 0));
+            }
+        }
+        // reading the image again does not paint anything
+        image.getData();
+        // each strip painted just once
+        assertEquals(4, image.getPaintedStrips());
+        assertEquals(4, painter.painted.size());
+        assertEquals(new Rectangle(0, 192, 100, 58), painter.painted.get(3));
+    }
+
+    @Test
+    public void testGetData() {
+        RowPainter painter = new RowPainter();
+        StripedRenderedImage image = new StripedRenderedImage(10, 100, 16, painter);
+        image.paintStrips();
+        Raster data = image.getData();
+        assertEquals(100, data.getHeight());
+        for (int y = 0; y < 100; y++) {
+            assertEquals(y, data.getSample(5, y, 1));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testNotPainted() {
+        StripedRenderedImage image = new StripedRenderedImage(10, 100, 16, new RowPainter());
+        image.getTile(0, 0);
+    }
+
+    @Test
+    public void testPaintFailure() {
+        RowPainter painter = new RowPainter() {
+            public void paint(BufferedImage strip, Rectangle bounds) {
+                if (bounds.y > 0) {
+                    throw new IllegalArgumentException("Rendering failed");
+                }
+                super.paint(strip, bounds);
+            }
+        };
+        StripedRenderedImage image = new StripedRenderedImage(10, 100, 16, painter);
+        try {
+            image.paintStrips();
+            fail("The painting error should have been propagated");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Rendering failed", e.getMessage());
+        }
+        assertEquals(1, image.getPaintedStrips());
+    }
+}
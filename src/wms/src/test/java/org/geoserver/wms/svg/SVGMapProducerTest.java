@@ -5,16 +5,23 @@
  */
 package org.geoserver.wms.svg;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
 import java.awt.Color;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.custommonkey.xmlunit.XMLAssert;
 import org.custommonkey.xmlunit.XMLUnit;
+import org.geoserver.wms.GetMapRequest;
 import org.geoserver.wms.WMSMapContent;
 import org.geoserver.wms.WMSTestSupport;
 import org.geotools.data.FeatureSource;
@@ -24,6 +31,7 @@ import org.geotools.feature.simple.SimpleFeatureTypeBuilder;
 import org.geotools.geometry.jts.ReferencedEnvelope;
 import org.geotools.map.FeatureLayer;
 import org.geotools.styling.Style;
+import org.geotools.util.logging.Logging;
 import org.junit.Test;
 import org.opengis.feature.simple.SimpleFeature;
 import org.opengis.feature.simple.SimpleFeatureType;
@@ -36,9 +44,11 @@ import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.LineString;
 import com.vividsolutions.jts.geom.Point;
 import com.vividsolutions.jts.geom.Polygon;
+import com.vividsolutions.jts.util.GeometricShapeFactory;
 
 public class SVGMapProducerTest extends WMSTestSupport{
 
+    static final Logger LOGGER = Logging.getLogger(SVGMapProducerTest.class);
   
     @Test
     public void testHeterogeneousGeometry() throws Exception {
@@ -110,4 +120,107 @@ public class SVGMapProducerTest extends WMSTestSupport{
         XMLUnit.setIgnoreComments(true);
         XMLAssert.assertXMLEqual(expected, result);
     }
+
+    @Test
+    public void testHeterogeneousGeometryScreenSpace() throws Exception {
+        GeometryFactory gf = new GeometryFactory();
+        Point point = gf.createPoint(new Coordinate(10, 10));
+        LineString line = gf.createLineString(new Coordinate[] { new Coordinate(50, 50),
+                new Coordinate(100, 100) });
+        Polygon polygon = gf.createPolygon(
+                gf.createLinearRing(new Coordinate[] { new Coordinate(0, 0),
+                        new Coordinate(0, 200), new Coordinate(200, 200), new Coordinate(200, 0),
+                        new Coordinate(0, 0) }), null);
+
+        ByteArrayOutputStream out = encode(0, point, line, polygon);
+
+        String expectedDoc = "<?xml version=\"1.0\" standalone=\"no\"?>"
+                + "<svg xmlns=\"http://www.w3.org/2000/svg\" " //
+                + "    xmlns:xlink=\"http://www.w3.org/1999/xlink\" " //
+                + "    stroke=\"green\"  "//
+                + "    fill=\"none\"  " //
+                + "    stroke-width=\"0.1%\" " //
+                + "    stroke-linecap=\"round\" "//
+                + "    stroke-linejoin=\"round\" "//
+                + "    width=\"300\"  "//
+                + "    height=\"300\"  " //
+                + "    viewBox=\"0 0 300 300\"  "//
+                + "    preserveAspectRatio=\"xMidYMid meet\"> "//
+                + "  <g id=\"test\" class=\"Default\"> "//
+                + "    <use x=\"156\" y=\"144\" xlink:href=\"#point\"/> "//
+                + "    <path d=\"M180 120l30 -30 \"/> "//
+                + "    <path d=\"M150 150l0 -120 120 0 0 120 -120 0 Z\"/> "//
+                + "  </g> "//
+                + "</svg> ";
+
+        DocumentBuilder builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        Document expected = builder.parse(new InputSource(new StringReader(expectedDoc)));
+        Document result = builder.parse(new ByteArrayInputStream(out.toByteArray()));
+
+        XMLUnit.setIgnoreWhitespace(true);
+        XMLUnit.setIgnoreAttributeOrder(true);
+        XMLUnit.setIgnoreComments(true);
+        XMLAssert.assertXMLEqual(expected, result);
+    }
+
+    @Test
+    public void testLargePolygonGeneralization() throws Exception {
+        // a polygon with way more vertices than pixels along its outline
+        GeometricShapeFactory shapes = new GeometricShapeFactory();
+        shapes.setCentre(new Coordinate(0, 0));
+        shapes.setSize(400);
+        shapes.setNumPoints(200000);
+        Polygon circle = shapes.createCircle();
+
+        long start = System.currentTimeMillis();
+        ByteArrayOutputStream world = encode(-1, circle);
+        long worldTime = System.currentTimeMillis() - start;
+
+        SVGEncodingStatistics.reset();
+        start = System.currentTimeMillis();
+        ByteArrayOutputStream screen = encode(1, circle);
+        long screenTime = System.currentTimeMillis() - start;
+
+        LOGGER.info("World space SVG: " + world.size() + " bytes in " + worldTime
+                + "ms, screen space SVG: " + screen.size() + " bytes in " + screenTime + "ms");
+        assertTrue(screen.size() * 2 < world.size());
+        assertEquals(1, SVGEncodingStatistics.getEncodedMaps());
+        assertEquals(screen.size(), SVGEncodingStatistics.getBytesWritten());
+        assertTrue(SVGEncodingStatistics.getVertexReduction() > 0.9);
+        assertTrue(SVGEncodingStatistics.getEstimatedBytesSaved() > 0);
+    }
+
+    ByteArrayOutputStream encode(int precision, Geometry... geometries) throws Exception {
+        SimpleFeatureTypeBuilder ftb = new SimpleFeatureTypeBuilder();
+        ftb.setName("test");
+        ftb.add("geom", Geometry.class);
+        SimpleFeatureType type = ftb.buildFeatureType();
+
+        MemoryDataStore ds = new MemoryDataStore();
+        ds.createSchema(type);
+        for (Geometry geometry : geometries) {
+            ds.addFeature(SimpleFeatureBuilder.build(type, new Object[] { geometry }, null));
+        }
+        FeatureSource fs = ds.getFeatureSource("test");
+
+        GetMapRequest request = new GetMapRequest();
+        Map<String, Object> formatOptions = new HashMap<String, Object>();
+        formatOptions.put(StreamingSVGMap.PRECISION_FORMAT_OPTION, String.valueOf(precision));
+        request.setFormatOptions(formatOptions);
+
+        final WMSMapContent map = new WMSMapContent(request);
+        map.getViewport().setBounds(new ReferencedEnvelope(-250, 250, -250, 250, null));
+        map.setMapWidth(300);
+        map.setMapHeight(300);
+        map.setTransparent(false);
+
+        Style basicStyle = getCatalog().getStyleByName("Default").getStyle();
+        map.addLayer(new FeatureLayer(fs, basicStyle));
+
+        SVGStreamingMapOutputFormat producer = new SVGStreamingMapOutputFormat();
+        StreamingSVGMap encodeSVG = producer.produceMap(map);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        encodeSVG.encode(out);
+        return out;
+    }
 }
@@ -568,6 +568,31 @@ public class GetFeatureInfoTest extends WMSTestSupport {
         XMLAssert.assertXpathEvaluatesTo("1", "count(//cite:Lakes)", dom);
     }
 
+    @Test
+    public void testManyLayersOrderAndFeatureCount() throws Exception {
+        // same as above, but the layers are identified in parallel, the results must still
+        // follow the query layers order
+        String lakes = getLayerId(MockData.LAKES);
+        String forests = getLayerId(MockData.FORESTS);
+        String layer = lakes + "," + forests + "," + lakes + "," + forests;
+        String request = "wms?REQUEST=GetFeatureInfo&EXCEPTIONS=application%2Fvnd.ogc.se_xml&" +
+                "BBOX=-0.002356%2C-0.004819%2C0.005631%2C0.004781&SERVICE=WMS&VERSION=1.1.0&X=267&Y=325" +
+                "&INFO_FORMAT=application/vnd.ogc.gml" +
+                "&QUERY_LAYERS=" + layer + "&Layers=" + layer + " &Styles=&WIDTH=426&HEIGHT=512" +
+                "&format=image%2Fpng&srs=EPSG%3A4326";
+        Document dom = getAsDOM(request);
+        XMLAssert.assertXpathEvaluatesTo("1", "count(//gml:featureMember)", dom);
+        XMLAssert.assertXpathEvaluatesTo("1", "count(//cite:Lakes)", dom);
+
+        dom = getAsDOM(request + "&FEATURE_COUNT=3");
+        XMLAssert.assertXpathEvaluatesTo("3", "count(//gml:featureMember)", dom);
+        XMLAssert.assertXpathEvaluatesTo("2", "count(//cite:Lakes)", dom);
+        XMLAssert.assertXpathEvaluatesTo("1", "count(//cite:Forests)", dom);
+        XMLAssert.assertXpathEvaluatesTo("1", "count(//gml:featureMember[1]/cite:Lakes)", dom);
+        XMLAssert.assertXpathEvaluatesTo("1", "count(//gml:featureMember[2]/cite:Forests)", dom);
+        XMLAssert.assertXpathEvaluatesTo("1", "count(//gml:featureMember[3]/cite:Lakes)", dom);
+    }
+
 
     /**
      * Check GetFeatureInfo returns an error if the format is not known, instead
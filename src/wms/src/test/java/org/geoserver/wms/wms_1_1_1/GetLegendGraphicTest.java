@@ -6,21 +6,29 @@
 package org.geoserver.wms.wms_1_1_1;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 import javax.xml.namespace.QName;
 
 import org.geoserver.catalog.Catalog;
 import org.geoserver.data.test.MockData;
 import org.geoserver.data.test.SystemTestData;
+import org.geoserver.data.test.SystemTestData.LayerProperty;
 import org.geoserver.wms.WMSTestSupport;
 import org.geotools.util.Converters;
 import org.junit.Test;
 
+import com.mockrunner.mock.web.MockHttpServletRequest;
+import com.mockrunner.mock.web.MockHttpServletResponse;
+
 public class GetLegendGraphicTest extends WMSTestSupport {
    
     
@@ -40,6 +48,10 @@ public class GetLegendGraphicTest extends WMSTestSupport {
         testData.addVectorLayer(new QName(MockData.SF_URI, "states", MockData.SF_PREFIX),
                 Collections.EMPTY_MAP,"states.properties",
                 getClass(),catalog);
+        Map<LayerProperty, Object> properties = new HashMap<LayerProperty, Object>();
+        properties.put(LayerProperty.STYLE, "Lakes");
+        testData.addVectorLayer(new QName(MockData.CITE_URI, "states", MockData.CITE_PREFIX),
+                properties, "states.properties", getClass(), catalog);
 
     }
     
@@ -178,4 +190,56 @@ public class GetLegendGraphicTest extends WMSTestSupport {
         assertPixel(image, 1, 20, Color.WHITE);
     }
     
+    /**
+     * The same unqualified layer name resolves to different layers in different virtual services,
+     * the cached legend of one must not be returned for the other
+     */
+    @Test
+    public void testCachedLegendVirtualServices() throws Exception {
+        String request = "wms?service=WMS&version=1.1.1&request=GetLegendGraphic"
+                + "&layer=states&format=image/png&width=20&height=20";
+        BufferedImage sfImage = getAsImage("sf/" + request, "image/png");
+        BufferedImage citeImage = getAsImage("cite/" + request, "image/png");
+
+        Color lakes = Converters.convert("#4040C0", Color.class);
+        assertPixel(citeImage, 10, 10, lakes);
+        assertFalse(lakes.equals(new Color(sfImage.getRGB(10, 10))));
+
+        // and the other way around, now that both are cached
+        assertPixel(getAsImage("cite/" + request, "image/png"), 10, 10, lakes);
+        assertFalse(lakes.equals(new Color(getAsImage("sf/" + request, "image/png").getRGB(10,
+                10))));
+    }
+
+    /**
+     * Cached legends carry an entity tag, and conditional requests matching it get a 304
+     */
+    @Test
+    public void testCachedLegendNotModified() throws Exception {
+        String path = "wms?service=WMS&version=1.1.1&request=GetLegendGraphic"
+                + "&layer=" + getLayerId(MockData.LAKES) + "&style=Lakes"
+                + "&format=image/png&width=20&height=20";
+        MockHttpServletResponse response = getAsServletResponse(path);
+        assertEquals("image/png", response.getContentType());
+        String etag = response.getHeader("ETag");
+        assertNotNull(etag);
+
+        MockHttpServletRequest request = createRequest(path);
+        request.setMethod("GET");
+        request.setBodyContent(new byte[] {});
+        request.addHeader("If-None-Match", etag);
+        response = dispatch(request);
+        assertEquals(304, response.getStatusCode());
+        assertEquals(0, response.getOutputStreamContent().length());
+
+        // a stale tag gets the full legend
+        request = createRequest(path);
+        request.setMethod("GET");
+        request.setBodyContent(new byte[] {});
+        request.addHeader("If-None-Match", "\"abcd\"");
+        response = dispatch(request);
+        assertEquals(etag, response.getHeader("ETag"));
+        assertTrue(response.getOutputStreamContent().length() > 0);
+    }
+
 }